@@ -0,0 +1,176 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.aop;
+
+import org.objectweb.asm.*;
+import org.objectweb.asm.tree.*;
+
+import java.util.*;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Makes every write to the fields of an entity also set a modified flag on the entity,
+ * so that the unmodified entities don't need to be serialized at the end of a task.
+ * <p/>
+ * Only the writes in the entity class itself can be instrumented, so the tracking is conservative:
+ * entities which might be modified without writing their own fields (through the fields of a superclass,
+ * through public fields, or by mutating arrays, collections and other objects held in the fields)
+ * are not transformed, and subclasses of transformed entities always report themselves as modified.
+ */
+@SuppressWarnings({"unchecked"})
+public class AddModificationTrackingForEntities extends ClassNode {
+
+    private static final String MODIFIED_FIELD = "modified$ENTITY";
+    private static final String IS_MODIFIED_METHOD = "isModified$ENTITY";
+
+    private static final Set<String> IMMUTABLE_TYPES = new HashSet<>(Arrays.asList(
+            "Ljava/lang/String;",
+            "Ljava/lang/Boolean;",
+            "Ljava/lang/Byte;",
+            "Ljava/lang/Character;",
+            "Ljava/lang/Short;",
+            "Ljava/lang/Integer;",
+            "Ljava/lang/Long;",
+            "Ljava/lang/Float;",
+            "Ljava/lang/Double;",
+            "Ljava/math/BigInteger;",
+            "Ljava/math/BigDecimal;"
+    ));
+
+    private final String entityAnnotationDesc;
+    private final String entityInterface;
+    private final String trackedEntityInterface;
+    private final ClassVisitor cv;
+
+    public AddModificationTrackingForEntities(AopApi api, ClassVisitor cv) {
+        this.entityAnnotationDesc = "L" + api.getEntityAnnotation() + ";";
+        this.entityInterface = api.getEntityInterface();
+        this.trackedEntityInterface = api.getTrackedEntityInterface();
+        this.cv = cv;
+    }
+
+    public void visitEnd() {
+        if (isEntity() && canTrackAllWrites()) {
+            instrumentFieldWrites();
+            addModifiedField();
+            addIsModifiedMethod();
+            interfaces.add(trackedEntityInterface);
+        }
+        accept(cv);
+    }
+
+    private boolean isEntity() {
+        if ((access & ACC_INTERFACE) != 0) {
+            return false;
+        }
+        if (interfaces.contains(entityInterface)) {
+            return true;
+        }
+        for (AnnotationNode an : visibleAnnotations()) {
+            if (an.desc.equals(entityAnnotationDesc)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private List<AnnotationNode> visibleAnnotations() {
+        return visibleAnnotations != null ? visibleAnnotations : Collections.emptyList();
+    }
+
+    private boolean canTrackAllWrites() {
+        // the code of the superclass is not visible here, so it might modify its fields without us knowing
+        if (!superName.equals("java/lang/Object") || interfaces.contains(trackedEntityInterface)) {
+            return false;
+        }
+        for (FieldNode field : (List<FieldNode>) fields) {
+            if (isStaticOrTransient(field)) {
+                continue;
+            }
+            if ((field.access & ACC_PRIVATE) == 0 || !isImmutableType(field.desc)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isStaticOrTransient(FieldNode field) {
+        return (field.access & (ACC_STATIC | ACC_TRANSIENT)) != 0;
+    }
+
+    private boolean isImmutableType(String desc) {
+        Type type = Type.getType(desc);
+        return type.getSort() != Type.ARRAY && type.getSort() != Type.OBJECT
+                || IMMUTABLE_TYPES.contains(desc)
+                // the referred entities are serialized separately and track their own modifications
+                || desc.equals("L" + entityInterface + ";");
+    }
+
+    private void instrumentFieldWrites() {
+        for (MethodNode method : (List<MethodNode>) methods) {
+            boolean instrumented = false;
+            for (AbstractInsnNode insn : method.instructions.toArray()) {
+                if (isWriteToOwnField(insn)) {
+                    FieldInsnNode write = (FieldInsnNode) insn;
+                    method.instructions.insertBefore(write, setModifiedFlag(Type.getType(write.desc).getSize()));
+                    instrumented = true;
+                }
+            }
+            if (instrumented) {
+                method.maxStack += 2;
+            }
+        }
+    }
+
+    private boolean isWriteToOwnField(AbstractInsnNode insn) {
+        return insn.getOpcode() == PUTFIELD
+                && ((FieldInsnNode) insn).owner.equals(name);
+    }
+
+    private InsnList setModifiedFlag(int valueSize) {
+        // the stack contains [entity, value], and must be left that way for the original PUTFIELD
+        InsnList insns = new InsnList();
+        if (valueSize == 1) {
+            insns.add(new InsnNode(DUP2));
+            insns.add(new InsnNode(POP));
+        } else {
+            insns.add(new InsnNode(DUP2_X1));
+            insns.add(new InsnNode(POP2));
+            insns.add(new InsnNode(DUP_X2));
+        }
+        insns.add(new InsnNode(ICONST_1));
+        insns.add(new FieldInsnNode(PUTFIELD, name, MODIFIED_FIELD, "Z"));
+        return insns;
+    }
+
+    private void addModifiedField() {
+        fields.add(new FieldNode(ACC_PRIVATE | ACC_TRANSIENT | ACC_SYNTHETIC, MODIFIED_FIELD, "Z", null, null));
+    }
+
+    private void addIsModifiedMethod() {
+        MethodVisitor mv = visitMethod(ACC_PUBLIC, IS_MODIFIED_METHOD, "()Z", null, null);
+        Label modified = new Label();
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitFieldInsn(GETFIELD, name, MODIFIED_FIELD, "Z");
+        mv.visitJumpInsn(IFNE, modified);
+        // the writes in subclasses are not instrumented
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/Object", "getClass", "()Ljava/lang/Class;");
+        mv.visitLdcInsn(Type.getObjectType(name));
+        mv.visitJumpInsn(IF_ACMPNE, modified);
+        mv.visitInsn(ICONST_0);
+        mv.visitInsn(IRETURN);
+        mv.visitLabel(modified);
+        if ((version & 0xFFFF) >= V1_6) {
+            mv.visitFrame(F_SAME, 0, null, 0, null);
+        }
+        mv.visitInsn(ICONST_1);
+        mv.visitInsn(IRETURN);
+        mv.visitMaxs(2, 1);
+        mv.visitEnd();
+    }
+}
@@ -1,4 +1,4 @@
-// Copyright © 2008-2010 Esko Luontola <www.orfjackal.net>
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
 // This software is released under the Apache License 2.0.
 // The license text is at http://dimdwarf.sourceforge.net/LICENSE
 
@@ -17,6 +17,7 @@ public class AopTransformationChain extends AbstractTransformationChain {
 
     protected ClassVisitor getAdapters(ClassVisitor cv) {
         // the adapter declared last is processed first
+        cv = new AddModificationTrackingForEntities(api, cv);
         cv = new AddEqualsAndHashCodeMethodsForEntities(api, cv);
         cv = new AddMarkerInterfaceForEntities(api, cv);
         return cv;
@@ -1,4 +1,4 @@
-// Copyright © 2008-2010 Esko Luontola <www.orfjackal.net>
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
 // This software is released under the Apache License 2.0.
 // The license text is at http://dimdwarf.sourceforge.net/LICENSE
 
@@ -19,4 +19,8 @@ public class DimdwarfAopApi implements AopApi {
     public String getEntityHelperClass() {
         return "net/orfjackal/dimdwarf/entities/tref/EntityHelper";
     }
+
+    public String getTrackedEntityInterface() {
+        return "net/orfjackal/dimdwarf/api/internal/TrackedEntity";
+    }
 }
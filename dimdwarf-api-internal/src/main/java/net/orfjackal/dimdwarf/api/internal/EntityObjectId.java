@@ -1,4 +1,4 @@
-// Copyright © 2008-2010 Esko Luontola <www.orfjackal.net>
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
 // This software is released under the Apache License 2.0.
 // The license text is at http://dimdwarf.sourceforge.net/LICENSE
 
@@ -44,6 +44,10 @@ public class EntityObjectId implements EntityId, Serializable {
         return BigInteger.valueOf(id);
     }
 
+    public long toLong() {
+        return id;
+    }
+
     public String toString() {
         return getClass().getSimpleName() + "(" + id + ")";
     }
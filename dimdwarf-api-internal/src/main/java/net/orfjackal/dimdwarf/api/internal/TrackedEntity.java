@@ -0,0 +1,19 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.api.internal;
+
+/**
+ * Entities whose field writes are tracked, so that the system can skip serializing the entities
+ * which were not modified during a task. Entity classes will be automatically transformed to implement
+ * this interface, when all their state is held in fields whose writes can be tracked.
+ */
+public interface TrackedEntity {
+
+    /**
+     * Returns {@code true} if a field of this entity has been written since it was deserialized,
+     * or if the writes to its fields can not be tracked (for example in an untransformed subclass).
+     */
+    boolean isModified$ENTITY();
+}
@@ -0,0 +1,39 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.db;
+
+import javax.annotation.concurrent.Immutable;
+import java.nio.ByteBuffer;
+
+/**
+ * Adds together values which are 8-byte big-endian longs. A nonexistent key is treated as zero.
+ * Suits for counters which are incremented by many tasks at the same time.
+ */
+@Immutable
+public class AddLongs implements MergeOperator<Blob> {
+
+    public static final AddLongs INSTANCE = new AddLongs();
+
+    private AddLongs() {
+    }
+
+    public Blob merge(Blob value, Blob operand) {
+        return toBlob(toLong(value) + toLong(operand));
+    }
+
+    public static Blob toBlob(long value) {
+        return Blob.wrap(ByteBuffer.allocate(8).putLong(value).array());
+    }
+
+    public static long toLong(Blob value) {
+        if (value.length() == 0) {
+            return 0;
+        }
+        if (value.length() != 8) {
+            throw new IllegalArgumentException("Not a long: " + value);
+        }
+        return value.toByteBuffer().getLong();
+    }
+}
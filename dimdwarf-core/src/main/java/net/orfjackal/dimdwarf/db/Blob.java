@@ -1,4 +1,4 @@
-// Copyright © 2008-2010 Esko Luontola <www.orfjackal.net>
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
 // This software is released under the Apache License 2.0.
 // The license text is at http://dimdwarf.sourceforge.net/LICENSE
 
@@ -12,46 +12,97 @@ import java.util.Arrays;
 
 import static net.orfjackal.dimdwarf.util.ByteUtil.asByteArray;
 
+/**
+ * Immutable sequence of bytes. A blob may be a view to a part of a bigger byte array, so that
+ * slicing or taking ownership of an existing array does not need to copy the bytes.
+ */
 @Immutable
 public final class Blob implements Comparable<Blob> {
 
-    public static final Blob EMPTY_BLOB = new Blob(new byte[0]);
+    public static final Blob EMPTY_BLOB = new Blob(new byte[0], 0, 0);
     private static final int TO_STRING_SAFETY_LIMIT = 100;
 
     private final byte[] bytes;
-    private volatile Integer hashCode;
+    private final int offset;
+    private final int length;
+    private int hashCode; // racy single-check idiom like in String; zero means not yet calculated
 
-    private Blob(byte[] bytes) {
+    private Blob(byte[] bytes, int offset, int length) {
         this.bytes = bytes;
-        this.hashCode = null;
+        this.offset = offset;
+        this.length = length;
     }
 
     public static Blob fromBytes(byte[] bytes) {
-        return new Blob(Arrays.copyOf(bytes, bytes.length));
+        return wrap(Arrays.copyOf(bytes, bytes.length));
+    }
+
+    /**
+     * Creates a blob without copying the bytes. The caller gives the ownership of the array to the blob,
+     * so the array must not be modified afterwards.
+     */
+    public static Blob wrap(byte[] bytes) {
+        return wrap(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Like {@link #wrap(byte[])}, but the blob will contain only the specified range of the array.
+     */
+    public static Blob wrap(byte[] bytes, int offset, int length) {
+        checkRange(bytes.length, offset, length);
+        return new Blob(bytes, offset, length);
     }
 
     public static Blob fromInputStream(InputStream in) throws IOException {
-        return new Blob(asByteArray(in));
+        return wrap(asByteArray(in));
     }
 
     public static Blob fromByteBuffer(ByteBuffer buffer) {
-        return new Blob(asByteArray(buffer));
+        return wrap(asByteArray(buffer));
+    }
+
+    private static void checkRange(int arrayLength, int offset, int length) {
+        if (offset < 0 || length < 0 || offset > arrayLength - length) {
+            throw new IndexOutOfBoundsException("offset=" + offset + ", length=" + length + ", array length=" + arrayLength);
+        }
     }
 
     public int length() {
-        return bytes.length;
+        return length;
+    }
+
+    public byte byteAt(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("index=" + index + ", length=" + length);
+        }
+        return bytes[offset + index];
+    }
+
+    /**
+     * Returns a view to a part of this blob. The bytes are not copied.
+     */
+    public Blob slice(int offset, int length) {
+        checkRange(this.length, offset, length);
+        if (offset == 0 && length == this.length) {
+            return this;
+        }
+        return new Blob(bytes, this.offset + offset, length);
     }
 
     public ByteArrayInputStream toInputStream() {
-        return new ByteArrayInputStream(bytes);
+        return new ByteArrayInputStream(bytes, offset, length);
     }
 
     public ByteBuffer toByteBuffer() {
-        return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+        return ByteBuffer.wrap(bytes, offset, length).slice().asReadOnlyBuffer();
     }
 
     public byte[] toByteArray() {
-        return Arrays.copyOf(bytes, bytes.length);
+        return Arrays.copyOfRange(bytes, offset, offset + length);
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(bytes, offset, length);
     }
 
     public boolean equals(Object obj) {
@@ -60,39 +111,65 @@ public final class Blob implements Comparable<Blob> {
         }
         if (obj instanceof Blob) {
             Blob other = (Blob) obj;
-            return Arrays.equals(this.bytes, other.bytes);
+            return this.length == other.length
+                    && mismatch(this, other, length) == length;
         }
         return false;
     }
 
     public int hashCode() {
-        if (hashCode == null) {
-            synchronized (bytes) {
-                hashCode = Arrays.hashCode(bytes);
+        int h = hashCode;
+        if (h == 0) {
+            // same as Arrays.hashCode(toByteArray())
+            h = 1;
+            for (int i = offset; i < offset + length; i++) {
+                h = 31 * h + bytes[i];
             }
+            hashCode = h;
         }
-        return hashCode;
+        return h;
     }
 
     public int compareTo(Blob other) {
         if (this == other) {
             return 0;
         }
-        for (int i = 0; i < bytes.length && i < other.bytes.length; i++) {
-            int thisUnsigned = bytes[i] & 0xFF;
-            int otherUnsigned = other.bytes[i] & 0xFF;
-            int cmp = thisUnsigned - otherUnsigned;
-            if (cmp != 0) {
-                return cmp;
+        int commonLength = Math.min(this.length, other.length);
+        int i = mismatch(this, other, commonLength);
+        if (i < commonLength) {
+            return (this.bytes[this.offset + i] & 0xFF) - (other.bytes[other.offset + i] & 0xFF);
+        }
+        return this.length - other.length;
+    }
+
+    /**
+     * Returns the index of the first byte which differs in the two blobs, or {@code length} if the first
+     * {@code length} bytes are equal. Compares eight bytes at a time with big-endian bulk reads, and then
+     * the remaining bytes one at a time.
+     */
+    private static int mismatch(Blob a, Blob b, int length) {
+        int i = 0;
+        if (length >= 8) {
+            ByteBuffer aWords = ByteBuffer.wrap(a.bytes, a.offset, length);
+            ByteBuffer bWords = ByteBuffer.wrap(b.bytes, b.offset, length);
+            for (; i <= length - 8; i += 8) {
+                if (aWords.getLong(a.offset + i) != bWords.getLong(b.offset + i)) {
+                    break;
+                }
+            }
+        }
+        for (; i < length; i++) {
+            if (a.bytes[a.offset + i] != b.bytes[b.offset + i]) {
+                break;
             }
         }
-        return bytes.length - other.bytes.length;
+        return i;
     }
 
     public String toString() {
-        byte[] truncatedBytes = Arrays.copyOf(bytes, Math.min(bytes.length, TO_STRING_SAFETY_LIMIT));
+        byte[] truncatedBytes = Arrays.copyOfRange(bytes, offset, offset + Math.min(length, TO_STRING_SAFETY_LIMIT));
         String hexBytes = asHex(truncatedBytes);
-        if (bytes.length > TO_STRING_SAFETY_LIMIT) {
+        if (length > TO_STRING_SAFETY_LIMIT) {
             hexBytes += " ...";
         }
         String asText = new String(truncatedBytes, Charset.forName("US-ASCII"));
@@ -1,4 +1,4 @@
-// Copyright © 2008-2010 Esko Luontola <www.orfjackal.net>
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
 // This software is released under the Apache License 2.0.
 // The license text is at http://dimdwarf.sourceforge.net/LICENSE
 
@@ -24,7 +24,7 @@ public class ConvertBigIntegerToBytes implements Converter<BigInteger, Blob> {
         if (value.signum() < 0) {
             throw new IllegalArgumentException("Negative values are not allowed: " + value);
         }
-        return Blob.fromBytes(pack(value.toByteArray()));
+        return Blob.wrap(pack(value.toByteArray()));
     }
 
     private static byte[] unpack(byte[] packed) {
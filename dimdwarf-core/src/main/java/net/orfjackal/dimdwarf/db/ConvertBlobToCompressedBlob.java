@@ -0,0 +1,193 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.db;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.*;
+
+/**
+ * Compresses the values which are larger than a threshold. Every stored value starts with a header byte which
+ * tells whether the rest of it is compressed, so the threshold can be changed without converting old values.
+ * The values which would not get smaller are stored uncompressed. The empty blob, which marks deleted keys,
+ * is passed through as it is.
+ * <p/>
+ * Use one instance per table, so that the statistics tell how well each table's values compress
+ * and how much CPU time it costs.
+ */
+@ThreadSafe
+public class ConvertBlobToCompressedBlob implements Converter<Blob, Blob> {
+
+    public static final int DEFAULT_THRESHOLD = 256;
+
+    private static final byte UNCOMPRESSED = 0;
+    private static final byte DEFLATED = 1;
+    private static final int DEFLATED_HEADER_SIZE = 5;
+
+    private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.BEST_SPEED);
+        }
+    };
+    private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+        protected Inflater initialValue() {
+            return new Inflater();
+        }
+    };
+
+    private final int threshold;
+
+    private final AtomicLong originalBytes = new AtomicLong();
+    private final AtomicLong storedBytes = new AtomicLong();
+    private final AtomicLong compressNanos = new AtomicLong();
+    private final AtomicLong decompressNanos = new AtomicLong();
+
+    public ConvertBlobToCompressedBlob() {
+        this(DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * @param threshold the values which are at least this many bytes long will be compressed.
+     */
+    public ConvertBlobToCompressedBlob(int threshold) {
+        this.threshold = threshold;
+    }
+
+    @Nullable
+    public Blob back(@Nullable Blob value) {
+        if (value == null || value.length() == 0) {
+            return value;
+        }
+        byte format = value.byteAt(0);
+        if (format == UNCOMPRESSED) {
+            return value.slice(1, value.length() - 1);
+        }
+        if (format == DEFLATED) {
+            return inflate(value);
+        }
+        throw new PersistenceException("Unknown compression format " + format + " in " + value);
+    }
+
+    @Nullable
+    public Blob forth(@Nullable Blob value) {
+        if (value == null || value.length() == 0) {
+            return value;
+        }
+        byte[] stored = null;
+        if (value.length() >= threshold && value.length() > DEFLATED_HEADER_SIZE) {
+            stored = deflate(value);
+        }
+        if (stored == null) {
+            stored = new byte[value.length() + 1];
+            stored[0] = UNCOMPRESSED;
+            value.toByteBuffer().get(stored, 1, value.length());
+        }
+        originalBytes.addAndGet(value.length());
+        storedBytes.addAndGet(stored.length);
+        return Blob.wrap(stored);
+    }
+
+    /**
+     * @return the compressed bytes with a header, or null if compressing would not make them smaller.
+     */
+    @Nullable
+    private byte[] deflate(Blob value) {
+        long start = System.nanoTime();
+        Deflater deflater = deflaters.get();
+        try {
+            deflater.setInput(value.toByteArray());
+            deflater.finish();
+            // the result must be smaller than storing it uncompressed, so there is no need for a bigger buffer
+            byte[] out = new byte[value.length()];
+            out[0] = DEFLATED;
+            writeInt(value.length(), out, 1);
+            int length = DEFLATED_HEADER_SIZE;
+            while (!deflater.finished() && length < out.length) {
+                length += deflater.deflate(out, length, out.length - length);
+            }
+            return deflater.finished() ? Arrays.copyOf(out, length) : null;
+        } finally {
+            deflater.reset();
+            compressNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    private Blob inflate(Blob value) {
+        long start = System.nanoTime();
+        Inflater inflater = inflaters.get();
+        try {
+            byte[] in = value.toByteArray();
+            if (in.length < DEFLATED_HEADER_SIZE || readInt(in, 1) < 0) {
+                throw new PersistenceException("Corrupted compressed value " + value);
+            }
+            byte[] out = new byte[readInt(in, 1)];
+            inflater.setInput(in, DEFLATED_HEADER_SIZE, in.length - DEFLATED_HEADER_SIZE);
+            int length = 0;
+            while (length < out.length) {
+                int n = inflater.inflate(out, length, out.length - length);
+                if (n == 0) {
+                    break;
+                }
+                length += n;
+            }
+            if (length != out.length || !inflater.finished()) {
+                throw new PersistenceException("Corrupted compressed value " + value);
+            }
+            return Blob.wrap(out);
+        } catch (DataFormatException e) {
+            throw new PersistenceException("Corrupted compressed value " + value, e);
+        } finally {
+            inflater.reset();
+            decompressNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    private static void writeInt(int value, byte[] bytes, int index) {
+        bytes[index] = (byte) (value >>> 24);
+        bytes[index + 1] = (byte) (value >>> 16);
+        bytes[index + 2] = (byte) (value >>> 8);
+        bytes[index + 3] = (byte) value;
+    }
+
+    private static int readInt(byte[] bytes, int index) {
+        return (bytes[index] << 24)
+                | ((bytes[index + 1] & 0xFF) << 16)
+                | ((bytes[index + 2] & 0xFF) << 8)
+                | (bytes[index + 3] & 0xFF);
+    }
+
+    /**
+     * The total size of the values before compressing them.
+     */
+    public long getOriginalBytes() {
+        return originalBytes.get();
+    }
+
+    /**
+     * The total size of the values as they were stored, including the headers.
+     */
+    public long getStoredBytes() {
+        return storedBytes.get();
+    }
+
+    /**
+     * The stored size divided by the original size; less is better.
+     */
+    public double getCompressionRatio() {
+        long original = originalBytes.get();
+        return original == 0 ? 1.0 : (double) storedBytes.get() / original;
+    }
+
+    public long getCompressionTime(TimeUnit unit) {
+        return unit.convert(compressNanos.get(), TimeUnit.NANOSECONDS);
+    }
+
+    public long getDecompressionTime(TimeUnit unit) {
+        return unit.convert(decompressNanos.get(), TimeUnit.NANOSECONDS);
+    }
+}
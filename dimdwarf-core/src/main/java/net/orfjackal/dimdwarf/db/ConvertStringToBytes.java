@@ -1,4 +1,4 @@
-// Copyright © 2008-2010 Esko Luontola <www.orfjackal.net>
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
 // This software is released under the Apache License 2.0.
 // The license text is at http://dimdwarf.sourceforge.net/LICENSE
 
@@ -23,6 +23,6 @@ public class ConvertStringToBytes implements Converter<String, Blob> {
         if (value == null) {
             return null;
         }
-        return Blob.fromBytes(value.getBytes(CHARSET));
+        return Blob.wrap(value.getBytes(CHARSET));
     }
 }
@@ -0,0 +1,71 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.db;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.util.*;
+
+/**
+ * Converts the entries of a range scan back to the adapter's types. The values are converted only when
+ * they are asked for, so that iterating over just the keys will not deserialize every value.
+ */
+@NotThreadSafe
+public class ConvertingEntryIterator<K1, V1, K2, V2> implements Iterator<Map.Entry<K1, V1>> {
+
+    private final Iterator<Map.Entry<K2, V2>> parent;
+    private final Converter<K1, K2> keys;
+    private final Converter<V1, V2> values;
+
+    public ConvertingEntryIterator(Iterator<Map.Entry<K2, V2>> parent,
+                                   Converter<K1, K2> keys,
+                                   Converter<V1, V2> values) {
+        this.parent = parent;
+        this.keys = keys;
+        this.values = values;
+    }
+
+    public boolean hasNext() {
+        return parent.hasNext();
+    }
+
+    public Map.Entry<K1, V1> next() {
+        return new ConvertedEntry(parent.next());
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+
+    @NotThreadSafe
+    private class ConvertedEntry implements Map.Entry<K1, V1> {
+
+        private final K1 key;
+        private final V2 rawValue;
+        private V1 value;
+        private boolean converted = false;
+
+        public ConvertedEntry(Map.Entry<K2, V2> entry) {
+            this.key = keys.back(entry.getKey());
+            this.rawValue = entry.getValue();
+        }
+
+        public K1 getKey() {
+            return key;
+        }
+
+        public V1 getValue() {
+            if (!converted) {
+                value = values.back(rawValue);
+                converted = true;
+            }
+            return value;
+        }
+
+        public V1 setValue(V1 value) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
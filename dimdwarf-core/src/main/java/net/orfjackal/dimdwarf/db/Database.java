@@ -18,5 +18,5 @@ public interface Database<K, V> {
     /**
      * Opens an existing table or creates a new table.
      */
-    DatabaseTable<K, V> openTable(String name);
+    MergeableDatabaseTable<K, V> openTable(String name);
 }
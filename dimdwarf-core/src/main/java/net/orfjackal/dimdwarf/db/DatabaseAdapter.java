@@ -28,7 +28,7 @@ public class DatabaseAdapter<K1, V1, K2, V2> implements Database<K1, V1> {
         return parent.getTableNames();
     }
 
-    public DatabaseTable<K1, V1> openTable(String name) {
+    public MergeableDatabaseTable<K1, V1> openTable(String name) {
         return new DatabaseTableAdapter<>(parent.openTable(name), keys, values);
     }
 }
@@ -1,10 +1,11 @@
-// Copyright © 2008-2010 Esko Luontola <www.orfjackal.net>
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
 // This software is released under the Apache License 2.0.
 // The license text is at http://dimdwarf.sourceforge.net/LICENSE
 
 package net.orfjackal.dimdwarf.db;
 
 import javax.annotation.Nullable;
+import java.util.*;
 
 public interface DatabaseTable<K, V> extends IterableKeys<K> {
 
@@ -13,7 +14,34 @@ public interface DatabaseTable<K, V> extends IterableKeys<K> {
     @Nullable
     V read(K key);
 
+    /**
+     * Reads many keys at once. Returns the same values as calling {@link #read} for each of the keys would,
+     * in the iteration order of {@code keys}, but without paying the per-call overhead for each key.
+     */
+    Map<K, V> readAll(Collection<K> keys);
+
+    /**
+     * Returns the revision in which the value that this transaction sees for the key was committed.
+     * Reading a key returns equal values whenever its revision is the same, so the revision can be used
+     * for caching things which are derived from the value. Returns zero if the key has never existed,
+     * and a negative number if the transaction has itself modified the key.
+     */
+    long getRevision(K key);
+
     void update(K key, V value);
 
     void delete(K key);
+
+    /**
+     * Iterates in key order over the entries from {@code fromKey} (inclusive) to {@code toKey} (exclusive).
+     * A null bound means that the range is unbounded on that side. The iterator sees the table as it is
+     * in the current transaction, including the transaction's own uncommitted updates.
+     */
+    Iterator<Map.Entry<K, V>> scan(@Nullable K fromKey, @Nullable K toKey);
+
+    /**
+     * Iterates in key order over the entries whose key starts with {@code prefix}, including the key
+     * which is equal to the prefix.
+     */
+    Iterator<Map.Entry<K, V>> scanPrefix(K prefix);
 }
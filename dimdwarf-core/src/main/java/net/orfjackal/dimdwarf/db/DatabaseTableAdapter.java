@@ -1,19 +1,20 @@
-// Copyright © 2008-2010 Esko Luontola <www.orfjackal.net>
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
 // This software is released under the Apache License 2.0.
 // The license text is at http://dimdwarf.sourceforge.net/LICENSE
 
 package net.orfjackal.dimdwarf.db;
 
-import javax.annotation.concurrent.NotThreadSafe;
+import javax.annotation.concurrent.*;
+import java.util.*;
 
 @NotThreadSafe
-public class DatabaseTableAdapter<K1, V1, K2, V2> implements DatabaseTable<K1, V1> {
+public class DatabaseTableAdapter<K1, V1, K2, V2> implements MergeableDatabaseTable<K1, V1> {
 
-    private final DatabaseTable<K2, V2> parent;
+    private final MergeableDatabaseTable<K2, V2> parent;
     private final Converter<K1, K2> keys;
     private final Converter<V1, V2> values;
 
-    public DatabaseTableAdapter(DatabaseTable<K2, V2> parent,
+    public DatabaseTableAdapter(MergeableDatabaseTable<K2, V2> parent,
                                 Converter<K1, K2> keys,
                                 Converter<V1, V2> values) {
         this.parent = parent;
@@ -29,6 +30,22 @@ public class DatabaseTableAdapter<K1, V1, K2, V2> implements DatabaseTable<K1, V
         return values.back(parent.read(keys.forth(key)));
     }
 
+    public Map<K1, V1> readAll(Collection<K1> keys) {
+        Map<K2, K1> convertedKeys = new LinkedHashMap<>();
+        for (K1 key : keys) {
+            convertedKeys.put(this.keys.forth(key), key);
+        }
+        Map<K1, V1> values = new LinkedHashMap<>();
+        for (Map.Entry<K2, V2> e : parent.readAll(convertedKeys.keySet()).entrySet()) {
+            values.put(convertedKeys.get(e.getKey()), this.values.back(e.getValue()));
+        }
+        return values;
+    }
+
+    public long getRevision(K1 key) {
+        return parent.getRevision(keys.forth(key));
+    }
+
     public void update(K1 key, V1 value) {
         parent.update(keys.forth(key), values.forth(value));
     }
@@ -37,6 +54,10 @@ public class DatabaseTableAdapter<K1, V1, K2, V2> implements DatabaseTable<K1, V
         parent.delete(keys.forth(key));
     }
 
+    public void merge(K1 key, V1 operand, MergeOperator<V1> operator) {
+        parent.merge(keys.forth(key), values.forth(operand), new ConvertingMergeOperator<>(operator, values));
+    }
+
     public K1 firstKey() {
         return keys.back(parent.firstKey());
     }
@@ -44,4 +65,48 @@ public class DatabaseTableAdapter<K1, V1, K2, V2> implements DatabaseTable<K1, V
     public K1 nextKeyAfter(K1 currentKey) {
         return keys.back(parent.nextKeyAfter(keys.forth(currentKey)));
     }
+
+    public K1 lastKey() {
+        return keys.back(parent.lastKey());
+    }
+
+    public Iterator<Map.Entry<K1, V1>> scan(K1 fromKey, K1 toKey) {
+        return new ConvertingEntryIterator<>(parent.scan(keys.forth(fromKey), keys.forth(toKey)), keys, values);
+    }
+
+    /**
+     * Assumes that the key converter preserves prefixes, as is the case with {@link ConvertStringToBytes}.
+     */
+    public Iterator<Map.Entry<K1, V1>> scanPrefix(K1 prefix) {
+        return new ConvertingEntryIterator<>(parent.scanPrefix(keys.forth(prefix)), keys, values);
+    }
+
+
+    @Immutable
+    private static class ConvertingMergeOperator<V1, V2> implements MergeOperator<V2> {
+
+        private final MergeOperator<V1> operator;
+        private final Converter<V1, V2> values;
+
+        public ConvertingMergeOperator(MergeOperator<V1> operator, Converter<V1, V2> values) {
+            this.operator = operator;
+            this.values = values;
+        }
+
+        public V2 merge(V2 value, V2 operand) {
+            return values.forth(operator.merge(values.back(value), values.back(operand)));
+        }
+
+        public boolean equals(Object obj) {
+            if (!(obj instanceof ConvertingMergeOperator)) {
+                return false;
+            }
+            ConvertingMergeOperator<?, ?> other = (ConvertingMergeOperator<?, ?>) obj;
+            return operator.equals(other.operator) && values.equals(other.values);
+        }
+
+        public int hashCode() {
+            return operator.hashCode();
+        }
+    }
 }
@@ -19,4 +19,11 @@ public interface IterableKeys<K> {
      */
     @Nullable
     K nextKeyAfter(K currentKey);
+
+    /**
+     * Returns the last key in the map, or null if it is empty. Unlike iterating to the end
+     * with {@link #nextKeyAfter}, this does not visit the other keys.
+     */
+    @Nullable
+    K lastKey();
 }
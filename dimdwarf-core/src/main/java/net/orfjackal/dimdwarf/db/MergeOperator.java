@@ -0,0 +1,24 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.db;
+
+/**
+ * Combines an operand with the value of a key, when the transaction which did {@link MergeableDatabaseTable#merge}
+ * is committed. The operator is applied to the newest committed value, instead of the value which the
+ * transaction read, so concurrent merges to the same key do not conflict with each other.
+ * <p/>
+ * The operator must be commutative and associative, so that the concurrent merges give the same result
+ * in whatever order they are committed, and so that the operands of one transaction may be combined
+ * with each other before they are applied. Operators which are equal must be interchangeable.
+ */
+public interface MergeOperator<T> {
+
+    /**
+     * @param value   the current value, which is what {@link DatabaseTable#read} returns for a nonexistent
+     *                key if the key does not exist.
+     * @param operand the value which is merged into it.
+     */
+    T merge(T value, T operand);
+}
@@ -0,0 +1,21 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.db;
+
+/**
+ * A table whose values can be merged into. The merge operators are applied when the transaction is
+ * committed, outside the task, so tables whose values need the task to be converted (for example the
+ * bindings, which refer to entities) are not mergeable.
+ */
+public interface MergeableDatabaseTable<K, V> extends DatabaseTable<K, V> {
+
+    /**
+     * Merges the operand into the value of the key when the transaction is committed. Unlike {@link #update},
+     * this does not conflict with the other transactions which modify the same key at the same time.
+     * Reading the key in this transaction returns the value which it has in the read revision with
+     * the operand merged into it. See {@link MergeOperator}
+     */
+    void merge(K key, V operand, MergeOperator<V> operator);
+}
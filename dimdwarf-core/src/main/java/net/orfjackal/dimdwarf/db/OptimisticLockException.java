@@ -1,4 +1,4 @@
-// Copyright © 2008-2010 Esko Luontola <www.orfjackal.net>
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
 // This software is released under the Apache License 2.0.
 // The license text is at http://dimdwarf.sourceforge.net/LICENSE
 
@@ -6,25 +6,48 @@ package net.orfjackal.dimdwarf.db;
 
 import net.orfjackal.dimdwarf.tx.Retryable;
 
+import java.util.*;
+
 /**
  * Thrown when an optimistic locking conflict occurs.
  */
 public class OptimisticLockException extends PersistenceException implements Retryable {
     private static final long serialVersionUID = 1L;
 
+    private final transient Collection<Blob> keys;
+
     public OptimisticLockException() {
+        this.keys = Collections.emptyList();
     }
 
     public OptimisticLockException(String message) {
+        this(message, Collections.<Blob>emptyList());
+    }
+
+    /**
+     * @param keys the keys on which the conflict happened.
+     */
+    public OptimisticLockException(String message, Collection<Blob> keys) {
         super(message);
+        this.keys = Collections.unmodifiableList(new ArrayList<>(keys));
     }
 
     public OptimisticLockException(Throwable cause) {
         super(cause);
+        this.keys = Collections.emptyList();
     }
 
     public OptimisticLockException(String message, Throwable cause) {
         super(message, cause);
+        this.keys = Collections.emptyList();
+    }
+
+    /**
+     * The keys on which the conflict happened, or an empty collection if they are not known.
+     * They are not preserved when the exception is serialized.
+     */
+    public Collection<Blob> getKeys() {
+        return keys != null ? keys : Collections.<Blob>emptyList();
     }
 
     public boolean mayBeRetried() {
@@ -0,0 +1,25 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.db.common;
+
+import net.orfjackal.dimdwarf.db.Blob;
+
+/**
+ * Receives the changes of committed transactions, in the order of their revisions.
+ * The listeners are called in a background thread, one change at a time.
+ */
+public interface ChangeListener {
+
+    /**
+     * @param newValue the value which the key was given, or an empty blob if the key was deleted.
+     */
+    void changed(long revision, String table, Blob key, Blob newValue);
+
+    /**
+     * The listeners fell so far behind the commits, that the changes of these revisions were overwritten
+     * before they could be delivered. Some of the revisions may also have had no changes.
+     */
+    void changesLost(long fromRevision, long toRevision);
+}
@@ -8,6 +8,10 @@ import javax.annotation.WillClose;
 
 public interface CommitHandle {
 
+    /**
+     * Must not fail. Everything which can fail, such as writing to a disk, must be done before
+     * the commit handle is returned, so that a failure rolls back the whole transaction.
+     */
     @WillClose
     void commit();
 
@@ -0,0 +1,47 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.db.common;
+
+/**
+ * When to check whether a transaction conflicts with the transactions which committed after it began.
+ * Checking earlier makes the doomed transactions fail before they have done all of their work.
+ */
+public enum ConflictDetection {
+
+    /**
+     * Only the modified keys are checked, when the transaction is prepared.
+     */
+    AT_COMMIT(false, false),
+
+    /**
+     * A key is checked already when the transaction modifies it. The modification could never be
+     * committed, so this never fails a transaction which would have succeeded.
+     */
+    ON_WRITE(false, true),
+
+    /**
+     * A key is checked already when the transaction reads it, in addition to {@link #ON_WRITE}. This fails
+     * also those transactions which would have only read the key (snapshot isolation would allow them to
+     * commit), so it suits workloads where most of the keys which are read are also modified, as is the case
+     * with entities which are modified after reading them.
+     */
+    ON_READ(true, true);
+
+    private final boolean checkReads;
+    private final boolean checkWrites;
+
+    ConflictDetection(boolean checkReads, boolean checkWrites) {
+        this.checkReads = checkReads;
+        this.checkWrites = checkWrites;
+    }
+
+    public boolean checksReads() {
+        return checkReads;
+    }
+
+    public boolean checksWrites() {
+        return checkWrites;
+    }
+}
@@ -0,0 +1,90 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.db.common;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides when {@link TransientDatabaseTable} checks for conflicts, and keeps statistics of how long
+ * the conflicting transactions ran before their conflict was noticed.
+ * <p/>
+ * The time which early detection saves is estimated from the average time that it takes for a transaction
+ * to reach its commit: a transaction which failed early would have run about that long, only to fail
+ * at its commit.
+ */
+@ThreadSafe
+public class ConflictDetector {
+
+    private volatile ConflictDetection mode;
+
+    private final AtomicLong prepared = new AtomicLong();
+    private final AtomicLong preparedNanos = new AtomicLong();
+    private final AtomicLong conflictsAtCommit = new AtomicLong();
+    private final AtomicLong conflictsAtCommitNanos = new AtomicLong();
+    private final AtomicLong earlyConflicts = new AtomicLong();
+    private final AtomicLong earlyConflictsNanos = new AtomicLong();
+
+    public ConflictDetector() {
+        this(ConflictDetection.AT_COMMIT);
+    }
+
+    public ConflictDetector(ConflictDetection mode) {
+        this.mode = mode;
+    }
+
+    public ConflictDetection getMode() {
+        return mode;
+    }
+
+    public void setMode(ConflictDetection mode) {
+        this.mode = mode;
+    }
+
+    void transactionPrepared(long elapsedNanos) {
+        prepared.incrementAndGet();
+        preparedNanos.addAndGet(elapsedNanos);
+    }
+
+    void conflictAtCommit(long elapsedNanos) {
+        conflictsAtCommit.incrementAndGet();
+        conflictsAtCommitNanos.addAndGet(elapsedNanos);
+    }
+
+    void earlyConflict(long elapsedNanos) {
+        earlyConflicts.incrementAndGet();
+        earlyConflictsNanos.addAndGet(elapsedNanos);
+    }
+
+    public long getConflictsAtCommit() {
+        return conflictsAtCommit.get();
+    }
+
+    public long getEarlyConflicts() {
+        return earlyConflicts.get();
+    }
+
+    /**
+     * The total time that the conflicting transactions ran before their conflict was detected.
+     */
+    public long getWastedTime(TimeUnit unit) {
+        return unit.convert(conflictsAtCommitNanos.get() + earlyConflictsNanos.get(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * An estimate of how much longer the early conflicting transactions would have run,
+     * if their conflicts had been detected only at commit.
+     */
+    public long getEstimatedSavedTime(TimeUnit unit) {
+        long count = prepared.get();
+        if (count == 0) {
+            return 0;
+        }
+        long averageNanos = preparedNanos.get() / count;
+        long saved = earlyConflicts.get() * averageNanos - earlyConflictsNanos.get();
+        return unit.convert(Math.max(0, saved), TimeUnit.NANOSECONDS);
+    }
+}
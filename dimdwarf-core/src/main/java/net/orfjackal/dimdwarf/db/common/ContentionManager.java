@@ -0,0 +1,239 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.db.common;
+
+import net.orfjackal.dimdwarf.db.*;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of the hot keys, on which transactions have conflicted, and makes the transactions which access
+ * them take turns, so that a task which keeps failing because of them will make progress while the tasks which
+ * do not access them keep running in parallel.
+ * <p/>
+ * A task which is retried after a conflict locks its conflicting keys before it begins, see {@link #runSerialized}.
+ * Other transactions lock a hot key when they first access it, and keep it locked until they end. Because they
+ * may already be holding other hot keys, they wait for the lock only for a limited time, after which they fail
+ * with a retryable {@link OptimisticLockException}.
+ * <p/>
+ * The keys of all tables share the same locks, so keys which are equal but in different tables will only
+ * cause some unnecessary waiting.
+ */
+@ThreadSafe
+public class ContentionManager {
+
+    public static final int DEFAULT_MAX_HOT_KEYS = 1024;
+    public static final long DEFAULT_LOCK_TIMEOUT_MILLIS = 100;
+
+    // the value is the time when the key was last hit, for evicting the least recently hit keys
+    private final ConcurrentMap<Blob, Long> hotKeys = new ConcurrentHashMap<>();
+    private final AtomicLong clock = new AtomicLong();
+    private final GroupLock<Blob> keyLocks = new GroupLock<>();
+    private final ThreadLocal<SerializedLocks> serializedForCurrentTask = new ThreadLocal<>();
+    private final int maxHotKeys;
+    private final long lockTimeoutNanos;
+
+    private final AtomicLong serializedTasks = new AtomicLong();
+    private final AtomicLong lockTimeouts = new AtomicLong();
+
+    public ContentionManager() {
+        this(DEFAULT_MAX_HOT_KEYS, DEFAULT_LOCK_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param maxHotKeys  when there are more hot keys than this, the least recently hit ones are forgotten and
+     *                    the transactions will again access them in parallel until they conflict.
+     * @param lockTimeout how long a transaction may wait for a hot key which is locked by another transaction.
+     */
+    public ContentionManager(int maxHotKeys, long lockTimeout, TimeUnit unit) {
+        this.maxHotKeys = maxHotKeys;
+        this.lockTimeoutNanos = unit.toNanos(lockTimeout);
+    }
+
+    public synchronized void conflictedOn(Collection<Blob> keys) {
+        for (Blob key : keys) {
+            hotKeys.put(key, clock.incrementAndGet());
+        }
+        while (hotKeys.size() > maxHotKeys) {
+            evictLeastRecentlyHit();
+        }
+    }
+
+    @GuardedBy("this")
+    private void evictLeastRecentlyHit() {
+        Map.Entry<Blob, Long> eldest = null;
+        for (Map.Entry<Blob, Long> e : hotKeys.entrySet()) {
+            if (eldest == null || e.getValue() < eldest.getValue()) {
+                eldest = e;
+            }
+        }
+        hotKeys.remove(eldest.getKey());
+    }
+
+    /**
+     * Checking a key which is hot counts as a hit, which keeps it from being evicted.
+     */
+    public boolean isHot(Blob key) {
+        if (hotKeys.isEmpty()) {
+            return false;
+        }
+        Long lastHit = hotKeys.get(key);
+        if (lastHit == null) {
+            return false;
+        }
+        hotKeys.replace(key, lastHit, clock.incrementAndGet());
+        return true;
+    }
+
+    /**
+     * Runs the task while holding the locks of the keys, so that it will not conflict on them again.
+     * The task must begin its transaction in the current thread. The transaction takes over the locks,
+     * so that they are released only after it has been committed or rolled back, even if it is committed
+     * in another thread after this method returns.
+     * <p/>
+     * Waiting for the keys is not bounded, so the caller must not be holding any other locks,
+     * which the tasks holding these keys might be waiting for.
+     */
+    public void runSerialized(Collection<Blob> keys, Runnable task) {
+        conflictedOn(keys);
+        serializedTasks.incrementAndGet();
+        SerializedLocks locks = new SerializedLocks(keys, keyLocks.lockAll(keys));
+        SerializedLocks outer = serializedForCurrentTask.get();
+        try {
+            serializedForCurrentTask.set(locks);
+            task.run();
+        } finally {
+            // restore the locks of the task, if any, which is running this one
+            if (outer == null) {
+                serializedForCurrentTask.remove();
+            } else {
+                serializedForCurrentTask.set(outer);
+            }
+            locks.taskEnded();
+        }
+    }
+
+    public TransactionLocks newTransactionLocks() {
+        SerializedLocks serialized = serializedForCurrentTask.get();
+        if (serialized != null && serialized.handOverToTransaction()) {
+            return new TransactionLocks(serialized);
+        }
+        return new TransactionLocks(null);
+    }
+
+    public long getSerializedTasks() {
+        return serializedTasks.get();
+    }
+
+    public long getLockTimeouts() {
+        return lockTimeouts.get();
+    }
+
+    public int getHotKeys() {
+        return hotKeys.size();
+    }
+
+
+    /**
+     * The hot keys which one transaction has locked.
+     */
+    @ThreadSafe
+    public class TransactionLocks {
+
+        @GuardedBy("this") private final Map<Blob, LockHandle> locks = new HashMap<>();
+        @GuardedBy("this") @Nullable private SerializedLocks serialized;
+
+        private TransactionLocks(@Nullable SerializedLocks serialized) {
+            this.serialized = serialized;
+        }
+
+        public void accessing(Blob key) throws OptimisticLockException {
+            if (isHot(key)) {
+                lock(key);
+            }
+        }
+
+        private synchronized void lock(Blob key) {
+            if (locks.containsKey(key) || isLockedForThisTransaction(key)) {
+                return;
+            }
+            LockHandle lock = keyLocks.tryLockAll(Collections.singleton(key), lockTimeoutNanos, TimeUnit.NANOSECONDS);
+            if (lock == null) {
+                lockTimeouts.incrementAndGet();
+                throw new OptimisticLockException("Timed out waiting for the hot key " + key, Collections.singleton(key));
+            }
+            locks.put(key, lock);
+        }
+
+        private boolean isLockedForThisTransaction(Blob key) {
+            SerializedLocks locks = serialized != null ? serialized : serializedForCurrentTask.get();
+            return locks != null && locks.keys.contains(key);
+        }
+
+        /**
+         * Makes the key hot after the transaction has conflicted on it.
+         */
+        public void conflictedOn(Blob key) {
+            ContentionManager.this.conflictedOn(Collections.singleton(key));
+        }
+
+        public synchronized void unlockAll() {
+            for (LockHandle lock : locks.values()) {
+                lock.unlock();
+            }
+            locks.clear();
+            if (serialized != null) {
+                serialized.transactionEnded();
+                serialized = null;
+            }
+        }
+    }
+
+    /**
+     * The locks of a serialized task. They are released when both the task and the transaction which took
+     * them over have ended. If the transaction is rolled back, a retry of the task may take them over again.
+     */
+    @ThreadSafe
+    private static class SerializedLocks {
+
+        private final Collection<Blob> keys;
+        private final LockHandle lock;
+        @GuardedBy("this") private boolean taskRunning = true;
+        @GuardedBy("this") private boolean heldByTransaction = false;
+
+        public SerializedLocks(Collection<Blob> keys, LockHandle lock) {
+            this.keys = keys;
+            this.lock = lock;
+        }
+
+        public synchronized boolean handOverToTransaction() {
+            if (heldByTransaction) {
+                return false;
+            }
+            heldByTransaction = true;
+            return true;
+        }
+
+        public synchronized void transactionEnded() {
+            heldByTransaction = false;
+            unlockIfUnused();
+        }
+
+        public synchronized void taskEnded() {
+            taskRunning = false;
+            unlockIfUnused();
+        }
+
+        private void unlockIfUnused() {
+            if (!taskRunning && !heldByTransaction) {
+                lock.unlock();
+            }
+        }
+    }
+}
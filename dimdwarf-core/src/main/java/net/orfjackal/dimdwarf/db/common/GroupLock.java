@@ -0,0 +1,187 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.db.common;
+
+import javax.annotation.*;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Locks a group of keys atomically. The keys are always acquired in their natural order, so two threads
+ * locking overlapping groups can not deadlock.
+ * <p/>
+ * Each locked key has its own wait queue, which exists only while the key is locked. Unlocking a key
+ * wakes up one of the threads waiting for that same key, so committers working on unrelated keys
+ * do not disturb each other.
+ */
+@ThreadSafe
+public class GroupLock<T extends Comparable<T>> {
+
+    private final ConcurrentMap<T, KeyLock> keyLocks = new ConcurrentHashMap<>();
+
+    @SafeVarargs
+    @CheckReturnValue
+    public final LockHandle lockAll(T... keys) {
+        return lockAll(Arrays.asList(keys));
+    }
+
+    @CheckReturnValue
+    public LockHandle lockAll(Collection<T> keys) {
+        LockHandle handle = tryLockAll(keys, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        assert handle != null;
+        return handle;
+    }
+
+    /**
+     * Like {@link #lockAll(Collection)}, but gives up if all the keys could not be locked within the timeout.
+     *
+     * @return handle for unlocking the keys, or {@code null} if the timeout elapsed, in which case no keys are left locked.
+     */
+    @Nullable
+    @CheckReturnValue
+    public LockHandle tryLockAll(Collection<T> keys, long timeout, TimeUnit unit) {
+        long deadline = deadline(unit.toNanos(timeout));
+        SortedSet<T> sortedKeys = new TreeSet<>(keys);
+        List<T> lockedSoFar = new ArrayList<>(sortedKeys.size());
+        for (T key : sortedKeys) {
+            if (!tryLock(key, deadline)) {
+                unlockAll(lockedSoFar);
+                return null;
+            }
+            lockedSoFar.add(key);
+        }
+        return new MyLockHandle(sortedKeys);
+    }
+
+    private static long deadline(long timeoutNanos) {
+        long now = System.nanoTime();
+        long deadline = now + timeoutNanos;
+        return deadline < now ? Long.MAX_VALUE : deadline;
+    }
+
+    private boolean tryLock(T key, long deadline) {
+        while (true) {
+            KeyLock lock = getOrCreateKeyLock(key);
+            synchronized (lock) {
+                if (lock.discarded) {
+                    continue;
+                }
+                return lock.tryAcquire(deadline);
+            }
+        }
+    }
+
+    private KeyLock getOrCreateKeyLock(T key) {
+        KeyLock lock = keyLocks.get(key);
+        if (lock == null) {
+            KeyLock created = new KeyLock();
+            lock = keyLocks.putIfAbsent(key, created);
+            if (lock == null) {
+                lock = created;
+            }
+        }
+        return lock;
+    }
+
+    private void unlockAll(Collection<T> keys) {
+        for (T key : keys) {
+            unlock(key);
+        }
+    }
+
+    private void unlock(T key) {
+        KeyLock lock = keyLocks.get(key);
+        assert lock != null : "Key not locked: " + key;
+        synchronized (lock) {
+            lock.release();
+            if (lock.waiters == 0) {
+                lock.discarded = true;
+                keyLocks.remove(key, lock);
+            }
+        }
+    }
+
+    public boolean isLocked(T key) {
+        KeyLock lock = keyLocks.get(key);
+        if (lock == null) {
+            return false;
+        }
+        synchronized (lock) {
+            return lock.locked;
+        }
+    }
+
+    public int getLockCount() {
+        int count = 0;
+        for (KeyLock lock : keyLocks.values()) {
+            synchronized (lock) {
+                if (lock.locked) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+
+    @ThreadSafe
+    private static class KeyLock {
+
+        // all fields are guarded by the KeyLock's monitor
+        private boolean locked = false;
+        private int waiters = 0;
+        private boolean discarded = false;
+
+        public boolean tryAcquire(long deadline) {
+            boolean interrupted = false;
+            waiters++;
+            try {
+                while (locked) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    try {
+                        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                locked = true;
+                return true;
+            } finally {
+                waiters--;
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        public void release() {
+            assert locked;
+            locked = false;
+            notify();
+        }
+    }
+
+    @ThreadSafe
+    private class MyLockHandle implements LockHandle {
+
+        private Collection<T> keys;
+
+        public MyLockHandle(Collection<T> keys) {
+            this.keys = keys;
+        }
+
+        public synchronized void unlock() {
+            if (keys == null) {
+                throw new IllegalStateException("Keys have already been unlocked: " + keys);
+            }
+            unlockAll(keys);
+            keys = null;
+        }
+    }
+}
@@ -1,8 +1,8 @@
-// Copyright © 2008-2010 Esko Luontola <www.orfjackal.net>
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
 // This software is released under the Apache License 2.0.
 // The license text is at http://dimdwarf.sourceforge.net/LICENSE
 
-package net.orfjackal.dimdwarf.db.inmemory;
+package net.orfjackal.dimdwarf.db.common;
 
 import javax.annotation.WillClose;
 
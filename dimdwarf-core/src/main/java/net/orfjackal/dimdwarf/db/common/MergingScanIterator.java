@@ -0,0 +1,89 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.db.common;
+
+import net.orfjackal.dimdwarf.db.Blob;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+import java.util.*;
+
+/**
+ * Merges a transaction's own updates with the committed entries of the database in a single pass.
+ * Both iterators must be in key order. When both have the same key, the transaction's update wins.
+ * Deleted entries (empty blobs) are skipped.
+ */
+@NotThreadSafe
+class MergingScanIterator implements Iterator<Map.Entry<Blob, Blob>> {
+
+    private final Iterator<Map.Entry<Blob, Blob>> updates;
+    private final Iterator<Map.Entry<Blob, Blob>> committed;
+    @Nullable private Map.Entry<Blob, Blob> nextUpdate;
+    @Nullable private Map.Entry<Blob, Blob> nextCommitted;
+    @Nullable private Map.Entry<Blob, Blob> fetchedNext;
+
+    public MergingScanIterator(Iterator<Map.Entry<Blob, Blob>> updates, Iterator<Map.Entry<Blob, Blob>> committed) {
+        this.updates = updates;
+        this.committed = committed;
+        this.nextUpdate = advance(updates);
+        this.nextCommitted = advance(committed);
+    }
+
+    public boolean hasNext() {
+        fetchNext();
+        return fetchedNext != null;
+    }
+
+    public Map.Entry<Blob, Blob> next() {
+        fetchNext();
+        Map.Entry<Blob, Blob> next = fetchedNext;
+        if (next == null) {
+            throw new NoSuchElementException();
+        }
+        fetchedNext = null;
+        return next;
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    private void fetchNext() {
+        while (fetchedNext == null && (nextUpdate != null || nextCommitted != null)) {
+            Map.Entry<Blob, Blob> candidate;
+            int order = compareKeys(nextUpdate, nextCommitted);
+            if (order < 0) {
+                candidate = nextUpdate;
+                nextUpdate = advance(updates);
+            } else if (order > 0) {
+                candidate = nextCommitted;
+                nextCommitted = advance(committed);
+            } else {
+                candidate = nextUpdate;
+                nextUpdate = advance(updates);
+                nextCommitted = advance(committed);
+            }
+            if (candidate.getValue().length() > 0) {
+                fetchedNext = candidate;
+            }
+        }
+    }
+
+    private static int compareKeys(@Nullable Map.Entry<Blob, Blob> a, @Nullable Map.Entry<Blob, Blob> b) {
+        // the exhausted iterator sorts last
+        if (a == null) {
+            return 1;
+        }
+        if (b == null) {
+            return -1;
+        }
+        return a.getKey().compareTo(b.getKey());
+    }
+
+    @Nullable
+    private static Map.Entry<Blob, Blob> advance(Iterator<Map.Entry<Blob, Blob>> it) {
+        return it.hasNext() ? it.next() : null;
+    }
+}
@@ -0,0 +1,50 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.db.common;
+
+import net.orfjackal.dimdwarf.db.*;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import java.util.*;
+
+/**
+ * The merges which a transaction has done to one key, in the order that they were done.
+ * Consecutive merges with the same operator are combined into one operand.
+ */
+@Immutable
+public class PendingMerge {
+
+    private final List<MergeOperator<Blob>> operators;
+    private final List<Blob> operands;
+
+    private PendingMerge(List<MergeOperator<Blob>> operators, List<Blob> operands) {
+        this.operators = operators;
+        this.operands = operands;
+    }
+
+    public static PendingMerge append(@Nullable PendingMerge previous, MergeOperator<Blob> operator, Blob operand) {
+        if (previous == null) {
+            return new PendingMerge(Collections.singletonList(operator), Collections.singletonList(operand));
+        }
+        List<MergeOperator<Blob>> operators = new ArrayList<>(previous.operators);
+        List<Blob> operands = new ArrayList<>(previous.operands);
+        int last = operators.size() - 1;
+        if (operators.get(last).equals(operator)) {
+            operands.set(last, operator.merge(operands.get(last), operand));
+        } else {
+            operators.add(operator);
+            operands.add(operand);
+        }
+        return new PendingMerge(operators, operands);
+    }
+
+    public Blob applyTo(Blob value) {
+        for (int i = 0; i < operators.size(); i++) {
+            value = operators.get(i).merge(value, operands.get(i));
+        }
+        return value;
+    }
+}
@@ -1,4 +1,4 @@
-// Copyright © 2008-2010 Esko Luontola <www.orfjackal.net>
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
 // This software is released under the Apache License 2.0.
 // The license text is at http://dimdwarf.sourceforge.net/LICENSE
 
@@ -17,6 +17,17 @@ public interface PersistedDatabase<H> {
 
     PersistedDatabaseTable<H> openTable(String name);
 
+    ConflictDetector getConflictDetector();
+
+    ContentionManager getContentionManager();
+
+    /**
+     * Starts delivering the changes of the transactions which commit from now on, see {@link ChangeListener}.
+     */
+    void addChangeListener(ChangeListener listener);
+
+    void removeChangeListener(ChangeListener listener);
+
     @CheckReturnValue
     CommitHandle prepare(Collection<TransientDatabaseTable<H>> updates, H handle);
 }
@@ -1,4 +1,4 @@
-// Copyright © 2008-2010 Esko Luontola <www.orfjackal.net>
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
 // This software is released under the Apache License 2.0.
 // The license text is at http://dimdwarf.sourceforge.net/LICENSE
 
@@ -7,19 +7,48 @@ package net.orfjackal.dimdwarf.db.common;
 import net.orfjackal.dimdwarf.db.Blob;
 
 import javax.annotation.*;
-import java.util.Map;
+import java.util.*;
 
 public interface PersistedDatabaseTable<H> {
 
     @Nullable
     Blob firstKey(H handle);
 
+    @Nullable
+    Blob lastKey(H handle);
+
     @Nullable
     Blob nextKeyAfter(Blob currentKey, H handle);
 
     @Nullable
     Blob get(Blob key, H handle);
 
+    /**
+     * Returns the values of the existing keys, as seen by the handle. Nonexistent keys are left out.
+     */
+    Map<Blob, Blob> getAll(Collection<Blob> keys, H handle);
+
+    /**
+     * Returns the revision in which the value seen by the handle was committed, or zero if there is none.
+     */
+    long getRevision(Blob key, H handle);
+
+    /**
+     * Returns true if the key has been committed after the read revision of the handle,
+     * in which case a transaction using the handle can not commit a modification of it.
+     */
+    boolean isModifiedAfter(Blob key, H handle);
+
+    /**
+     * Iterates in key order over the entries from {@code fromKey} (inclusive) to {@code toKey} (exclusive),
+     * as seen by the handle. A null bound means that the range is unbounded on that side.
+     */
+    Iterator<Map.Entry<Blob, Blob>> scan(@Nullable Blob fromKey, @Nullable Blob toKey, H handle);
+
+    /**
+     * Locks the keys for commit and checks that the updated keys have not been modified after the read revision
+     * of the handle. The merges are applied to the newest committed values of their keys.
+     */
     @CheckReturnValue
-    CommitHandle prepare(Map<Blob, Blob> updates, H handle);
+    TableCommitHandle prepare(Map<Blob, Blob> updates, Map<Blob, PendingMerge> merges, H handle);
 }
@@ -17,6 +17,11 @@ public class SortedMapUtil {
         return map.isEmpty() ? null : map.firstKey();
     }
 
+    @Nullable
+    public static <K> K lastKey(SortedMap<K, ?> map) {
+        return map.isEmpty() ? null : map.lastKey();
+    }
+
     @Nullable
     public static <K> K nextKeyAfter(K currentKey, SortedMap<K, ?> map) {
         Iterator<K> it = map.tailMap(currentKey).keySet().iterator();
@@ -0,0 +1,17 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.db.common;
+
+import net.orfjackal.dimdwarf.db.Blob;
+
+import java.util.Map;
+
+public interface TableCommitHandle extends CommitHandle {
+
+    /**
+     * The values which will be written when committing, including the results of the merges.
+     */
+    Map<Blob, Blob> getWrites();
+}
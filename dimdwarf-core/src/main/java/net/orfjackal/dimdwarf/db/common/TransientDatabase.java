@@ -12,18 +12,21 @@ import java.util.Set;
 import java.util.concurrent.*;
 
 @ThreadSafe
-public class TransientDatabase<H> implements Database<Blob, Blob>, TransactionParticipant {
+public class TransientDatabase<H> implements Database<Blob, Blob>, InfallibleCommitParticipant {
 
     private final ConcurrentMap<String, TransientDatabaseTable<H>> openTables = new ConcurrentHashMap<>();
     private final PersistedDatabase<H> db;
     private final H dbHandle;
     private final Transaction tx;
+    private final long startTime = System.nanoTime();
+    private final ContentionManager.TransactionLocks hotKeys;
     private CommitHandle commitHandle;
 
     public TransientDatabase(PersistedDatabase<H> db, H dbHandle, Transaction tx) {
         this.db = db;
         this.dbHandle = dbHandle;
         this.tx = tx;
+        this.hotKeys = db.getContentionManager().newTransactionLocks();
         tx.join(this);
     }
 
@@ -35,7 +38,7 @@ public class TransientDatabase<H> implements Database<Blob, Blob>, TransactionPa
         return db.getTableNames();
     }
 
-    public DatabaseTable<Blob, Blob> openTable(String name) {
+    public MergeableDatabaseTable<Blob, Blob> openTable(String name) {
         tx.mustBeActive();
         TransientDatabaseTable<H> table = getOpenedTable(name);
         if (table == null) {
@@ -50,21 +53,38 @@ public class TransientDatabase<H> implements Database<Blob, Blob>, TransactionPa
 
     private TransientDatabaseTable<H> openNewTable(String name) {
         PersistedDatabaseTable<H> backend = db.openTable(name);
-        openTables.putIfAbsent(name, new TransientDatabaseTable<>(backend, dbHandle, tx));
+        openTables.putIfAbsent(name, new TransientDatabaseTable<>(name, backend, dbHandle, tx, db.getConflictDetector(), startTime, hotKeys));
         return getOpenedTable(name);
     }
 
     public void prepare() throws Throwable {
-        commitHandle = db.prepare(openTables.values(), dbHandle);
+        ConflictDetector conflicts = db.getConflictDetector();
+        long elapsed = System.nanoTime() - startTime;
+        conflicts.transactionPrepared(elapsed);
+        try {
+            commitHandle = db.prepare(openTables.values(), dbHandle);
+        } catch (OptimisticLockException e) {
+            conflicts.conflictAtCommit(elapsed);
+            db.getContentionManager().conflictedOn(e.getKeys());
+            throw e;
+        }
     }
 
     public void commit() {
-        commitHandle.commit();
+        try {
+            commitHandle.commit();
+        } finally {
+            hotKeys.unlockAll();
+        }
     }
 
     public void rollback() {
-        if (commitHandle != null) {
-            commitHandle.rollback();
+        try {
+            if (commitHandle != null) {
+                commitHandle.rollback();
+            }
+        } finally {
+            hotKeys.unlockAll();
         }
     }
 }
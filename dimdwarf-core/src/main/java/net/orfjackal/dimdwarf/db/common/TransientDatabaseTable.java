@@ -9,22 +9,39 @@ import net.orfjackal.dimdwarf.tx.Transaction;
 
 import javax.annotation.*;
 import javax.annotation.concurrent.ThreadSafe;
-import java.util.SortedMap;
+import java.util.*;
 import java.util.concurrent.ConcurrentSkipListMap;
 
 @ThreadSafe
-public class TransientDatabaseTable<H> implements DatabaseTable<Blob, Blob> {
+public class TransientDatabaseTable<H> implements MergeableDatabaseTable<Blob, Blob> {
+
+    private static final long UNCOMMITTED_REVISION = -1;
 
     private final SortedMap<Blob, Blob> updates = new ConcurrentSkipListMap<>();
+    private final SortedMap<Blob, PendingMerge> merges = new ConcurrentSkipListMap<>();
+    private final String name;
     private final PersistedDatabaseTable<H> dbTable;
     private final H dbHandle;
     private final Transaction tx;
-    private CommitHandle commitHandle;
+    private final ConflictDetector conflicts;
+    private final long startTime;
+    private final ContentionManager.TransactionLocks hotKeys;
+    private TableCommitHandle commitHandle;
 
-    public TransientDatabaseTable(PersistedDatabaseTable<H> dbTable, H dbHandle, Transaction tx) {
+    /**
+     * @param startTime when the transaction began, as given by {@link System#nanoTime()}.
+     * @param hotKeys   the hot keys which the transaction has locked; they are unlocked by the caller.
+     */
+    public TransientDatabaseTable(String name, PersistedDatabaseTable<H> dbTable, H dbHandle, Transaction tx,
+                                  ConflictDetector conflicts, long startTime,
+                                  ContentionManager.TransactionLocks hotKeys) {
+        this.name = name;
         this.dbTable = dbTable;
         this.dbHandle = dbHandle;
         this.tx = tx;
+        this.conflicts = conflicts;
+        this.startTime = startTime;
+        this.hotKeys = hotKeys;
     }
 
     public boolean exists(Blob key) {
@@ -34,29 +51,125 @@ public class TransientDatabaseTable<H> implements DatabaseTable<Blob, Blob> {
     @Nonnull
     public Blob read(Blob key) {
         tx.mustBeActive();
+        if (!tx.isReadOnly()) {
+            hotKeys.accessing(key);
+        }
         Blob blob = updates.get(key);
         if (blob == null) {
+            if (checksReads()) {
+                checkForConflict(key);
+            }
             blob = dbTable.get(key, dbHandle);
         }
         if (blob == null) {
             blob = Blob.EMPTY_BLOB;
         }
-        return blob;
+        return withPendingMerge(key, blob);
+    }
+
+    /**
+     * A read-only transaction can not conflict, so there is no need to detect conflicts on read.
+     */
+    private boolean checksReads() {
+        return conflicts.getMode().checksReads() && !tx.isReadOnly();
+    }
+
+    private Blob withPendingMerge(Blob key, Blob value) {
+        PendingMerge merge = merges.get(key);
+        return merge != null ? merge.applyTo(value) : value;
+    }
+
+    public Map<Blob, Blob> readAll(Collection<Blob> keys) {
+        tx.mustBeActive();
+        List<Blob> notUpdated = new ArrayList<>(keys.size());
+        for (Blob key : keys) {
+            if (!tx.isReadOnly()) {
+                hotKeys.accessing(key);
+            }
+            if (!updates.containsKey(key)) {
+                notUpdated.add(key);
+            }
+        }
+        if (checksReads()) {
+            for (Blob key : notUpdated) {
+                checkForConflict(key);
+            }
+        }
+        Map<Blob, Blob> committed = notUpdated.isEmpty()
+                ? Collections.<Blob, Blob>emptyMap()
+                : dbTable.getAll(notUpdated, dbHandle);
+
+        Map<Blob, Blob> values = new LinkedHashMap<>();
+        for (Blob key : keys) {
+            Blob blob = updates.get(key);
+            if (blob == null) {
+                blob = committed.get(key);
+            }
+            if (blob == null) {
+                blob = Blob.EMPTY_BLOB;
+            }
+            values.put(key, withPendingMerge(key, blob));
+        }
+        return values;
+    }
+
+    public long getRevision(Blob key) {
+        tx.mustBeActive();
+        if (updates.containsKey(key) || merges.containsKey(key)) {
+            return UNCOMMITTED_REVISION;
+        }
+        return dbTable.getRevision(key, dbHandle);
     }
 
     public void update(Blob key, Blob value) {
         tx.mustBeActive();
+        mustBeWritable();
+        hotKeys.accessing(key);
+        if (conflicts.getMode().checksWrites()) {
+            checkForConflict(key);
+        }
+        merges.remove(key);
         updates.put(key, value);
     }
 
     public void delete(Blob key) {
+        update(key, Blob.EMPTY_BLOB);
+    }
+
+    public void merge(Blob key, Blob operand, MergeOperator<Blob> operator) {
         tx.mustBeActive();
-        updates.put(key, Blob.EMPTY_BLOB);
+        mustBeWritable();
+        hotKeys.accessing(key);
+        Blob updated = updates.get(key);
+        if (updated != null) {
+            // the transaction already decided the value, so there is nothing to merge it with
+            updates.put(key, operator.merge(updated, operand));
+        } else {
+            merges.put(key, PendingMerge.append(merges.get(key), operator, operand));
+        }
+    }
+
+    private void mustBeWritable() {
+        if (tx.isReadOnly()) {
+            throw new IllegalStateException("The transaction is read-only");
+        }
+    }
+
+    /**
+     * Fails the transaction as soon as it is known that it could not commit,
+     * so that it will not waste time doing the rest of its work.
+     */
+    private void checkForConflict(Blob key) throws OptimisticLockException {
+        if (dbTable.isModifiedAfter(key, dbHandle)) {
+            conflicts.earlyConflict(System.nanoTime() - startTime);
+            hotKeys.conflictedOn(key);
+            throw new OptimisticLockException("Key " + key + " already modified by another transaction", Collections.singleton(key));
+        }
     }
 
     public Blob firstKey() {
         tx.mustBeActive();
-        Blob key1 = SortedMapUtil.firstKey(updates);
+        Blob key1 = min(SortedMapUtil.firstKey(updates), SortedMapUtil.firstKey(merges));
         Blob key2 = dbTable.firstKey(dbHandle);
         Blob first = min(key1, key2);
         if (first != null && !exists(first)) {
@@ -69,13 +182,86 @@ public class TransientDatabaseTable<H> implements DatabaseTable<Blob, Blob> {
         tx.mustBeActive();
         Blob next = currentKey;
         do {
-            Blob key1 = SortedMapUtil.nextKeyAfter(next, updates);
+            Blob key1 = min(SortedMapUtil.nextKeyAfter(next, updates), SortedMapUtil.nextKeyAfter(next, merges));
             Blob key2 = dbTable.nextKeyAfter(next, dbHandle);
             next = min(key1, key2);
         } while (next != null && !exists(next));
         return next;
     }
 
+    /**
+     * If this transaction has deleted the last key, the keys are iterated from the start,
+     * because finding the key before it would need a reverse iteration of the database table.
+     */
+    public Blob lastKey() {
+        tx.mustBeActive();
+        Blob key1 = max(SortedMapUtil.lastKey(updates), SortedMapUtil.lastKey(merges));
+        Blob key2 = dbTable.lastKey(dbHandle);
+        Blob last = max(key1, key2);
+        if (last != null && !exists(last)) {
+            last = null;
+            for (Blob key = firstKey(); key != null; key = nextKeyAfter(key)) {
+                last = key;
+            }
+        }
+        return last;
+    }
+
+    public Iterator<Map.Entry<Blob, Blob>> scan(@Nullable Blob fromKey, @Nullable Blob toKey) {
+        tx.mustBeActive();
+        return new MergingScanIterator(
+                ownChangesBetween(fromKey, toKey),
+                dbTable.scan(fromKey, toKey, dbHandle));
+    }
+
+    private Iterator<Map.Entry<Blob, Blob>> ownChangesBetween(@Nullable Blob fromKey, @Nullable Blob toKey) {
+        SortedMap<Blob, PendingMerge> mergesInRange = between(merges, fromKey, toKey);
+        if (mergesInRange.isEmpty()) {
+            return between(updates, fromKey, toKey).entrySet().iterator();
+        }
+        SortedMap<Blob, Blob> changes = new TreeMap<>(between(updates, fromKey, toKey));
+        for (Blob key : mergesInRange.keySet()) {
+            Blob committed = dbTable.get(key, dbHandle);
+            changes.put(key, withPendingMerge(key, committed != null ? committed : Blob.EMPTY_BLOB));
+        }
+        return changes.entrySet().iterator();
+    }
+
+    public Iterator<Map.Entry<Blob, Blob>> scanPrefix(Blob prefix) {
+        return scan(prefix, prefixUpperBound(prefix));
+    }
+
+    private static <V> SortedMap<Blob, V> between(SortedMap<Blob, V> map, @Nullable Blob fromKey, @Nullable Blob toKey) {
+        if (fromKey != null && toKey != null && fromKey.compareTo(toKey) >= 0) {
+            return new TreeMap<Blob, V>();
+        }
+        SortedMap<Blob, V> range = map;
+        if (fromKey != null) {
+            range = range.tailMap(fromKey);
+        }
+        if (toKey != null) {
+            range = range.headMap(toKey);
+        }
+        return range;
+    }
+
+    /**
+     * Returns the smallest key which is greater than all keys that start with the prefix,
+     * or null if there is no such key (i.e. the prefix consists only of 0xFF bytes).
+     */
+    @Nullable
+    static Blob prefixUpperBound(Blob prefix) {
+        byte[] bytes = prefix.toByteArray();
+        for (int i = bytes.length - 1; i >= 0; i--) {
+            if (bytes[i] != (byte) 0xFF) {
+                byte[] bound = Arrays.copyOf(bytes, i + 1);
+                bound[i]++;
+                return Blob.wrap(bound);
+            }
+        }
+        return null;
+    }
+
     @Nullable
     private static <T extends Comparable<T>> T min(@Nullable T a, @Nullable T b) {
         if (a == null) {
@@ -91,14 +277,47 @@ public class TransientDatabaseTable<H> implements DatabaseTable<Blob, Blob> {
         }
     }
 
+    @Nullable
+    private static <T extends Comparable<T>> T max(@Nullable T a, @Nullable T b) {
+        if (a == null) {
+            return b;
+        }
+        if (b == null) {
+            return a;
+        }
+        if (a.compareTo(b) > 0) {
+            return a;
+        } else {
+            return b;
+        }
+    }
+
+    /**
+     * A table which the transaction did not modify does not need to be prepared or committed.
+     */
+    public boolean isReadOnly() {
+        return updates.isEmpty() && merges.isEmpty();
+    }
+
     public void prepare() {
-        commitHandle = dbTable.prepare(updates, dbHandle);
+        commitHandle = dbTable.prepare(updates, merges, dbHandle);
     }
 
     public void commit() {
         commitHandle.commit();
     }
 
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * The values which this table will write when committing. Available after the table has been prepared.
+     */
+    public Map<Blob, Blob> getWrites() {
+        return commitHandle != null ? commitHandle.getWrites() : Collections.<Blob, Blob>emptyMap();
+    }
+
     public void rollback() {
         if (commitHandle != null) {
             commitHandle.rollback();
@@ -0,0 +1,299 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.db.durable;
+
+import net.orfjackal.dimdwarf.db.*;
+import net.orfjackal.dimdwarf.db.common.*;
+import net.orfjackal.dimdwarf.db.inmemory.*;
+import net.orfjackal.dimdwarf.tx.*;
+import org.jetbrains.annotations.TestOnly;
+
+import javax.annotation.concurrent.*;
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A database which keeps its data in an {@link InMemoryDatabase}, so it has the same snapshot isolation
+ * semantics, but which also writes the updates of every committed transaction to a {@link WriteAheadLog}
+ * before making them visible to other transactions. On startup the log is replayed to restore the database.
+ * <p/>
+ * The updates are written to the log when the transaction is prepared, so that if writing fails, the whole
+ * transaction fails and the commit itself can not fail anymore. If the transaction is rolled back after
+ * its updates were written, an abort record is written for them, and they are skipped when replaying the log.
+ * <p/>
+ * Concurrently committing transactions share their fsyncs (group commit), so the durability costs
+ * about one disk sync per batch of transactions instead of one sync per transaction.
+ * <p/>
+ * To keep the startup fast, {@link #checkpoint()} writes a snapshot of the database and starts a new log.
+ * On startup the snapshot is restored and only the log records written after it are replayed.
+ */
+@ThreadSafe
+public class DurableDatabase implements PersistedDatabase<RevisionHandle>, Closeable {
+
+    private final ConcurrentMap<String, DurableDatabaseTable> tables = new ConcurrentHashMap<>();
+    private final ConcurrentMap<RevisionHandle, LogRecord> preparingTransactions = new ConcurrentHashMap<>();
+    private final AtomicLong lastRecordId = new AtomicLong();
+    private final InMemoryDatabase db;
+    private final File logFile;
+    private final File previousLogFile;
+    private final File snapshotFile;
+
+    // A transaction holds a permit from writing its log record until it has been committed or rolled back,
+    // so that a checkpoint, which takes all permits, can switch to a new log at a point where no commit is
+    // in the middle. A semaphore is used instead of a lock, because the commit may be done in another thread.
+    private static final int ALL_PERMITS = Integer.MAX_VALUE;
+    private final Semaphore commitGate = new Semaphore(ALL_PERMITS, true);
+    private final Object checkpointLock = new Object();
+    private volatile WriteAheadLog log;
+
+    public DurableDatabase(File logFile, File snapshotFile) throws IOException {
+        this(new InMemoryDatabase(), logFile, snapshotFile);
+    }
+
+    /**
+     * @param db an empty database, which will be filled from the snapshot and the log
+     */
+    public DurableDatabase(InMemoryDatabase db, File logFile, File snapshotFile) throws IOException {
+        this.db = db;
+        this.logFile = logFile;
+        this.previousLogFile = new File(logFile.getPath() + ".previous");
+        this.snapshotFile = snapshotFile;
+
+        if (snapshotFile.isFile()) {
+            db.restoreSnapshot(snapshotFile, Runtime.getRuntime().availableProcessors());
+        }
+        // Replaying a log over a snapshot which already contains some of its records is harmless:
+        // the records are replayed in order, so every key ends up with the value it was last given.
+        if (previousLogFile.isFile()) {
+            replayLog(previousLogFile).close();
+        }
+        this.log = replayLog(logFile);
+    }
+
+    private WriteAheadLog replayLog(File file) throws IOException {
+        // the abort record comes after the record which it cancels, so they must all be found before replaying
+        AbortedRecords aborted = new AbortedRecords();
+        new WriteAheadLog(file, aborted).close();
+        lastRecordId.set(Math.max(lastRecordId.get(), aborted.lastRecordId));
+        return new WriteAheadLog(file, new ReplayLogRecord(db, aborted.ids));
+    }
+
+    public IsolationLevel getIsolationLevel() {
+        return db.getIsolationLevel();
+    }
+
+    public Set<String> getTableNames() {
+        return db.getTableNames();
+    }
+
+    public ConflictDetector getConflictDetector() {
+        return db.getConflictDetector();
+    }
+
+    public ContentionManager getContentionManager() {
+        return db.getContentionManager();
+    }
+
+    /**
+     * The changes are delivered after they have been written to the log.
+     */
+    public void addChangeListener(ChangeListener listener) {
+        db.addChangeListener(listener);
+    }
+
+    public void removeChangeListener(ChangeListener listener) {
+        db.removeChangeListener(listener);
+    }
+
+    public PersistedDatabaseTable<RevisionHandle> openTable(String name) {
+        DurableDatabaseTable table = getExistingTable(name);
+        if (table == null) {
+            table = createNewTable(name);
+        }
+        return table;
+    }
+
+    private DurableDatabaseTable getExistingTable(String name) {
+        return tables.get(name);
+    }
+
+    private DurableDatabaseTable createNewTable(String name) {
+        tables.putIfAbsent(name, new DurableDatabaseTable(name, db.openTable(name), this));
+        return getExistingTable(name);
+    }
+
+    public Database<Blob, Blob> createNewConnection(Transaction tx) {
+        RevisionHandle h = db.openNewestRevision();
+        return new TransientDatabase<>(this, h, tx);
+    }
+
+    public CommitHandle prepare(Collection<TransientDatabaseTable<RevisionHandle>> updates, RevisionHandle handle) {
+        LogRecord record = new LogRecord(lastRecordId.incrementAndGet());
+        CommitHandle commit;
+        preparingTransactions.put(handle, record);
+        try {
+            commit = db.prepare(updates, handle);
+        } finally {
+            preparingTransactions.remove(handle);
+        }
+        if (record.isEmpty()) {
+            // nothing to log, so the commit does not need to be synchronized with checkpoints
+            return commit;
+        }
+        commitGate.acquireUninterruptibly();
+        try {
+            log.append(record.toByteArray());
+        } catch (IOException | RuntimeException e) {
+            try {
+                commit.rollback();
+            } finally {
+                commitGate.release();
+            }
+            throw new PersistenceException("Unable to write to the log", e);
+        }
+        return new DbCommitHandle(commit, record.getId());
+    }
+
+    void addToLogRecord(String table, Map<Blob, Blob> updates, RevisionHandle handle) {
+        LogRecord record = preparingTransactions.get(handle);
+        assert record != null : "Transaction not preparing: " + handle;
+        record.addTable(table, updates);
+    }
+
+    /**
+     * Writes a snapshot of the database and discards the log records which it contains. Transactions may keep
+     * on committing while the snapshot is being written; they are blocked only while switching to a new log.
+     */
+    public void checkpoint() throws IOException {
+        synchronized (checkpointLock) {
+            RevisionHandle handle;
+            commitGate.acquireUninterruptibly(ALL_PERMITS);
+            try {
+                handle = db.openNewestRevision();
+                // If the previous log is still there, an earlier checkpoint did not finish. The new snapshot
+                // will contain both logs' records up to this point, so the current log can be kept as it is.
+                if (!previousLogFile.exists()) {
+                    startNewLog();
+                }
+            } finally {
+                commitGate.release(ALL_PERMITS);
+            }
+            try {
+                db.writeSnapshot(snapshotFile, handle);
+            } finally {
+                handle.rollback();
+            }
+            Files.deleteIfExists(previousLogFile.toPath());
+        }
+    }
+
+    private void startNewLog() throws IOException {
+        log.close();
+        Files.move(logFile.toPath(), previousLogFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        log = new WriteAheadLog(logFile, new ReplayLogRecord(db, Collections.<Long>emptySet()));
+    }
+
+    @TestOnly
+    void setExtraLogSyncMillis(long millis) {
+        log.setExtraSyncMillis(millis);
+    }
+
+    @TestOnly
+    long getLogSyncCount() {
+        return log.getSyncCount();
+    }
+
+    public void close() throws IOException {
+        commitGate.acquireUninterruptibly(ALL_PERMITS);
+        try {
+            log.close();
+        } finally {
+            commitGate.release(ALL_PERMITS);
+        }
+    }
+
+
+    @NotThreadSafe
+    private static class AbortedRecords implements LogRecordHandler {
+
+        private final Set<Long> ids = new HashSet<>();
+        private long lastRecordId = 0;
+
+        public void handle(byte[] record) {
+            long id = LogRecord.idOf(record);
+            if (LogRecord.isAbort(record)) {
+                ids.add(id);
+            }
+            lastRecordId = Math.max(lastRecordId, id);
+        }
+    }
+
+
+    @ThreadSafe
+    private static class ReplayLogRecord implements LogRecordHandler {
+
+        private final InMemoryDatabase db;
+        private final Set<Long> aborted;
+
+        public ReplayLogRecord(InMemoryDatabase db, Set<Long> aborted) {
+            this.db = db;
+            this.aborted = aborted;
+        }
+
+        public void handle(byte[] record) {
+            if (LogRecord.isAbort(record) || aborted.contains(LogRecord.idOf(record))) {
+                return;
+            }
+            TransactionCoordinator tx = new TransactionContext();
+            LogRecord.replay(record, db.createNewConnection(tx.getTransaction()));
+            tx.prepareAndCommit();
+        }
+    }
+
+
+    /**
+     * The log record has already been written, and the modified keys stay locked until the end of the
+     * transaction, so no other transaction's record for the same keys can come between the record
+     * and its abort record.
+     */
+    @NotThreadSafe
+    private class DbCommitHandle implements CommitHandle {
+
+        private final CommitHandle commit;
+        private final long recordId;
+
+        public DbCommitHandle(CommitHandle commit, long recordId) {
+            this.commit = commit;
+            this.recordId = recordId;
+        }
+
+        public void commit() {
+            try {
+                commit.commit();
+            } finally {
+                commitGate.release();
+            }
+        }
+
+        public void rollback() {
+            try {
+                log.append(LogRecord.abortRecord(recordId));
+            } catch (IOException e) {
+                // the log refuses new records after this, so the database will not diverge from it any further
+                throw new PersistenceException("Unable to write an abort record to the log; the rolled back " +
+                        "transaction will be restored from the log on the next startup", e);
+            } finally {
+                try {
+                    commit.rollback();
+                } finally {
+                    commitGate.release();
+                }
+            }
+        }
+    }
+}
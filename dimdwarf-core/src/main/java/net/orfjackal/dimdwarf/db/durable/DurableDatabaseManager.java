@@ -0,0 +1,111 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.db.durable;
+
+import net.orfjackal.dimdwarf.db.*;
+import net.orfjackal.dimdwarf.db.inmemory.InMemoryDatabase;
+import net.orfjackal.dimdwarf.tx.*;
+import org.jetbrains.annotations.TestOnly;
+
+import javax.annotation.concurrent.ThreadSafe;
+import javax.inject.*;
+import java.io.*;
+import java.util.concurrent.*;
+
+@Singleton
+@ThreadSafe
+public class DurableDatabaseManager implements DatabaseManager, Closeable {
+
+    private static final String LOG_FILE = "transactions.log";
+    private static final String SNAPSHOT_FILE = "snapshot.db";
+
+    private final DurableDatabase db;
+    private final ConcurrentMap<Transaction, Database<Blob, Blob>> openConnections = new ConcurrentHashMap<>();
+
+    public DurableDatabaseManager(File dir) throws IOException {
+        this(dir, new InMemoryDatabase());
+    }
+
+    @Inject
+    public DurableDatabaseManager(@DatabaseDirectory File dir, InMemoryDatabase memory) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create directory " + dir);
+        }
+        db = new DurableDatabase(memory, new File(dir, LOG_FILE), new File(dir, SNAPSHOT_FILE));
+    }
+
+    public Database<Blob, Blob> openConnection(Transaction tx) {
+        Database<Blob, Blob> connection = getExistingConnection(tx);
+        if (connection == null) {
+            connection = createNewConnection(tx);
+        }
+        return connection;
+    }
+
+    private Database<Blob, Blob> getExistingConnection(Transaction tx) {
+        return openConnections.get(tx);
+    }
+
+    private Database<Blob, Blob> createNewConnection(Transaction tx) {
+        Database<Blob, Blob> con = db.createNewConnection(tx);
+        Object prev = openConnections.putIfAbsent(tx, con);
+        assert prev == null : "Connection " + prev + " already exists in transaction " + tx;
+        tx.join(new ConnectionCloser(tx));
+        return con;
+    }
+
+    private void closeConnection(Transaction tx) {
+        Object removed = openConnections.remove(tx);
+        assert removed != null : "No connection open in transaction " + tx;
+    }
+
+    @TestOnly
+    int getOpenConnections() {
+        return openConnections.size();
+    }
+
+    @TestOnly
+    void setExtraLogSyncMillis(long millis) {
+        db.setExtraLogSyncMillis(millis);
+    }
+
+    @TestOnly
+    long getLogSyncCount() {
+        return db.getLogSyncCount();
+    }
+
+    /**
+     * See {@link DurableDatabase#checkpoint()}
+     */
+    public void checkpoint() throws IOException {
+        db.checkpoint();
+    }
+
+    public void close() throws IOException {
+        db.close();
+    }
+
+
+    @ThreadSafe
+    private class ConnectionCloser implements InfallibleCommitParticipant {
+
+        private final Transaction tx;
+
+        public ConnectionCloser(Transaction tx) {
+            this.tx = tx;
+        }
+
+        public void prepare() throws Throwable {
+        }
+
+        public void commit() {
+            closeConnection(tx);
+        }
+
+        public void rollback() {
+            closeConnection(tx);
+        }
+    }
+}
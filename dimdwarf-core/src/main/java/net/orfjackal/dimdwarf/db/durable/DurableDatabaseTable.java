@@ -0,0 +1,64 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.db.durable;
+
+import net.orfjackal.dimdwarf.db.Blob;
+import net.orfjackal.dimdwarf.db.common.*;
+import net.orfjackal.dimdwarf.db.inmemory.RevisionHandle;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.*;
+
+@ThreadSafe
+public class DurableDatabaseTable implements PersistedDatabaseTable<RevisionHandle> {
+
+    private final String name;
+    private final PersistedDatabaseTable<RevisionHandle> table;
+    private final DurableDatabase db;
+
+    public DurableDatabaseTable(String name, PersistedDatabaseTable<RevisionHandle> table, DurableDatabase db) {
+        this.name = name;
+        this.table = table;
+        this.db = db;
+    }
+
+    public Blob firstKey(RevisionHandle handle) {
+        return table.firstKey(handle);
+    }
+
+    public Blob lastKey(RevisionHandle handle) {
+        return table.lastKey(handle);
+    }
+
+    public Blob nextKeyAfter(Blob currentKey, RevisionHandle handle) {
+        return table.nextKeyAfter(currentKey, handle);
+    }
+
+    public Blob get(Blob key, RevisionHandle handle) {
+        return table.get(key, handle);
+    }
+
+    public Map<Blob, Blob> getAll(Collection<Blob> keys, RevisionHandle handle) {
+        return table.getAll(keys, handle);
+    }
+
+    public long getRevision(Blob key, RevisionHandle handle) {
+        return table.getRevision(key, handle);
+    }
+
+    public boolean isModifiedAfter(Blob key, RevisionHandle handle) {
+        return table.isModifiedAfter(key, handle);
+    }
+
+    public Iterator<Map.Entry<Blob, Blob>> scan(Blob fromKey, Blob toKey, RevisionHandle handle) {
+        return table.scan(fromKey, toKey, handle);
+    }
+
+    public TableCommitHandle prepare(Map<Blob, Blob> updates, Map<Blob, PendingMerge> merges, RevisionHandle handle) {
+        TableCommitHandle commit = table.prepare(updates, merges, handle);
+        db.addToLogRecord(name, commit.getWrites(), handle);
+        return commit;
+    }
+}
@@ -0,0 +1,120 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.db.durable;
+
+import net.orfjackal.dimdwarf.db.*;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * The updates of one transaction, in the format in which they are written to the {@link WriteAheadLog}.
+ * A deleted key is stored with an empty value, the same way as {@link DatabaseTable#delete} does it.
+ * <p/>
+ * Every record has an id, so that if the transaction is rolled back after its record was written,
+ * the record can be cancelled by writing an {@link #abortRecord} with the same id.
+ */
+@NotThreadSafe
+public class LogRecord {
+
+    private static final byte UPDATES = 1;
+    private static final byte ABORT = 2;
+
+    private final long id;
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private final DataOutputStream out = new DataOutputStream(bytes);
+    private int updatedTables = 0;
+
+    public LogRecord(long id) {
+        this.id = id;
+        writeHeader(out, UPDATES, id);
+    }
+
+    private static void writeHeader(DataOutputStream out, byte type, long id) {
+        try {
+            out.writeByte(type);
+            out.writeLong(id);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public void addTable(String table, Map<Blob, Blob> updates) {
+        if (updates.isEmpty()) {
+            return;
+        }
+        try {
+            out.writeUTF(table);
+            out.writeInt(updates.size());
+            for (Map.Entry<Blob, Blob> update : updates.entrySet()) {
+                writeBlob(update.getKey());
+                writeBlob(update.getValue());
+            }
+            updatedTables++;
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private void writeBlob(Blob blob) throws IOException {
+        out.writeInt(blob.length());
+        blob.writeTo(out);
+    }
+
+    public boolean isEmpty() {
+        return updatedTables == 0;
+    }
+
+    public byte[] toByteArray() {
+        return bytes.toByteArray();
+    }
+
+    public static byte[] abortRecord(long id) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        writeHeader(new DataOutputStream(bytes), ABORT, id);
+        return bytes.toByteArray();
+    }
+
+    public static boolean isAbort(byte[] record) {
+        return record[0] == ABORT;
+    }
+
+    public static long idOf(byte[] record) {
+        return ByteBuffer.wrap(record).getLong(1);
+    }
+
+    public static void replay(byte[] record, Database<Blob, Blob> target) {
+        if (record[0] != UPDATES) {
+            throw new PersistenceException("Not an update record: " + record[0]);
+        }
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+            in.skipBytes(9);
+            while (in.available() > 0) {
+                DatabaseTable<Blob, Blob> table = target.openTable(in.readUTF());
+                int updates = in.readInt();
+                for (int i = 0; i < updates; i++) {
+                    Blob key = readBlob(in);
+                    Blob value = readBlob(in);
+                    table.update(key, value);
+                }
+            }
+        } catch (IOException e) {
+            throw new PersistenceException("Corrupted log record", e);
+        }
+    }
+
+    private static Blob readBlob(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return Blob.wrap(bytes);
+    }
+}
@@ -0,0 +1,186 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.db.durable;
+
+import org.jetbrains.annotations.TestOnly;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.concurrent.locks.*;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log file which uses group commit: the records of concurrent appenders are written to the file
+ * independently, but they all wait for the same fsync. While one thread is syncing the file, the records
+ * appended by other threads accumulate and are made durable together by the next sync.
+ * <p/>
+ * Each record is framed as {@code [length][CRC32][payload]}. When the log is opened, the existing records are
+ * passed to a {@link LogRecordHandler} and a torn record at the end of the file (caused by a crash in the
+ * middle of writing) is truncated away.
+ * <p/>
+ * After a write or a sync has failed, the log refuses to append more records. The file might end with
+ * a partial record, after which no record could be recovered, or with a record which was reported as failed.
+ */
+@ThreadSafe
+public class WriteAheadLog implements Closeable {
+
+    private static final int HEADER_SIZE = 8;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+
+    private final Object appendLock = new Object();
+    private volatile long appendedPosition;
+    private volatile IOException failure = null;
+
+    private final Lock syncLock = new ReentrantLock();
+    private final Condition syncFinished = syncLock.newCondition();
+    private long syncedPosition;
+    private boolean syncInProgress = false;
+    private long syncCount = 0;
+    private volatile long extraSyncMillis = 0;
+
+    public WriteAheadLog(File path, LogRecordHandler recovery) throws IOException {
+        file = new RandomAccessFile(path, "rw");
+        channel = file.getChannel();
+        long validLength = recover(recovery);
+        channel.truncate(validLength);
+        channel.position(validLength);
+        appendedPosition = validLength;
+        syncedPosition = validLength;
+    }
+
+    private long recover(LogRecordHandler recovery) throws IOException {
+        long position = 0;
+        channel.position(position);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+        long fileLength = file.length();
+        while (fileLength - position >= HEADER_SIZE) {
+            int length = in.readInt();
+            int checksum = in.readInt();
+            if (length < 0 || length > fileLength - position - HEADER_SIZE) {
+                break;
+            }
+            byte[] record = new byte[length];
+            in.readFully(record);
+            if (checksum != checksum(record)) {
+                break;
+            }
+            recovery.handle(record);
+            position += HEADER_SIZE + length;
+        }
+        return position;
+    }
+
+    /**
+     * Appends the record to the log and returns after the record has been forced to the storage device.
+     */
+    public void append(byte[] record) throws IOException {
+        if (failure != null) {
+            throw new IOException("The log has failed earlier", failure);
+        }
+        try {
+            long endOfRecord = write(frame(record));
+            awaitSynced(endOfRecord);
+        } catch (IOException e) {
+            failure = e;
+            throw e;
+        }
+    }
+
+    private static ByteBuffer frame(byte[] record) {
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + record.length);
+        buf.putInt(record.length);
+        buf.putInt(checksum(record));
+        buf.put(record);
+        buf.flip();
+        return buf;
+    }
+
+    private static int checksum(byte[] record) {
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        return (int) crc.getValue();
+    }
+
+    private long write(ByteBuffer buf) throws IOException {
+        synchronized (appendLock) {
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+            appendedPosition = channel.position();
+            return appendedPosition;
+        }
+    }
+
+    private void awaitSynced(long position) throws IOException {
+        syncLock.lock();
+        try {
+            while (syncedPosition < position) {
+                if (syncInProgress) {
+                    syncFinished.awaitUninterruptibly();
+                } else {
+                    syncAsLeader();
+                }
+            }
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    private void syncAsLeader() throws IOException {
+        syncInProgress = true;
+        long target = appendedPosition;
+        syncLock.unlock();
+        boolean success = false;
+        try {
+            channel.force(false);
+            if (extraSyncMillis > 0) {
+                Thread.sleep(extraSyncMillis);
+            }
+            success = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } finally {
+            syncLock.lock();
+            syncInProgress = false;
+            if (success) {
+                syncedPosition = Math.max(syncedPosition, target);
+                syncCount++;
+            }
+            syncFinished.signalAll();
+        }
+    }
+
+    /**
+     * Makes every sync take longer, as if the storage device was slow.
+     */
+    @TestOnly
+    void setExtraSyncMillis(long millis) {
+        extraSyncMillis = millis;
+    }
+
+    public long getSyncCount() {
+        syncLock.lock();
+        try {
+            return syncCount;
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    public long size() {
+        return appendedPosition;
+    }
+
+    public void close() throws IOException {
+        synchronized (appendLock) {
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,7 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+@ParametersAreNonnullByDefault package net.orfjackal.dimdwarf.db.durable;
+
+import javax.annotation.ParametersAreNonnullByDefault;
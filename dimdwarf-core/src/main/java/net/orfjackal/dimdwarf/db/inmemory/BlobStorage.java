@@ -0,0 +1,15 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.db.inmemory;
+
+import net.orfjackal.dimdwarf.db.Blob;
+
+/**
+ * Decides where the committed values of an {@link InMemoryDatabase} are kept.
+ */
+public interface BlobStorage {
+
+    StoredBlob store(Blob value);
+}
@@ -0,0 +1,262 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.db.inmemory;
+
+import net.orfjackal.dimdwarf.db.Blob;
+import net.orfjackal.dimdwarf.db.common.ChangeListener;
+import org.slf4j.*;
+
+import javax.annotation.concurrent.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Delivers the changes of the committed revisions to {@link ChangeListener}s.
+ * <p/>
+ * The committing thread only stores its writes into a bounded ring buffer, in the slot of its write revision,
+ * so publishing costs one array write and takes no locks. A background thread delivers the changes to the
+ * listeners in the order of the revisions. Because every revision has its own slot, a revision whose slot
+ * is still empty when the revision has already become readable had no changes. When the listeners fall behind
+ * more than the capacity of the buffer, the overwritten revisions are reported as lost.
+ * <p/>
+ * There is at most one background thread at a time. When it has delivered all readable revisions, it waits
+ * until the committing threads signal that more revisions have become readable. They take a lock for
+ * signalling only when the background thread is waiting. The thread exits when there are no listeners.
+ * <p/>
+ * Each listener remembers the first revision which became readable after it was added, because the background
+ * thread may still be delivering older revisions to the other listeners, and skips the revisions before it.
+ */
+@ThreadSafe
+public class ChangeStream {
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private static final Logger logger = LoggerFactory.getLogger(ChangeStream.class);
+
+    private final RevisionCounter revisions;
+    private final AtomicReferenceArray<CommittedRevision> buffer;
+    private final Collection<Subscription> listeners = new CopyOnWriteArrayList<>();
+
+    private final Lock lock = new ReentrantLock();
+    private final Condition revisionsReadable = lock.newCondition();
+    @GuardedBy("lock") private boolean dispatcherRunning = false;
+    private volatile boolean dispatcherWaiting = false;
+
+    private final AtomicLong deliveredRevisions = new AtomicLong();
+    private final AtomicLong lostRevisions = new AtomicLong();
+
+    public ChangeStream(RevisionCounter revisions) {
+        this(revisions, DEFAULT_CAPACITY);
+    }
+
+    public ChangeStream(RevisionCounter revisions, int capacity) {
+        this.revisions = revisions;
+        this.buffer = new AtomicReferenceArray<>(capacity);
+    }
+
+    /**
+     * Called by the committing thread before its revision is made readable.
+     *
+     * @param writes the values written to each table; must not be modified afterwards.
+     */
+    void publish(long revision, Map<String, Map<Blob, Blob>> writes) {
+        buffer.set(slot(revision), new CommittedRevision(revision, writes));
+    }
+
+    private int slot(long revision) {
+        return (int) (revision % buffer.length());
+    }
+
+    /**
+     * Called by the committing thread after its revision has been committed or rolled back,
+     * which may have made new revisions readable.
+     */
+    void revisionsMayHaveBecomeReadable() {
+        if (dispatcherWaiting) {
+            signalDispatcher();
+        }
+    }
+
+    private void signalDispatcher() {
+        lock.lock();
+        try {
+            revisionsReadable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The listener will receive the changes of the revisions which become readable after it was added.
+     */
+    public void addChangeListener(ChangeListener listener) {
+        lock.lock();
+        try {
+            long firstRevision = revisions.getNewestReadableRevision() + 1;
+            listeners.add(new Subscription(listener, firstRevision));
+            if (!dispatcherRunning) {
+                dispatcherRunning = true;
+                Thread t = new Thread(new Dispatcher(firstRevision), "Change Stream");
+                t.setDaemon(true);
+                t.start();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void removeChangeListener(ChangeListener listener) {
+        lock.lock();
+        try {
+            for (Subscription subscription : listeners) {
+                if (subscription.listener == listener) {
+                    listeners.remove(subscription);
+                }
+            }
+            // wake up the dispatcher, so that it will exit if it was the last listener
+            revisionsReadable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getDeliveredRevisions() {
+        return deliveredRevisions.get();
+    }
+
+    public long getLostRevisions() {
+        return lostRevisions.get();
+    }
+
+
+    @Immutable
+    private static class CommittedRevision {
+        private final long revision;
+        private final Map<String, Map<Blob, Blob>> writes;
+
+        public CommittedRevision(long revision, Map<String, Map<Blob, Blob>> writes) {
+            this.revision = revision;
+            this.writes = writes;
+        }
+    }
+
+    @Immutable
+    private static class Subscription {
+        private final ChangeListener listener;
+        private final long firstRevision;
+
+        public Subscription(ChangeListener listener, long firstRevision) {
+            this.listener = listener;
+            this.firstRevision = firstRevision;
+        }
+    }
+
+    @NotThreadSafe
+    private class Dispatcher implements Runnable {
+
+        private long nextRevision;
+        private long lostSince = -1;
+
+        public Dispatcher(long firstRevision) {
+            this.nextRevision = firstRevision;
+        }
+
+        public void run() {
+            while (true) {
+                if (!deliverNext() && !awaitReadableRevisions()) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * @return false if the dispatcher should exit, because there are no listeners.
+         */
+        private boolean awaitReadableRevisions() {
+            lock.lock();
+            try {
+                // committers check this flag after making their revision readable, so either they will
+                // see the flag and signal, or the check below will see their revision
+                dispatcherWaiting = true;
+                while (!listeners.isEmpty()) {
+                    if (nextRevision <= revisions.getNewestReadableRevision()) {
+                        return true;
+                    }
+                    revisionsReadable.await();
+                }
+                dispatcherRunning = false;
+                return false;
+            } catch (InterruptedException e) {
+                logger.warn("Interrupted, no more changes will be delivered", e);
+                dispatcherRunning = false;
+                return false;
+            } finally {
+                dispatcherWaiting = false;
+                lock.unlock();
+            }
+        }
+
+        private boolean deliverNext() {
+            // when the revision is readable, it has already published its changes (if it had any)
+            if (nextRevision > revisions.getNewestReadableRevision()) {
+                reportLost();
+                return false;
+            }
+            CommittedRevision committed = buffer.get(slot(nextRevision));
+            if (committed != null && committed.revision > nextRevision) {
+                if (lostSince < 0) {
+                    lostSince = nextRevision;
+                }
+            } else {
+                reportLost();
+                if (committed != null && committed.revision == nextRevision) {
+                    deliver(committed);
+                }
+            }
+            nextRevision++;
+            return true;
+        }
+
+        private void deliver(CommittedRevision committed) {
+            for (Map.Entry<String, Map<Blob, Blob>> table : new TreeMap<>(committed.writes).entrySet()) {
+                for (Map.Entry<Blob, Blob> write : new TreeMap<>(table.getValue()).entrySet()) {
+                    for (Subscription subscription : listeners) {
+                        if (committed.revision < subscription.firstRevision) {
+                            continue;
+                        }
+                        try {
+                            subscription.listener.changed(committed.revision, table.getKey(), write.getKey(), write.getValue());
+                        } catch (Throwable t) {
+                            logger.error("Change listener failed: " + subscription.listener, t);
+                        }
+                    }
+                }
+            }
+            deliveredRevisions.incrementAndGet();
+        }
+
+        private void reportLost() {
+            if (lostSince < 0) {
+                return;
+            }
+            long from = lostSince;
+            long to = nextRevision - 1;
+            lostSince = -1;
+            lostRevisions.addAndGet(to - from + 1);
+            for (Subscription subscription : listeners) {
+                if (to < subscription.firstRevision) {
+                    continue;
+                }
+                try {
+                    subscription.listener.changesLost(Math.max(from, subscription.firstRevision), to);
+                } catch (Throwable t) {
+                    logger.error("Change listener failed: " + subscription.listener, t);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,26 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.db.inmemory;
+
+import javax.annotation.Nullable;
+import java.util.*;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The operations which {@link RevisionMap} needs from the map that holds its keys.
+ */
+public interface ConcurrentOrderedMap<K, V> extends ConcurrentMap<K, V> {
+
+    /**
+     * Iterates in key order over the entries from {@code fromKey} (inclusive) to {@code toKey} (exclusive).
+     * A null bound means that the range is unbounded on that side. The iterator is weakly consistent.
+     */
+    Iterator<Map.Entry<K, V>> entriesBetween(@Nullable K fromKey, @Nullable K toKey);
+
+    /**
+     * Iterates over all entries in descending key order. The iterator is weakly consistent.
+     */
+    Iterator<Map.Entry<K, V>> descendingEntries();
+}
@@ -0,0 +1,42 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.db.inmemory;
+
+import net.orfjackal.dimdwarf.db.Blob;
+
+import javax.annotation.concurrent.*;
+
+/**
+ * Keeps the values in the Java heap as they are. Releasing them is left to the garbage collector.
+ */
+@ThreadSafe
+public class HeapBlobStorage implements BlobStorage {
+
+    public StoredBlob store(Blob value) {
+        return new HeapBlob(value);
+    }
+
+
+    @Immutable
+    private static class HeapBlob implements StoredBlob {
+
+        private final Blob value;
+
+        public HeapBlob(Blob value) {
+            this.value = value;
+        }
+
+        public Blob load() {
+            return value;
+        }
+
+        public void release() {
+        }
+
+        public String toString() {
+            return value.toString();
+        }
+    }
+}
@@ -10,6 +10,7 @@ import net.orfjackal.dimdwarf.tx.Transaction;
 import org.jetbrains.annotations.TestOnly;
 
 import javax.annotation.concurrent.*;
+import java.io.*;
 import java.util.*;
 import java.util.concurrent.*;
 
@@ -24,8 +25,48 @@ import java.util.concurrent.*;
 @ThreadSafe
 public class InMemoryDatabase implements PersistedDatabase<RevisionHandle> {
 
+    public static final long DEFAULT_COMMIT_LOCK_TIMEOUT_MILLIS = 100;
+
     private final ConcurrentMap<String, InMemoryDatabaseTable> tables = new ConcurrentHashMap<>();
     private final RevisionCounter revisionCounter = new RevisionCounter();
+    private final ConflictDetector conflictDetector = new ConflictDetector();
+    private final ContentionManager contentionManager = new ContentionManager();
+    private final ChangeStream changes = new ChangeStream(revisionCounter);
+    private final BlobStorage storage;
+    private final long commitLockTimeoutMillis;
+    private final Set<String> prefixCompressedTables;
+    private volatile boolean purgeOnCommit = true;
+
+    public InMemoryDatabase() {
+        this(new HeapBlobStorage());
+    }
+
+    /**
+     * @param storage where to keep the committed values, e.g. {@link HeapBlobStorage} or {@link OffHeapBlobStorage}.
+     */
+    public InMemoryDatabase(BlobStorage storage) {
+        this(storage, DEFAULT_COMMIT_LOCK_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param commitLockTimeoutMillis how long a committing transaction may wait for the keys it modifies to be
+     *                                released by other committing transactions, before it fails with an
+     *                                {@link OptimisticLockException}.
+     */
+    public InMemoryDatabase(BlobStorage storage, long commitLockTimeoutMillis) {
+        this(storage, commitLockTimeoutMillis, Collections.<String>emptySet());
+    }
+
+    /**
+     * @param prefixCompressedTables the tables whose keys are stored in a {@link RadixTreeMap}, so that their
+     *                               common prefixes take memory only once. Suits tables whose keys are long
+     *                               strings with a shared structure, such as the bindings.
+     */
+    public InMemoryDatabase(BlobStorage storage, long commitLockTimeoutMillis, Set<String> prefixCompressedTables) {
+        this.storage = storage;
+        this.commitLockTimeoutMillis = commitLockTimeoutMillis;
+        this.prefixCompressedTables = new HashSet<>(prefixCompressedTables);
+    }
 
     public IsolationLevel getIsolationLevel() {
         return IsolationLevel.SNAPSHOT;
@@ -43,31 +84,94 @@ public class InMemoryDatabase implements PersistedDatabase<RevisionHandle> {
         return table;
     }
 
+    /**
+     * Use this to choose when the conflicts are detected, see {@link ConflictDetection}.
+     */
+    public ConflictDetector getConflictDetector() {
+        return conflictDetector;
+    }
+
+    public ContentionManager getContentionManager() {
+        return contentionManager;
+    }
+
+    public void addChangeListener(ChangeListener listener) {
+        changes.addChangeListener(listener);
+    }
+
+    public void removeChangeListener(ChangeListener listener) {
+        changes.removeChangeListener(listener);
+    }
+
+    public ChangeStream getChangeStream() {
+        return changes;
+    }
+
     private InMemoryDatabaseTable getExistingTable(String name) {
         return tables.get(name);
     }
 
     private InMemoryDatabaseTable createNewTable(String name) {
-        tables.putIfAbsent(name, new InMemoryDatabaseTable());
+        tables.putIfAbsent(name, new InMemoryDatabaseTable(newKeyMap(name), storage, commitLockTimeoutMillis, TimeUnit.MILLISECONDS));
         return getExistingTable(name);
     }
 
+    private ConcurrentOrderedMap<Blob, RevisionList<StoredBlob>> newKeyMap(String tableName) {
+        if (prefixCompressedTables.contains(tableName)) {
+            return new RadixTreeMap<>();
+        }
+        return new SkipListOrderedMap<>();
+    }
+
     public Database<Blob, Blob> createNewConnection(Transaction tx) {
-        RevisionHandle h = revisionCounter.openNewestRevision();
+        RevisionHandle h = openNewestRevision();
         return new TransientDatabase<>(this, h, tx);
     }
 
-    private void purgeOldUnusedRevisions() {
-        long revisionToKeep = getOldestRevisionInUse();
+    public RevisionHandle openNewestRevision() {
+        return revisionCounter.openNewestRevision();
+    }
+
+    /**
+     * When a {@link RevisionPurger} is running, the committing threads don't need to purge old revisions themselves.
+     */
+    void setPurgeOnCommit(boolean purgeOnCommit) {
+        this.purgeOnCommit = purgeOnCommit;
+    }
+
+    private void purgeOldUnusedRevisionsOnCommit() {
+        if (purgeOnCommit) {
+            purgeOldUnusedRevisions();
+        }
+    }
+
+    void purgeOldUnusedRevisions() {
+        long[] revisionsToKeep = getRevisionsInUse();
         for (InMemoryDatabaseTable table : tables.values()) {
-            table.purgeRevisionsOlderThan(revisionToKeep);
+            table.purgeRevisionsOtherThan(revisionsToKeep);
         }
     }
 
+    Collection<InMemoryDatabaseTable> getTables() {
+        return tables.values();
+    }
+
+    int getPurgeQueueSize() {
+        int sum = 0;
+        for (InMemoryDatabaseTable table : tables.values()) {
+            sum += table.getPurgeQueueSize();
+        }
+        return sum;
+    }
+
     long getOldestRevisionInUse() {
         return revisionCounter.getOldestReadableRevision();
     }
 
+    long[] getRevisionsInUse() {
+        return revisionCounter.getRevisionsToKeep();
+    }
+
     @TestOnly
     long getCurrentRevision() {
         return revisionCounter.getNewestReadableRevision();
@@ -82,10 +186,161 @@ public class InMemoryDatabase implements PersistedDatabase<RevisionHandle> {
         return sum;
     }
 
+    @TestOnly
+    long getNumberOfRevisions() {
+        long sum = 0;
+        for (InMemoryDatabaseTable table : tables.values()) {
+            sum += table.getNumberOfRevisions();
+        }
+        return sum;
+    }
+
     public CommitHandle prepare(Collection<TransientDatabaseTable<RevisionHandle>> updates, RevisionHandle handle) {
-        return new DbCommitHandle(updates, handle);
+        List<TransientDatabaseTable<RevisionHandle>> modified = new ArrayList<>(updates.size());
+        for (TransientDatabaseTable<RevisionHandle> update : updates) {
+            if (!update.isReadOnly()) {
+                modified.add(update);
+            }
+        }
+        if (modified.isEmpty()) {
+            return new ReadOnlyCommitHandle(handle);
+        }
+        return new DbCommitHandle(modified, handle);
     }
 
+    /**
+     * Writes all tables, as they are in the newest committed revision, to a snapshot file.
+     * See {@link #writeSnapshot(File, RevisionHandle)}
+     */
+    public void writeSnapshot(File file) throws IOException {
+        RevisionHandle handle = openNewestRevision();
+        try {
+            writeSnapshot(file, handle);
+        } finally {
+            handle.rollback();
+        }
+    }
+
+    /**
+     * Writes all tables, as they are in the read revision of the handle, to a snapshot file. The snapshot is
+     * read the same way as a transaction would read it, so it does not block the transactions which are
+     * committing at the same time.
+     */
+    public void writeSnapshot(File file, RevisionHandle handle) throws IOException {
+        Map<String, Iterator<Map.Entry<Blob, Blob>>> contents = new TreeMap<>();
+        for (Map.Entry<String, InMemoryDatabaseTable> table : tables.entrySet()) {
+            contents.put(table.getKey(), table.getValue().scan(null, null, handle));
+        }
+        new SnapshotFile(file).write(handle.getReadRevision(), contents);
+    }
+
+    /**
+     * Fills an empty database from a snapshot file. Each table is loaded in its own thread, and all of
+     * them become visible at once in one new revision.
+     * <p/>
+     * This must be done before the database is used, because the loaded keys bypass the commit locks.
+     * If restoring fails, the database is left partially filled and should be discarded.
+     */
+    public void restoreSnapshot(File file, int threads) throws IOException {
+        if (!isEmpty()) {
+            throw new IllegalStateException("Can restore only into an empty database");
+        }
+        SnapshotFile snapshot = new SnapshotFile(file);
+        List<SnapshotFile.Section> sections = snapshot.readIndex();
+        RevisionHandle handle = openNewestRevision();
+        handle.prepareWriteRevision();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (SnapshotFile.Section section : sections) {
+                InMemoryDatabaseTable table = (InMemoryDatabaseTable) openTable(section.table);
+                futures.add(executor.submit(new RestoreTable(snapshot, section, table, handle.getWriteRevision())));
+            }
+            awaitAll(futures);
+            handle.commitWrites();
+        } catch (IOException | RuntimeException e) {
+            handle.rollback();
+            throw e;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static void awaitAll(List<Future<?>> futures) throws IOException {
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PersistenceException("Interrupted while restoring a snapshot", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new PersistenceException("Unable to restore a snapshot", cause);
+        }
+    }
+
+    private boolean isEmpty() {
+        for (InMemoryDatabaseTable table : tables.values()) {
+            if (!table.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    @ThreadSafe
+    private static class RestoreTable implements Callable<Void> {
+
+        private final SnapshotFile snapshot;
+        private final SnapshotFile.Section section;
+        private final InMemoryDatabaseTable table;
+        private final long writeRevision;
+
+        public RestoreTable(SnapshotFile snapshot, SnapshotFile.Section section, InMemoryDatabaseTable table, long writeRevision) {
+            this.snapshot = snapshot;
+            this.section = section;
+            this.table = table;
+            this.writeRevision = writeRevision;
+        }
+
+        public Void call() throws IOException {
+            snapshot.readSection(section, new SnapshotFile.SectionReader() {
+                public void entry(Blob key, Blob value) {
+                    table.restore(key, value, writeRevision);
+                }
+            });
+            return null;
+        }
+    }
+
+    /**
+     * A transaction which wrote nothing needs no commit locks nor a write revision,
+     * and it can not conflict, so committing it just releases its read revision.
+     */
+    @NotThreadSafe
+    private class ReadOnlyCommitHandle implements CommitHandle {
+
+        private final RevisionHandle handle;
+
+        public ReadOnlyCommitHandle(RevisionHandle handle) {
+            this.handle = handle;
+        }
+
+        public void commit() {
+            handle.releaseReadOnly();
+            // ending a long-running reader may allow purging, but usually the RevisionPurger does it
+            purgeOldUnusedRevisionsOnCommit();
+        }
+
+        public void rollback() {
+            commit();
+        }
+    }
 
     @NotThreadSafe
     private class DbCommitHandle implements CommitHandle {
@@ -100,8 +355,14 @@ public class InMemoryDatabase implements PersistedDatabase<RevisionHandle> {
         }
 
         private void prepare() {
-            for (TransientDatabaseTable<RevisionHandle> update : updates) {
-                update.prepare();
+            try {
+                for (TransientDatabaseTable<RevisionHandle> update : updates) {
+                    update.prepare();
+                }
+            } catch (RuntimeException | Error e) {
+                // the caller does not get a commit handle, so it can not roll back the tables which were already prepared
+                rollback();
+                throw e;
             }
         }
 
@@ -111,9 +372,23 @@ public class InMemoryDatabase implements PersistedDatabase<RevisionHandle> {
                 for (TransientDatabaseTable<RevisionHandle> update : updates) {
                     update.commit();
                 }
+                publishChanges();
             } finally {
                 handle.commitWrites();
-                purgeOldUnusedRevisions();
+                changes.revisionsMayHaveBecomeReadable();
+                purgeOldUnusedRevisionsOnCommit();
+            }
+        }
+
+        private void publishChanges() {
+            Map<String, Map<Blob, Blob>> writes = new HashMap<>();
+            for (TransientDatabaseTable<RevisionHandle> update : updates) {
+                if (!update.getWrites().isEmpty()) {
+                    writes.put(update.getName(), update.getWrites());
+                }
+            }
+            if (!writes.isEmpty()) {
+                changes.publish(handle.getWriteRevision(), writes);
             }
         }
 
@@ -124,7 +399,8 @@ public class InMemoryDatabase implements PersistedDatabase<RevisionHandle> {
                 }
             } finally {
                 handle.rollback();
-                purgeOldUnusedRevisions();
+                changes.revisionsMayHaveBecomeReadable();
+                purgeOldUnusedRevisionsOnCommit();
             }
         }
     }
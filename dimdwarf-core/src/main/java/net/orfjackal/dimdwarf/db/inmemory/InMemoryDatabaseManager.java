@@ -9,16 +9,25 @@ import net.orfjackal.dimdwarf.tx.*;
 import org.jetbrains.annotations.TestOnly;
 
 import javax.annotation.concurrent.ThreadSafe;
-import javax.inject.Singleton;
+import javax.inject.*;
 import java.util.concurrent.*;
 
 @Singleton
 @ThreadSafe
 public class InMemoryDatabaseManager implements DatabaseManager {
 
-    private final InMemoryDatabase db = new InMemoryDatabase();
+    private final InMemoryDatabase db;
     private final ConcurrentMap<Transaction, Database<Blob, Blob>> openConnections = new ConcurrentHashMap<>();
 
+    public InMemoryDatabaseManager() {
+        this(new InMemoryDatabase());
+    }
+
+    @Inject
+    public InMemoryDatabaseManager(InMemoryDatabase db) {
+        this.db = db;
+    }
+
     public Database<Blob, Blob> openConnection(Transaction tx) {
         Database<Blob, Blob> connection = getExistingConnection(tx);
         if (connection == null) {
@@ -64,9 +73,14 @@ public class InMemoryDatabaseManager implements DatabaseManager {
         return db.getNumberOfKeys();
     }
 
+    @TestOnly
+    long getNumberOfRevisions() {
+        return db.getNumberOfRevisions();
+    }
+
 
     @ThreadSafe
-    private class ConnectionCloser implements TransactionParticipant {
+    private class ConnectionCloser implements InfallibleCommitParticipant {
 
         private final Transaction tx;
 
@@ -8,33 +8,100 @@ import net.orfjackal.dimdwarf.db.*;
 import net.orfjackal.dimdwarf.db.common.*;
 import org.jetbrains.annotations.TestOnly;
 
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.*;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 @ThreadSafe
 public class InMemoryDatabaseTable implements PersistedDatabaseTable<RevisionHandle> {
 
-    private final RevisionMap<Blob, Blob> revisions = new RevisionMap<>();
+    private final RevisionMap<Blob, StoredBlob> revisions;
     private final GroupLock<Blob> keysLockedForCommit = new GroupLock<>();
+    private final BlobStorage storage;
+    private final long commitLockTimeoutNanos;
+
+    public InMemoryDatabaseTable(BlobStorage storage, long commitLockTimeout, TimeUnit unit) {
+        this(new SkipListOrderedMap<Blob, RevisionList<StoredBlob>>(), storage, commitLockTimeout, unit);
+    }
+
+    /**
+     * @param keys the initially empty map in which the keys are stored, e.g. {@link RadixTreeMap}
+     *             if the keys share long prefixes.
+     */
+    public InMemoryDatabaseTable(ConcurrentOrderedMap<Blob, RevisionList<StoredBlob>> keys,
+                                 BlobStorage storage, long commitLockTimeout, TimeUnit unit) {
+        this.revisions = new RevisionMap<>(keys, new ReleasePurgedBlobs());
+        this.storage = storage;
+        this.commitLockTimeoutNanos = unit.toNanos(commitLockTimeout);
+    }
 
     public Blob firstKey(RevisionHandle handle) {
         return revisions.firstKey(handle.getReadRevision());
     }
 
+    public Blob lastKey(RevisionHandle handle) {
+        return revisions.lastKey(handle.getReadRevision());
+    }
+
     public Blob nextKeyAfter(Blob currentKey, RevisionHandle handle) {
         return revisions.nextKeyAfter(currentKey, handle.getReadRevision());
     }
 
     public Blob get(Blob key, RevisionHandle handle) {
-        return revisions.get(key, handle.getReadRevision());
+        return load(revisions.get(key, handle.getReadRevision()));
+    }
+
+    public Map<Blob, Blob> getAll(Collection<Blob> keys, RevisionHandle handle) {
+        Map<Blob, Blob> values = new HashMap<>();
+        for (Map.Entry<Blob, StoredBlob> e : revisions.getAll(keys, handle.getReadRevision()).entrySet()) {
+            values.put(e.getKey(), e.getValue().load());
+        }
+        return values;
+    }
+
+    public long getRevision(Blob key, RevisionHandle handle) {
+        return revisions.getRevision(key, handle.getReadRevision());
+    }
+
+    public boolean isModifiedAfter(Blob key, RevisionHandle handle) {
+        return revisions.getLatestRevisionForKey(key) > handle.getReadRevision();
     }
 
-    public CommitHandle prepare(Map<Blob, Blob> updates, RevisionHandle handle) {
-        return new DbTableCommitHandle(updates, handle);
+    public Iterator<Map.Entry<Blob, Blob>> scan(Blob fromKey, Blob toKey, RevisionHandle handle) {
+        return new LoadingIterator(new RevisionMapIterator<>(revisions, fromKey, toKey, handle.getReadRevision()));
     }
 
-    public void purgeRevisionsOlderThan(long revisionToKeep) {
-        revisions.purgeRevisionsOlderThan(revisionToKeep);
+    @Nullable
+    private static Blob load(@Nullable StoredBlob stored) {
+        return stored != null ? stored.load() : null;
+    }
+
+    public TableCommitHandle prepare(Map<Blob, Blob> updates, Map<Blob, PendingMerge> merges, RevisionHandle handle) {
+        return new DbTableCommitHandle(updates, merges, handle);
+    }
+
+    public void purgeRevisionsOtherThan(long... revisionsToKeep) {
+        revisions.purgeRevisionsOtherThan(revisionsToKeep);
+    }
+
+    public boolean purgeRevisionsOtherThan(long[] revisionsToKeep, int maxKeysToVisit) {
+        return revisions.purgeRevisionsOtherThan(revisionsToKeep, maxKeysToVisit);
+    }
+
+    /**
+     * Adds a key without going through a transaction. Used for filling an empty table from a snapshot.
+     */
+    void restore(Blob key, Blob value, long writeRevision) {
+        revisions.put(key, storage.store(value), writeRevision);
+    }
+
+    boolean isEmpty() {
+        return revisions.size() == 0;
+    }
+
+    public int getPurgeQueueSize() {
+        return revisions.getPurgeQueueSize();
     }
 
     @TestOnly
@@ -42,31 +109,58 @@ public class InMemoryDatabaseTable implements PersistedDatabaseTable<RevisionHan
         return revisions.size();
     }
 
+    @TestOnly
+    long getNumberOfRevisions() {
+        return revisions.getNumberOfRevisions();
+    }
+
 
     @NotThreadSafe
-    private class DbTableCommitHandle implements CommitHandle {
+    private class DbTableCommitHandle implements TableCommitHandle {
 
         private final Map<Blob, Blob> updates;
         private final RevisionHandle handle;
         private final LockHandle lock;
 
-        public DbTableCommitHandle(Map<Blob, Blob> updates, RevisionHandle handle) {
-            this.updates = Collections.unmodifiableMap(new HashMap<>(updates));
+        public DbTableCommitHandle(Map<Blob, Blob> updates, Map<Blob, PendingMerge> merges, RevisionHandle handle) {
+            this.updates = new HashMap<>(updates);
             this.handle = handle;
-            this.lock = prepare();
+            this.lock = prepare(merges);
         }
 
-        private LockHandle prepare() {
-            LockHandle lock = keysLockedForCommit.lockAll(updates.keySet());
+        private LockHandle prepare(Map<Blob, PendingMerge> merges) {
+            Set<Blob> keys = new HashSet<>(updates.keySet());
+            keys.addAll(merges.keySet());
+            LockHandle lock = keysLockedForCommit.tryLockAll(keys, commitLockTimeoutNanos, TimeUnit.NANOSECONDS);
+            if (lock == null) {
+                // Some of the keys are being committed by another transaction. Unless it rolls back, it will
+                // have modified the keys after our read revision, so waiting longer would not help us.
+                throw new OptimisticLockException("Timed out waiting for the commit lock of keys " + keys, keys);
+            }
             try {
                 checkForConflicts();
-            } catch (OptimisticLockException e) {
+                applyMerges(merges);
+            } catch (RuntimeException e) {
                 lock.unlock();
                 throw e;
             }
             return lock;
         }
 
+        /**
+         * The merged keys are locked, so their newest values will stay the same until this transaction commits.
+         */
+        private void applyMerges(Map<Blob, PendingMerge> merges) {
+            for (Map.Entry<Blob, PendingMerge> merge : merges.entrySet()) {
+                Blob newest = load(revisions.get(merge.getKey(), Long.MAX_VALUE));
+                updates.put(merge.getKey(), merge.getValue().applyTo(newest != null ? newest : Blob.EMPTY_BLOB));
+            }
+        }
+
+        public Map<Blob, Blob> getWrites() {
+            return Collections.unmodifiableMap(updates);
+        }
+
         private void checkForConflicts() throws OptimisticLockException {
             for (Blob key : updates.keySet()) {
                 checkForConcurrentModification(key);
@@ -74,9 +168,9 @@ public class InMemoryDatabaseTable implements PersistedDatabaseTable<RevisionHan
         }
 
         private void checkForConcurrentModification(Blob key) throws OptimisticLockException {
-            long lastWrite = revisions.getLatestRevisionForKey(key);
-            if (lastWrite > handle.getReadRevision()) {
-                throw new OptimisticLockException("Key " + key + " already modified in revision " + lastWrite);
+            if (isModifiedAfter(key, handle)) {
+                throw new OptimisticLockException("Key " + key + " already modified in revision " + revisions.getLatestRevisionForKey(key),
+                        Collections.singleton(key));
             }
         }
 
@@ -89,14 +183,49 @@ public class InMemoryDatabaseTable implements PersistedDatabaseTable<RevisionHan
 
         private void commitUpdate(Blob key, Blob value) {
             assert keysLockedForCommit.isLocked(key);
-            if (value.equals(Blob.EMPTY_BLOB)) {
-                value = null;
+            StoredBlob stored = value.equals(Blob.EMPTY_BLOB) ? null : storage.store(value);
+            try {
+                revisions.put(key, stored, handle.getWriteRevision());
+            } catch (RuntimeException e) {
+                if (stored != null) {
+                    stored.release();
+                }
+                throw e;
             }
-            revisions.put(key, value, handle.getWriteRevision());
         }
 
         public void rollback() {
             lock.unlock();
         }
     }
+
+    @ThreadSafe
+    private static class ReleasePurgedBlobs implements PurgeListener<StoredBlob> {
+        public void purged(StoredBlob value) {
+            value.release();
+        }
+    }
+
+    @NotThreadSafe
+    private static class LoadingIterator implements Iterator<Map.Entry<Blob, Blob>> {
+
+        private final Iterator<Map.Entry<Blob, StoredBlob>> stored;
+
+        public LoadingIterator(Iterator<Map.Entry<Blob, StoredBlob>> stored) {
+            this.stored = stored;
+        }
+
+        public boolean hasNext() {
+            return stored.hasNext();
+        }
+
+        public Map.Entry<Blob, Blob> next() {
+            Map.Entry<Blob, StoredBlob> e = stored.next();
+            return new AbstractMap.SimpleImmutableEntry<>(e.getKey(), e.getValue().load());
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
 }
@@ -0,0 +1,176 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.db.inmemory;
+
+import net.orfjackal.dimdwarf.db.Blob;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Keeps the values outside the Java heap in direct byte buffers, so that a big database will not make
+ * the garbage collector's work harder. A value is copied to the heap only when a transaction reads it.
+ * <p/>
+ * Memory is allocated from big slabs in chunks whose size is a power of two. Released chunks go to
+ * the free list of their size, from where they are reused by later values of the same size class.
+ * Chunks are never split or merged, and the slabs are never returned to the operating system.
+ * Values bigger than a slab get a direct buffer of their own, which is freed by the garbage collector.
+ */
+@ThreadSafe
+public class OffHeapBlobStorage implements BlobStorage {
+
+    public static final int DEFAULT_SLAB_SIZE = 1024 * 1024;
+    private static final int MIN_CHUNK_SIZE = 16;
+
+    private final int slabSize;
+
+    // allocation state, guarded by this
+    private final List<Deque<Chunk>> freeChunks = new ArrayList<>();
+    @Nullable private ByteBuffer currentSlab = null;
+    private int currentSlabPosition = 0;
+    private int slabCount = 0;
+    private long usedBytes = 0;
+
+    public OffHeapBlobStorage() {
+        this(DEFAULT_SLAB_SIZE);
+    }
+
+    /**
+     * @param slabSize how many bytes to allocate at a time. Must be a power of two.
+     */
+    public OffHeapBlobStorage(int slabSize) {
+        if (slabSize < MIN_CHUNK_SIZE || Integer.bitCount(slabSize) != 1) {
+            throw new IllegalArgumentException("Slab size must be a power of two and at least " + MIN_CHUNK_SIZE + ": " + slabSize);
+        }
+        this.slabSize = slabSize;
+        for (int size = MIN_CHUNK_SIZE; size <= slabSize; size <<= 1) {
+            freeChunks.add(new ArrayDeque<Chunk>());
+        }
+    }
+
+    public StoredBlob store(Blob value) {
+        int length = value.length();
+        Chunk chunk = allocate(length);
+        ByteBuffer target = chunk.slab.duplicate();
+        target.position(chunk.offset);
+        target.put(value.toByteBuffer());
+        return new OffHeapBlob(chunk, length);
+    }
+
+    private synchronized Chunk allocate(int length) {
+        Chunk chunk;
+        if (length > slabSize) {
+            chunk = new Chunk(ByteBuffer.allocateDirect(length), 0, length);
+        } else {
+            int capacity = chunkSizeFor(length);
+            chunk = freeChunks.get(sizeClassOf(capacity)).poll();
+            if (chunk == null) {
+                chunk = carveFromSlab(capacity);
+            }
+        }
+        usedBytes += chunk.capacity;
+        return chunk;
+    }
+
+    private Chunk carveFromSlab(int capacity) {
+        if (currentSlab == null || slabSize - currentSlabPosition < capacity) {
+            recycleRestOfCurrentSlab();
+            currentSlab = ByteBuffer.allocateDirect(slabSize);
+            currentSlabPosition = 0;
+            slabCount++;
+        }
+        Chunk chunk = new Chunk(currentSlab, currentSlabPosition, capacity);
+        currentSlabPosition += capacity;
+        return chunk;
+    }
+
+    private void recycleRestOfCurrentSlab() {
+        while (currentSlab != null && slabSize - currentSlabPosition >= MIN_CHUNK_SIZE) {
+            int capacity = Integer.highestOneBit(slabSize - currentSlabPosition);
+            freeChunks.get(sizeClassOf(capacity)).push(new Chunk(currentSlab, currentSlabPosition, capacity));
+            currentSlabPosition += capacity;
+        }
+    }
+
+    private synchronized void release(OffHeapBlob blob) {
+        if (blob.released) {
+            throw new IllegalStateException("Already released: " + blob);
+        }
+        blob.released = true;
+        Chunk chunk = blob.chunk;
+        usedBytes -= chunk.capacity;
+        if (chunk.capacity <= slabSize) {
+            freeChunks.get(sizeClassOf(chunk.capacity)).push(chunk);
+        }
+    }
+
+    private static int chunkSizeFor(int length) {
+        if (length <= MIN_CHUNK_SIZE) {
+            return MIN_CHUNK_SIZE;
+        }
+        return Integer.highestOneBit(length - 1) << 1;
+    }
+
+    private static int sizeClassOf(int capacity) {
+        return Integer.numberOfTrailingZeros(capacity) - Integer.numberOfTrailingZeros(MIN_CHUNK_SIZE);
+    }
+
+    public synchronized int getSlabCount() {
+        return slabCount;
+    }
+
+    /**
+     * The number of off-heap bytes taken by the values which have not been released, including the unused
+     * space at the end of their chunks.
+     */
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+
+    @Immutable
+    private static class Chunk {
+        public final ByteBuffer slab;
+        public final int offset;
+        public final int capacity;
+
+        public Chunk(ByteBuffer slab, int offset, int capacity) {
+            this.slab = slab;
+            this.offset = offset;
+            this.capacity = capacity;
+        }
+    }
+
+    @ThreadSafe
+    private class OffHeapBlob implements StoredBlob {
+
+        private final Chunk chunk;
+        private final int length;
+        private volatile boolean released = false;
+
+        public OffHeapBlob(Chunk chunk, int length) {
+            this.chunk = chunk;
+            this.length = length;
+        }
+
+        public Blob load() {
+            assert !released : "Already released: " + this;
+            ByteBuffer source = chunk.slab.duplicate();
+            source.limit(chunk.offset + length);
+            source.position(chunk.offset);
+            return Blob.fromByteBuffer(source);
+        }
+
+        public void release() {
+            OffHeapBlobStorage.this.release(this);
+        }
+
+        public String toString() {
+            return "OffHeapBlob[offset=" + chunk.offset + ",length=" + length + "]";
+        }
+    }
+}
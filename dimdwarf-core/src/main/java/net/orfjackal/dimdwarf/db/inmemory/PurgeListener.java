@@ -0,0 +1,14 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.db.inmemory;
+
+/**
+ * Gets notified about the values which were purged from a {@link RevisionList}. No reader can
+ * see the value anymore, so any resources held by it may be released.
+ */
+public interface PurgeListener<T> {
+
+    void purged(T value);
+}
@@ -0,0 +1,625 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.db.inmemory;
+
+import net.orfjackal.dimdwarf.db.Blob;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Ordered map which stores its keys in a radix tree, so that the common prefixes of the keys are stored
+ * only once. Suits keys such as binding names, which are long and share long prefixes. Iterating over
+ * a range of keys visits only the subtrees which may contain keys in that range.
+ * <p/>
+ * Reading keys and updating the values of existing keys is lock-free. Adding and removing keys changes
+ * the structure of the tree, which is done by one thread at a time. The edges of a node are replaced
+ * as a whole, so readers always see a consistent tree.
+ * <p/>
+ * When a node is unlinked from the tree, its value is first set to {@link #DEAD}. Writers which find
+ * such a node know that they lost a race with the unlinking, and retry under the structural lock.
+ */
+@ThreadSafe
+public class RadixTreeMap<V> extends AbstractMap<Blob, V> implements ConcurrentOrderedMap<Blob, V> {
+
+    private static final Object DEAD = new Object();
+
+    private final Node root = new Node(null);
+    private final AtomicInteger size = new AtomicInteger();
+    private final Object structureLock = new Object();
+
+    @Nullable
+    public V get(Object key) {
+        Node node = find((Blob) key);
+        return node != null ? node.liveValue() : null;
+    }
+
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    @Nullable
+    public V putIfAbsent(Blob key, V value) {
+        if (value == null) {
+            throw new NullPointerException();
+        }
+        Node node = find(key);
+        if (node != null) {
+            while (true) {
+                Object current = node.value;
+                if (current == DEAD) {
+                    break;
+                }
+                if (current != null) {
+                    return cast(current);
+                }
+                if (node.casValue(null, value)) {
+                    size.incrementAndGet();
+                    return null;
+                }
+            }
+        }
+        synchronized (structureLock) {
+            return insert(key, value);
+        }
+    }
+
+    public boolean replace(Blob key, V oldValue, V newValue) {
+        if (oldValue == null || newValue == null) {
+            throw new NullPointerException();
+        }
+        Node node = find(key);
+        if (node == null) {
+            return false;
+        }
+        while (true) {
+            // the node compares by reference, but the map compares the values by equality
+            V current = node.liveValue();
+            if (!oldValue.equals(current)) {
+                return false;
+            }
+            if (node.casValue(current, newValue)) {
+                return true;
+            }
+        }
+    }
+
+    @Nullable
+    public V replace(Blob key, V value) {
+        if (value == null) {
+            throw new NullPointerException();
+        }
+        Node node = find(key);
+        if (node == null) {
+            return null;
+        }
+        while (true) {
+            V current = node.liveValue();
+            if (current == null) {
+                return null;
+            }
+            if (node.casValue(current, value)) {
+                return current;
+            }
+        }
+    }
+
+    @Nullable
+    public V put(Blob key, V value) {
+        while (true) {
+            V previous = putIfAbsent(key, value);
+            if (previous == null || replace(key, previous, value)) {
+                return previous;
+            }
+        }
+    }
+
+    public boolean remove(Object key, Object value) {
+        if (value == null) {
+            return false;
+        }
+        Node node = find((Blob) key);
+        if (node == null || !removeEqual(node, value)) {
+            return false;
+        }
+        size.decrementAndGet();
+        synchronized (structureLock) {
+            compact((Blob) key);
+        }
+        return true;
+    }
+
+    private static boolean removeEqual(Node node, Object value) {
+        while (true) {
+            Object current = node.liveValue();
+            if (!value.equals(current)) {
+                return false;
+            }
+            if (node.casValue(current, null)) {
+                return true;
+            }
+        }
+    }
+
+    @Nullable
+    public V remove(Object key) {
+        while (true) {
+            V current = get(key);
+            if (current == null || remove(key, current)) {
+                return current;
+            }
+        }
+    }
+
+    public Set<Map.Entry<Blob, V>> entrySet() {
+        return new AbstractSet<Map.Entry<Blob, V>>() {
+            public Iterator<Map.Entry<Blob, V>> iterator() {
+                return entriesBetween(null, null);
+            }
+
+            public int size() {
+                return RadixTreeMap.this.size();
+            }
+        };
+    }
+
+    public Iterator<Map.Entry<Blob, V>> entriesBetween(@Nullable Blob fromKey, @Nullable Blob toKey) {
+        return new RangeIterator(fromKey, toKey);
+    }
+
+    public Iterator<Map.Entry<Blob, V>> descendingEntries() {
+        return new DescendingIterator();
+    }
+
+    @SuppressWarnings({"unchecked"})
+    private V cast(Object value) {
+        return (V) value;
+    }
+
+
+    // lookup
+
+    @Nullable
+    private Node find(Blob key) {
+        Node node = root;
+        int depth = 0;
+        while (depth < key.length()) {
+            Edges edges = node.edges;
+            int i = edges.indexOf(key.byteAt(depth));
+            if (i < 0) {
+                return null;
+            }
+            byte[] label = edges.labels[i];
+            if (commonPrefixLength(key, depth, label) < label.length) {
+                return null;
+            }
+            depth += label.length;
+            node = edges.children[i];
+        }
+        return node;
+    }
+
+    private static int commonPrefixLength(Blob key, int depth, byte[] label) {
+        int max = Math.min(label.length, key.length() - depth);
+        int i = 0;
+        while (i < max && key.byteAt(depth + i) == label[i]) {
+            i++;
+        }
+        return i;
+    }
+
+    private static byte[] suffix(Blob key, int depth) {
+        byte[] bytes = new byte[key.length() - depth];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = key.byteAt(depth + i);
+        }
+        return bytes;
+    }
+
+
+    // structural changes, guarded by structureLock
+
+    @Nullable
+    private V insert(Blob key, V value) {
+        Node node = root;
+        int depth = 0;
+        while (depth < key.length()) {
+            Edges edges = node.edges;
+            int i = edges.indexOf(key.byteAt(depth));
+            if (i < 0) {
+                node.edges = edges.inserted(-i - 1, suffix(key, depth), new Node(value));
+                size.incrementAndGet();
+                return null;
+            }
+            byte[] label = edges.labels[i];
+            int common = commonPrefixLength(key, depth, label);
+            if (common < label.length) {
+                node.edges = edges.replaced(i, Arrays.copyOf(label, common), split(key, depth + common, value, label, common, edges.children[i]));
+                size.incrementAndGet();
+                return null;
+            }
+            depth += label.length;
+            node = edges.children[i];
+        }
+        while (true) {
+            // only the lock-free writers may change the value concurrently, and they never set it to DEAD
+            Object current = node.value;
+            if (current != null) {
+                return cast(current);
+            }
+            if (node.casValue(null, value)) {
+                size.incrementAndGet();
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Creates a node for the common part of an edge and a new key. Its children are the old child,
+     * and possibly the new key if it does not end at the new node.
+     */
+    private Node split(Blob key, int depth, V value, byte[] label, int common, Node oldChild) {
+        Edges edges = Edges.NONE.inserted(0, Arrays.copyOfRange(label, common, label.length), oldChild);
+        Node middle;
+        if (depth == key.length()) {
+            middle = new Node(value);
+        } else {
+            middle = new Node(null);
+            byte[] rest = suffix(key, depth);
+            edges = edges.inserted(-edges.indexOf(rest[0]) - 1, rest, new Node(value));
+        }
+        middle.edges = edges;
+        return middle;
+    }
+
+    /**
+     * Unlinks the nodes on the path to the key which no longer have a value or children, and merges
+     * the nodes which have only one child and no value with that child.
+     */
+    private void compact(Blob key) {
+        List<Node> path = new ArrayList<>();
+        List<Integer> edgeIndexes = new ArrayList<>();
+        Node node = root;
+        int depth = 0;
+        path.add(node);
+        while (depth < key.length()) {
+            Edges edges = node.edges;
+            int i = edges.indexOf(key.byteAt(depth));
+            if (i < 0 || commonPrefixLength(key, depth, edges.labels[i]) < edges.labels[i].length) {
+                return;
+            }
+            depth += edges.labels[i].length;
+            node = edges.children[i];
+            path.add(node);
+            edgeIndexes.add(i);
+        }
+
+        for (int level = path.size() - 1; level >= 1; level--) {
+            node = path.get(level);
+            Node parent = path.get(level - 1);
+            int index = edgeIndexes.get(level - 1);
+            Edges edges = node.edges;
+            if (edges.size() > 1 || !node.casValue(null, DEAD)) {
+                return;
+            }
+            Edges parentEdges = parent.edges;
+            if (edges.size() == 0) {
+                parent.edges = parentEdges.removed(index);
+            } else {
+                byte[] merged = concat(parentEdges.labels[index], edges.labels[0]);
+                parent.edges = parentEdges.replaced(index, merged, edges.children[0]);
+                return;
+            }
+        }
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+
+    @ThreadSafe
+    private static class Node {
+
+        private static final AtomicReferenceFieldUpdater<Node, Object> VALUE =
+                AtomicReferenceFieldUpdater.newUpdater(Node.class, Object.class, "value");
+
+        volatile Edges edges = Edges.NONE;
+        @Nullable volatile Object value;
+
+        public Node(@Nullable Object value) {
+            this.value = value;
+        }
+
+        public boolean casValue(@Nullable Object expect, @Nullable Object update) {
+            return VALUE.compareAndSet(this, expect, update);
+        }
+
+        @SuppressWarnings({"unchecked"})
+        @Nullable
+        public <V> V liveValue() {
+            Object v = value;
+            return v == DEAD ? null : (V) v;
+        }
+    }
+
+    /**
+     * The edges from a node to its children, sorted by the first byte of their label (unsigned).
+     * Never modified after creation.
+     */
+    @Immutable
+    private static class Edges {
+
+        static final Edges NONE = new Edges(new byte[0][], new Node[0]);
+
+        final byte[][] labels;
+        final Node[] children;
+
+        private Edges(byte[][] labels, Node[] children) {
+            this.labels = labels;
+            this.children = children;
+        }
+
+        public int size() {
+            return labels.length;
+        }
+
+        /**
+         * Returns the index of the edge whose label starts with the byte,
+         * or {@code (-(insertion point) - 1)} if there is no such edge.
+         */
+        public int indexOf(byte first) {
+            int key = first & 0xFF;
+            int low = 0;
+            int high = labels.length - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int midKey = labels[mid][0] & 0xFF;
+                if (midKey < key) {
+                    low = mid + 1;
+                } else if (midKey > key) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -(low + 1);
+        }
+
+        public Edges inserted(int index, byte[] label, Node child) {
+            byte[][] newLabels = new byte[labels.length + 1][];
+            Node[] newChildren = new Node[children.length + 1];
+            System.arraycopy(labels, 0, newLabels, 0, index);
+            System.arraycopy(children, 0, newChildren, 0, index);
+            newLabels[index] = label;
+            newChildren[index] = child;
+            System.arraycopy(labels, index, newLabels, index + 1, labels.length - index);
+            System.arraycopy(children, index, newChildren, index + 1, children.length - index);
+            return new Edges(newLabels, newChildren);
+        }
+
+        public Edges replaced(int index, byte[] label, Node child) {
+            byte[][] newLabels = labels.clone();
+            Node[] newChildren = children.clone();
+            newLabels[index] = label;
+            newChildren[index] = child;
+            return new Edges(newLabels, newChildren);
+        }
+
+        public Edges removed(int index) {
+            byte[][] newLabels = new byte[labels.length - 1][];
+            Node[] newChildren = new Node[children.length - 1];
+            System.arraycopy(labels, 0, newLabels, 0, index);
+            System.arraycopy(children, 0, newChildren, 0, index);
+            System.arraycopy(labels, index + 1, newLabels, index, labels.length - index - 1);
+            System.arraycopy(children, index + 1, newChildren, index, children.length - index - 1);
+            return new Edges(newLabels, newChildren);
+        }
+    }
+
+    /**
+     * Depth-first traversal of the tree in key order. The subtrees whose keys are all smaller than
+     * {@code fromKey} are skipped without visiting them, and the traversal stops at {@code toKey}.
+     */
+    @NotThreadSafe
+    private class RangeIterator implements Iterator<Map.Entry<Blob, V>> {
+
+        @Nullable private final Blob fromKey;
+        @Nullable private final Blob toKey;
+        private final Deque<Frame> stack = new ArrayDeque<>();
+        private byte[] path = new byte[32];
+        @Nullable private Map.Entry<Blob, V> fetchedNext;
+
+        public RangeIterator(@Nullable Blob fromKey, @Nullable Blob toKey) {
+            this.fromKey = fromKey;
+            this.toKey = toKey;
+            stack.push(new Frame(root, 0, fromKey != null));
+        }
+
+        public boolean hasNext() {
+            fetchNext();
+            return fetchedNext != null;
+        }
+
+        public Map.Entry<Blob, V> next() {
+            fetchNext();
+            Map.Entry<Blob, V> next = fetchedNext;
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            fetchedNext = null;
+            return next;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private void fetchNext() {
+            while (fetchedNext == null && !stack.isEmpty()) {
+                Frame frame = stack.peek();
+                if (!frame.visitedSelf) {
+                    frame.visitedSelf = true;
+                    visitSelf(frame);
+                } else if (frame.nextEdge < frame.edges.size()) {
+                    visitChild(frame, frame.nextEdge++);
+                } else {
+                    stack.pop();
+                }
+            }
+        }
+
+        private void visitSelf(Frame frame) {
+            // when bounded by fromKey, this node's key is a prefix of fromKey, so it is in range only if equal
+            if (frame.boundedByFromKey && frame.pathLength != fromKey.length()) {
+                return;
+            }
+            V value = frame.node.liveValue();
+            if (value == null) {
+                return;
+            }
+            Blob key = Blob.wrap(Arrays.copyOf(path, frame.pathLength));
+            if (toKey != null && key.compareTo(toKey) >= 0) {
+                stack.clear();
+                return;
+            }
+            fetchedNext = new AbstractMap.SimpleImmutableEntry<>(key, value);
+        }
+
+        private void visitChild(Frame parent, int index) {
+            byte[] label = parent.edges.labels[index];
+            boolean bounded = false;
+            if (parent.boundedByFromKey) {
+                int order = compareToFromKey(parent.pathLength, label);
+                if (order < 0) {
+                    return;
+                }
+                bounded = (order == 0);
+            }
+            int pathLength = parent.pathLength + label.length;
+            if (pathLength > path.length) {
+                path = Arrays.copyOf(path, Math.max(pathLength, path.length * 2));
+            }
+            System.arraycopy(label, 0, path, parent.pathLength, label.length);
+            stack.push(new Frame(parent.edges.children[index], pathLength, bounded));
+        }
+
+        /**
+         * Compares the keys under the label with fromKey, whose first {@code depth} bytes are known to equal the path.
+         *
+         * @return negative if all keys are smaller than fromKey, positive if all are greater or equal,
+         *         or zero if the path after the label is still a prefix of fromKey.
+         */
+        private int compareToFromKey(int depth, byte[] label) {
+            int rest = fromKey.length() - depth;
+            for (int i = 0; i < label.length; i++) {
+                if (i == rest) {
+                    return 1;
+                }
+                int cmp = (label[i] & 0xFF) - (fromKey.byteAt(depth + i) & 0xFF);
+                if (cmp != 0) {
+                    return cmp;
+                }
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * Depth-first traversal of the tree in reverse key order. A node's own key is a prefix of the keys
+     * in its subtree, so it is smaller than them and is visited after its children.
+     */
+    @NotThreadSafe
+    private class DescendingIterator implements Iterator<Map.Entry<Blob, V>> {
+
+        private final Deque<Frame> stack = new ArrayDeque<>();
+        private byte[] path = new byte[32];
+        @Nullable private Map.Entry<Blob, V> fetchedNext;
+
+        public DescendingIterator() {
+            push(root, 0);
+        }
+
+        public boolean hasNext() {
+            fetchNext();
+            return fetchedNext != null;
+        }
+
+        public Map.Entry<Blob, V> next() {
+            fetchNext();
+            Map.Entry<Blob, V> next = fetchedNext;
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            fetchedNext = null;
+            return next;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private void fetchNext() {
+            while (fetchedNext == null && !stack.isEmpty()) {
+                Frame frame = stack.peek();
+                if (frame.nextEdge >= 0) {
+                    visitChild(frame, frame.nextEdge--);
+                } else {
+                    stack.pop();
+                    visitSelf(frame);
+                }
+            }
+        }
+
+        private void visitSelf(Frame frame) {
+            V value = frame.node.liveValue();
+            if (value != null) {
+                Blob key = Blob.wrap(Arrays.copyOf(path, frame.pathLength));
+                fetchedNext = new AbstractMap.SimpleImmutableEntry<>(key, value);
+            }
+        }
+
+        private void visitChild(Frame parent, int index) {
+            byte[] label = parent.edges.labels[index];
+            int pathLength = parent.pathLength + label.length;
+            if (pathLength > path.length) {
+                path = Arrays.copyOf(path, Math.max(pathLength, path.length * 2));
+            }
+            System.arraycopy(label, 0, path, parent.pathLength, label.length);
+            push(parent.edges.children[index], pathLength);
+        }
+
+        private void push(Node node, int pathLength) {
+            Frame frame = new Frame(node, pathLength, false);
+            frame.nextEdge = frame.edges.size() - 1;
+            stack.push(frame);
+        }
+    }
+
+    @NotThreadSafe
+    private static class Frame {
+        final Node node;
+        final Edges edges;
+        final int pathLength;
+        final boolean boundedByFromKey;
+        boolean visitedSelf = false;
+        int nextEdge = 0;
+
+        public Frame(Node node, int pathLength, boolean boundedByFromKey) {
+            this.node = node;
+            this.edges = node.edges;
+            this.pathLength = pathLength;
+            this.boundedByFromKey = boundedByFromKey;
+        }
+    }
+}
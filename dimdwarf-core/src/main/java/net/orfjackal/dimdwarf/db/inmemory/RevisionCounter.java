@@ -8,30 +8,76 @@ import org.jetbrains.annotations.TestOnly;
 
 import javax.annotation.concurrent.ThreadSafe;
 import java.util.*;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Keeps track of which revisions are being read and written, without locking.
+ * <p/>
+ * Each revision which is being read has a reference-counted slot. The slots are kept in a map sorted
+ * by revision, so that the oldest revision which is still in use is the first key of the map. A slot
+ * is removed as soon as its last user releases it, so that the map contains only the revisions which
+ * are in use. The readable revisions only move forward, which is done with compare-and-set.
+ * <p/>
+ * A reader may get its slot only after the newest readable revision has already moved on, so it checks
+ * afterwards that the revision did not change, and otherwise tries again with the newer revision. Together
+ * with {@link #getRevisionsToKeep()} reading the newest revision before the slots, that guarantees that
+ * a revision is never purged while it is being opened.
+ */
 @ThreadSafe
 public class RevisionCounter {
 
-    private final Collection<RevisionHandle> revisionsInUse = new ConcurrentLinkedQueue<>();
+    private final ConcurrentNavigableMap<Long, RevisionSlot> readSlots = new ConcurrentSkipListMap<>();
+    // the write revisions which have finished, but the revisions before them have not yet all finished
+    private final Set<Long> finishedWrites = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
     private final AtomicLong writeRevision = new AtomicLong(RevisionList.NULL_REVISION);
-    private volatile long oldestReadableRevision = RevisionList.NULL_REVISION;
-    private volatile long newestReadableRevision = RevisionList.NULL_REVISION;
-    private volatile long newestCommittedRevision = RevisionList.NULL_REVISION;
+    private final AtomicLong newestFinishedWriteRevision = new AtomicLong(RevisionList.NULL_REVISION);
+    private final AtomicLong newestCommittedRevision = new AtomicLong(RevisionList.NULL_REVISION);
+    private final AtomicLong oldestReadableRevision = new AtomicLong(RevisionList.NULL_REVISION);
+    private final AtomicLong newestReadableRevision = new AtomicLong(RevisionList.NULL_REVISION);
 
     public long getOldestReadableRevision() {
-        return oldestReadableRevision;
+        return oldestReadableRevision.get();
     }
 
     public long getNewestReadableRevision() {
-        return newestReadableRevision;
+        return newestReadableRevision.get();
     }
 
     public RevisionHandle openNewestRevision() {
-        RevisionHandle h = new RevisionHandle(getNewestReadableRevision(), this);
-        revisionsInUse.add(h);
-        return h;
+        while (true) {
+            long revision = newestReadableRevision.get();
+            RevisionSlot slot = acquireSlot(revision);
+            if (slot != null) {
+                if (newestReadableRevision.get() == revision) {
+                    return new RevisionHandle(slot, this);
+                }
+                releaseSlot(slot);
+            }
+        }
+    }
+
+    private RevisionSlot acquireSlot(long revision) {
+        RevisionSlot slot = readSlots.get(revision);
+        if (slot == null) {
+            RevisionSlot created = new RevisionSlot(revision);
+            slot = readSlots.putIfAbsent(revision, created);
+            if (slot == null) {
+                slot = created;
+            }
+        }
+        if (slot.tryAcquire()) {
+            return slot;
+        }
+        // the slot was retired just now, so its last user will remove it
+        readSlots.remove(revision, slot);
+        return null;
+    }
+
+    private void releaseSlot(RevisionSlot slot) {
+        if (slot.release()) {
+            readSlots.remove(slot.getRevision(), slot);
+        }
     }
 
     long nextWriteRevision() {
@@ -39,43 +85,113 @@ public class RevisionCounter {
     }
 
     void rollback(RevisionHandle handle) {
-        revisionsInUse.remove(handle);
+        if (handle.markReleased()) {
+            releaseSlot(handle.getReadSlot());
+            if (handle.isWriteRevisionPrepared()) {
+                writeFinished(handle.getWriteRevision());
+                updateNewestReadableRevision();
+            }
+            updateOldestReadableRevision();
+        }
+    }
+
+    /**
+     * Releases the handle of a transaction which did not write anything. The readable revisions
+     * can only become newer when writes finish, so only the oldest readable revision needs to be updated.
+     */
+    void releaseReadOnly(RevisionHandle handle) {
+        if (handle.markReleased()) {
+            releaseSlot(handle.getReadSlot());
+            updateOldestReadableRevision();
+        }
     }
 
     void commitWrites(RevisionHandle handle) {
-        revisionsInUse.remove(handle);
-        updateReadableRevisions(handle.getWriteRevision());
+        if (handle.markReleased()) {
+            releaseSlot(handle.getReadSlot());
+            writeFinished(handle.getWriteRevision());
+            advance(newestCommittedRevision, handle.getWriteRevision());
+            updateNewestReadableRevision();
+            updateOldestReadableRevision();
+        }
+    }
+
+    private void writeFinished(long revision) {
+        // the revisions up to the first unfinished write are all either committed or rolled back
+        finishedWrites.add(revision);
+        while (true) {
+            long finished = newestFinishedWriteRevision.get();
+            if (!finishedWrites.contains(finished + 1)) {
+                return;
+            }
+            if (newestFinishedWriteRevision.compareAndSet(finished, finished + 1)) {
+                finishedWrites.remove(finished + 1);
+            }
+        }
     }
 
-    private synchronized void updateReadableRevisions(long currentlyCommittedRevision) {
-        newestCommittedRevision = Math.max(newestCommittedRevision, currentlyCommittedRevision);
-        newestReadableRevision = getOldestCommittedRevision(newestCommittedRevision);
-        oldestReadableRevision = getOldestRevisionInUse(newestCommittedRevision);
+    private void updateNewestReadableRevision() {
+        advance(newestReadableRevision, Math.min(newestCommittedRevision.get(), newestFinishedWriteRevision.get()));
     }
 
-    private long getOldestCommittedRevision(long newestCommitted) {
-        long oldest = newestCommitted;
-        for (RevisionHandle h : revisionsInUse) {
-            if (h.isWriteRevisionPrepared()) {
-                oldest = Math.min(oldest, h.getWriteRevision() - 1);
+    private void updateOldestReadableRevision() {
+        advance(oldestReadableRevision, oldestRevisionInUse());
+    }
+
+    private static void advance(AtomicLong revision, long to) {
+        while (true) {
+            long current = revision.get();
+            if (to <= current || revision.compareAndSet(current, to)) {
+                return;
             }
         }
-        return oldest;
     }
 
-    private long getOldestRevisionInUse(long newestCommitted) {
-        long oldest = newestCommitted;
-        for (RevisionHandle h : revisionsInUse) {
-            oldest = Math.min(oldest, h.getReadRevision());
+    private long oldestRevisionInUse() {
+        long newest = newestReadableRevision.get();
+        Map.Entry<Long, RevisionSlot> first = readSlots.firstEntry();
+        return first == null ? newest : Math.min(first.getKey(), newest);
+    }
+
+    /**
+     * @return the distinct revisions which are being read, and the newest readable revision which new
+     * transactions will read, in ascending order. All other revisions, except those newer than these,
+     * are invisible to everybody.
+     */
+    public long[] getRevisionsToKeep() {
+        long newest = newestReadableRevision.get();
+        long[] revisions = new long[readSlots.size() + 1];
+        int count = 0;
+        boolean newestAdded = false;
+        for (long revision : readSlots.keySet()) {
+            if (!newestAdded && newest <= revision) {
+                newestAdded = true;
+                if (newest < revision) {
+                    revisions = append(revisions, count++, newest);
+                }
+            }
+            revisions = append(revisions, count++, revision);
         }
-        return oldest;
+        if (!newestAdded) {
+            revisions = append(revisions, count++, newest);
+        }
+        return Arrays.copyOf(revisions, count);
+    }
+
+    private static long[] append(long[] revisions, int index, long revision) {
+        if (index == revisions.length) {
+            // slots were added while iterating
+            revisions = Arrays.copyOf(revisions, revisions.length * 2);
+        }
+        revisions[index] = revision;
+        return revisions;
     }
 
     public String toString() {
         return getClass().getSimpleName()
                 + "[readableRange=" + oldestReadableRevision + "-" + newestReadableRevision
-                + ", newestCommitted=" + newestCommittedRevision
-                + ", revisionsInUse=" + revisionsInUse
+                + ", write=" + writeRevision
+                + ", readSlots=" + readSlots.values()
                 + "]";
     }
 
@@ -87,11 +203,18 @@ public class RevisionCounter {
         return x;
     }
 
+    @TestOnly
+    int getSlotCount() {
+        return readSlots.size();
+    }
+
     @TestOnly
     Collection<Long> getRevisionsInUse() {
         ArrayList<Long> revisions = new ArrayList<>();
-        for (RevisionHandle h : revisionsInUse) {
-            revisions.add(h.getReadRevision());
+        for (RevisionSlot slot : readSlots.values()) {
+            for (int i = 0; i < slot.getUsers(); i++) {
+                revisions.add(slot.getRevision());
+            }
         }
         return Collections.unmodifiableCollection(revisions);
     }
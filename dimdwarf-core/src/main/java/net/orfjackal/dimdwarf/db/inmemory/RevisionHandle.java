@@ -1,4 +1,4 @@
-// Copyright © 2008-2010 Esko Luontola <www.orfjackal.net>
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
 // This software is released under the Apache License 2.0.
 // The license text is at http://dimdwarf.sourceforge.net/LICENSE
 
@@ -9,30 +9,29 @@ import javax.annotation.concurrent.NotThreadSafe;
 @NotThreadSafe
 public class RevisionHandle {
 
-    private static final long UNDEFINED = RevisionList.NULL_REVISION - 1;
-
     private final RevisionCounter controller;
-    private final long readRevision;
-    private long writeRevision = UNDEFINED;
+    private final RevisionSlot readSlot;
+    private long writeRevision = RevisionList.NULL_REVISION;
+    private boolean released = false;
 
-    public RevisionHandle(long readRevision, RevisionCounter controller) {
-        this.readRevision = readRevision;
+    RevisionHandle(RevisionSlot readSlot, RevisionCounter controller) {
+        this.readSlot = readSlot;
         this.controller = controller;
     }
 
     public long getReadRevision() {
-        return readRevision;
+        return readSlot.getRevision();
     }
 
     public long getWriteRevision() {
-        if (writeRevision == UNDEFINED) {
+        if (!isWriteRevisionPrepared()) {
             throw new IllegalStateException("Not prepared");
         }
         return writeRevision;
     }
 
     public boolean isWriteRevisionPrepared() {
-        return writeRevision != UNDEFINED;
+        return writeRevision != RevisionList.NULL_REVISION;
     }
 
     public void prepareWriteRevision() {
@@ -48,7 +47,30 @@ public class RevisionHandle {
         controller.rollback(this);
     }
 
+    /**
+     * Ends a transaction which only read. Cheaper than {@link #rollback()} or {@link #commitWrites()}.
+     */
+    public void releaseReadOnly() {
+        assert !isWriteRevisionPrepared();
+        controller.releaseReadOnly(this);
+    }
+
+    RevisionSlot getReadSlot() {
+        return readSlot;
+    }
+
+    /**
+     * @return false if the handle had already been released
+     */
+    boolean markReleased() {
+        if (released) {
+            return false;
+        }
+        released = true;
+        return true;
+    }
+
     public String toString() {
-        return getClass().getSimpleName() + "[read=" + readRevision + ",write=" + writeRevision + "]";
+        return getClass().getSimpleName() + "[read=" + getReadRevision() + ",write=" + (isWriteRevisionPrepared() ? writeRevision : "-") + "]";
     }
 }
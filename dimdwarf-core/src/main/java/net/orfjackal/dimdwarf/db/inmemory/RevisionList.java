@@ -1,4 +1,4 @@
-// Copyright © 2008-2010 Esko Luontola <www.orfjackal.net>
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
 // This software is released under the Apache License 2.0.
 // The license text is at http://dimdwarf.sourceforge.net/LICENSE
 
@@ -11,6 +11,9 @@ import javax.annotation.concurrent.ThreadSafe;
  * Linked list which remembers multiple revisions of a value. The revisions are immutable, but revisions
  * older than the latest revision may be purged to free memory. Reading the latest revision is an O(1) operation
  * and reading older revisions is an O(N) operation.
+ * <p/>
+ * Purging only ever changes the links of the revisions which are kept. A reader which is in the middle of
+ * traversing a purged revision will still reach the revision it is looking for.
  */
 @ThreadSafe
 public class RevisionList<T> {
@@ -43,13 +46,64 @@ public class RevisionList<T> {
         return null;
     }
 
+    /**
+     * Returns the revision of the value which {@link #get(long)} would return,
+     * or {@link #NULL_REVISION} if no revision is visible.
+     */
+    public long getRevision(long readRevision) {
+        for (RevisionList<T> node = this; node != null; node = node.previous) {
+            if (node.revision <= readRevision) {
+                return node.revision;
+            }
+        }
+        return NULL_REVISION;
+    }
+
     public void purgeRevisionsOlderThan(long revisionToKeep) {
+        purgeRevisionsOtherThan(revisionToKeep);
+    }
+
+    /**
+     * Keeps only the revisions which are visible when reading any of the specified revisions, and all revisions
+     * newer than them (because those might be read by transactions which begin later).
+     *
+     * @param revisionsToKeep the revisions which are still being read, in ascending order.
+     */
+    public void purgeRevisionsOtherThan(long... revisionsToKeep) {
+        purgeRevisionsOtherThan(revisionsToKeep, null);
+    }
+
+    /**
+     * Like {@link #purgeRevisionsOtherThan(long...)}, but also reports the purged non-null values to the listener.
+     * The caller must make sure that the same list is not purged concurrently, or else a value could be
+     * reported twice.
+     */
+    public void purgeRevisionsOtherThan(long[] revisionsToKeep, @Nullable PurgeListener<? super T> listener) {
+        assert revisionsToKeep.length > 0;
+        int next = revisionsToKeep.length - 1;
+        long newest = revisionsToKeep[next];
+
+        RevisionList<T> lastKept = null;
         for (RevisionList<T> node = this; node != null; node = node.previous) {
-            if (node.revision <= revisionToKeep) {
-                node.previous = null;
-                return;
+            if (node.revision > newest) {
+                lastKept = node;
+            } else if (next >= 0 && node.revision <= revisionsToKeep[next]) {
+                // this is the revision which is visible to the readers of revisionsToKeep[next] and some older ones
+                if (lastKept != null && lastKept.previous != node) {
+                    lastKept.previous = node;
+                }
+                lastKept = node;
+                while (next >= 0 && revisionsToKeep[next] >= node.revision) {
+                    next--;
+                }
+            } else if (listener != null && node.value != null) {
+                listener.purged(node.value);
             }
         }
+        assert lastKept != null;
+        if (lastKept.previous != null) {
+            lastKept.previous = null;
+        }
     }
 
     public long getLatestRevision() {
@@ -64,6 +118,14 @@ public class RevisionList<T> {
         return previous != null;
     }
 
+    public int getNumberOfRevisions() {
+        int count = 0;
+        for (RevisionList<T> node = this; node != null; node = node.previous) {
+            count++;
+        }
+        return count;
+    }
+
     public String toString() {
         String s = "#" + revision + ": " + value;
         if (previous != null) {
@@ -4,12 +4,10 @@
 
 package net.orfjackal.dimdwarf.db.inmemory;
 
-import net.orfjackal.dimdwarf.db.common.SortedMapUtil;
-
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.ThreadSafe;
 import java.util.*;
-import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.*;
 
 /**
  * Map which keeps track of its modification history. Can be used to implement multiversion concurrency control.
@@ -17,14 +15,44 @@ import java.util.concurrent.ConcurrentSkipListMap;
  * When a key is modified using revision X, the next time that same key is modified the revision must be greater
  * than X. Modifying other keys concurrently in older revisions is allowed. The old revisions can be purged with
  * {@link #purgeRevisionsOlderThan(long)} when the user of this class is sure that those revisions will not be
- * accessed.
+ * accessed. If there are long running readers, {@link #purgeRevisionsOtherThan(long...)} can be used to purge
+ * also the revisions between them, so that one old reader will not prevent purging the history of frequently
+ * updated keys.
+ * <p/>
+ * Writes do not take a map-wide lock. Each key's {@link RevisionList} head is swapped with a compare-and-set,
+ * so commits which modify disjoint keys can proceed in parallel.
+ * <p/>
+ * The keys are kept in a {@link ConcurrentOrderedMap}, which by default is a skip list. Tables whose keys
+ * share long prefixes can use a {@link RadixTreeMap} instead.
  */
 @ThreadSafe
 public class RevisionMap<K, V> {
 
-    private final SortedMap<K, RevisionList<V>> map = new ConcurrentSkipListMap<>();
-    private final Set<K> hasOldRevisions = new HashSet<>();
-    private final Object writeLock = new Object();
+    private final ConcurrentOrderedMap<K, RevisionList<V>> map;
+    private final Set<K> hasOldRevisions = Collections.newSetFromMap(new ConcurrentHashMap<K, Boolean>());
+    @Nullable private final PurgeListener<? super V> purgeListener;
+    private final Object purgeLock = new Object();
+    private Iterator<K> purgeCursor = Collections.emptyIterator();
+
+    public RevisionMap() {
+        this(null);
+    }
+
+    /**
+     * @param purgeListener gets notified about every value which is purged. Purging is done by one thread at a time,
+     *                      so every value is reported only once.
+     */
+    public RevisionMap(@Nullable PurgeListener<? super V> purgeListener) {
+        this(new SkipListOrderedMap<K, RevisionList<V>>(), purgeListener);
+    }
+
+    /**
+     * @param map the initially empty map in which the revisions of each key are stored.
+     */
+    public RevisionMap(ConcurrentOrderedMap<K, RevisionList<V>> map, @Nullable PurgeListener<? super V> purgeListener) {
+        this.map = map;
+        this.purgeListener = purgeListener;
+    }
 
     public boolean exists(K key, long readRevision) {
         RevisionList<V> revs = map.get(key);
@@ -38,14 +66,43 @@ public class RevisionMap<K, V> {
         return revs != null ? revs.get(readRevision) : null;
     }
 
+    /**
+     * Returns the values of the keys which exist in the revision. Nonexistent keys are left out.
+     */
+    public Map<K, V> getAll(Collection<K> keys, long readRevision) {
+        assert readRevision >= RevisionList.NULL_REVISION;
+        Map<K, V> values = new HashMap<>();
+        for (K key : keys) {
+            RevisionList<V> revs = map.get(key);
+            V value = revs != null ? revs.get(readRevision) : null;
+            if (value != null) {
+                values.put(key, value);
+            }
+        }
+        return values;
+    }
+
+    public long getRevision(K key, long readRevision) {
+        RevisionList<V> revs = map.get(key);
+        return revs != null ? revs.getRevision(readRevision) : RevisionList.NULL_REVISION;
+    }
+
     public void put(K key, @Nullable V value, long writeRevision) {
-        synchronized (writeLock) {
-            RevisionList<V> previous = map.get(key);
+        RevisionList<V> previous;
+        do {
+            previous = map.get(key);
             checkForConcurrentModification(writeRevision, key, previous);
-            map.put(key, new RevisionList<>(writeRevision, value, previous));
-            if (previous != null) {
-                hasOldRevisions.add(key);
-            }
+        } while (!compareAndSet(key, previous, new RevisionList<>(writeRevision, value, previous)));
+        if (previous != null) {
+            hasOldRevisions.add(key);
+        }
+    }
+
+    private boolean compareAndSet(K key, @Nullable RevisionList<V> expect, RevisionList<V> update) {
+        if (expect == null) {
+            return map.putIfAbsent(key, update) == null;
+        } else {
+            return map.replace(key, expect, update);
         }
     }
 
@@ -62,20 +119,45 @@ public class RevisionMap<K, V> {
 
     @Nullable
     public K firstKey(long readRevision) {
-        K first = SortedMapUtil.firstKey(map);
-        if (first != null && !exists(first, readRevision)) {
-            first = nextKeyAfter(first, readRevision);
-        }
-        return first;
+        return firstExistingKey(map.entriesBetween(null, null), null, readRevision);
     }
 
     @Nullable
     public K nextKeyAfter(K currentKey, long readRevision) {
-        K next = currentKey;
-        do {
-            next = SortedMapUtil.nextKeyAfter(next, map);
-        } while (next != null && !exists(next, readRevision));
-        return next;
+        return firstExistingKey(map.entriesBetween(currentKey, null), currentKey, readRevision);
+    }
+
+    @Nullable
+    public K lastKey(long readRevision) {
+        return firstExistingKey(map.descendingEntries(), null, readRevision);
+    }
+
+    @Nullable
+    private static <K, V> K firstExistingKey(Iterator<Map.Entry<K, RevisionList<V>>> it, @Nullable K skippedKey, long readRevision) {
+        while (it.hasNext()) {
+            Map.Entry<K, RevisionList<V>> e = it.next();
+            if (!e.getKey().equals(skippedKey) && e.getValue().get(readRevision) != null) {
+                return e.getKey();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the keys from {@code fromKey} (inclusive) to {@code toKey} (exclusive) together with their
+     * revisions, in key order. A null bound means that the range is unbounded on that side. The iterator
+     * walks the underlying map directly and is weakly consistent, so concurrent writes will not disturb it.
+     */
+    Iterator<Map.Entry<K, RevisionList<V>>> revisionsBetween(@Nullable K fromKey, @Nullable K toKey) {
+        if (fromKey != null && toKey != null && isEmptyRange(fromKey, toKey)) {
+            return Collections.emptyIterator();
+        }
+        return map.entriesBetween(fromKey, toKey);
+    }
+
+    @SuppressWarnings({"unchecked"})
+    private static <K> boolean isEmptyRange(K fromKey, K toKey) {
+        return ((Comparable<K>) fromKey).compareTo(toKey) >= 0;
     }
 
     public long getLatestRevisionForKey(K key) {
@@ -86,24 +168,70 @@ public class RevisionMap<K, V> {
         return revs != null ? revs.getLatestRevision() : RevisionList.NULL_REVISION;
     }
 
-    // TODO: add support for purging sparse revisions, i.e. purgeRevisionsOtherThan(long... revisionsToKeep)
-    // Might be useful for long running transactions, so that this map will not expand more than 100%
-    // (worst case: one long transaction reads every key, while other transactions update every key).
-
     public void purgeRevisionsOlderThan(long revisionToKeep) {
-        synchronized (writeLock) {
+        purgeRevisionsOtherThan(revisionToKeep);
+    }
+
+    /**
+     * Keeps only those revisions which are visible to the readers of {@code revisionsToKeep},
+     * and all revisions newer than them. See {@link RevisionList#purgeRevisionsOtherThan(long...)}
+     *
+     * @param revisionsToKeep the revisions which are still being read, in ascending order.
+     */
+    public void purgeRevisionsOtherThan(long... revisionsToKeep) {
+        synchronized (purgeLock) {
             for (Iterator<K> purgeQueueIter = hasOldRevisions.iterator(); purgeQueueIter.hasNext();) {
-                K key = purgeQueueIter.next();
-                RevisionList<V> value = map.get(key);
-
-                value.purgeRevisionsOlderThan(revisionToKeep);
-                if (!value.hasOldRevisions()) {
-                    purgeQueueIter.remove();
-                }
-                if (value.isEmpty()) {
-                    map.remove(key);
-                }
+                purgeNext(purgeQueueIter, revisionsToKeep);
+            }
+        }
+    }
+
+    public boolean purgeRevisionsOlderThan(long revisionToKeep, int maxKeysToVisit) {
+        return purgeRevisionsOtherThan(new long[]{revisionToKeep}, maxKeysToVisit);
+    }
+
+    /**
+     * Does a part of the work of {@link #purgeRevisionsOtherThan(long...)}. Each call continues
+     * from the key where the previous call stopped, so that every key will eventually be visited
+     * even if some keys can not yet be purged.
+     *
+     * @return true if the end of the purge queue was reached, i.e. all keys have been visited since the pass began.
+     */
+    public boolean purgeRevisionsOtherThan(long[] revisionsToKeep, int maxKeysToVisit) {
+        synchronized (purgeLock) {
+            if (!purgeCursor.hasNext()) {
+                purgeCursor = hasOldRevisions.iterator();
             }
+            for (int i = 0; i < maxKeysToVisit && purgeCursor.hasNext(); i++) {
+                purgeNext(purgeCursor, revisionsToKeep);
+            }
+            return !purgeCursor.hasNext();
+        }
+    }
+
+    private void purgeNext(Iterator<K> purgeQueueIter, long[] revisionsToKeep) {
+        K key = purgeQueueIter.next();
+        RevisionList<V> value = map.get(key);
+        if (value == null) {
+            purgeQueueIter.remove();
+            return;
+        }
+
+        value.purgeRevisionsOtherThan(revisionsToKeep, purgeListener);
+        if (!value.hasOldRevisions()) {
+            purgeQueueIter.remove();
+            requeueIfModifiedConcurrently(key, value);
+        }
+        if (value.isEmpty()) {
+            map.remove(key, value);
+        }
+    }
+
+    private void requeueIfModifiedConcurrently(K key, RevisionList<V> purged) {
+        // A writer may have pushed a new revision on top of the purged one, and queued
+        // the key, just before we dequeued it. Without this the old revision would leak.
+        if (map.get(key) != purged) {
+            hasOldRevisions.add(key);
         }
     }
 
@@ -111,6 +239,18 @@ public class RevisionMap<K, V> {
         return map.size();
     }
 
+    public int getPurgeQueueSize() {
+        return hasOldRevisions.size();
+    }
+
+    public long getNumberOfRevisions() {
+        long sum = 0;
+        for (RevisionList<V> revs : map.values()) {
+            sum += revs.getNumberOfRevisions();
+        }
+        return sum;
+    }
+
     public String toString() {
         String s = getClass().getSimpleName() + "[\n";
         for (Map.Entry<K, RevisionList<V>> e : map.entrySet()) {
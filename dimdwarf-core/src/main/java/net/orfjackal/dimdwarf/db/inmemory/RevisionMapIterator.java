@@ -8,18 +8,28 @@ import javax.annotation.Nullable;
 import javax.annotation.concurrent.*;
 import java.util.*;
 
+/**
+ * Iterates over the keys of a {@link RevisionMap} which exist in one revision. All the keys are visited
+ * with one pass over the map, instead of looking up every key separately.
+ */
 @NotThreadSafe
 public class RevisionMapIterator<K, V> implements Iterator<Map.Entry<K, V>> {
 
-    private final RevisionMap<K, V> map;
+    private final Iterator<Map.Entry<K, RevisionList<V>>> revisions;
     private final long readRevision;
     @Nullable private Map.Entry<K, V> fetchedNext;
-    @Nullable private K nextKey;
 
     public RevisionMapIterator(RevisionMap<K, V> map, long readRevision) {
-        this.map = map;
+        this(map, null, null, readRevision);
+    }
+
+    /**
+     * @param fromKey the first key to include, or null to start from the beginning of the map.
+     * @param toKey   the first key to exclude, or null to continue until the end of the map.
+     */
+    public RevisionMapIterator(RevisionMap<K, V> map, @Nullable K fromKey, @Nullable K toKey, long readRevision) {
+        this.revisions = map.revisionsBetween(fromKey, toKey);
         this.readRevision = readRevision;
-        nextKey = map.firstKey(readRevision);
     }
 
     public boolean hasNext() {
@@ -37,12 +47,11 @@ public class RevisionMapIterator<K, V> implements Iterator<Map.Entry<K, V>> {
     }
 
     private void fetchNext() {
-        while (fetchedNext == null && nextKey != null) {
-            K key = nextKey;
-            V value = map.get(key, readRevision);
-            nextKey = map.nextKeyAfter(key, readRevision);
+        while (fetchedNext == null && revisions.hasNext()) {
+            Map.Entry<K, RevisionList<V>> e = revisions.next();
+            V value = e.getValue().get(readRevision);
             if (value != null) {
-                fetchedNext = new MyEntry<>(key, value);
+                fetchedNext = new AbstractMap.SimpleImmutableEntry<>(e.getKey(), value);
             }
         }
     }
@@ -55,28 +64,4 @@ public class RevisionMapIterator<K, V> implements Iterator<Map.Entry<K, V>> {
         fetchedNext = null;
         return next;
     }
-
-
-    @Immutable
-    private static class MyEntry<K, V> implements Map.Entry<K, V> {
-        private final K key;
-        private final V value;
-
-        public MyEntry(K key, V value) {
-            this.key = key;
-            this.value = value;
-        }
-
-        public K getKey() {
-            return key;
-        }
-
-        public V getValue() {
-            return value;
-        }
-
-        public V setValue(V value) {
-            throw new UnsupportedOperationException();
-        }
-    }
 }
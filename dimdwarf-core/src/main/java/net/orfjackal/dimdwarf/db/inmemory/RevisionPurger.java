@@ -0,0 +1,166 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.db.inmemory;
+
+import net.orfjackal.dimdwarf.events.SystemLifecycleListener;
+import org.slf4j.*;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Purges the old revisions of an {@link InMemoryDatabase} in a background thread, so that the committing
+ * transactions don't need to do it. The purging is done incrementally in short time slices, so it will not
+ * hog a CPU core even when there is lots to purge.
+ * <p/>
+ * While the purger is stopped, the database falls back to purging on every commit.
+ */
+@ThreadSafe
+public class RevisionPurger implements SystemLifecycleListener {
+
+    public static final long DEFAULT_INTERVAL_MILLIS = 50;
+    public static final long DEFAULT_TIME_SLICE_MILLIS = 5;
+
+    private static final Logger logger = LoggerFactory.getLogger(RevisionPurger.class);
+    private static final int KEYS_PER_BATCH = 64;
+
+    private final InMemoryDatabase db;
+    private final long intervalMillis;
+    private final long timeSliceNanos;
+    private final ScheduledExecutorService executor;
+
+    // purging state, guarded by this
+    private Iterator<InMemoryDatabaseTable> tableCursor = Collections.emptyIterator();
+    @Nullable private InMemoryDatabaseTable currentTable = null;
+
+    private final AtomicLong purgeRuns = new AtomicLong();
+    private final AtomicLong unfinishedPurgeRuns = new AtomicLong();
+    private final AtomicLong purgeNanos = new AtomicLong();
+
+    public RevisionPurger(InMemoryDatabase db) {
+        this(db, DEFAULT_INTERVAL_MILLIS, DEFAULT_TIME_SLICE_MILLIS);
+    }
+
+    /**
+     * @param intervalMillis  how long to wait after one time slice of purging before starting the next one.
+     * @param timeSliceMillis how long one time slice may take at most (give or take one batch of keys).
+     */
+    public RevisionPurger(InMemoryDatabase db, long intervalMillis, long timeSliceMillis) {
+        this.db = db;
+        this.intervalMillis = intervalMillis;
+        this.timeSliceNanos = TimeUnit.MILLISECONDS.toNanos(timeSliceMillis);
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Purge Old Revisions");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    public void onStartup() {
+        start();
+    }
+
+    public void onShutdown() {
+        shutdown();
+    }
+
+    public void start() {
+        db.setPurgeOnCommit(false);
+        executor.scheduleWithFixedDelay(new PurgeTimeSlice(), intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.error("Interrupted while shutting down", e);
+        }
+        db.setPurgeOnCommit(true);
+    }
+
+    /**
+     * Runs one time slice of purging in the calling thread. The tables are purged one at a time, and every
+     * time slice continues from where the previous one stopped, so every table gets its turn.
+     *
+     * @return true if the end of a pass over all tables was reached, false if the time slice ran out first.
+     */
+    public synchronized boolean purgeTimeSlice() {
+        long start = System.nanoTime();
+        boolean finished = purgeUntil(start + timeSliceNanos);
+
+        purgeNanos.addAndGet(System.nanoTime() - start);
+        purgeRuns.incrementAndGet();
+        if (!finished) {
+            unfinishedPurgeRuns.incrementAndGet();
+        }
+        return finished;
+    }
+
+    private boolean purgeUntil(long deadline) {
+        long[] revisionsToKeep = db.getRevisionsInUse();
+        if (currentTable == null && !tableCursor.hasNext()) {
+            tableCursor = db.getTables().iterator();
+            if (!tableCursor.hasNext()) {
+                return true;
+            }
+        }
+        do {
+            if (currentTable == null) {
+                currentTable = tableCursor.next();
+            }
+            if (currentTable.purgeRevisionsOtherThan(revisionsToKeep, KEYS_PER_BATCH)) {
+                currentTable = null;
+                if (!tableCursor.hasNext()) {
+                    return true;
+                }
+            }
+        } while (System.nanoTime() - deadline < 0);
+        return false;
+    }
+
+    /**
+     * The number of keys which have revisions that may need purging. Some of them may still be in use
+     * by long running transactions, so this number will not necessarily reach zero.
+     */
+    public int getPendingKeys() {
+        return db.getPurgeQueueSize();
+    }
+
+    public long getPurgeRuns() {
+        return purgeRuns.get();
+    }
+
+    /**
+     * The number of time slices which ran out of time before reaching the end of the purge queue.
+     * If this keeps growing as fast as {@link #getPurgeRuns()}, the purger is falling behind.
+     */
+    public long getUnfinishedPurgeRuns() {
+        return unfinishedPurgeRuns.get();
+    }
+
+    public long getPurgeTime(TimeUnit unit) {
+        return unit.convert(purgeNanos.get(), TimeUnit.NANOSECONDS);
+    }
+
+
+    @ThreadSafe
+    private class PurgeTimeSlice implements Runnable {
+        public void run() {
+            try {
+                purgeTimeSlice();
+            } catch (Throwable t) {
+                // an exception would cancel the scheduled task, so the purging would stop for good
+                logger.error("Purging old revisions failed", t);
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.db.inmemory;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reference count of the transactions which use a revision. When the last user releases the slot, it is
+ * retired and can not be acquired anymore, so that the {@link RevisionCounter} can remove it without locking.
+ */
+@ThreadSafe
+class RevisionSlot {
+
+    private static final int RETIRED = -1;
+
+    private final long revision;
+    private final AtomicInteger users = new AtomicInteger(0);
+
+    public RevisionSlot(long revision) {
+        this.revision = revision;
+    }
+
+    public long getRevision() {
+        return revision;
+    }
+
+    /**
+     * @return false if the slot has already been retired
+     */
+    public boolean tryAcquire() {
+        while (true) {
+            int current = users.get();
+            if (current == RETIRED) {
+                return false;
+            }
+            if (users.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return true if this was the last user and the slot was retired
+     */
+    public boolean release() {
+        int remaining = users.decrementAndGet();
+        assert remaining >= 0 : "Not in use: " + this;
+        return remaining == 0 && users.compareAndSet(0, RETIRED);
+    }
+
+    public int getUsers() {
+        return Math.max(0, users.get());
+    }
+
+    public String toString() {
+        return revision + "x" + getUsers();
+    }
+}
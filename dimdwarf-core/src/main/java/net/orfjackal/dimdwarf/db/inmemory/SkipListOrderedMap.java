@@ -0,0 +1,29 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.db.inmemory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+@ThreadSafe
+public class SkipListOrderedMap<K, V> extends ConcurrentSkipListMap<K, V> implements ConcurrentOrderedMap<K, V> {
+
+    public Iterator<Map.Entry<K, V>> entriesBetween(@Nullable K fromKey, @Nullable K toKey) {
+        NavigableMap<K, V> range = this;
+        if (fromKey != null) {
+            range = range.tailMap(fromKey, true);
+        }
+        if (toKey != null) {
+            range = range.headMap(toKey, false);
+        }
+        return range.entrySet().iterator();
+    }
+
+    public Iterator<Map.Entry<K, V>> descendingEntries() {
+        return descendingMap().entrySet().iterator();
+    }
+}
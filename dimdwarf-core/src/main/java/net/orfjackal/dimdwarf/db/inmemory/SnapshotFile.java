@@ -0,0 +1,158 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.db.inmemory;
+
+import net.orfjackal.dimdwarf.db.*;
+
+import javax.annotation.concurrent.*;
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * The file format of {@link InMemoryDatabase#writeSnapshot}. Every table is written in its own section, which
+ * is followed by an index of the sections, so that the tables can be read back in parallel:
+ * <pre>
+ * [magic][revision]
+ * section: ([key length][key][value length][value])* [-1]
+ * index:   [table count] ([table name][offset][CRC32])*
+ * trailer: [index offset][magic]
+ * </pre>
+ * The file is first written under a temporary name and then renamed, so a crash in the middle of writing
+ * will not destroy the previous snapshot.
+ */
+@Immutable
+class SnapshotFile {
+
+    private static final int MAGIC = 0x44445331; // "DDS1"
+    private static final int END_OF_SECTION = -1;
+    private static final int TRAILER_SIZE = 12;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File file;
+
+    public SnapshotFile(File file) {
+        this.file = file;
+    }
+
+    public boolean exists() {
+        return file.isFile();
+    }
+
+    public void write(long revision, Map<String, Iterator<Map.Entry<Blob, Blob>>> tables) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream fileOut = new FileOutputStream(tmp)) {
+            CRC32 crc = new CRC32();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(fileOut, crc), BUFFER_SIZE));
+            out.writeInt(MAGIC);
+            out.writeLong(revision);
+
+            List<Section> sections = new ArrayList<>();
+            for (Map.Entry<String, Iterator<Map.Entry<Blob, Blob>>> table : tables.entrySet()) {
+                out.flush();
+                long offset = fileOut.getChannel().position();
+                crc.reset();
+                writeSection(table.getValue(), out);
+                out.flush();
+                sections.add(new Section(table.getKey(), offset, (int) crc.getValue()));
+            }
+
+            long indexOffset = fileOut.getChannel().position();
+            out.writeInt(sections.size());
+            for (Section section : sections) {
+                out.writeUTF(section.table);
+                out.writeLong(section.offset);
+                out.writeInt(section.checksum);
+            }
+            out.writeLong(indexOffset);
+            out.writeInt(MAGIC);
+            out.flush();
+            fileOut.getFD().sync();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeSection(Iterator<Map.Entry<Blob, Blob>> entries, DataOutputStream out) throws IOException {
+        while (entries.hasNext()) {
+            Map.Entry<Blob, Blob> entry = entries.next();
+            writeBlob(entry.getKey(), out);
+            writeBlob(entry.getValue(), out);
+        }
+        out.writeInt(END_OF_SECTION);
+    }
+
+    private static void writeBlob(Blob blob, DataOutputStream out) throws IOException {
+        out.writeInt(blob.length());
+        blob.writeTo(out);
+    }
+
+    public List<Section> readIndex() throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            if (in.length() < TRAILER_SIZE) {
+                throw new PersistenceException("Corrupted snapshot " + file);
+            }
+            in.seek(in.length() - TRAILER_SIZE);
+            long indexOffset = in.readLong();
+            if (in.readInt() != MAGIC || indexOffset < 0 || indexOffset > in.length() - TRAILER_SIZE) {
+                throw new PersistenceException("Corrupted snapshot " + file);
+            }
+            in.seek(indexOffset);
+            int count = in.readInt();
+            List<Section> sections = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                sections.add(new Section(in.readUTF(), in.readLong(), in.readInt()));
+            }
+            return sections;
+        }
+    }
+
+    /**
+     * Reads the entries of one table. Different sections can be read concurrently from different threads.
+     */
+    public void readSection(Section section, SectionReader reader) throws IOException {
+        try (FileInputStream fileIn = new FileInputStream(file)) {
+            fileIn.getChannel().position(section.offset);
+            CRC32 crc = new CRC32();
+            DataInputStream in = new DataInputStream(new CheckedInputStream(new BufferedInputStream(fileIn, BUFFER_SIZE), crc));
+            int keyLength;
+            while ((keyLength = in.readInt()) != END_OF_SECTION) {
+                Blob key = readBlob(keyLength, in);
+                Blob value = readBlob(in.readInt(), in);
+                reader.entry(key, value);
+            }
+            if ((int) crc.getValue() != section.checksum) {
+                throw new PersistenceException("Corrupted table " + section.table + " in snapshot " + file);
+            }
+        }
+    }
+
+    private Blob readBlob(int length, DataInputStream in) throws IOException {
+        if (length < 0) {
+            throw new PersistenceException("Corrupted snapshot " + file);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return Blob.wrap(bytes);
+    }
+
+
+    @Immutable
+    public static class Section {
+        public final String table;
+        private final long offset;
+        private final int checksum;
+
+        public Section(String table, long offset, int checksum) {
+            this.table = table;
+            this.offset = offset;
+            this.checksum = checksum;
+        }
+    }
+
+    public interface SectionReader {
+        void entry(Blob key, Blob value);
+    }
+}
@@ -0,0 +1,20 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.db.inmemory;
+
+import net.orfjackal.dimdwarf.db.Blob;
+
+/**
+ * A value which was saved with {@link BlobStorage#store}.
+ */
+public interface StoredBlob {
+
+    Blob load();
+
+    /**
+     * Frees the memory used by this value. Must be called only once, after which the value must not be loaded.
+     */
+    void release();
+}
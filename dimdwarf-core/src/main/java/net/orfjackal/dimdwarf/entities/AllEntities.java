@@ -1,4 +1,4 @@
-// Copyright © 2008-2010 Esko Luontola <www.orfjackal.net>
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
 // This software is released under the Apache License 2.0.
 // The license text is at http://dimdwarf.sourceforge.net/LICENSE
 
@@ -7,9 +7,17 @@ package net.orfjackal.dimdwarf.entities;
 import net.orfjackal.dimdwarf.api.EntityId;
 import net.orfjackal.dimdwarf.api.internal.EntityObject;
 
+import java.util.*;
+
 public interface AllEntities {
 
     EntityId getEntityId(EntityObject entity);
 
     EntityObject getEntityById(EntityId id);
+
+    /**
+     * Like {@link #getEntityById} for each of the IDs, but the entities which are not yet loaded
+     * are read from the database in one batch.
+     */
+    Map<EntityId, EntityObject> getEntitiesById(Collection<EntityId> ids);
 }
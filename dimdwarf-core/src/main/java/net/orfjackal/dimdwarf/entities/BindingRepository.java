@@ -1,14 +1,16 @@
-// Copyright © 2008-2010 Esko Luontola <www.orfjackal.net>
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
 // This software is released under the Apache License 2.0.
 // The license text is at http://dimdwarf.sourceforge.net/LICENSE
 
 package net.orfjackal.dimdwarf.entities;
 
-import net.orfjackal.dimdwarf.db.DatabaseTable;
+import net.orfjackal.dimdwarf.api.EntityId;
+import net.orfjackal.dimdwarf.db.*;
 import net.orfjackal.dimdwarf.entities.dao.BindingDao;
 
 import javax.annotation.concurrent.NotThreadSafe;
 import javax.inject.Inject;
+import java.util.*;
 
 @NotThreadSafe
 public class BindingRepository implements DatabaseTable<String, Object> {
@@ -30,6 +32,21 @@ public class BindingRepository implements DatabaseTable<String, Object> {
         return entityToId.back(bindings.read(binding));
     }
 
+    public long getRevision(String binding) {
+        return bindings.getRevision(binding);
+    }
+
+    public Map<String, Object> readAll(Collection<String> bindings) {
+        Map<String, EntityId> ids = this.bindings.readAll(bindings);
+        Map<EntityId, Object> entities = entityToId.backAll(ids.values());
+        Map<String, Object> result = new LinkedHashMap<>();
+        for (Map.Entry<String, EntityId> e : ids.entrySet()) {
+            EntityId id = e.getValue();
+            result.put(e.getKey(), id != null ? entities.get(id) : null);
+        }
+        return result;
+    }
+
     public void update(String binding, Object entity) {
         bindings.update(binding, entityToId.forth(entity));
     }
@@ -45,4 +62,16 @@ public class BindingRepository implements DatabaseTable<String, Object> {
     public String nextKeyAfter(String currentKey) {
         return bindings.nextKeyAfter(currentKey);
     }
+
+    public String lastKey() {
+        return bindings.lastKey();
+    }
+
+    public Iterator<Map.Entry<String, Object>> scan(String fromKey, String toKey) {
+        return new ConvertingEntryIterator<>(bindings.scan(fromKey, toKey), new NoConversion<String>(), entityToId);
+    }
+
+    public Iterator<Map.Entry<String, Object>> scanPrefix(String prefix) {
+        return new ConvertingEntryIterator<>(bindings.scanPrefix(prefix), new NoConversion<String>(), entityToId);
+    }
 }
@@ -1,11 +1,12 @@
-// Copyright © 2008-2010 Esko Luontola <www.orfjackal.net>
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
 // This software is released under the Apache License 2.0.
 // The license text is at http://dimdwarf.sourceforge.net/LICENSE
 
 package net.orfjackal.dimdwarf.entities;
 
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.NotThreadSafe;
-import java.util.Iterator;
+import java.util.*;
 
 @NotThreadSafe
 public class BindingWalker implements Iterable<String> {
@@ -19,28 +20,45 @@ public class BindingWalker implements Iterable<String> {
     }
 
     public Iterator<String> iterator() {
-        return new BindingIterator(bindings.nextKeyAfter(prefix));
+        return new BindingIterator(bindings.scanPrefix(prefix));
     }
 
 
     @NotThreadSafe
     private class BindingIterator implements Iterator<String> {
 
-        private String next;
+        private final Iterator<Map.Entry<String, Object>> entries;
+        @Nullable private String next;
 
-        public BindingIterator(String next) {
-            this.next = next;
+        public BindingIterator(Iterator<Map.Entry<String, Object>> entries) {
+            this.entries = entries;
+            this.next = fetchNext();
+        }
+
+        @Nullable
+        private String fetchNext() {
+            while (entries.hasNext()) {
+                String key = entries.next().getKey();
+                // the binding named exactly as the prefix is not one of the bindings under it
+                if (!key.equals(prefix)) {
+                    return key;
+                }
+            }
+            return null;
         }
 
         public boolean hasNext() {
-            return next != null && next.startsWith(prefix);
+            return next != null;
         }
 
         public String next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
             try {
                 return next;
             } finally {
-                next = bindings.nextKeyAfter(next);
+                next = fetchNext();
             }
         }
 
@@ -1,4 +1,4 @@
-// Copyright © 2008-2010 Esko Luontola <www.orfjackal.net>
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
 // This software is released under the Apache License 2.0.
 // The license text is at http://dimdwarf.sourceforge.net/LICENSE
 
@@ -9,6 +9,7 @@ import net.orfjackal.dimdwarf.db.Converter;
 
 import javax.annotation.concurrent.NotThreadSafe;
 import javax.inject.Inject;
+import java.util.*;
 
 @NotThreadSafe
 public class ConvertEntityToEntityId implements Converter<Object, EntityId> {
@@ -29,6 +30,20 @@ public class ConvertEntityToEntityId implements Converter<Object, EntityId> {
         return entities.getEntityById(id);
     }
 
+    /**
+     * Converts many IDs at once, so that the entities which are not yet loaded are loaded in one batch.
+     * Null IDs are skipped.
+     */
+    public Map<EntityId, Object> backAll(Collection<EntityId> ids) {
+        List<EntityId> nonNullIds = new ArrayList<>(ids.size());
+        for (EntityId id : ids) {
+            if (id != null) {
+                nonNullIds.add(id);
+            }
+        }
+        return new LinkedHashMap<EntityId, Object>(entities.getEntitiesById(nonNullIds));
+    }
+
     public EntityId forth(Object entity) {
         if (entity == null) {
             return null;
@@ -0,0 +1,217 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.entities;
+
+import net.orfjackal.dimdwarf.db.*;
+import net.orfjackal.dimdwarf.serial.ClassDictionary;
+import net.orfjackal.dimdwarf.tasks.*;
+import net.orfjackal.dimdwarf.tx.*;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.*;
+
+/**
+ * Keeps the class dictionary in a database table, so that the ids stay valid as long as the entities
+ * which use them. The table has an entry from each id to its descriptor and from each descriptor to its id,
+ * and one entry which holds the next free id.
+ * <p/>
+ * The entries never change after they have been added, so every node caches them and reads the table
+ * only for the ids and descriptors which it has not yet seen. A new descriptor is added in a transaction
+ * of its own, which is committed before the id is used. That way an entity can never refer to an id
+ * whose adding was rolled back, and the task which serializes the entity does not conflict with the other
+ * tasks which add the same descriptor. The adding transactions all update the next free id, so they hold
+ * a lock of their own from before they begin until they have committed, and take turns instead of conflicting
+ * with each other and retrying. The lock is separate from the hot key locks of the tasks, and waiting for it
+ * is bounded, so that a task which is holding hot key locks can not deadlock on it.
+ */
+@ThreadSafe
+public class DatabaseClassDictionary implements ClassDictionary {
+
+    private static final int MAX_RETRIES = 10;
+    private static final long ADD_LOCK_TIMEOUT_MILLIS = 1000;
+    private static final byte ID_PREFIX = 1;
+    private static final byte DESCRIPTOR_PREFIX = 2;
+    private static final Blob NEXT_ID_KEY = Blob.wrap(new byte[]{0});
+
+    private final DatabaseManager dbms;
+    private final String tableName;
+    private final Lock addLock;
+
+    private final ConcurrentMap<Blob, Integer> ids = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Integer, Blob> descriptors = new ConcurrentHashMap<>();
+    private final AtomicLong cacheMisses = new AtomicLong();
+
+    public DatabaseClassDictionary(DatabaseManager dbms, String tableName) {
+        this(dbms, tableName, new ReentrantLock());
+    }
+
+    /**
+     * @param addLock must be shared by all dictionaries which use the same table.
+     */
+    public DatabaseClassDictionary(DatabaseManager dbms, String tableName, Lock addLock) {
+        this.dbms = dbms;
+        this.tableName = tableName;
+        this.addLock = addLock;
+    }
+
+    public int idOf(Blob descriptor) {
+        Integer id = ids.get(descriptor);
+        if (id == null) {
+            cacheMisses.incrementAndGet();
+            id = readOrAdd(descriptor);
+            cache(id, descriptor);
+        }
+        return id;
+    }
+
+    @Nullable
+    public Blob descriptorOf(int id) {
+        Blob descriptor = descriptors.get(id);
+        if (descriptor == null) {
+            cacheMisses.incrementAndGet();
+            descriptor = read(id);
+            if (descriptor != null) {
+                cache(id, descriptor);
+            }
+        }
+        return descriptor;
+    }
+
+    private void cache(int id, Blob descriptor) {
+        ids.putIfAbsent(descriptor, id);
+        descriptors.putIfAbsent(id, descriptor);
+    }
+
+    private int readOrAdd(Blob descriptor) {
+        Integer id = readId(descriptor);
+        return id != null ? id : add(descriptor);
+    }
+
+    @Nullable
+    private Integer readId(final Blob descriptor) {
+        return inTransaction(new Transactional<Integer>() {
+            public Integer run(DatabaseTable<Blob, Blob> table) {
+                return idIn(table, descriptor);
+            }
+        });
+    }
+
+    private int add(final Blob descriptor) {
+        return inTransactionHolding(addLock, new Transactional<Integer>() {
+            public Integer run(DatabaseTable<Blob, Blob> table) {
+                // some other node may have added it after we read it
+                Integer existing = idIn(table, descriptor);
+                if (existing != null) {
+                    return existing;
+                }
+                int id = takeNextId(table);
+                table.update(idKey(id), descriptor);
+                table.update(descriptorKey(descriptor), Blob.wrap(ByteBuffer.allocate(4).putInt(id).array()));
+                return id;
+            }
+        });
+    }
+
+    @Nullable
+    private Blob read(final int id) {
+        return inTransaction(new Transactional<Blob>() {
+            public Blob run(DatabaseTable<Blob, Blob> table) {
+                Blob descriptor = table.read(idKey(id));
+                return descriptor.equals(Blob.EMPTY_BLOB) ? null : descriptor;
+            }
+        });
+    }
+
+    @Nullable
+    private static Integer idIn(DatabaseTable<Blob, Blob> table, Blob descriptor) {
+        Blob id = table.read(descriptorKey(descriptor));
+        return id.equals(Blob.EMPTY_BLOB) ? null : id.toByteBuffer().getInt();
+    }
+
+    private static int takeNextId(DatabaseTable<Blob, Blob> table) {
+        Blob next = table.read(NEXT_ID_KEY);
+        int id = next.equals(Blob.EMPTY_BLOB) ? 0 : next.toByteBuffer().getInt();
+        table.update(NEXT_ID_KEY, Blob.wrap(ByteBuffer.allocate(4).putInt(id + 1).array()));
+        return id;
+    }
+
+    private static Blob idKey(int id) {
+        return Blob.wrap(ByteBuffer.allocate(5).put(ID_PREFIX).putInt(id).array());
+    }
+
+    private static Blob descriptorKey(Blob descriptor) {
+        byte[] key = new byte[descriptor.length() + 1];
+        key[0] = DESCRIPTOR_PREFIX;
+        descriptor.toByteBuffer().get(key, 1, descriptor.length());
+        return Blob.wrap(key);
+    }
+
+    private <T> T inTransaction(Transactional<T> command) {
+        RetryPolicy retryPolicy = new RetryOnRetryableExceptionsANumberOfTimes(MAX_RETRIES);
+        while (true) {
+            try {
+                return runTransaction(command);
+            } catch (RuntimeException e) {
+                retryPolicy.taskHasFailed(e);
+                if (!retryPolicy.shouldRetry()) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * The lock is taken before the transaction begins and released after it has been committed,
+     * so the transaction will not conflict with the other transactions which hold the same lock.
+     */
+    private <T> T inTransactionHolding(Lock lock, Transactional<T> command) {
+        acquire(lock);
+        try {
+            return inTransaction(command);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void acquire(Lock lock) {
+        try {
+            if (!lock.tryLock(ADD_LOCK_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                throw new OptimisticLockException("Timed out waiting for another transaction to add a class descriptor");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PersistenceException("Interrupted while waiting to add a class descriptor", e);
+        }
+    }
+
+    private <T> T runTransaction(Transactional<T> command) {
+        TransactionCoordinator tx = new TransactionContext();
+        try {
+            T result = command.run(dbms.openConnection(tx.getTransaction()).openTable(tableName));
+            tx.prepareAndCommit();
+            return result;
+        } catch (RuntimeException e) {
+            tx.rollback();
+            throw e;
+        }
+    }
+
+    /**
+     * How many times the table had to be read, because the entry was not yet cached in this node.
+     */
+    public long getCacheMisses() {
+        return cacheMisses.get();
+    }
+
+
+    private interface Transactional<T> {
+        T run(DatabaseTable<Blob, Blob> table);
+    }
+}
@@ -1,4 +1,4 @@
-// Copyright © 2008-2010 Esko Luontola <www.orfjackal.net>
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
 // This software is released under the Apache License 2.0.
 // The license text is at http://dimdwarf.sourceforge.net/LICENSE
 
@@ -7,11 +7,14 @@ package net.orfjackal.dimdwarf.entities;
 import net.orfjackal.dimdwarf.api.EntityId;
 
 import javax.annotation.Nonnull;
+import java.util.*;
 
 public interface EntitiesPersistedInDatabase {
 
     @Nonnull
     Object read(EntityId id) throws EntityNotFoundException;
 
+    Map<EntityId, Object> readAll(Collection<EntityId> ids) throws EntityNotFoundException;
+
     void update(EntityId id, Object entity);
 }
@@ -0,0 +1,158 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.entities;
+
+import net.orfjackal.dimdwarf.api.EntityId;
+import net.orfjackal.dimdwarf.db.Blob;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the serialized (and decompressed) form of entities between tasks. The entries are keyed by
+ * the revision in which the entity was committed, so an entry never becomes stale and there is no need
+ * to invalidate it - a newer revision of the entity simply has a different key, and the old entry will
+ * eventually be evicted as the least recently used one.
+ * <p/>
+ * Only the bytes are shared, not the deserialized entities. Every task must get its own copy of an entity,
+ * because entities are mutable and the tasks must not see each other's uncommitted changes. Also the
+ * deserialized objects belong to the task which loaded them: {@link EntitySerializationFilter#resolveDeserialized}
+ * binds their transparent references and injected members to that task. Copying a cached object graph would
+ * have to walk and rebind every object, which is most of the work of deserializing it.
+ * <p/>
+ * So the cache saves only the work which comes before deserializing: decompressing the values above
+ * {@link net.orfjackal.dimdwarf.db.ConvertBlobToCompressedBlob#DEFAULT_THRESHOLD} and copying the values from
+ * {@link net.orfjackal.dimdwarf.db.inmemory.OffHeapBlobStorage} to the heap. When the values are small and on the
+ * heap, the cached bytes are the same object which the database holds, and the cache would only add a revision
+ * lookup and LRU bookkeeping to every read. That is why {@link net.orfjackal.dimdwarf.modules.EntityModule}
+ * disables it by default.
+ */
+@ThreadSafe
+public class EntityCache {
+
+    public static final long DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+
+    private static final int SEGMENTS = 16;
+
+    private final long maxBytes;
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public EntityCache() {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param maxBytes the total size of the cached values; zero disables the cache.
+     */
+    public EntityCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment(maxBytes / SEGMENTS);
+        }
+    }
+
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    @Nullable
+    public Blob get(EntityId id, long revision) {
+        Blob value = segmentFor(id).get(new CacheKey(id, revision));
+        if (value != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return value;
+    }
+
+    public void put(EntityId id, long revision, Blob value) {
+        segmentFor(id).put(new CacheKey(id, revision), value);
+    }
+
+    private Segment segmentFor(EntityId id) {
+        int h = id.hashCode();
+        h ^= (h >>> 16);
+        return segments[h & (SEGMENTS - 1)];
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getCachedBytes() {
+        long sum = 0;
+        for (Segment segment : segments) {
+            sum += segment.getCachedBytes();
+        }
+        return sum;
+    }
+
+
+    @ThreadSafe
+    private static class Segment {
+        private final long maxBytes;
+        @GuardedBy("this") private final LinkedHashMap<CacheKey, Blob> entries = new LinkedHashMap<>(16, 0.75f, true);
+        @GuardedBy("this") private long cachedBytes = 0;
+
+        public Segment(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        public synchronized Blob get(CacheKey key) {
+            return entries.get(key);
+        }
+
+        public synchronized void put(CacheKey key, Blob value) {
+            if (value.length() > maxBytes) {
+                return;
+            }
+            Blob previous = entries.put(key, value);
+            if (previous != null) {
+                cachedBytes -= previous.length();
+            }
+            cachedBytes += value.length();
+            for (Iterator<Blob> it = entries.values().iterator(); cachedBytes > maxBytes; ) {
+                cachedBytes -= it.next().length();
+                it.remove();
+            }
+        }
+
+        public synchronized long getCachedBytes() {
+            return cachedBytes;
+        }
+    }
+
+    @Immutable
+    private static class CacheKey {
+        private final EntityId id;
+        private final long revision;
+
+        public CacheKey(EntityId id, long revision) {
+            this.id = id;
+            this.revision = revision;
+        }
+
+        public boolean equals(Object obj) {
+            if (!(obj instanceof CacheKey)) {
+                return false;
+            }
+            CacheKey other = (CacheKey) obj;
+            return id.equals(other.id) && revision == other.revision;
+        }
+
+        public int hashCode() {
+            return id.hashCode() * 31 + (int) (revision ^ (revision >>> 32));
+        }
+    }
+}
@@ -1,26 +1,31 @@
-// Copyright © 2008-2010 Esko Luontola <www.orfjackal.net>
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
 // This software is released under the Apache License 2.0.
 // The license text is at http://dimdwarf.sourceforge.net/LICENSE
 
 package net.orfjackal.dimdwarf.entities;
 
 import net.orfjackal.dimdwarf.tasks.Filter;
+import net.orfjackal.dimdwarf.tx.Transaction;
 
 import javax.annotation.concurrent.NotThreadSafe;
-import javax.inject.Inject;
+import javax.inject.*;
 
 @NotThreadSafe
 public class EntityFlushingFilter implements Filter {
 
     private final EntitiesLoadedInMemory entities;
+    private final Provider<Transaction> tx;
 
     @Inject
-    public EntityFlushingFilter(EntitiesLoadedInMemory entities) {
+    public EntityFlushingFilter(EntitiesLoadedInMemory entities, Provider<Transaction> tx) {
         this.entities = entities;
+        this.tx = tx;
     }
 
     public void filter(Runnable nextInChain) {
         nextInChain.run();
-        entities.flushToDatabase();
+        if (!tx.get().isReadOnly()) {
+            entities.flushToDatabase();
+        }
     }
 }
@@ -24,7 +24,9 @@ public class EntityManager implements AllEntities, EntitiesLoadedInMemory {
 
     private final Map<EntityObject, EntityId> entities = new IdentityHashMap<>();
     private final Map<EntityId, EntityObject> entitiesById = new HashMap<>();
+    private final Set<EntityObject> loadedFromDatabase = Collections.newSetFromMap(new IdentityHashMap<EntityObject, Boolean>());
     private final Queue<EntityObject> flushQueue = new ArrayDeque<>();
+    private int skippedOnFlush = 0;
     private State state = State.ACTIVE;
 
     @Inject
@@ -39,6 +41,11 @@ public class EntityManager implements AllEntities, EntitiesLoadedInMemory {
         return entities.size();
     }
 
+    @TestOnly
+    int getEntitiesSkippedOnFlush() {
+        return skippedOnFlush;
+    }
+
     public EntityId getEntityId(EntityObject entity) {
         checkStateIs(State.ACTIVE, State.FLUSHING);
         checkIsEntity(entity);
@@ -74,6 +81,25 @@ public class EntityManager implements AllEntities, EntitiesLoadedInMemory {
         return entity;
     }
 
+    public Map<EntityId, EntityObject> getEntitiesById(Collection<EntityId> ids) {
+        checkStateIs(State.ACTIVE);
+        Set<EntityId> notLoaded = new LinkedHashSet<>();
+        for (EntityId id : ids) {
+            if (getLoadedEntity(id) == null) {
+                notLoaded.add(id);
+            }
+        }
+        if (!notLoaded.isEmpty()) {
+            loadEntitiesFromDatabase(notLoaded);
+        }
+
+        Map<EntityId, EntityObject> result = new LinkedHashMap<>();
+        for (EntityId id : ids) {
+            result.put(id, getLoadedEntity(id));
+        }
+        return result;
+    }
+
     @Nullable
     private EntityObject getLoadedEntity(EntityId id) {
         return entitiesById.get(id);
@@ -82,9 +108,18 @@ public class EntityManager implements AllEntities, EntitiesLoadedInMemory {
     private EntityObject loadEntityFromDatabase(EntityId id) {
         EntityObject entity = (EntityObject) persistedEntities.read(id);
         register(entity, id);
+        loadedFromDatabase.add(entity);
         return entity;
     }
 
+    private void loadEntitiesFromDatabase(Collection<EntityId> ids) {
+        for (Map.Entry<EntityId, Object> e : persistedEntities.readAll(ids).entrySet()) {
+            EntityObject entity = (EntityObject) e.getValue();
+            register(entity, e.getKey());
+            loadedFromDatabase.add(entity);
+        }
+    }
+
     private void register(EntityObject entity, EntityId id) {
         if (state == State.FLUSHING) {
             flushQueue.add(entity);
@@ -112,11 +147,23 @@ public class EntityManager implements AllEntities, EntitiesLoadedInMemory {
     private void flush() {
         EntityObject entity;
         while ((entity = flushQueue.poll()) != null) {
+            if (isUnmodified(entity)) {
+                skippedOnFlush++;
+                continue;
+            }
             EntityId id = entities.get(entity);
             persistedEntities.update(id, entity);
         }
     }
 
+    private boolean isUnmodified(EntityObject entity) {
+        // An unmodified entity can not refer to any new entities, so skipping
+        // its serialization will not leave any new entities unflushed.
+        return entity instanceof TrackedEntity
+                && !((TrackedEntity) entity).isModified$ENTITY()
+                && loadedFromDatabase.contains(entity);
+    }
+
     private void endFlush() {
         checkStateIs(State.FLUSHING);
         state = State.CLOSED;
@@ -1,4 +1,4 @@
-// Copyright © 2008-2010 Esko Luontola <www.orfjackal.net>
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
 // This software is released under the Apache License 2.0.
 // The license text is at http://dimdwarf.sourceforge.net/LICENSE
 
@@ -12,18 +12,24 @@ import net.orfjackal.dimdwarf.tasks.TaskScoped;
 
 import javax.annotation.concurrent.NotThreadSafe;
 import javax.inject.*;
+import java.util.*;
 
 @TaskScoped
 @NotThreadSafe
 public class EntityRepository implements EntitiesPersistedInDatabase {
 
     private final EntityDao database;
+    private final EntityCache cache;
     private final ObjectSerializer serializer;
     private final Provider<EntitySerializationFilter> filter;
 
+    // the bytes from which the entities were loaded in this task, for detecting whether they have been modified
+    private final Map<EntityId, Blob> loadedBytes = new HashMap<>();
+
     @Inject
-    public EntityRepository(EntityDao database, ObjectSerializer serializer, Provider<EntitySerializationFilter> filter) {
+    public EntityRepository(EntityDao database, EntityCache cache, ObjectSerializer serializer, Provider<EntitySerializationFilter> filter) {
         this.database = database;
+        this.cache = cache;
         this.serializer = serializer;
         this.filter = filter;
     }
@@ -33,23 +39,97 @@ public class EntityRepository implements EntitiesPersistedInDatabase {
     }
 
     public Object read(EntityId id) {
+        Blob bytes = readBytes(id);
+        Object entity = deserialize(id, bytes, filter.get());
+        loadedBytes.put(id, bytes);
+        return entity;
+    }
+
+    public Map<EntityId, Object> readAll(Collection<EntityId> ids) {
+        Map<EntityId, Blob> bytes = new LinkedHashMap<>();
+        Map<EntityId, Long> missing = new HashMap<>();
+        for (EntityId id : ids) {
+            long revision = committedRevision(id);
+            Blob cached = revision > 0 ? cache.get(id, revision) : null;
+            bytes.put(id, cached);
+            if (cached == null) {
+                missing.put(id, revision);
+            }
+        }
+        if (!missing.isEmpty()) {
+            for (Map.Entry<EntityId, Blob> e : database.readAll(missing.keySet()).entrySet()) {
+                bytes.put(e.getKey(), e.getValue());
+                cacheCommitted(e.getKey(), missing.get(e.getKey()), e.getValue());
+            }
+        }
+
+        EntitySerializationFilter filter = this.filter.get();
+        Map<EntityId, Object> entities = new LinkedHashMap<>();
+        for (Map.Entry<EntityId, Blob> e : bytes.entrySet()) {
+            entities.put(e.getKey(), deserialize(e.getKey(), e.getValue(), filter));
+        }
+        loadedBytes.putAll(bytes);
+        return entities;
+    }
+
+    private Blob readBytes(EntityId id) {
+        long revision = committedRevision(id);
+        if (revision > 0) {
+            Blob cached = cache.get(id, revision);
+            if (cached != null) {
+                return cached;
+            }
+        }
         Blob bytes = database.read(id);
+        cacheCommitted(id, revision, bytes);
+        return bytes;
+    }
+
+    private long committedRevision(EntityId id) {
+        // when the cache is disabled, there is no need to look up the revisions
+        return cache.isEnabled() ? database.getRevision(id) : 0;
+    }
+
+    private void cacheCommitted(EntityId id, long revision, Blob bytes) {
+        // only committed values are shared with other tasks; modifications of this task have a negative revision
+        if (revision > 0 && !bytes.equals(Blob.EMPTY_BLOB)) {
+            cache.put(id, revision, bytes);
+        }
+    }
+
+    private Object deserialize(EntityId id, Blob bytes, EntitySerializationFilter filter) {
         if (bytes.equals(Blob.EMPTY_BLOB)) {
             throw new EntityNotFoundException("id=" + id);
         }
-        return serializer.deserialize(bytes, filter.get());
+        return serializer.deserialize(bytes, filter);
     }
 
     public void update(EntityId id, Object entity) {
-        Blob newData = serializer.serialize(entity, filter.get());
-        if (hasBeenModified(id, newData)) {
+        EntitySerializationFilter filter = this.filter.get();
+        Blob newData = serializer.serialize(entity, filter);
+        if (hasBeenModified(id, newData, filter)) {
             database.update(id, newData);
+            loadedBytes.put(id, newData);
         }
     }
 
-    private boolean hasBeenModified(EntityId id, Blob newData) {
-        // TODO: Compare with bytes from reserializing the original bytes, and not with the original bytes. See http://www.projectdarkstar.com/forum/?topic=1328.msg9107#msg9107
-        Blob oldData = database.read(id);
-        return !oldData.equals(newData);
+    private boolean hasBeenModified(EntityId id, Blob newData, EntitySerializationFilter filter) {
+        Blob oldData = loadedBytes.get(id);
+        if (oldData == null) {
+            // not loaded in this task, for example a new entity
+            oldData = readBytes(id);
+        }
+        if (oldData.equals(newData)) {
+            return false;
+        }
+        if (oldData.equals(Blob.EMPTY_BLOB)) {
+            return true;
+        }
+        // The serialized form is not always byte-for-byte stable (e.g. if the entity was written by an older
+        // version of its class), so before writing compare against the original bytes reserialized.
+        // This is needed only when the bytes differ, so unmodified entities don't pay for it.
+        Blob canonical = serializer.serialize(serializer.deserialize(oldData, filter), filter);
+        loadedBytes.put(id, canonical);
+        return !canonical.equals(newData);
     }
 }
@@ -0,0 +1,81 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.entities;
+
+import net.orfjackal.dimdwarf.db.*;
+import net.orfjackal.dimdwarf.entities.dao.CountersTable;
+import net.orfjackal.dimdwarf.tasks.TaskScoped;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import javax.inject.Inject;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Counters which many tasks may modify at the same time, such as scores and player counts, without
+ * the {@link OptimisticLockException}s which updating a counter entity would cause.
+ * <p/>
+ * The additions are merged into the counter when the task commits (see {@link AddLongs}), so they do not
+ * conflict. Every counter is also split into shards, which are stored under separate keys, so that the
+ * tasks which add to the same counter do not all have to wait for the commit lock of the same key.
+ * Reading a counter sums its shards, so it is more expensive than adding to it.
+ */
+@TaskScoped
+@NotThreadSafe
+public class ShardedCounters {
+
+    public static final int DEFAULT_SHARDS = 16;
+    private static final int MAX_SHARDS = 256;
+
+    private final MergeableDatabaseTable<Blob, Blob> counters;
+    private final int shards;
+
+    @Inject
+    public ShardedCounters(@CountersTable MergeableDatabaseTable<Blob, Blob> counters) {
+        this(counters, DEFAULT_SHARDS);
+    }
+
+    public ShardedCounters(MergeableDatabaseTable<Blob, Blob> counters, int shards) {
+        if (shards < 1 || shards > MAX_SHARDS) {
+            throw new IllegalArgumentException("Shards must be between 1 and " + MAX_SHARDS + ", but was " + shards);
+        }
+        this.counters = counters;
+        this.shards = shards;
+    }
+
+    public void increment(String counter) {
+        add(counter, 1);
+    }
+
+    public void add(String counter, long delta) {
+        // the same worker thread always uses the same shard, so that its additions can be combined
+        int shard = (int) (Thread.currentThread().getId() % shards);
+        counters.merge(shardKey(counter, shard), AddLongs.toBlob(delta), AddLongs.INSTANCE);
+    }
+
+    public long get(String counter) {
+        long sum = 0;
+        for (Iterator<Map.Entry<Blob, Blob>> it = counters.scanPrefix(prefix(counter)); it.hasNext(); ) {
+            sum += AddLongs.toLong(it.next().getValue());
+        }
+        return sum;
+    }
+
+    private static Blob shardKey(String counter, int shard) {
+        byte[] name = counter.getBytes(StandardCharsets.UTF_8);
+        byte[] key = Arrays.copyOf(name, name.length + 2);
+        key[name.length + 1] = (byte) shard;
+        return Blob.wrap(key);
+    }
+
+    /**
+     * The name is terminated with a zero byte, so that the shards of one counter are not mistaken
+     * for the shards of another counter whose name starts with the same characters.
+     */
+    private static Blob prefix(String counter) {
+        byte[] name = counter.getBytes(StandardCharsets.UTF_8);
+        return Blob.wrap(Arrays.copyOf(name, name.length + 1));
+    }
+}
@@ -14,7 +14,7 @@ public class BindingDao
         implements DatabaseTable<String, EntityId> {
 
     @Inject
-    public BindingDao(@BindingsTable DatabaseTable<Blob, Blob> parent,
+    public BindingDao(@BindingsTable MergeableDatabaseTable<Blob, Blob> parent,
                       ConvertStringToBytes keys,
                       ConvertEntityIdToBytes values) {
         super(parent, keys, values);
@@ -1,27 +1,59 @@
-// Copyright © 2008-2010 Esko Luontola <www.orfjackal.net>
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
 // This software is released under the Apache License 2.0.
 // The license text is at http://dimdwarf.sourceforge.net/LICENSE
 
 package net.orfjackal.dimdwarf.entities.dao;
 
 import net.orfjackal.dimdwarf.api.EntityId;
+import net.orfjackal.dimdwarf.api.internal.EntityObjectId;
 import net.orfjackal.dimdwarf.db.*;
 
 import javax.annotation.Nullable;
 
+/**
+ * Stores an entity ID as a fixed-width 8-byte big-endian number. The IDs are never negative, so the keys
+ * are in the same order in the database as the IDs are numerically.
+ */
 public class ConvertEntityIdToBytes implements Converter<EntityId, Blob> {
 
-    // TODO: get rid of the conversion to BigInteger, convert EntityId straight to bytes
-    private final ConvertEntityIdToBigInteger keys1 = new ConvertEntityIdToBigInteger();
-    private final ConvertBigIntegerToBytes keys2 = new ConvertBigIntegerToBytes();
+    private static final int ID_LENGTH = 8;
 
     @Nullable
     public EntityId back(@Nullable Blob value) {
-        return keys1.back(keys2.back(value));
+        if (value == null || value.length() == 0) {
+            return null;
+        }
+        if (value.length() != ID_LENGTH) {
+            throw new IllegalArgumentException("Not an entity ID: " + value);
+        }
+        long id = 0;
+        for (int i = 0; i < ID_LENGTH; i++) {
+            id = (id << 8) | (value.byteAt(i) & 0xFF);
+        }
+        return new EntityObjectId(id);
     }
 
     @Nullable
     public Blob forth(@Nullable EntityId value) {
-        return keys2.forth(keys1.forth(value));
+        if (value == null) {
+            return null;
+        }
+        long id = toLong(value);
+        if (id < 0) {
+            throw new IllegalArgumentException("Negative values are not allowed: " + value);
+        }
+        byte[] bytes = new byte[ID_LENGTH];
+        for (int i = ID_LENGTH - 1; i >= 0; i--) {
+            bytes[i] = (byte) id;
+            id >>>= 8;
+        }
+        return Blob.wrap(bytes);
+    }
+
+    private static long toLong(EntityId id) {
+        if (id instanceof EntityObjectId) {
+            return ((EntityObjectId) id).toLong();
+        }
+        return id.toBigInteger().longValue();
     }
 }
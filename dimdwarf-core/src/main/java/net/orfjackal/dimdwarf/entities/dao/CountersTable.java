@@ -0,0 +1,13 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.entities.dao;
+
+import javax.inject.Qualifier;
+import java.lang.annotation.*;
+
+@Retention(RetentionPolicy.RUNTIME)
+@Qualifier
+public @interface CountersTable {
+}
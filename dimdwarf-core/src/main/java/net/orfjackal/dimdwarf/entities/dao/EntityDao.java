@@ -1,4 +1,4 @@
-// Copyright © 2008-2010 Esko Luontola <www.orfjackal.net>
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
 // This software is released under the Apache License 2.0.
 // The license text is at http://dimdwarf.sourceforge.net/LICENSE
 
@@ -14,9 +14,9 @@ public class EntityDao
         implements DatabaseTable<EntityId, Blob> {
 
     @Inject
-    public EntityDao(@EntitiesTable DatabaseTable<Blob, Blob> parent,
+    public EntityDao(@EntitiesTable MergeableDatabaseTable<Blob, Blob> parent,
                      ConvertEntityIdToBytes keys,
-                     NoConversion<Blob> values) {
+                     @EntitiesTable ConvertBlobToCompressedBlob values) {
         super(parent, keys, values);
     }
 }
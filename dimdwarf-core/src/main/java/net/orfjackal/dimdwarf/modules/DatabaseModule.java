@@ -1,4 +1,4 @@
-// Copyright © 2008-2010 Esko Luontola <www.orfjackal.net>
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
 // This software is released under the Apache License 2.0.
 // The license text is at http://dimdwarf.sourceforge.net/LICENSE
 
@@ -6,13 +6,80 @@ package net.orfjackal.dimdwarf.modules;
 
 import com.google.inject.*;
 import net.orfjackal.dimdwarf.db.*;
-import net.orfjackal.dimdwarf.db.inmemory.InMemoryDatabaseManager;
+import net.orfjackal.dimdwarf.db.common.ContentionManager;
+import net.orfjackal.dimdwarf.db.durable.*;
+import net.orfjackal.dimdwarf.db.inmemory.*;
 import net.orfjackal.dimdwarf.tx.Transaction;
 
+import javax.annotation.Nullable;
+import java.io.File;
+import java.util.Collections;
+
 public class DatabaseModule extends AbstractModule {
 
+    @Nullable private final File databaseDir;
+    private final long purgeIntervalMillis;
+    private final long purgeTimeSliceMillis;
+    private final BlobStorage valueStorage;
+
+    /**
+     * Uses an in-memory database, which loses its data when the server is stopped.
+     */
+    public DatabaseModule() {
+        this(null);
+    }
+
+    /**
+     * Uses a durable database, which writes its transaction log to the specified directory.
+     */
+    public DatabaseModule(@Nullable File databaseDir) {
+        this(databaseDir, RevisionPurger.DEFAULT_INTERVAL_MILLIS, RevisionPurger.DEFAULT_TIME_SLICE_MILLIS);
+    }
+
+    /**
+     * @param purgeIntervalMillis  see {@link RevisionPurger#RevisionPurger(InMemoryDatabase, long, long)}
+     * @param purgeTimeSliceMillis see {@link RevisionPurger#RevisionPurger(InMemoryDatabase, long, long)}
+     */
+    public DatabaseModule(@Nullable File databaseDir, long purgeIntervalMillis, long purgeTimeSliceMillis) {
+        this(databaseDir, purgeIntervalMillis, purgeTimeSliceMillis, new HeapBlobStorage());
+    }
+
+    /**
+     * @param valueStorage where the database keeps its values in memory. Use {@link OffHeapBlobStorage}
+     *                     for big databases, to keep them out of the Java heap.
+     */
+    public DatabaseModule(@Nullable File databaseDir, long purgeIntervalMillis, long purgeTimeSliceMillis, BlobStorage valueStorage) {
+        this.databaseDir = databaseDir;
+        this.purgeIntervalMillis = purgeIntervalMillis;
+        this.purgeTimeSliceMillis = purgeTimeSliceMillis;
+        this.valueStorage = valueStorage;
+    }
+
     protected void configure() {
-        bind(DatabaseManager.class).to(InMemoryDatabaseManager.class);
+        if (databaseDir == null) {
+            bind(DatabaseManager.class).to(InMemoryDatabaseManager.class);
+        } else {
+            bind(File.class).annotatedWith(DatabaseDirectory.class).toInstance(databaseDir);
+            bind(DatabaseManager.class).to(DurableDatabaseManager.class);
+        }
+    }
+
+    @Provides
+    @Singleton
+    InMemoryDatabase inMemoryDatabase() {
+        return new InMemoryDatabase(valueStorage, InMemoryDatabase.DEFAULT_COMMIT_LOCK_TIMEOUT_MILLIS,
+                Collections.singleton(EntityModule.BINDINGS_TABLE));
+    }
+
+    @Provides
+    ContentionManager contentionManager(InMemoryDatabase db) {
+        return db.getContentionManager();
+    }
+
+    @Provides
+    @Singleton
+    RevisionPurger revisionPurger(InMemoryDatabase db) {
+        return new RevisionPurger(db, purgeIntervalMillis, purgeTimeSliceMillis);
     }
 
     @Provides
@@ -20,15 +87,15 @@ public class DatabaseModule extends AbstractModule {
         return dbms.openConnection(tx);
     }
 
-    public static TypeLiteral<DatabaseTable<Blob, Blob>> databaseTableConnection() {
-        return new TypeLiteral<DatabaseTable<Blob, Blob>>() {};
+    public static TypeLiteral<MergeableDatabaseTable<Blob, Blob>> databaseTableConnection() {
+        return new TypeLiteral<MergeableDatabaseTable<Blob, Blob>>() {};
     }
 
-    public static Provider<DatabaseTable<Blob, Blob>> databaseTable(final String name) {
-        return new Provider<DatabaseTable<Blob, Blob>>() {
+    public static Provider<MergeableDatabaseTable<Blob, Blob>> databaseTable(final String name) {
+        return new Provider<MergeableDatabaseTable<Blob, Blob>>() {
             @Inject public Provider<Database<Blob, Blob>> db;
 
-            public DatabaseTable<Blob, Blob> get() {
+            public MergeableDatabaseTable<Blob, Blob> get() {
                 return db.get().openTable(name);
             }
         };
@@ -1,20 +1,47 @@
-// Copyright © 2008-2010 Esko Luontola <www.orfjackal.net>
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
 // This software is released under the Apache License 2.0.
 // The license text is at http://dimdwarf.sourceforge.net/LICENSE
 
 package net.orfjackal.dimdwarf.modules;
 
-import com.google.inject.AbstractModule;
-import net.orfjackal.dimdwarf.api.EntityInfo;
+import com.google.inject.*;
+import net.orfjackal.dimdwarf.api.*;
 import net.orfjackal.dimdwarf.api.internal.*;
+import net.orfjackal.dimdwarf.db.*;
 import net.orfjackal.dimdwarf.entities.*;
 import net.orfjackal.dimdwarf.entities.dao.*;
 import net.orfjackal.dimdwarf.entities.tref.*;
+import net.orfjackal.dimdwarf.serial.*;
+import net.orfjackal.dimdwarf.tx.*;
 
 import static net.orfjackal.dimdwarf.modules.DatabaseModule.*;
 
 public class EntityModule extends AbstractModule {
 
+    public static final String ENTITIES_TABLE = "entities";
+    public static final String BINDINGS_TABLE = "bindings";
+    public static final String COUNTERS_TABLE = "counters";
+    public static final String CLASSES_TABLE = "classes";
+
+    private final long entityCacheMaxBytes;
+
+    /**
+     * Does not cache the entities between tasks.
+     */
+    public EntityModule() {
+        this(0);
+    }
+
+    /**
+     * Enabling the cache pays off when many entities are big enough to be compressed or when the values are kept
+     * off-heap, see {@link EntityCache}.
+     *
+     * @param entityCacheMaxBytes see {@link EntityCache#EntityCache(long)}; zero disables the cache.
+     */
+    public EntityModule(long entityCacheMaxBytes) {
+        this.entityCacheMaxBytes = entityCacheMaxBytes;
+    }
+
     protected void configure() {
         bind(EntityApi.class).to(DimdwarfEntityApi.class);
 
@@ -24,16 +51,45 @@ public class EntityModule extends AbstractModule {
         bind(EntityReferenceFactory.class).to(EntityReferenceFactoryImpl.class);
         bind(EntityInfo.class).to(TrefAwareEntityInfo.class);
         bind(EntitySerializationFilter.class).to(TrefAwareEntitySerializationFilter.class);
+        bind(ObjectSerializer.class).to(GeneratedObjectSerializer.class);
 
-        bind(Long.class)
-                .annotatedWith(MaxEntityId.class)
-                .toInstance(0L); // TODO: import from database
-
+        bind(EntityCache.class).toInstance(new EntityCache(entityCacheMaxBytes));
+        bind(ConvertBlobToCompressedBlob.class)
+                .annotatedWith(EntitiesTable.class)
+                .toInstance(new ConvertBlobToCompressedBlob());
         bind(databaseTableConnection())
                 .annotatedWith(EntitiesTable.class)
-                .toProvider(databaseTable("entities"));
+                .toProvider(databaseTable(ENTITIES_TABLE));
         bind(databaseTableConnection())
                 .annotatedWith(BindingsTable.class)
-                .toProvider(databaseTable("bindings"));
+                .toProvider(databaseTable(BINDINGS_TABLE));
+        bind(databaseTableConnection())
+                .annotatedWith(CountersTable.class)
+                .toProvider(databaseTable(COUNTERS_TABLE));
+    }
+
+    @Provides
+    @Singleton
+    ClassDictionary classDictionary(DatabaseManager dbms) {
+        return new DatabaseClassDictionary(dbms, CLASSES_TABLE);
+    }
+
+    /**
+     * The entity IDs are stored so that they are ordered by their numeric value, so the largest ID
+     * which is in use is the last key of the entities table.
+     */
+    @Provides
+    @Singleton
+    @MaxEntityId
+    Long maxEntityId(DatabaseManager dbms, @EntitiesTable ConvertBlobToCompressedBlob values) {
+        TransactionCoordinator tx = new TransactionContext();
+        try {
+            MergeableDatabaseTable<Blob, Blob> table = dbms.openConnection(tx.getTransaction()).openTable(ENTITIES_TABLE);
+            EntityDao entities = new EntityDao(table, new ConvertEntityIdToBytes(), values);
+            EntityId largest = entities.lastKey();
+            return largest != null ? largest.toBigInteger().longValue() : 0L;
+        } finally {
+            tx.prepareAndCommit();
+        }
     }
 }
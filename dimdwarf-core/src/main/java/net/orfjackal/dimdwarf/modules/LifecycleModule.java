@@ -1,12 +1,14 @@
-// Copyright © 2008-2010 Esko Luontola <www.orfjackal.net>
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
 // This software is released under the Apache License 2.0.
 // The license text is at http://dimdwarf.sourceforge.net/LICENSE
 
 package net.orfjackal.dimdwarf.modules;
 
 import com.google.inject.*;
+import net.orfjackal.dimdwarf.db.inmemory.RevisionPurger;
 import net.orfjackal.dimdwarf.events.SystemLifecycleListener;
 import net.orfjackal.dimdwarf.scheduler.TaskSchedulingLifecycleManager;
+import net.orfjackal.dimdwarf.tasks.CommitPipeline;
 
 public class LifecycleModule extends AbstractModule {
 
@@ -14,7 +16,8 @@ public class LifecycleModule extends AbstractModule {
     }
 
     @Provides
-    SystemLifecycleListener[] lifecycleListeners(TaskSchedulingLifecycleManager listener1) {
-        return new SystemLifecycleListener[]{listener1};
+    SystemLifecycleListener[] lifecycleListeners(TaskSchedulingLifecycleManager listener1, RevisionPurger listener2,
+                                                 CommitPipeline listener3) {
+        return new SystemLifecycleListener[]{listener1, listener2, listener3};
     }
 }
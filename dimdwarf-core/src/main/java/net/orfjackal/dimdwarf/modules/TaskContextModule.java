@@ -1,4 +1,4 @@
-// Copyright © 2008-2010 Esko Luontola <www.orfjackal.net>
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
 // This software is released under the Apache License 2.0.
 // The license text is at http://dimdwarf.sourceforge.net/LICENSE
 
@@ -28,8 +28,8 @@ public class TaskContextModule extends AbstractModule {
 
         bind(Executor.class).annotatedWith(PlainTaskContext.class).to(TaskExecutor.class);
         bind(Executor.class).annotatedWith(RetryingTaskContext.class).to(RetryingTaskExecutor.class);
-        bind(Executor.class).annotatedWith(SingleThreadFallbackTaskContext.class).to(SingleThreadFallbackTaskExecutor.class);
-        bind(Executor.class).annotatedWith(Task.class).to(Key.get(Executor.class, SingleThreadFallbackTaskContext.class));
+        bind(Executor.class).annotatedWith(HotKeySerializingTaskContext.class).to(HotKeySerializingTaskExecutor.class);
+        bind(Executor.class).annotatedWith(Task.class).to(Key.get(Executor.class, HotKeySerializingTaskContext.class));
     }
 
     @Provides
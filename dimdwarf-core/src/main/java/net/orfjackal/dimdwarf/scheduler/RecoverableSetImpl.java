@@ -60,8 +60,8 @@ public class RecoverableSetImpl<T> implements RecoverableSet<T> {
 
     public Collection<T> getAll() {
         List<T> result = new ArrayList<>();
-        for (String key : new BindingWalker(prefix, bindings.get())) {
-            Object value = get(key);
+        for (Iterator<Map.Entry<String, Object>> it = bindings.get().scanPrefix(prefix); it.hasNext(); ) {
+            Object value = it.next().getValue();
             if (value != null) {
                 result.add(Objects.<T>uncheckedCast(value));
             }
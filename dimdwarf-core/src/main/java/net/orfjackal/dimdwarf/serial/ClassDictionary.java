@@ -0,0 +1,28 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.serial;
+
+import net.orfjackal.dimdwarf.db.Blob;
+
+import javax.annotation.Nullable;
+
+/**
+ * Gives the class descriptors compact ids, so that {@link GeneratedObjectSerializer} can write
+ * an id instead of the whole descriptor into every serialized object graph. A descriptor, once
+ * it has an id, must keep the same id for as long as there are serialized objects which use it.
+ */
+public interface ClassDictionary {
+
+    /**
+     * Returns the id of the descriptor, giving it a new id if it does not already have one.
+     */
+    int idOf(Blob descriptor);
+
+    /**
+     * Returns the descriptor which has the id, or null if no descriptor has it.
+     */
+    @Nullable
+    Blob descriptorOf(int id);
+}
@@ -0,0 +1,203 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.serial;
+
+import net.orfjackal.dimdwarf.db.Blob;
+import org.objectweb.asm.Type;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import java.io.*;
+import java.lang.reflect.*;
+import java.util.*;
+
+/**
+ * The serializable fields of a class, in the order in which {@link GeneratedObjectSerializer} writes them.
+ * Classes whose serialization can not be expressed as a list of fields (for example classes with
+ * a {@code writeObject} method) are not supported, and their instances are serialized with Java serialization.
+ */
+@Immutable
+class ClassLayout {
+
+    final Class<?> type;
+    final boolean supported;
+    final Field[] fields;
+    final String[] fieldNames;
+    final String[] fieldDescs;
+    final long[] fieldOffsets;
+    @Nullable final Blob descriptor;
+    @Nullable final Method writeReplace;
+    @Nullable final Method readResolve;
+    @Nullable private final FieldSerializer serializer;
+
+    private ClassLayout(Class<?> type, List<Field> fields, @Nullable FieldSerializerGenerator generator) {
+        this.type = type;
+        this.supported = generator != null;
+        this.fields = fields.toArray(new Field[fields.size()]);
+        this.fieldNames = new String[this.fields.length];
+        this.fieldDescs = new String[this.fields.length];
+        this.fieldOffsets = new long[this.fields.length];
+        for (int i = 0; i < this.fields.length; i++) {
+            Field field = this.fields[i];
+            fieldNames[i] = field.getName();
+            fieldDescs[i] = Type.getDescriptor(field.getType());
+            fieldOffsets[i] = FieldSerializer.UNSAFE.objectFieldOffset(field);
+        }
+        this.descriptor = supported ? ObjectGraphOutput.encodeClassDescriptor(this) : null;
+        this.writeReplace = findInheritableMethod(type, "writeReplace");
+        this.readResolve = findInheritableMethod(type, "readResolve");
+        this.serializer = supported ? generator.generate(this) : null;
+    }
+
+    public static ClassLayout of(Class<?> type, FieldSerializerGenerator generator) {
+        List<Field> fields = new ArrayList<>();
+        if (isSupported(type, fields)) {
+            return new ClassLayout(type, fields, generator);
+        }
+        return new ClassLayout(type, Collections.<Field>emptyList(), null);
+    }
+
+    public FieldSerializer getSerializer() {
+        assert serializer != null : "not supported: " + type;
+        return serializer;
+    }
+
+    public int indexOf(String fieldName, String fieldDesc) {
+        for (int i = 0; i < fields.length; i++) {
+            if (fieldNames[i].equals(fieldName) && fieldDescs[i].equals(fieldDesc)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public boolean hasFields(String[] names, String[] descs) {
+        return Arrays.equals(fieldNames, names) && Arrays.equals(fieldDescs, descs);
+    }
+
+    public Object newInstance() {
+        try {
+            // the constructor of the first non-serializable superclass is Object's, so there is nothing to call
+            return FieldSerializer.UNSAFE.allocateInstance(type);
+        } catch (InstantiationException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+
+    private static boolean isSupported(Class<?> type, List<Field> fieldsResult) {
+        if (!Serializable.class.isAssignableFrom(type)
+                || Externalizable.class.isAssignableFrom(type)
+                || type.isArray()
+                || type.isEnum()
+                || Proxy.isProxyClass(type)) {
+            return false;
+        }
+        Deque<Class<?>> hierarchy = new ArrayDeque<>();
+        Class<?> c = type;
+        for (; Serializable.class.isAssignableFrom(c); c = c.getSuperclass()) {
+            if (hasCustomSerialization(c)) {
+                return false;
+            }
+            hierarchy.addFirst(c);
+        }
+        if (c != Object.class) {
+            return false;
+        }
+        Set<String> names = new HashSet<>();
+        for (Class<?> declaring : hierarchy) {
+            for (Field field : sortedByName(declaring.getDeclaredFields())) {
+                if ((field.getModifiers() & (Modifier.STATIC | Modifier.TRANSIENT)) != 0) {
+                    continue;
+                }
+                if (!names.add(field.getName())) {
+                    return false; // shadowed fields
+                }
+                fieldsResult.add(field);
+            }
+        }
+        return true;
+    }
+
+    private static boolean hasCustomSerialization(Class<?> c) {
+        for (Method m : c.getDeclaredMethods()) {
+            String name = m.getName();
+            if (name.equals("writeObject") || name.equals("readObject") || name.equals("readObjectNoData")) {
+                return true;
+            }
+        }
+        try {
+            c.getDeclaredField("serialPersistentFields");
+            return true;
+        } catch (NoSuchFieldException e) {
+            return false;
+        }
+    }
+
+    private static List<Field> sortedByName(Field[] fields) {
+        List<Field> sorted = new ArrayList<>(Arrays.asList(fields));
+        Collections.sort(sorted, new Comparator<Field>() {
+            public int compare(Field f1, Field f2) {
+                return f1.getName().compareTo(f2.getName());
+            }
+        });
+        return sorted;
+    }
+
+    /**
+     * Looks up {@code writeReplace} and {@code readResolve} the same way as Java serialization.
+     */
+    @Nullable
+    private static Method findInheritableMethod(Class<?> type, String name) {
+        for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+            Method m;
+            try {
+                m = c.getDeclaredMethod(name);
+            } catch (NoSuchMethodException e) {
+                continue;
+            }
+            int mods = m.getModifiers();
+            if (m.getReturnType() != Object.class || Modifier.isStatic(mods) || Modifier.isAbstract(mods)) {
+                return null;
+            }
+            boolean accessible = Modifier.isPublic(mods) || Modifier.isProtected(mods)
+                    || (Modifier.isPrivate(mods) ? c == type : samePackage(c, type));
+            if (!accessible) {
+                return null;
+            }
+            m.setAccessible(true);
+            return m;
+        }
+        return null;
+    }
+
+    static Object invoke(Method method, Object target) {
+        try {
+            return method.invoke(target);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    private static boolean samePackage(Class<?> c1, Class<?> c2) {
+        return c1.getClassLoader() == c2.getClassLoader()
+                && packageOf(c1).equals(packageOf(c2));
+    }
+
+    private static String packageOf(Class<?> c) {
+        String name = c.getName();
+        int i = name.lastIndexOf('.');
+        return i < 0 ? "" : name.substring(0, i);
+    }
+}
@@ -0,0 +1,45 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.serial;
+
+import sun.misc.Unsafe;
+
+import javax.annotation.concurrent.Immutable;
+import java.io.IOException;
+import java.lang.reflect.Field;
+
+/**
+ * Reads and writes the serializable fields of one class. The subclasses are generated at runtime
+ * by {@link FieldSerializerGenerator}, and they access the fields directly by their memory offsets,
+ * so that also private fields can be accessed without reflection.
+ */
+@Immutable
+public abstract class FieldSerializer {
+
+    protected static final Unsafe UNSAFE = getUnsafe();
+
+    /**
+     * The declared types of the fields, for checking the types of the deserialized field values.
+     */
+    protected final Class<?>[] fieldTypes;
+
+    protected FieldSerializer(Class<?>[] fieldTypes) {
+        this.fieldTypes = fieldTypes;
+    }
+
+    public abstract void writeFields(Object obj, ObjectGraphOutput out) throws IOException;
+
+    public abstract void readFields(Object obj, ObjectGraphInput in) throws IOException;
+
+    private static Unsafe getUnsafe() {
+        try {
+            Field f = Unsafe.class.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            return (Unsafe) f.get(null);
+        } catch (Exception e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.serial;
+
+import org.objectweb.asm.*;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Generates a {@link FieldSerializer} for a class. The generated code for an {@code int} field is equivalent to
+ * <pre><code>
+ * out.writeInt(UNSAFE.getInt(obj, OFFSET));
+ * UNSAFE.putInt(obj, OFFSET, in.readInt());
+ * </code></pre>
+ * where {@code OFFSET} is a constant, so there is no reflection or boxing when the fields are accessed.
+ */
+@ThreadSafe
+class FieldSerializerGenerator {
+
+    private static final String SUPER_CLASS = Type.getInternalName(FieldSerializer.class);
+    private static final String OUTPUT = Type.getInternalName(ObjectGraphOutput.class);
+    private static final String INPUT = Type.getInternalName(ObjectGraphInput.class);
+    private static final String UNSAFE = "sun/misc/Unsafe";
+    private static final String UNSAFE_DESC = "L" + UNSAFE + ";";
+    private static final String CLASS_ARRAY_DESC = "[Ljava/lang/Class;";
+
+    private final GeneratedClassLoader loader = new GeneratedClassLoader(FieldSerializer.class.getClassLoader());
+    private final AtomicInteger generatedClasses = new AtomicInteger();
+
+    public FieldSerializer generate(ClassLayout layout) {
+        String className = SUPER_CLASS + "$" + generatedClasses.incrementAndGet() + "$" + layout.type.getSimpleName();
+        byte[] bytecode = generateClass(className, layout);
+        Class<?> generated = loader.define(className.replace('/', '.'), bytecode);
+        Class<?>[] fieldTypes = new Class<?>[layout.fields.length];
+        for (int i = 0; i < fieldTypes.length; i++) {
+            fieldTypes[i] = layout.fields[i].getType();
+        }
+        try {
+            return (FieldSerializer) generated.getConstructor(Class[].class).newInstance((Object) fieldTypes);
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to generate a serializer for " + layout.type, e);
+        }
+    }
+
+    public int getGeneratedClasses() {
+        return generatedClasses.get();
+    }
+
+    private static byte[] generateClass(String className, ClassLayout layout) {
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(V1_5, ACC_PUBLIC | ACC_FINAL | ACC_SUPER | ACC_SYNTHETIC, className, null, SUPER_CLASS, null);
+        generateConstructor(cw);
+        generateWriteFields(cw, layout);
+        generateReadFields(cw, layout);
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    private static void generateConstructor(ClassWriter cw) {
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "<init>", "(" + CLASS_ARRAY_DESC + ")V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitVarInsn(ALOAD, 1);
+        mv.visitMethodInsn(INVOKESPECIAL, SUPER_CLASS, "<init>", "(" + CLASS_ARRAY_DESC + ")V");
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    private static void generateWriteFields(ClassWriter cw, ClassLayout layout) {
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "writeFields", "(Ljava/lang/Object;L" + OUTPUT + ";)V",
+                null, new String[]{"java/io/IOException"});
+        mv.visitCode();
+        for (int i = 0; i < layout.fields.length; i++) {
+            FieldKind kind = FieldKind.of(layout.fieldDescs[i]);
+            mv.visitVarInsn(ALOAD, 2);
+            mv.visitFieldInsn(GETSTATIC, SUPER_CLASS, "UNSAFE", UNSAFE_DESC);
+            mv.visitVarInsn(ALOAD, 1);
+            mv.visitLdcInsn(layout.fieldOffsets[i]);
+            mv.visitMethodInsn(INVOKEVIRTUAL, UNSAFE, "get" + kind.name, "(Ljava/lang/Object;J)" + kind.desc);
+            mv.visitMethodInsn(INVOKEVIRTUAL, OUTPUT, "write" + kind.name, "(" + kind.desc + ")V");
+        }
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    private static void generateReadFields(ClassWriter cw, ClassLayout layout) {
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "readFields", "(Ljava/lang/Object;L" + INPUT + ";)V",
+                null, new String[]{"java/io/IOException"});
+        mv.visitCode();
+        for (int i = 0; i < layout.fields.length; i++) {
+            FieldKind kind = FieldKind.of(layout.fieldDescs[i]);
+            mv.visitFieldInsn(GETSTATIC, SUPER_CLASS, "UNSAFE", UNSAFE_DESC);
+            mv.visitVarInsn(ALOAD, 1);
+            mv.visitLdcInsn(layout.fieldOffsets[i]);
+            mv.visitVarInsn(ALOAD, 2);
+            if (kind == FieldKind.OBJECT) {
+                mv.visitVarInsn(ALOAD, 0);
+                mv.visitFieldInsn(GETFIELD, SUPER_CLASS, "fieldTypes", CLASS_ARRAY_DESC);
+                mv.visitLdcInsn(i);
+                mv.visitInsn(AALOAD);
+                mv.visitMethodInsn(INVOKEVIRTUAL, INPUT, "readObject", "(Ljava/lang/Class;)Ljava/lang/Object;");
+            } else {
+                mv.visitMethodInsn(INVOKEVIRTUAL, INPUT, "read" + kind.name, "()" + kind.desc);
+            }
+            mv.visitMethodInsn(INVOKEVIRTUAL, UNSAFE, "put" + kind.name, "(Ljava/lang/Object;J" + kind.desc + ")V");
+        }
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+
+    /**
+     * The methods of {@link sun.misc.Unsafe}, {@link ObjectGraphOutput} and {@link ObjectGraphInput}
+     * are named after the kind of the field.
+     */
+    enum FieldKind {
+        BOOLEAN("Boolean", "Z"),
+        BYTE("Byte", "B"),
+        CHAR("Char", "C"),
+        SHORT("Short", "S"),
+        INT("Int", "I"),
+        LONG("Long", "J"),
+        FLOAT("Float", "F"),
+        DOUBLE("Double", "D"),
+        OBJECT("Object", "Ljava/lang/Object;");
+
+        private final String name;
+        private final String desc;
+
+        FieldKind(String name, String desc) {
+            this.name = name;
+            this.desc = desc;
+        }
+
+        public static FieldKind of(String fieldDesc) {
+            for (FieldKind kind : values()) {
+                if (kind.desc.equals(fieldDesc)) {
+                    return kind;
+                }
+            }
+            return OBJECT;
+        }
+    }
+
+    private static class GeneratedClassLoader extends ClassLoader {
+
+        public GeneratedClassLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+        public synchronized Class<?> define(String name, byte[] bytecode) {
+            return defineClass(name, bytecode, 0, bytecode.length);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.serial;
+
+import net.orfjackal.dimdwarf.db.Blob;
+import net.orfjackal.dimdwarf.serial.ObjectGraphInput.ClassDescriptor;
+
+import javax.annotation.concurrent.ThreadSafe;
+import javax.inject.*;
+import java.io.*;
+import java.nio.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serializes objects field by field with {@link FieldSerializer}s which are generated for each class,
+ * instead of going through {@link ObjectOutputStream}, which is slow and writes full class descriptors.
+ * The semantics follow Java serialization: the same classes are serializable, transient fields are skipped,
+ * {@code writeReplace} and {@code readResolve} are called, and the {@link SerializationFilter} is called
+ * for every object.
+ * <p/>
+ * Instead of a class descriptor, each object is preceded by the id which its descriptor has in the
+ * {@link ClassDictionary}. The descriptors are parsed only once per id.
+ * <p/>
+ * Object graphs which contain classes with custom serialization (for example {@code writeObject} methods,
+ * which many collection classes have) are written with Java serialization. Both formats can be read.
+ */
+@Singleton
+@ThreadSafe
+public class GeneratedObjectSerializer implements ObjectSerializer {
+
+    private final ObjectSerializer fallback = new JavaSerializationObjectSerializer();
+    private final FieldSerializerGenerator generator = new FieldSerializerGenerator();
+    private final ConcurrentMap<Class<?>, ClassLayout> layouts = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Class<?>> classes = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Class<?>, Integer> classIds = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Integer, ClassDescriptor> descriptors = new ConcurrentHashMap<>();
+    private final ClassDictionary dictionary;
+    private final ClassLoader loader;
+
+    private final AtomicLong fallbacks = new AtomicLong();
+
+    /**
+     * Uses an {@link InMemoryClassDictionary}, so the serialized objects can not be read after a restart.
+     */
+    public GeneratedObjectSerializer() {
+        this(new InMemoryClassDictionary());
+    }
+
+    @Inject
+    public GeneratedObjectSerializer(ClassDictionary dictionary) {
+        this(dictionary, GeneratedObjectSerializer.class.getClassLoader());
+    }
+
+    public GeneratedObjectSerializer(ClassDictionary dictionary, ClassLoader loader) {
+        this.dictionary = dictionary;
+        this.loader = loader;
+    }
+
+    public Blob serialize(Object obj, SerializationFilter filter) {
+        ObjectGraphOutput out = new ObjectGraphOutput(obj, filter, this);
+        try {
+            out.write(GraphFormat.VERSION);
+            out.writeObject(obj);
+        } catch (UnsupportedClassException e) {
+            fallbacks.incrementAndGet();
+            return fallback.serialize(obj, filter);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return out.toBlob();
+    }
+
+    public Object deserialize(Blob serialized, SerializationFilter filter) {
+        if (serialized.length() == 0 || serialized.byteAt(0) != GraphFormat.VERSION) {
+            return fallback.deserialize(serialized, filter);
+        }
+        ByteBuffer in = serialized.toByteBuffer();
+        in.get();
+        try {
+            return new ObjectGraphInput(in, filter, this).readObject();
+        } catch (BufferUnderflowException e) {
+            throw new RuntimeException(new EOFException());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    ClassLayout layoutOf(Class<?> type) {
+        ClassLayout layout = layouts.get(type);
+        if (layout == null) {
+            layout = ClassLayout.of(type, generator);
+            ClassLayout previous = layouts.putIfAbsent(type, layout);
+            if (previous != null) {
+                layout = previous;
+            }
+        }
+        return layout;
+    }
+
+    int classIdOf(ClassLayout layout) {
+        Integer id = classIds.get(layout.type);
+        if (id == null) {
+            id = dictionary.idOf(layout.descriptor);
+            classIds.putIfAbsent(layout.type, id);
+        }
+        return id;
+    }
+
+    ClassDescriptor descriptorOf(int classId) throws IOException {
+        ClassDescriptor desc = descriptors.get(classId);
+        if (desc == null) {
+            Blob descriptor = dictionary.descriptorOf(classId);
+            if (descriptor == null) {
+                throw new StreamCorruptedException("Unknown class id: " + classId);
+            }
+            desc = ObjectGraphInput.decodeClassDescriptor(descriptor, this);
+            descriptors.putIfAbsent(classId, desc);
+        }
+        return desc;
+    }
+
+    Class<?> classForName(String name) throws ClassNotFoundException {
+        Class<?> type = classes.get(name);
+        if (type == null) {
+            type = GraphFormat.classForName(name, loader);
+            classes.putIfAbsent(name, type);
+        }
+        return type;
+    }
+
+    /**
+     * How many object graphs had to be serialized with Java serialization.
+     */
+    public long getFallbacks() {
+        return fallbacks.get();
+    }
+
+    public int getGeneratedSerializers() {
+        return generator.getGeneratedClasses();
+    }
+}
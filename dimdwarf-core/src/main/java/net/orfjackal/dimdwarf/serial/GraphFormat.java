@@ -0,0 +1,79 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.serial;
+
+import java.util.*;
+
+/**
+ * The format of {@link GeneratedObjectSerializer}. After the version byte follows the root object,
+ * which is one of the tagged values below. The primitive fields are written in the same way as
+ * {@link java.io.DataOutput} writes them, the variable-length integers use 7 bits per byte,
+ * and the class names are written like STRING values.
+ * <pre>
+ * NULL
+ * HANDLE  varint: an object which was written earlier in the same graph
+ * CLASS   class name
+ * BOOLEAN .. DOUBLE  the boxed primitive value
+ * STRING  varint length, modified UTF-8 characters
+ * ENUM    class name, constant name as STRING
+ * ARRAY   class name, varint length, elements
+ * OBJECT  varint class id, field values
+ * </pre>
+ * The class id refers to a class descriptor in the {@link ClassDictionary}. A class descriptor is the class name,
+ * the number of fields and the name and type descriptor of each field, all in the same encoding as above.
+ */
+class GraphFormat {
+
+    /**
+     * Differs from the first byte of Java serialization's stream magic 0xACED.
+     * Version 1 wrote the class descriptors into the graph instead of using a {@link ClassDictionary}.
+     */
+    static final byte VERSION = 2;
+
+    static final byte NULL = 0;
+    static final byte HANDLE = 1;
+    static final byte CLASS = 2;
+    static final byte BOOLEAN = 3;
+    static final byte BYTE = 4;
+    static final byte CHAR = 5;
+    static final byte SHORT = 6;
+    static final byte INT = 7;
+    static final byte LONG = 8;
+    static final byte FLOAT = 9;
+    static final byte DOUBLE = 10;
+    static final byte STRING = 11;
+    static final byte ENUM = 12;
+    static final byte ARRAY = 13;
+    static final byte OBJECT = 14;
+
+    private static final Set<Class<?>> VALUE_TYPES = new HashSet<Class<?>>(Arrays.asList(
+            String.class, Boolean.class, Byte.class, Character.class, Short.class,
+            Integer.class, Long.class, Float.class, Double.class
+    ));
+
+    private static final Map<String, Class<?>> PRIMITIVE_TYPES = new HashMap<>();
+
+    static {
+        for (Class<?> type : Arrays.asList(boolean.class, byte.class, char.class, short.class,
+                int.class, long.class, float.class, double.class, void.class)) {
+            PRIMITIVE_TYPES.put(type.getName(), type);
+        }
+    }
+
+    private GraphFormat() {
+    }
+
+    static boolean canHaveWriteReplace(Class<?> type) {
+        return !VALUE_TYPES.contains(type) && !type.isArray() && !Enum.class.isAssignableFrom(type);
+    }
+
+    static Class<?> classForName(String name, ClassLoader loader) throws ClassNotFoundException {
+        Class<?> primitive = PRIMITIVE_TYPES.get(name);
+        if (primitive != null) {
+            return primitive;
+        }
+        return Class.forName(name, false, loader);
+    }
+}
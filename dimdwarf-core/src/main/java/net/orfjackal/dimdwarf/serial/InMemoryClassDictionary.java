@@ -0,0 +1,36 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.serial;
+
+import net.orfjackal.dimdwarf.db.Blob;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.*;
+
+/**
+ * A dictionary which is forgotten when the JVM exits, so it suits only objects which are not persisted.
+ */
+@ThreadSafe
+public class InMemoryClassDictionary implements ClassDictionary {
+
+    private final Map<Blob, Integer> ids = new HashMap<>();
+    private final List<Blob> descriptors = new ArrayList<>();
+
+    public synchronized int idOf(Blob descriptor) {
+        Integer id = ids.get(descriptor);
+        if (id == null) {
+            id = descriptors.size();
+            descriptors.add(descriptor);
+            ids.put(descriptor, id);
+        }
+        return id;
+    }
+
+    @Nullable
+    public synchronized Blob descriptorOf(int id) {
+        return id >= 0 && id < descriptors.size() ? descriptors.get(id) : null;
+    }
+}
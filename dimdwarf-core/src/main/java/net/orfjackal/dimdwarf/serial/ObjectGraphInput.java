@@ -0,0 +1,367 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.serial;
+
+import net.orfjackal.dimdwarf.db.Blob;
+import net.orfjackal.dimdwarf.serial.FieldSerializerGenerator.FieldKind;
+import sun.misc.Unsafe;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.*;
+import java.io.*;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Reads an object graph in the format of {@link GeneratedObjectSerializer}.
+ * Public only because the generated {@link FieldSerializer}s call it.
+ */
+@NotThreadSafe
+public final class ObjectGraphInput {
+
+    private final ByteBuffer in;
+    private final SerializationFilter filter;
+    private final GeneratedObjectSerializer layouts;
+
+    private final List<Object> handles = new ArrayList<>();
+
+    ObjectGraphInput(ByteBuffer in, SerializationFilter filter, GeneratedObjectSerializer layouts) {
+        this.in = in;
+        this.filter = filter;
+        this.layouts = layouts;
+    }
+
+    public boolean readBoolean() throws IOException {
+        return in.get() != 0;
+    }
+
+    public byte readByte() throws IOException {
+        return in.get();
+    }
+
+    public char readChar() throws IOException {
+        return in.getChar();
+    }
+
+    public short readShort() throws IOException {
+        return in.getShort();
+    }
+
+    public int readInt() throws IOException {
+        return in.getInt();
+    }
+
+    public long readLong() throws IOException {
+        return in.getLong();
+    }
+
+    public float readFloat() throws IOException {
+        return in.getFloat();
+    }
+
+    public double readDouble() throws IOException {
+        return in.getDouble();
+    }
+
+    /**
+     * Reads the value of a field, checking that it can be assigned to the field.
+     */
+    @Nullable
+    public Object readObject(Class<?> fieldType) throws IOException {
+        Object obj = readObject();
+        if (obj != null && !fieldType.isInstance(obj)) {
+            throw new ClassCastException("Cannot assign an instance of " + obj.getClass().getName()
+                    + " to a field of type " + fieldType.getName());
+        }
+        return obj;
+    }
+
+    @Nullable
+    public Object readObject() throws IOException {
+        byte tag = in.get();
+        switch (tag) {
+            case GraphFormat.NULL:
+                return null;
+            case GraphFormat.HANDLE:
+                return handles.get(readVarInt());
+            case GraphFormat.CLASS:
+                return classForName(readChars());
+            case GraphFormat.BOOLEAN:
+                return filter.resolveDeserialized(in.get() != 0);
+            case GraphFormat.BYTE:
+                return filter.resolveDeserialized(in.get());
+            case GraphFormat.CHAR:
+                return filter.resolveDeserialized(in.getChar());
+            case GraphFormat.SHORT:
+                return filter.resolveDeserialized(in.getShort());
+            case GraphFormat.INT:
+                return filter.resolveDeserialized(in.getInt());
+            case GraphFormat.LONG:
+                return filter.resolveDeserialized(in.getLong());
+            case GraphFormat.FLOAT:
+                return filter.resolveDeserialized(in.getFloat());
+            case GraphFormat.DOUBLE:
+                return filter.resolveDeserialized(in.getDouble());
+            case GraphFormat.STRING:
+                return readString();
+            case GraphFormat.ENUM:
+                return readEnum();
+            case GraphFormat.ARRAY:
+                return readArray();
+            case GraphFormat.OBJECT:
+                return readOrdinaryObject();
+            default:
+                throw new StreamCorruptedException("Unknown tag: " + tag);
+        }
+    }
+
+    private Object readString() throws IOException {
+        int handle = reserveHandle();
+        return setHandle(handle, filter.resolveDeserialized(readChars()));
+    }
+
+    @SuppressWarnings({"unchecked"})
+    private Object readEnum() throws IOException {
+        int handle = reserveHandle();
+        Class<? extends Enum> type = classForName(readChars()).asSubclass(Enum.class);
+        Enum<?> constant = Enum.valueOf(type, readChars());
+        return setHandle(handle, filter.resolveDeserialized(constant));
+    }
+
+    private Object readArray() throws IOException {
+        int handle = reserveHandle();
+        Class<?> component = classForName(readChars()).getComponentType();
+        Object array = Array.newInstance(component, readVarInt());
+        setHandle(handle, array);
+        readArrayElements(array, component);
+        return setHandle(handle, filter.resolveDeserialized(array));
+    }
+
+    private void readArrayElements(Object array, Class<?> component) throws IOException {
+        if (component == byte.class) {
+            in.get((byte[]) array);
+        } else if (component == boolean.class) {
+            boolean[] values = (boolean[]) array;
+            for (int i = 0; i < values.length; i++) {
+                values[i] = in.get() != 0;
+            }
+        } else if (component == char.class) {
+            char[] values = (char[]) array;
+            for (int i = 0; i < values.length; i++) {
+                values[i] = in.getChar();
+            }
+        } else if (component == short.class) {
+            short[] values = (short[]) array;
+            for (int i = 0; i < values.length; i++) {
+                values[i] = in.getShort();
+            }
+        } else if (component == int.class) {
+            int[] values = (int[]) array;
+            for (int i = 0; i < values.length; i++) {
+                values[i] = in.getInt();
+            }
+        } else if (component == long.class) {
+            long[] values = (long[]) array;
+            for (int i = 0; i < values.length; i++) {
+                values[i] = in.getLong();
+            }
+        } else if (component == float.class) {
+            float[] values = (float[]) array;
+            for (int i = 0; i < values.length; i++) {
+                values[i] = in.getFloat();
+            }
+        } else if (component == double.class) {
+            double[] values = (double[]) array;
+            for (int i = 0; i < values.length; i++) {
+                values[i] = in.getDouble();
+            }
+        } else {
+            Object[] values = (Object[]) array;
+            for (int i = 0; i < values.length; i++) {
+                values[i] = readObject(component);
+            }
+        }
+    }
+
+    private Object readOrdinaryObject() throws IOException {
+        ClassDescriptor desc = layouts.descriptorOf(readVarInt());
+        Object obj = desc.layout.newInstance();
+        int handle = reserveHandle();
+        setHandle(handle, obj);
+        if (desc.sameAsLayout) {
+            desc.layout.getSerializer().readFields(obj, this);
+        } else {
+            readChangedFields(obj, desc);
+        }
+        if (desc.layout.readResolve != null) {
+            obj = setHandle(handle, ClassLayout.invoke(desc.layout.readResolve, obj));
+        }
+        return setHandle(handle, filter.resolveDeserialized(obj));
+    }
+
+    static ClassDescriptor decodeClassDescriptor(Blob descriptor, GeneratedObjectSerializer layouts) throws IOException {
+        return new ObjectGraphInput(descriptor.toByteBuffer(), null, layouts).readClassDescriptor(descriptor);
+    }
+
+    private ClassDescriptor readClassDescriptor(Blob descriptor) throws IOException {
+        String className = readChars();
+        ClassLayout layout = layouts.layoutOf(classForName(className));
+        if (!layout.supported) {
+            throw new InvalidClassException(className, "the class can no more be deserialized field by field");
+        }
+        if (layout.descriptor.equals(descriptor)) {
+            return new ClassDescriptor(layout);
+        }
+        String[] names = new String[readVarInt()];
+        String[] descs = new String[names.length];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = readChars();
+            descs[i] = readChars();
+        }
+        return new ClassDescriptor(layout, names, descs);
+    }
+
+    /**
+     * When the fields of the class have changed after the object was serialized, the fields which still
+     * exist are restored and the rest are left to their default values, the same as in Java serialization.
+     */
+    private void readChangedFields(Object obj, ClassDescriptor desc) throws IOException {
+        Unsafe unsafe = FieldSerializer.UNSAFE;
+        ClassLayout layout = desc.layout;
+        for (int i = 0; i < desc.fieldKinds.length; i++) {
+            int target = desc.targetFields[i];
+            long offset = target >= 0 ? layout.fieldOffsets[target] : -1;
+            switch (desc.fieldKinds[i]) {
+                case BOOLEAN:
+                    boolean z = in.get() != 0;
+                    if (target >= 0) {
+                        unsafe.putBoolean(obj, offset, z);
+                    }
+                    break;
+                case BYTE:
+                    byte b = in.get();
+                    if (target >= 0) {
+                        unsafe.putByte(obj, offset, b);
+                    }
+                    break;
+                case CHAR:
+                    char c = in.getChar();
+                    if (target >= 0) {
+                        unsafe.putChar(obj, offset, c);
+                    }
+                    break;
+                case SHORT:
+                    short s = in.getShort();
+                    if (target >= 0) {
+                        unsafe.putShort(obj, offset, s);
+                    }
+                    break;
+                case INT:
+                    int n = in.getInt();
+                    if (target >= 0) {
+                        unsafe.putInt(obj, offset, n);
+                    }
+                    break;
+                case LONG:
+                    long j = in.getLong();
+                    if (target >= 0) {
+                        unsafe.putLong(obj, offset, j);
+                    }
+                    break;
+                case FLOAT:
+                    float f = in.getFloat();
+                    if (target >= 0) {
+                        unsafe.putFloat(obj, offset, f);
+                    }
+                    break;
+                case DOUBLE:
+                    double d = in.getDouble();
+                    if (target >= 0) {
+                        unsafe.putDouble(obj, offset, d);
+                    }
+                    break;
+                default:
+                    if (target >= 0) {
+                        unsafe.putObject(obj, offset, readObject(layout.fields[target].getType()));
+                    } else {
+                        readObject();
+                    }
+            }
+        }
+    }
+
+    private int reserveHandle() {
+        handles.add(null);
+        return handles.size() - 1;
+    }
+
+    private Object setHandle(int handle, Object obj) {
+        handles.set(handle, obj);
+        return obj;
+    }
+
+    private Class<?> classForName(String name) throws IOException {
+        try {
+            return layouts.classForName(name);
+        } catch (ClassNotFoundException e) {
+            throw new InvalidClassException(name, e.toString());
+        }
+    }
+
+    private String readChars() throws IOException {
+        char[] chars = new char[readVarInt()];
+        for (int i = 0; i < chars.length; i++) {
+            int b1 = in.get() & 0xFF;
+            if (b1 < 0x80) {
+                chars[i] = (char) b1;
+            } else if (b1 < 0xE0) {
+                chars[i] = (char) (((b1 & 0x1F) << 6) | (in.get() & 0x3F));
+            } else {
+                int b2 = in.get();
+                chars[i] = (char) (((b1 & 0x0F) << 12) | ((b2 & 0x3F) << 6) | (in.get() & 0x3F));
+            }
+        }
+        return new String(chars);
+    }
+
+    int readVarInt() throws IOException {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+
+    @Immutable
+    static class ClassDescriptor {
+        private final ClassLayout layout;
+        private final boolean sameAsLayout;
+        private final FieldKind[] fieldKinds;
+        private final int[] targetFields;
+
+        public ClassDescriptor(ClassLayout layout) {
+            this.layout = layout;
+            this.sameAsLayout = true;
+            this.fieldKinds = null;
+            this.targetFields = null;
+        }
+
+        public ClassDescriptor(ClassLayout layout, String[] names, String[] descs) {
+            this.layout = layout;
+            this.sameAsLayout = layout.hasFields(names, descs);
+            this.fieldKinds = new FieldKind[names.length];
+            this.targetFields = new int[names.length];
+            for (int i = 0; i < names.length; i++) {
+                fieldKinds[i] = FieldKind.of(descs[i]);
+                targetFields[i] = layout.indexOf(names[i], descs[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,318 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.serial;
+
+import net.orfjackal.dimdwarf.db.Blob;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+import java.io.*;
+import java.lang.reflect.*;
+import java.util.*;
+
+/**
+ * Writes an object graph in the format of {@link GeneratedObjectSerializer}.
+ * Public only because the generated {@link FieldSerializer}s call it.
+ */
+@NotThreadSafe
+public final class ObjectGraphOutput {
+
+    private final Object rootObject;
+    private final SerializationFilter filter;
+    private final GeneratedObjectSerializer layouts;
+
+    private final Map<Object, Integer> handles = new IdentityHashMap<>();
+    private int nextHandle = 0;
+
+    // written directly to an array, because the byte-at-a-time writes through
+    // DataOutputStream and the synchronized ByteArrayOutputStream dominated the serialization time
+    private byte[] buffer = new byte[128];
+    private int position = 0;
+
+    ObjectGraphOutput(Object rootObject, SerializationFilter filter, GeneratedObjectSerializer layouts) {
+        this.rootObject = rootObject;
+        this.filter = filter;
+        this.layouts = layouts;
+    }
+
+    static Blob encodeClassDescriptor(ClassLayout layout) {
+        ObjectGraphOutput out = new ObjectGraphOutput(null, null, null);
+        out.writeString(layout.type.getName());
+        out.writeVarInt(layout.fields.length);
+        for (int i = 0; i < layout.fields.length; i++) {
+            out.writeString(layout.fieldNames[i]);
+            out.writeString(layout.fieldDescs[i]);
+        }
+        return Blob.wrap(Arrays.copyOf(out.buffer, out.position));
+    }
+
+    Blob toBlob() {
+        return Blob.wrap(buffer, 0, position);
+    }
+
+    public void writeBoolean(boolean value) throws IOException {
+        write(value ? 1 : 0);
+    }
+
+    public void writeByte(byte value) throws IOException {
+        write(value);
+    }
+
+    public void writeChar(char value) throws IOException {
+        write16(value);
+    }
+
+    public void writeShort(short value) throws IOException {
+        write16(value);
+    }
+
+    public void writeInt(int value) throws IOException {
+        write32(value);
+    }
+
+    public void writeLong(long value) throws IOException {
+        write64(value);
+    }
+
+    public void writeFloat(float value) throws IOException {
+        write32(Float.floatToIntBits(value));
+    }
+
+    public void writeDouble(double value) throws IOException {
+        write64(Double.doubleToLongBits(value));
+    }
+
+    public void writeObject(@Nullable Object obj) throws IOException {
+        if (obj == null) {
+            write(GraphFormat.NULL);
+            return;
+        }
+        if (writeHandleIfAlreadyWritten(obj)) {
+            return;
+        }
+        if (obj instanceof Class) {
+            write(GraphFormat.CLASS);
+            writeString(((Class<?>) obj).getName());
+            return;
+        }
+
+        // replace the same way as in Java serialization
+        Object original = obj;
+        obj = invokeWriteReplace(obj);
+        obj = filter.replaceSerialized(rootObject, obj);
+        if (obj != original) {
+            if (obj == null) {
+                write(GraphFormat.NULL);
+                return;
+            }
+            if (writeHandleIfAlreadyWritten(obj)) {
+                handles.put(original, handles.get(obj));
+                return;
+            }
+        }
+
+        if (!writeValue(obj)) {
+            int handle = nextHandle++;
+            handles.put(obj, handle);
+            handles.put(original, handle);
+            writeReference(obj);
+        }
+    }
+
+    private boolean writeHandleIfAlreadyWritten(Object obj) {
+        Integer handle = handles.get(obj);
+        if (handle == null) {
+            return false;
+        }
+        write(GraphFormat.HANDLE);
+        writeVarInt(handle);
+        return true;
+    }
+
+    private Object invokeWriteReplace(Object obj) {
+        for (Class<?> type = obj.getClass(); GraphFormat.canHaveWriteReplace(type); ) {
+            Method writeReplace = layouts.layoutOf(type).writeReplace;
+            if (writeReplace == null) {
+                break;
+            }
+            Object replacement = ClassLayout.invoke(writeReplace, obj);
+            if (replacement == null || replacement.getClass() == type) {
+                return replacement;
+            }
+            obj = replacement;
+            type = replacement.getClass();
+        }
+        return obj;
+    }
+
+    /**
+     * Writes the immutable values which are not shared through handles.
+     */
+    private boolean writeValue(Object obj) {
+        if (obj instanceof Boolean) {
+            write(GraphFormat.BOOLEAN);
+            write((Boolean) obj ? 1 : 0);
+        } else if (obj instanceof Byte) {
+            write(GraphFormat.BYTE);
+            write((Byte) obj);
+        } else if (obj instanceof Character) {
+            write(GraphFormat.CHAR);
+            write16((Character) obj);
+        } else if (obj instanceof Short) {
+            write(GraphFormat.SHORT);
+            write16((Short) obj);
+        } else if (obj instanceof Integer) {
+            write(GraphFormat.INT);
+            write32((Integer) obj);
+        } else if (obj instanceof Long) {
+            write(GraphFormat.LONG);
+            write64((Long) obj);
+        } else if (obj instanceof Float) {
+            write(GraphFormat.FLOAT);
+            write32(Float.floatToIntBits((Float) obj));
+        } else if (obj instanceof Double) {
+            write(GraphFormat.DOUBLE);
+            write64(Double.doubleToLongBits((Double) obj));
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    private void writeReference(Object obj) throws IOException {
+        Class<?> type = obj.getClass();
+        if (obj instanceof String) {
+            write(GraphFormat.STRING);
+            writeString((String) obj);
+        } else if (obj instanceof Enum) {
+            write(GraphFormat.ENUM);
+            writeString(((Enum<?>) obj).getDeclaringClass().getName());
+            writeString(((Enum<?>) obj).name());
+        } else if (type.isArray()) {
+            write(GraphFormat.ARRAY);
+            writeString(type.getName());
+            writeArrayElements(obj);
+        } else {
+            ClassLayout layout = layouts.layoutOf(type);
+            if (!layout.supported) {
+                throw new UnsupportedClassException(type);
+            }
+            write(GraphFormat.OBJECT);
+            writeVarInt(layouts.classIdOf(layout));
+            layout.getSerializer().writeFields(obj, this);
+        }
+    }
+
+    private void writeArrayElements(Object array) throws IOException {
+        int length = Array.getLength(array);
+        writeVarInt(length);
+        Class<?> component = array.getClass().getComponentType();
+        if (component == byte.class) {
+            write((byte[]) array);
+        } else if (component == boolean.class) {
+            for (boolean value : (boolean[]) array) {
+                write(value ? 1 : 0);
+            }
+        } else if (component == char.class) {
+            for (char value : (char[]) array) {
+                write16(value);
+            }
+        } else if (component == short.class) {
+            for (short value : (short[]) array) {
+                write16(value);
+            }
+        } else if (component == int.class) {
+            for (int value : (int[]) array) {
+                write32(value);
+            }
+        } else if (component == long.class) {
+            for (long value : (long[]) array) {
+                write64(value);
+            }
+        } else if (component == float.class) {
+            for (float value : (float[]) array) {
+                write32(Float.floatToIntBits(value));
+            }
+        } else if (component == double.class) {
+            for (double value : (double[]) array) {
+                write64(Double.doubleToLongBits(value));
+            }
+        } else {
+            for (Object value : (Object[]) array) {
+                writeObject(value);
+            }
+        }
+    }
+
+    /**
+     * Unlike {@link DataOutputStream#writeUTF}, there is no limit on the length of the string.
+     */
+    private void writeString(String s) {
+        int length = s.length();
+        writeVarInt(length);
+        ensureCapacity(length * 3);
+        byte[] buf = buffer;
+        int pos = position;
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                buf[pos++] = (byte) c;
+            } else if (c <= 0x07FF) {
+                buf[pos++] = (byte) (0xC0 | (c >> 6));
+                buf[pos++] = (byte) (0x80 | (c & 0x3F));
+            } else {
+                buf[pos++] = (byte) (0xE0 | (c >> 12));
+                buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buf[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        position = pos;
+    }
+
+    void writeVarInt(int value) {
+        ensureCapacity(5);
+        while ((value & ~0x7F) != 0) {
+            buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+    }
+
+    void write(int b) {
+        ensureCapacity(1);
+        buffer[position++] = (byte) b;
+    }
+
+    private void write(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        position += bytes.length;
+    }
+
+    private void write16(int v) {
+        ensureCapacity(2);
+        buffer[position++] = (byte) (v >>> 8);
+        buffer[position++] = (byte) v;
+    }
+
+    private void write32(int v) {
+        ensureCapacity(4);
+        buffer[position++] = (byte) (v >>> 24);
+        buffer[position++] = (byte) (v >>> 16);
+        buffer[position++] = (byte) (v >>> 8);
+        buffer[position++] = (byte) v;
+    }
+
+    private void write64(long v) {
+        write32((int) (v >>> 32));
+        write32((int) v);
+    }
+
+    private void ensureCapacity(int bytes) {
+        if (position + bytes > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + bytes));
+        }
+    }
+}
@@ -0,0 +1,16 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.serial;
+
+/**
+ * Thrown when an object graph contains an object which {@link GeneratedObjectSerializer} can not serialize,
+ * so that the whole object graph must be serialized with Java serialization.
+ */
+class UnsupportedClassException extends RuntimeException {
+
+    public UnsupportedClassException(Class<?> type) {
+        super(type.getName(), null, false, false);
+    }
+}
@@ -0,0 +1,193 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.tasks;
+
+import net.orfjackal.dimdwarf.events.SystemLifecycleListener;
+import net.orfjackal.dimdwarf.tx.TransactionCoordinator;
+import net.orfjackal.dimdwarf.util.Exceptions;
+import org.slf4j.*;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.*;
+import javax.inject.Singleton;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Commits the transactions of tasks whose prepare phase has already succeeded, so that the worker thread
+ * can go on to run its next task while the commit is done. Only the transactions whose participants'
+ * commits can not fail may be committed here (see {@link TransactionCoordinator#hasOnlyInfallibleCommits}),
+ * because their task has already been reported as successful. A prepared transaction holds the commit locks
+ * of all keys it modifies, so this does not change what gets committed. The side effects which depend on
+ * the outcome of the transaction, such as the tasks which are scheduled on commit, are released by the
+ * participants' commit, i.e. only after the commit is done.
+ * <p/>
+ * While the pipeline is stopped, the transactions are committed in the worker thread. When there are
+ * already {@link #DEFAULT_MAX_PENDING_COMMITS} commits waiting, the worker thread does its own commit,
+ * which slows down the workers to the pace of the commits.
+ */
+@Singleton
+@ThreadSafe
+public class CommitPipeline implements SystemLifecycleListener {
+
+    public static final int DEFAULT_COMMIT_THREADS = 16;
+    public static final int DEFAULT_MAX_PENDING_COMMITS = 1024;
+
+    private static final Logger logger = LoggerFactory.getLogger(CommitPipeline.class);
+
+    private final int commitThreads;
+    private final int maxPendingCommits;
+    @Nullable private volatile ThreadPoolExecutor executor = null;
+
+    // the commits which have been started but have not yet finished, by the order in which they were started
+    @GuardedBy("unfinished") private final SortedSet<Long> unfinished = new TreeSet<>();
+    @GuardedBy("unfinished") private long lastStarted = 0;
+
+    private final AtomicLong backgroundCommits = new AtomicLong();
+    private final AtomicLong workerThreadCommits = new AtomicLong();
+
+    public CommitPipeline() {
+        this(DEFAULT_COMMIT_THREADS, DEFAULT_MAX_PENDING_COMMITS);
+    }
+
+    public CommitPipeline(int commitThreads, int maxPendingCommits) {
+        this.commitThreads = commitThreads;
+        this.maxPendingCommits = maxPendingCommits;
+    }
+
+    public void onStartup() {
+        start();
+    }
+
+    public void onShutdown() {
+        shutdown();
+    }
+
+    public synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+        executor = new ThreadPoolExecutor(commitThreads, commitThreads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(maxPendingCommits),
+                new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "Commit Pipeline");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                },
+                new RejectedExecutionHandler() {
+                    public void rejectedExecution(Runnable commit, ThreadPoolExecutor executor) {
+                        // the queue is full or the pipeline was shut down concurrently
+                        commit.run();
+                    }
+                });
+        executor.prestartAllCoreThreads();
+    }
+
+    /**
+     * Stops accepting new commits and waits for the pending commits to finish.
+     */
+    public synchronized void shutdown() {
+        ThreadPoolExecutor executor = this.executor;
+        if (executor == null) {
+            return;
+        }
+        this.executor = null;
+        executor.shutdown();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.error("Interrupted while shutting down", e);
+        }
+    }
+
+    /**
+     * Commits the transaction, which must already have been prepared and whose participants' commits can not fail.
+     *
+     * @return the outcome of the commit.
+     */
+    public Future<?> commit(final TransactionCoordinator tx) {
+        if (!tx.hasOnlyInfallibleCommits()) {
+            throw new IllegalArgumentException("The commit may fail, so it must be done by the task: " + tx);
+        }
+        final Thread worker = Thread.currentThread();
+        final long id = started();
+        FutureTask<?> commit = new FutureTask<>(new Runnable() {
+            public void run() {
+                if (Thread.currentThread() == worker) {
+                    workerThreadCommits.incrementAndGet();
+                } else {
+                    backgroundCommits.incrementAndGet();
+                }
+                try {
+                    tx.commit();
+                } catch (Throwable t) {
+                    // a participant broke its promise, so this is a bug which can only be reported
+                    logger.error("Commit failed for transaction " + tx, t);
+                    throw Exceptions.throwAsUnchecked(t);
+                } finally {
+                    finished(id);
+                }
+            }
+        }, null);
+        ThreadPoolExecutor executor = this.executor;
+        if (executor == null) {
+            commit.run();
+        } else {
+            executor.execute(commit);
+        }
+        return commit;
+    }
+
+    private long started() {
+        synchronized (unfinished) {
+            long id = ++lastStarted;
+            unfinished.add(id);
+            return id;
+        }
+    }
+
+    private void finished(long id) {
+        synchronized (unfinished) {
+            unfinished.remove(id);
+            unfinished.notifyAll();
+        }
+    }
+
+    /**
+     * Waits until the commits which were started before calling this method have finished.
+     */
+    public void awaitPendingCommits() throws InterruptedException {
+        synchronized (unfinished) {
+            long startedBefore = lastStarted;
+            while (!unfinished.isEmpty() && unfinished.first() <= startedBefore) {
+                unfinished.wait();
+            }
+        }
+    }
+
+    public boolean isRunning() {
+        return executor != null;
+    }
+
+    /**
+     * The commits which are waiting in the queue for a free commit thread.
+     */
+    public int getPendingCommits() {
+        ThreadPoolExecutor executor = this.executor;
+        return executor == null ? 0 : executor.getQueue().size();
+    }
+
+    public long getBackgroundCommits() {
+        return backgroundCommits.get();
+    }
+
+    public long getWorkerThreadCommits() {
+        return workerThreadCommits.get();
+    }
+}
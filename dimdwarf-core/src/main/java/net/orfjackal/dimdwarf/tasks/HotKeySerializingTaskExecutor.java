@@ -0,0 +1,102 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.tasks;
+
+import net.orfjackal.dimdwarf.db.*;
+import net.orfjackal.dimdwarf.db.common.ContentionManager;
+import net.orfjackal.dimdwarf.tx.Retryable;
+import net.orfjackal.dimdwarf.util.Exceptions;
+import org.slf4j.*;
+
+import javax.annotation.concurrent.ThreadSafe;
+import javax.inject.*;
+import java.util.*;
+import java.util.concurrent.Executor;
+
+/**
+ * Retries a task which failed because of conflicts, so that it holds the locks of the keys on which
+ * it conflicted. The task is then serialized only with the other tasks which access those same keys,
+ * and the rest of the tasks keep running in parallel. See {@link ContentionManager}.
+ * <p/>
+ * If the task conflicts again while it is serialized, it is retried holding also the keys of the new
+ * conflicts, until it holds all the keys on which it conflicts or it has been retried too many times.
+ * If the keys of a conflict are not known, the task is retried without holding them. No task ever stops
+ * all the other tasks, and the retried task waits for the key locks without holding any other locks.
+ */
+@Singleton
+@ThreadSafe
+public class HotKeySerializingTaskExecutor implements Executor {
+
+    public static final int MAX_SERIALIZED_RETRIES = 3;
+
+    private static final Logger DEFAULT_LOGGER = LoggerFactory.getLogger(HotKeySerializingTaskExecutor.class);
+    private final Logger logger;
+
+    private final Executor taskContext;
+    private final ContentionManager contention;
+
+    @Inject
+    public HotKeySerializingTaskExecutor(@RetryingTaskContext Executor taskContext, ContentionManager contention) {
+        this(taskContext, contention, DEFAULT_LOGGER);
+    }
+
+    public HotKeySerializingTaskExecutor(Executor taskContext, ContentionManager contention, Logger logger) {
+        this.taskContext = taskContext;
+        this.contention = contention;
+        this.logger = logger;
+    }
+
+    public void execute(Runnable command) {
+        Throwable failure;
+        try {
+            taskContext.execute(command);
+            return;
+        } catch (Throwable t) {
+            failure = t;
+        }
+        Set<Blob> hotKeys = new HashSet<>();
+        for (int retries = 0; shouldRetry(failure) && retries < MAX_SERIALIZED_RETRIES; retries++) {
+            hotKeys.addAll(conflictingKeys(failure));
+            try {
+                executeSerializedOnHotKeys(command, hotKeys, failure);
+                return;
+            } catch (Throwable t) {
+                failure = t;
+            }
+        }
+        throw Exceptions.throwAsUnchecked(failure);
+    }
+
+    private void executeSerializedOnHotKeys(final Runnable command, Collection<Blob> hotKeys, Throwable t) {
+        if (hotKeys.isEmpty()) {
+            logger.info("Retrying task without knowing its hot keys: " + command, t);
+            taskContext.execute(command);
+            return;
+        }
+        logger.info("Retrying task serialized on " + hotKeys.size() + " hot keys: " + command, t);
+        contention.runSerialized(hotKeys, new Runnable() {
+            public void run() {
+                taskContext.execute(command);
+            }
+        });
+    }
+    private static boolean shouldRetry(Throwable t) {
+        for (; t != null; t = t.getCause()) {
+            if (t instanceof Retryable) {
+                return ((Retryable) t).mayBeRetried();
+            }
+        }
+        return false;
+    }
+
+    private static Collection<Blob> conflictingKeys(Throwable t) {
+        for (; t != null; t = t.getCause()) {
+            if (t instanceof OptimisticLockException) {
+                return ((OptimisticLockException) t).getKeys();
+            }
+        }
+        return Collections.emptyList();
+    }
+}
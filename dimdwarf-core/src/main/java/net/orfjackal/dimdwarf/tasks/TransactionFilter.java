@@ -1,4 +1,4 @@
-// Copyright © 2008-2010 Esko Luontola <www.orfjackal.net>
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
 // This software is released under the Apache License 2.0.
 // The license text is at http://dimdwarf.sourceforge.net/LICENSE
 
@@ -16,20 +16,27 @@ public class TransactionFilter implements Filter {
     private static final Logger logger = LoggerFactory.getLogger(TransactionFilter.class);
 
     private final TransactionCoordinator tx;
+    private final CommitPipeline commits;
 
     @Inject
-    public TransactionFilter(TransactionCoordinator tx) {
+    public TransactionFilter(TransactionCoordinator tx, CommitPipeline commits) {
         this.tx = tx;
+        this.commits = commits;
     }
 
     public void filter(Runnable nextInChain) {
         try {
             nextInChain.run();
-            tx.prepareAndCommit();
+            tx.prepare();
         } catch (Throwable t) {
             logger.info("Task failed, rolling back its transaction", t);
             tx.rollback();
             throw Exceptions.throwAsUnchecked(t);
         }
+        if (tx.hasOnlyInfallibleCommits()) {
+            commits.commit(tx);
+        } else {
+            tx.commit();
+        }
     }
 }
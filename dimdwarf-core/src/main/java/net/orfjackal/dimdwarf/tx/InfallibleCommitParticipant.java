@@ -0,0 +1,13 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.tx;
+
+/**
+ * A participant which does everything that can fail, such as writing to a disk, already when preparing,
+ * so that its commit can not fail. Only the transactions whose participants are all like this may be
+ * committed after their task has been reported as successful, see {@link TransactionCoordinator#hasOnlyInfallibleCommits}.
+ */
+public interface InfallibleCommitParticipant extends TransactionParticipant {
+}
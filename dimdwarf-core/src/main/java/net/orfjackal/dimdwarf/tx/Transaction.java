@@ -1,4 +1,4 @@
-// Copyright © 2008-2010 Esko Luontola <www.orfjackal.net>
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
 // This software is released under the Apache License 2.0.
 // The license text is at http://dimdwarf.sourceforge.net/LICENSE
 
@@ -17,4 +17,12 @@ public interface Transaction {
     boolean isRollbackOnly();
 
     void setRollbackOnly();
+
+    boolean isReadOnly();
+
+    /**
+     * Declares that the transaction will not modify anything. Committing it is then nearly free,
+     * but trying to modify the database will fail and the modifications of entities are discarded.
+     */
+    void setReadOnly();
 }
@@ -24,6 +24,7 @@ public class TransactionContext implements Transaction, TransactionCoordinator {
     private final Object statusLock = new Object();
     private volatile TransactionStatus status = ACTIVE;
     private volatile boolean rollbackOnly = false;
+    private volatile boolean readOnly = false;
 
     // TODO: would it be better to separate TransactionCoordinator and Transaction implementations?
 
@@ -78,6 +79,15 @@ public class TransactionContext implements Transaction, TransactionCoordinator {
         changeStatus(ROLLING_BACK, ROLLED_BACK);
     }
 
+    public boolean hasOnlyInfallibleCommits() {
+        for (TransactionParticipant p : participants) {
+            if (!(p instanceof InfallibleCommitParticipant)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     private void tryPrepareAllParticipants() throws Throwable {
         for (TransactionParticipant p : participants) {
             p.prepare();
@@ -151,6 +161,15 @@ public class TransactionContext implements Transaction, TransactionCoordinator {
         rollbackOnly = true;
     }
 
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    public void setReadOnly() {
+        mustBeActive();
+        readOnly = true;
+    }
+
     private void checkIsNotRollbackOnly() throws TransactionRolledbackException {
         if (rollbackOnly) {
             throw new TransactionRolledbackException("Marked for rollback");
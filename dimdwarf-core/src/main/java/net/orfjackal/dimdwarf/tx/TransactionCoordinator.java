@@ -15,4 +15,10 @@ public interface TransactionCoordinator {
     void commit();
 
     void rollback();
+
+    /**
+     * Whether all participants are {@link InfallibleCommitParticipant}s, so that committing
+     * the prepared transaction can not fail.
+     */
+    boolean hasOnlyInfallibleCommits();
 }
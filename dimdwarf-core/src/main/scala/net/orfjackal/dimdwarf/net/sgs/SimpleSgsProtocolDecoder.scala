@@ -47,8 +47,9 @@ class SimpleSgsProtocolDecoder extends CumulativeProtocolDecoder {
   private def readString(in: IoBuffer): String = in.getPrefixedString(2, stringCharset.newDecoder)
 
   private def readBytes(length: Int, in: IoBuffer): Blob = {
+    // MINA reuses the IoBuffer, so the bytes must be copied out of it, but the Blob can take over the copy
     val bytes = new Array[Byte](length)
     in.get(bytes)
-    Blob.fromBytes(bytes)
+    Blob.wrap(bytes)
   }
 }
@@ -0,0 +1,193 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.aop;
+
+import jdave.*;
+import jdave.junit4.JDaveRunner;
+import net.orfjackal.dimdwarf.aop.conf.*;
+import net.orfjackal.dimdwarf.api.Entity;
+import net.orfjackal.dimdwarf.api.internal.TrackedEntity;
+import org.junit.runner.RunWith;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.util.CheckClassAdapter;
+
+import java.util.*;
+
+@RunWith(JDaveRunner.class)
+@Group({"fast"})
+public class AddModificationTrackingForEntitiesSpec extends Specification<Object> {
+
+    private Object target;
+
+    private static Object newInstrumentedInstance(Class<?> cls) throws Exception {
+        final AopApi api = new DimdwarfAopApi();
+        String classesToInstrument = AddModificationTrackingForEntitiesSpec.class.getName() + "$Instrumented*";
+        ClassLoader loader = new TransformationTestClassLoader(classesToInstrument, new AbstractTransformationChain() {
+            protected ClassVisitor getAdapters(ClassVisitor cv) {
+                cv = new CheckClassAdapter(cv);
+                cv = new AddModificationTrackingForEntities(api, cv);
+                cv = new AddMarkerInterfaceForEntities(api, cv);
+                return cv;
+            }
+        });
+        return loader.loadClass(cls.getName()).newInstance();
+    }
+
+    private boolean isModified() {
+        return ((TrackedEntity) target).isModified$ENTITY();
+    }
+
+
+    public class AClassWhichIsNotAnEntity {
+
+        public void isNotTransformed() throws Exception {
+            target = newInstrumentedInstance(InstrumentedObject.class);
+            specify(target instanceof TrackedEntity, should.equal(false));
+        }
+    }
+
+    public class AnEntityWithOnlyPrivateFieldsOfImmutableTypes {
+
+        private Counter counter;
+
+        public void create() throws Exception {
+            target = newInstrumentedInstance(InstrumentedCounter.class);
+            counter = (Counter) target;
+        }
+
+        public void isNotModifiedAfterBeingCreated() {
+            specify(isModified(), should.equal(false));
+        }
+
+        public void readingItsFieldsDoesNotModifyIt() {
+            counter.getCount();
+            specify(isModified(), should.equal(false));
+        }
+
+        public void isModifiedWhenItWritesItsField() {
+            counter.increment();
+            specify(isModified());
+            specify(counter.getCount(), should.equal(1));
+        }
+
+        public void isModifiedWhenItWritesAFieldOfTwoWords() {
+            counter.addTotal(5L);
+            specify(isModified());
+            specify(counter.getTotal(), should.equal(5L));
+        }
+
+        public void writingTheFieldOfAnotherInstanceModifiesOnlyThatInstance() {
+            Counter copy = counter.copy();
+            specify(isModified(), should.equal(false));
+            specify(((TrackedEntity) copy).isModified$ENTITY());
+        }
+    }
+
+    public class AnUntransformedSubclassOfATransformedEntity {
+
+        public void isAlwaysModified() throws Exception {
+            target = newInstrumentedInstance(InstrumentedCounterSubclass.class);
+            specify(isModified());
+        }
+    }
+
+    public class AnEntityWhichCanBeModifiedWithoutWritingItsFields {
+
+        public void isNotTransformedIfItHasAMutableField() throws Exception {
+            target = newInstrumentedInstance(InstrumentedEntityWithList.class);
+            specify(target instanceof TrackedEntity, should.equal(false));
+        }
+
+        public void isNotTransformedIfItHasAnArrayField() throws Exception {
+            target = newInstrumentedInstance(InstrumentedEntityWithArray.class);
+            specify(target instanceof TrackedEntity, should.equal(false));
+        }
+
+        public void isNotTransformedIfItHasANonPrivateField() throws Exception {
+            target = newInstrumentedInstance(InstrumentedEntityWithPublicField.class);
+            specify(target instanceof TrackedEntity, should.equal(false));
+        }
+
+        public void isNotTransformedIfItHasASuperclass() throws Exception {
+            target = newInstrumentedInstance(InstrumentedEntityWithSuperclass.class);
+            specify(target instanceof TrackedEntity, should.equal(false));
+        }
+    }
+
+
+    public interface Counter {
+
+        void increment();
+
+        int getCount();
+
+        void addTotal(long amount);
+
+        long getTotal();
+
+        Counter copy();
+    }
+
+    public static class InstrumentedObject {
+        private int value;
+    }
+
+    @Entity
+    public static class InstrumentedCounter implements Counter {
+        private static int instances = 0;
+        private transient Object cached;
+        private int count;
+        private long total;
+        private String name;
+
+        public InstrumentedCounter() {
+            instances++;
+        }
+
+        public void increment() {
+            count++;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public void addTotal(long amount) {
+            total += amount;
+        }
+
+        public long getTotal() {
+            return total;
+        }
+
+        public Counter copy() {
+            InstrumentedCounter copy = new InstrumentedCounter();
+            copy.count = count;
+            return copy;
+        }
+    }
+
+    public static class InstrumentedCounterSubclass extends InstrumentedCounter {
+    }
+
+    @Entity
+    public static class InstrumentedEntityWithList {
+        private List<String> values = new ArrayList<>();
+    }
+
+    @Entity
+    public static class InstrumentedEntityWithArray {
+        private int[] values;
+    }
+
+    @Entity
+    public static class InstrumentedEntityWithPublicField {
+        public int value;
+    }
+
+    @Entity
+    public static class InstrumentedEntityWithSuperclass extends InstrumentedObject {
+    }
+}
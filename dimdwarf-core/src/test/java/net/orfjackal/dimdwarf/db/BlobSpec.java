@@ -1,4 +1,4 @@
-// Copyright © 2008-2010 Esko Luontola <www.orfjackal.net>
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
 // This software is released under the Apache License 2.0.
 // The license text is at http://dimdwarf.sourceforge.net/LICENSE
 
@@ -95,6 +95,72 @@ public class BlobSpec extends Specification<Blob> {
         }
     }
 
+    public class ABlobWhichTookOwnershipOfAByteArray {
+
+        private byte[] source = {1, 2, 3, 4, 5};
+
+        public void create() {
+            blob = Blob.wrap(source, 1, 3);
+        }
+
+        public void containsOnlyTheSpecifiedRange() {
+            specify(blob.length(), should.equal(3));
+            specify(blob.toByteArray(), should.containInOrder(new byte[]{2, 3, 4}));
+            specify(blob.toByteBuffer().capacity(), should.equal(3));
+            specify(blob.toInputStream().available(), should.equal(3));
+        }
+
+        public void doesNotCopyTheBytes() {
+            source[1] = 42;
+            specify(blob.toByteArray()[0], should.equal((byte) 42));
+        }
+
+        public void equalsACopyOfTheSameBytes() {
+            Blob copy = Blob.fromBytes(new byte[]{2, 3, 4});
+            specify(blob.equals(copy));
+            specify(copy.equals(blob));
+            specify(blob.hashCode(), should.equal(copy.hashCode()));
+            specify(blob.compareTo(copy), should.equal(0));
+        }
+
+        public void theRangeMustBeInsideTheArray() {
+            specify(new Block() {
+                public void run() throws Throwable {
+                    Blob.wrap(source, 3, 3);
+                }
+            }, should.raise(IndexOutOfBoundsException.class));
+        }
+    }
+
+    public class ASliceOfABlob {
+
+        public void create() {
+            blob = Blob.fromBytes(new byte[]{1, 2, 3, 4, 5}).slice(2, 2);
+        }
+
+        public void containsOnlyTheSlicedBytes() {
+            specify(blob.toByteArray(), should.containInOrder(new byte[]{3, 4}));
+        }
+
+        public void canBeSlicedFurther() {
+            specify(blob.slice(1, 1).toByteArray(), should.containInOrder(new byte[]{4}));
+        }
+
+        public void canNotExtendPastTheOriginalSlice() {
+            specify(new Block() {
+                public void run() throws Throwable {
+                    blob.slice(1, 2);
+                }
+            }, should.raise(IndexOutOfBoundsException.class));
+        }
+
+        public void canBeWrittenToAStream() throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            blob.writeTo(out);
+            specify(out.toByteArray(), should.containInOrder(new byte[]{3, 4}));
+        }
+    }
+
     public class ABlobCreatedFromAnInputStream {
 
         public void create() throws IOException {
@@ -213,5 +279,27 @@ public class BlobSpec extends Specification<Blob> {
             specify(blob2.compareTo(blob23) < 0);
             specify(blob23.compareTo(blob2) > 0);
         }
+    
+        public void longBlobsAreComparedByTheirFirstDifferingUnsignedByte() {
+            byte[] bytes = new byte[20];
+            Blob zeros = Blob.fromBytes(bytes);
+            bytes[11] = (byte) 0x80;
+            Blob highBit = Blob.fromBytes(bytes);
+            bytes[11] = 0x01;
+            Blob low = Blob.fromBytes(bytes);
+            specify(zeros.compareTo(low) < 0);
+            specify(low.compareTo(highBit) < 0);
+            specify(highBit.compareTo(low) > 0);
+            specify(highBit.equals(low), should.equal(false));
+        }
+
+        public void longBlobsWithTheSameContentAreEqual() {
+            byte[] bytes = new byte[20];
+            bytes[19] = 7;
+            Blob a = Blob.fromBytes(bytes);
+            Blob b = Blob.wrap(bytes.clone());
+            specify(a.compareTo(b), should.equal(0));
+            specify(a.equals(b));
+        }
     }
 }
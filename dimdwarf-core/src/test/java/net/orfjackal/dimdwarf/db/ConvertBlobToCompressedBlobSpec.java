@@ -0,0 +1,109 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.db;
+
+import jdave.*;
+import jdave.junit4.JDaveRunner;
+import org.junit.runner.RunWith;
+
+import java.util.Random;
+
+@RunWith(JDaveRunner.class)
+@Group({"fast"})
+public class ConvertBlobToCompressedBlobSpec extends Specification<Object> {
+
+    private static final int THRESHOLD = 100;
+
+    private ConvertBlobToCompressedBlob converter = new ConvertBlobToCompressedBlob(THRESHOLD);
+
+    private static Blob compressible(int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) (i % 10);
+        }
+        return Blob.wrap(bytes);
+    }
+
+    private static Blob incompressible(int length) {
+        byte[] bytes = new byte[length];
+        new Random(123).nextBytes(bytes);
+        return Blob.wrap(bytes);
+    }
+
+
+    public class ValuesSmallerThanTheThreshold {
+
+        private Blob original = compressible(THRESHOLD - 1);
+
+        public void areStoredWithOnlyAHeaderByte() {
+            specify(converter.forth(original).length(), should.equal(original.length() + 1));
+        }
+
+        public void convertBackToTheSameValue() {
+            specify(converter.back(converter.forth(original)), should.equal(original));
+        }
+    }
+
+    public class ValuesLargerThanTheThreshold {
+
+        private Blob original = compressible(10000);
+
+        public void areCompressed() {
+            specify(converter.forth(original).length() < original.length() / 10);
+        }
+
+        public void convertBackToTheSameValue() {
+            specify(converter.back(converter.forth(original)), should.equal(original));
+        }
+
+        public void areStoredUncompressedIfCompressingWouldNotMakeThemSmaller() {
+            Blob random = incompressible(1000);
+            Blob stored = converter.forth(random);
+            specify(stored.length(), should.equal(random.length() + 1));
+            specify(converter.back(stored), should.equal(random));
+        }
+    }
+
+    public class TheEmptyBlob {
+
+        public void isNotConverted() {
+            specify(converter.forth(Blob.EMPTY_BLOB), should.equal(Blob.EMPTY_BLOB));
+            specify(converter.back(Blob.EMPTY_BLOB), should.equal(Blob.EMPTY_BLOB));
+        }
+    }
+
+    public class TheStatistics {
+
+        public void tellTheCompressionRatio() {
+            specify(converter.getCompressionRatio(), should.equal(1.0));
+            converter.forth(compressible(1000));
+            converter.forth(compressible(1000));
+            specify(converter.getOriginalBytes(), should.equal(2000L));
+            specify(converter.getStoredBytes() < 200);
+            specify(converter.getCompressionRatio() < 0.1);
+        }
+    }
+
+    public class CorruptedValues {
+
+        public void anUnknownFormatIsDetected() {
+            specify(new Block() {
+                public void run() throws Throwable {
+                    converter.back(Blob.fromBytes(new byte[]{9, 1, 2, 3}));
+                }
+            }, should.raise(PersistenceException.class));
+        }
+
+        public void corruptedCompressedDataIsDetected() {
+            final byte[] stored = converter.forth(compressible(1000)).toByteArray();
+            stored[stored.length / 2] ^= 0x55;
+            specify(new Block() {
+                public void run() throws Throwable {
+                    converter.back(Blob.wrap(stored));
+                }
+            }, should.raise(PersistenceException.class));
+        }
+    }
+}
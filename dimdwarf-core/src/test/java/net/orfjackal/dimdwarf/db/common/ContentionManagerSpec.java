@@ -0,0 +1,167 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.db.common;
+
+import jdave.*;
+import jdave.junit4.JDaveRunner;
+import net.orfjackal.dimdwarf.db.*;
+import org.junit.runner.RunWith;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(JDaveRunner.class)
+@Group({"fast"})
+public class ContentionManagerSpec extends Specification<Object> {
+
+    private ContentionManager contention;
+    private ContentionManager.TransactionLocks tx1;
+    private ContentionManager.TransactionLocks tx2;
+
+    private Blob key1 = Blob.fromBytes(new byte[]{1});
+    private Blob key2 = Blob.fromBytes(new byte[]{2});
+    private Blob key3 = Blob.fromBytes(new byte[]{3});
+
+    public void create() throws Exception {
+        contention = new ContentionManager(2, 10, TimeUnit.MILLISECONDS);
+        tx1 = contention.newTransactionLocks();
+        tx2 = contention.newTransactionLocks();
+    }
+
+    private Block accessing(final ContentionManager.TransactionLocks tx, final Blob key) {
+        return new Block() {
+            public void run() throws Throwable {
+                tx.accessing(key);
+            }
+        };
+    }
+
+
+    public class WhenThereAreNoHotKeys {
+
+        public void transactionsDoNotLockTheKeys() {
+            tx1.accessing(key1);
+            tx2.accessing(key1);
+        }
+    }
+
+    public class WhenAKeyIsHot {
+
+        public void create() {
+            contention.conflictedOn(Arrays.asList(key1));
+        }
+
+        public void onlyOneTransactionAtATimeMayAccessIt() {
+            tx1.accessing(key1);
+            specify(accessing(tx2, key1), should.raise(OptimisticLockException.class));
+            specify(contention.getLockTimeouts(), should.equal(1L));
+        }
+
+        public void theSameTransactionMayAccessItManyTimes() {
+            tx1.accessing(key1);
+            tx1.accessing(key1);
+        }
+
+        public void itIsReleasedWhenTheTransactionEnds() {
+            tx1.accessing(key1);
+            tx1.unlockAll();
+            tx2.accessing(key1);
+        }
+
+        public void theOtherKeysAreNotLocked() {
+            tx1.accessing(key1);
+            tx2.accessing(key2);
+        }
+
+        public void aSerializedTaskHoldsItBeforeItsTransactionBegins() {
+            contention.runSerialized(Arrays.asList(key1), new Runnable() {
+                public void run() {
+                    tx1.accessing(key1);
+                }
+            });
+            specify(contention.getSerializedTasks(), should.equal(1L));
+        }
+    }
+
+    public class WhenASerializedTaskBeginsATransaction {
+
+        private ContentionManager.TransactionLocks serializedTx;
+
+        private void runSerialized(final boolean endTransaction) {
+            contention.runSerialized(Arrays.asList(key1), new Runnable() {
+                public void run() {
+                    serializedTx = contention.newTransactionLocks();
+                    serializedTx.accessing(key1);
+                    if (endTransaction) {
+                        serializedTx.unlockAll();
+                    }
+                }
+            });
+        }
+
+        public void theTransactionHoldsTheLocksAfterTheTaskHasReturned() {
+            runSerialized(false);
+            specify(accessing(tx1, key1), should.raise(OptimisticLockException.class));
+        }
+
+        public void theLocksAreReleasedWhenTheTransactionEnds() {
+            runSerialized(false);
+            serializedTx.unlockAll();
+            tx1.accessing(key1);
+        }
+
+        public void theLocksAreReleasedWhenTheTaskEndsIfTheTransactionHasAlreadyEnded() {
+            runSerialized(true);
+            tx1.accessing(key1);
+        }
+
+        public void aRetryOfTheTransactionTakesOverTheLocksAgain() {
+            contention.runSerialized(Arrays.asList(key1), new Runnable() {
+                public void run() {
+                    contention.newTransactionLocks().unlockAll();
+                    serializedTx = contention.newTransactionLocks();
+                }
+            });
+            specify(accessing(tx1, key1), should.raise(OptimisticLockException.class));
+            serializedTx.unlockAll();
+            tx1.accessing(key1);
+        }
+
+        public void aNestedSerializedTaskDoesNotTakeAwayTheLocksOfTheOuterTask() {
+            contention.runSerialized(Arrays.asList(key1), new Runnable() {
+                public void run() {
+                    contention.runSerialized(Arrays.asList(key2), new Runnable() {
+                        public void run() {
+                        }
+                    });
+                    serializedTx = contention.newTransactionLocks();
+                }
+            });
+            specify(accessing(tx1, key1), should.raise(OptimisticLockException.class));
+            tx1.accessing(key2);
+        }
+    }
+
+    public class WhenThereAreTooManyHotKeys {
+
+        public void theLeastRecentlyHitKeysAreForgotten() {
+            contention.conflictedOn(Arrays.asList(key1, key2));
+            contention.conflictedOn(Arrays.asList(key3));
+            specify(contention.isHot(key1), should.equal(false));
+            specify(contention.isHot(key2));
+            specify(contention.isHot(key3));
+            specify(contention.getHotKeys(), should.equal(2));
+        }
+
+        public void accessingAKeyKeepsItHot() {
+            contention.conflictedOn(Arrays.asList(key1, key2));
+            tx1.accessing(key1);
+            contention.conflictedOn(Arrays.asList(key3));
+            specify(contention.isHot(key1));
+            specify(contention.isHot(key2), should.equal(false));
+            specify(contention.isHot(key3));
+        }
+    }
+}
@@ -2,12 +2,14 @@
 // This software is released under the Apache License 2.0.
 // The license text is at http://dimdwarf.sourceforge.net/LICENSE
 
-package net.orfjackal.dimdwarf.db.inmemory;
+package net.orfjackal.dimdwarf.db.common;
 
 import jdave.*;
 import jdave.junit4.JDaveRunner;
 import org.junit.runner.RunWith;
 
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 @RunWith(JDaveRunner.class)
@@ -139,4 +141,39 @@ public class GroupLockSpec extends Specification<Object> {
             specify(lock.getLockCount(), should.equal(1));
         }
     }
+
+    public class WhenTryingToLockKeysWithATimeout {
+        private LockHandle handleB;
+
+        public void create() {
+            handleB = lock.lockAll("B");
+        }
+
+        public void unlockedKeysAreLockedImmediately() {
+            LockHandle handle = lock.tryLockAll(Arrays.asList("C", "D"), 0, TimeUnit.MILLISECONDS);
+            specify(handle, should.not().equal(null));
+            specify(lock.getLockCount(), should.equal(3));
+        }
+
+        public void givesUpIfSomeKeyIsNotUnlockedInTime() {
+            LockHandle handle = lock.tryLockAll(Arrays.asList("A", "B", "C"), 10, TimeUnit.MILLISECONDS);
+            specify(handle, should.equal(null));
+        }
+
+        public void afterGivingUpNoneOfTheKeysAreLeftLocked() {
+            lock.tryLockAll(Arrays.asList("A", "B", "C"), 10, TimeUnit.MILLISECONDS);
+            specify(lock.isLocked("A"), should.equal(false));
+            specify(lock.isLocked("C"), should.equal(false));
+            specify(lock.getLockCount(), should.equal(1));
+        }
+
+        public void succeedsIfTheKeysAreUnlockedBeforeTheTimeout() {
+            AtomicBoolean wasUnlocked = new AtomicBoolean(false);
+            unlockInNewThread(handleB, wasUnlocked);
+            LockHandle handle = lock.tryLockAll(Arrays.asList("A", "B"), 10, TimeUnit.SECONDS);
+            specify(handle, should.not().equal(null));
+            specify(wasUnlocked.get());
+            specify(lock.getLockCount(), should.equal(2));
+        }
+    }
 }
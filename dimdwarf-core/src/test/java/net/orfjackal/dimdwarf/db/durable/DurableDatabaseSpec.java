@@ -0,0 +1,318 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.db.durable;
+
+import jdave.*;
+import jdave.junit4.JDaveRunner;
+import net.orfjackal.dimdwarf.db.*;
+import net.orfjackal.dimdwarf.testutils.Sandbox;
+import net.orfjackal.dimdwarf.tx.*;
+import org.junit.runner.RunWith;
+import org.slf4j.Logger;
+
+import java.io.*;
+import java.util.*;
+
+import static net.orfjackal.dimdwarf.db.Blob.EMPTY_BLOB;
+
+@RunWith(JDaveRunner.class)
+@Group({"fast"})
+public class DurableDatabaseSpec extends Specification<Object> {
+
+    private static final String TABLE = "test";
+
+    private final Sandbox sandbox = new Sandbox(new File("target"));
+    private File dir;
+    private DurableDatabaseManager dbms;
+    private Logger txLogger;
+
+    private Blob key1 = Blob.fromBytes(new byte[]{1});
+    private Blob key2 = Blob.fromBytes(new byte[]{2});
+    private Blob value1 = Blob.fromBytes(new byte[]{11});
+    private Blob value2 = Blob.fromBytes(new byte[]{12});
+
+    public void create() throws Exception {
+        dir = sandbox.createTempDir();
+        dbms = new DurableDatabaseManager(dir);
+        txLogger = mock(Logger.class);
+    }
+
+    public void destroy() throws Exception {
+        dbms.close();
+        sandbox.deleteTempDir(dir);
+    }
+
+    private void restart() throws IOException {
+        dbms.close();
+        dbms = new DurableDatabaseManager(dir);
+    }
+
+    private Blob readInNewTransaction(Blob key) {
+        TransactionCoordinator tx = new TransactionContext(txLogger);
+        try {
+            return dbms.openConnection(tx.getTransaction()).openTable(TABLE).read(key);
+        } finally {
+            tx.prepareAndCommit();
+        }
+    }
+
+    private void updateInNewTransaction(Blob key, Blob value) {
+        TransactionCoordinator tx = new TransactionContext(txLogger);
+        dbms.openConnection(tx.getTransaction()).openTable(TABLE).update(key, value);
+        tx.prepareAndCommit();
+    }
+
+    private void deleteInNewTransaction(Blob key) {
+        TransactionCoordinator tx = new TransactionContext(txLogger);
+        dbms.openConnection(tx.getTransaction()).openTable(TABLE).delete(key);
+        tx.prepareAndCommit();
+    }
+
+    private static class ParticipantWhichFailsToPrepare implements TransactionParticipant {
+
+        public void prepare() throws Throwable {
+            throw new IllegalStateException("Failed to prepare");
+        }
+
+        public void commit() {
+        }
+
+        public void rollback() {
+        }
+    }
+
+    private File logFile() {
+        File[] files = dir.listFiles();
+        specify(files.length, should.equal(1));
+        return files[0];
+    }
+
+
+    public class WhenTransactionsAreCommitted {
+
+        public void create() {
+            updateInNewTransaction(key1, value1);
+            updateInNewTransaction(key2, value2);
+        }
+
+        public void theUpdatesAreVisibleWithoutRestarting() {
+            specify(readInNewTransaction(key1), should.equal(value1));
+            specify(readInNewTransaction(key2), should.equal(value2));
+        }
+
+        public void theUpdatesSurviveARestart() throws IOException {
+            restart();
+            specify(readInNewTransaction(key1), should.equal(value1));
+            specify(readInNewTransaction(key2), should.equal(value2));
+        }
+
+        public void theDeletesSurviveARestart() throws IOException {
+            deleteInNewTransaction(key1);
+            restart();
+            specify(readInNewTransaction(key1), should.equal(EMPTY_BLOB));
+            specify(readInNewTransaction(key2), should.equal(value2));
+        }
+
+        public void theLaterUpdatesOverrideTheEarlierUpdatesAfterARestart() throws IOException {
+            updateInNewTransaction(key1, value2);
+            restart();
+            specify(readInNewTransaction(key1), should.equal(value2));
+        }
+
+        public void rolledBackTransactionsAreNotRestored() throws IOException {
+            TransactionCoordinator tx = new TransactionContext(txLogger);
+            dbms.openConnection(tx.getTransaction()).openTable(TABLE).update(key1, value2);
+            tx.rollback();
+            restart();
+            specify(readInNewTransaction(key1), should.equal(value1));
+        }
+
+        public void transactionsRolledBackAfterTheirUpdatesWereLoggedAreNotRestored() throws IOException {
+            final TransactionCoordinator tx = new TransactionContext(txLogger);
+            dbms.openConnection(tx.getTransaction()).openTable(TABLE).update(key1, value2);
+            tx.getTransaction().join(new ParticipantWhichFailsToPrepare());
+            specify(new Block() {
+                public void run() throws Throwable {
+                    tx.prepare();
+                }
+            }, should.raise(TransactionException.class));
+            tx.rollback();
+            restart();
+            specify(readInNewTransaction(key1), should.equal(value1));
+        }
+
+        public void theTransactionFailsIfItsUpdatesCanNotBeWrittenToTheLog() throws IOException {
+            dbms.close();
+            final TransactionCoordinator tx = new TransactionContext(txLogger);
+            dbms.openConnection(tx.getTransaction()).openTable(TABLE).update(key1, value2);
+            specify(new Block() {
+                public void run() throws Throwable {
+                    tx.prepare();
+                }
+            }, should.raise(TransactionException.class));
+            tx.rollback();
+            specify(readInNewTransaction(key1), should.equal(value1));
+        }
+
+        public void theResultsOfMergesSurviveARestart() throws IOException {
+            updateInNewTransaction(key1, AddLongs.toBlob(10));
+            TransactionCoordinator tx = new TransactionContext(txLogger);
+            dbms.openConnection(tx.getTransaction()).openTable(TABLE).merge(key1, AddLongs.toBlob(5), AddLongs.INSTANCE);
+            tx.prepareAndCommit();
+            restart();
+            specify(readInNewTransaction(key1), should.equal(AddLongs.toBlob(15)));
+        }
+
+        public void readOnlyTransactionsDoNotWriteToTheLog() {
+            long syncsBefore = dbms.getLogSyncCount();
+            long sizeBefore = logFile().length();
+            readInNewTransaction(key1);
+            specify(dbms.getLogSyncCount(), should.equal(syncsBefore));
+            specify(logFile().length(), should.equal(sizeBefore));
+        }
+    }
+
+    public class WhenTheLogEndsWithAPartiallyWrittenRecord {
+
+        public void create() throws IOException {
+            updateInNewTransaction(key1, value1);
+            dbms.close();
+            RandomAccessFile log = new RandomAccessFile(logFile(), "rw");
+            try {
+                log.seek(log.length());
+                log.writeInt(1000);
+                log.writeInt(0);
+                log.write(new byte[]{1, 2, 3});
+            } finally {
+                log.close();
+            }
+            dbms = new DurableDatabaseManager(dir);
+        }
+
+        public void theCompleteRecordsAreRestored() {
+            specify(readInNewTransaction(key1), should.equal(value1));
+        }
+
+        public void thePartialRecordIsDiscardedAndNewRecordsCanBeAppended() throws IOException {
+            updateInNewTransaction(key2, value2);
+            restart();
+            specify(readInNewTransaction(key1), should.equal(value1));
+            specify(readInNewTransaction(key2), should.equal(value2));
+        }
+    }
+
+    public class WhenManyTransactionsCommitConcurrently {
+
+        private static final int THREADS = 10;
+        private static final int TRANSACTIONS_PER_THREAD = 20;
+
+        private long syncsBefore;
+
+        public void create() throws InterruptedException {
+            // while one sync is in progress, the other threads' commits must wait for the next sync
+            dbms.setExtraLogSyncMillis(5);
+            syncsBefore = dbms.getLogSyncCount();
+            List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < THREADS; i++) {
+                final byte threadId = (byte) i;
+                Thread t = new Thread(new Runnable() {
+                    public void run() {
+                        for (int j = 0; j < TRANSACTIONS_PER_THREAD; j++) {
+                            updateInNewTransaction(Blob.fromBytes(new byte[]{threadId, (byte) j}), value1);
+                        }
+                    }
+                });
+                t.start();
+                threads.add(t);
+            }
+            for (Thread t : threads) {
+                t.join();
+            }
+        }
+
+        public void everyCommittedTransactionSurvivesARestart() throws IOException {
+            restart();
+            for (int i = 0; i < THREADS; i++) {
+                for (int j = 0; j < TRANSACTIONS_PER_THREAD; j++) {
+                    specify(readInNewTransaction(Blob.fromBytes(new byte[]{(byte) i, (byte) j})), should.equal(value1));
+                }
+            }
+        }
+
+        public void theyShareTheirSyncs() {
+            long syncs = dbms.getLogSyncCount() - syncsBefore;
+            specify(syncs > 0);
+            specify(syncs < THREADS * TRANSACTIONS_PER_THREAD);
+        }
+    }
+
+    public class WhenACheckpointIsTaken {
+
+        public void create() throws IOException {
+            updateInNewTransaction(key1, value1);
+            updateInNewTransaction(key2, value1);
+            dbms.checkpoint();
+        }
+
+        public void theUpdatesBeforeTheCheckpointSurviveARestart() throws IOException {
+            restart();
+            specify(readInNewTransaction(key1), should.equal(value1));
+            specify(readInNewTransaction(key2), should.equal(value1));
+        }
+
+        public void theUpdatesAfterTheCheckpointSurviveARestart() throws IOException {
+            updateInNewTransaction(key1, value2);
+            deleteInNewTransaction(key2);
+            restart();
+            specify(readInNewTransaction(key1), should.equal(value2));
+            specify(readInNewTransaction(key2), should.equal(EMPTY_BLOB));
+        }
+
+        public void theLogIsStartedAnew() {
+            specify(new File(dir, "transactions.log").length(), should.equal(0L));
+            specify(new File(dir, "snapshot.db").isFile());
+            specify(dir.listFiles().length, should.equal(2));
+        }
+
+        public void laterCheckpointsReplaceTheEarlierOnes() throws IOException {
+            updateInNewTransaction(key1, value2);
+            dbms.checkpoint();
+            updateInNewTransaction(key2, value2);
+            restart();
+            specify(readInNewTransaction(key1), should.equal(value2));
+            specify(readInNewTransaction(key2), should.equal(value2));
+        }
+    }
+
+    public class WhenACheckpointWasInterrupted {
+
+        public void create() throws IOException {
+            updateInNewTransaction(key1, value1);
+            dbms.checkpoint();
+            updateInNewTransaction(key1, value2);
+            updateInNewTransaction(key2, value2);
+            dbms.close();
+            // as if the server had crashed after starting a new log, but before writing the snapshot
+            File log = new File(dir, "transactions.log");
+            specify(log.renameTo(new File(dir, "transactions.log.previous")));
+            dbms = new DurableDatabaseManager(dir);
+            updateInNewTransaction(key2, value1);
+        }
+
+        public void theSnapshotAndBothLogsAreRestored() throws IOException {
+            restart();
+            specify(readInNewTransaction(key1), should.equal(value2));
+            specify(readInNewTransaction(key2), should.equal(value1));
+        }
+
+        public void theNextCheckpointDiscardsThePreviousLog() throws IOException {
+            dbms.checkpoint();
+            specify(new File(dir, "transactions.log.previous").exists(), should.equal(false));
+            restart();
+            specify(readInNewTransaction(key1), should.equal(value2));
+            specify(readInNewTransaction(key2), should.equal(value1));
+        }
+    }
+}
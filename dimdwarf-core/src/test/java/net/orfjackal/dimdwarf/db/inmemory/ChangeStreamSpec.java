@@ -0,0 +1,181 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.db.inmemory;
+
+import jdave.*;
+import jdave.junit4.JDaveRunner;
+import net.orfjackal.dimdwarf.db.Blob;
+import net.orfjackal.dimdwarf.db.common.ChangeListener;
+import net.orfjackal.dimdwarf.tx.*;
+import org.junit.runner.RunWith;
+import org.slf4j.Logger;
+
+import java.util.concurrent.*;
+
+@RunWith(JDaveRunner.class)
+@Group({"fast"})
+public class ChangeStreamSpec extends Specification<Object> {
+
+    private static final String TABLE = "test";
+    private static final String OTHER_TABLE = "other";
+
+    private InMemoryDatabase db;
+    private InMemoryDatabaseManager dbms;
+    private Logger txLogger;
+    private ChangeSpy spy;
+
+    private Blob key1 = Blob.fromBytes(new byte[]{1});
+    private Blob key2 = Blob.fromBytes(new byte[]{2});
+    private Blob value1 = Blob.fromBytes(new byte[]{11});
+    private Blob value2 = Blob.fromBytes(new byte[]{12});
+
+    public void create() throws Exception {
+        db = new InMemoryDatabase();
+        dbms = new InMemoryDatabaseManager(db);
+        txLogger = mock(Logger.class);
+        spy = new ChangeSpy();
+        updateInNewTransaction(TABLE, key1, value1);
+        db.addChangeListener(spy);
+    }
+
+    public void destroy() throws Exception {
+        db.removeChangeListener(spy);
+    }
+
+    private void updateInNewTransaction(String table, Blob key, Blob value) {
+        TransactionCoordinator tx = new TransactionContext(txLogger);
+        dbms.openConnection(tx.getTransaction()).openTable(table).update(key, value);
+        tx.prepareAndCommit();
+    }
+
+    private String nextChange() throws InterruptedException {
+        String change = spy.changes.poll(5, TimeUnit.SECONDS);
+        specify(change != null);
+        return change;
+    }
+
+    private static String change(long revision, String table, Blob key, Blob newValue) {
+        return revision + ":" + table + ":" + key + "=" + newValue;
+    }
+
+
+    public class WhenTransactionsCommit {
+
+        public void theListenersReceiveTheirChanges() throws InterruptedException {
+            long revision = dbms.getCurrentRevision() + 1;
+            updateInNewTransaction(TABLE, key2, value2);
+            specify(nextChange(), should.equal(change(revision, TABLE, key2, value2)));
+        }
+
+        public void theChangesAreDeliveredInTheOrderOfTheRevisions() throws InterruptedException {
+            long revision = dbms.getCurrentRevision() + 1;
+            updateInNewTransaction(TABLE, key1, value2);
+            updateInNewTransaction(OTHER_TABLE, key1, value1);
+            specify(nextChange(), should.equal(change(revision, TABLE, key1, value2)));
+            specify(nextChange(), should.equal(change(revision + 1, OTHER_TABLE, key1, value1)));
+        }
+
+        public void deletesAreDeliveredAsEmptyValues() throws InterruptedException {
+            long revision = dbms.getCurrentRevision() + 1;
+            TransactionCoordinator tx = new TransactionContext(txLogger);
+            dbms.openConnection(tx.getTransaction()).openTable(TABLE).delete(key1);
+            tx.prepareAndCommit();
+            specify(nextChange(), should.equal(change(revision, TABLE, key1, Blob.EMPTY_BLOB)));
+        }
+
+        public void transactionsWithoutChangesDoNotStallTheStream() throws InterruptedException {
+            TransactionCoordinator readOnly = new TransactionContext(txLogger);
+            dbms.openConnection(readOnly.getTransaction()).openTable(TABLE).read(key1);
+            readOnly.prepareAndCommit();
+            long revision = dbms.getCurrentRevision() + 1;
+            updateInNewTransaction(TABLE, key2, value2);
+            specify(nextChange(), should.equal(change(revision, TABLE, key2, value2)));
+        }
+
+        public void rolledBackTransactionsAreNotDelivered() throws InterruptedException {
+            TransactionCoordinator tx = new TransactionContext(txLogger);
+            dbms.openConnection(tx.getTransaction()).openTable(TABLE).update(key1, value2);
+            tx.rollback();
+            long revision = dbms.getCurrentRevision() + 1;
+            updateInNewTransaction(TABLE, key2, value2);
+            specify(nextChange(), should.equal(change(revision, TABLE, key2, value2)));
+        }
+
+        public void removedListenersReceiveNoMoreChanges() throws InterruptedException {
+            db.removeChangeListener(spy);
+            updateInNewTransaction(TABLE, key2, value2);
+            specify(spy.changes.poll(50, TimeUnit.MILLISECONDS), should.equal(null));
+        }
+
+        public void listenersWhichAreAddedAgainReceiveEachChangeOnce() throws InterruptedException {
+            db.removeChangeListener(spy);
+            db.addChangeListener(spy);
+            long revision = dbms.getCurrentRevision() + 1;
+            updateInNewTransaction(TABLE, key2, value2);
+            specify(nextChange(), should.equal(change(revision, TABLE, key2, value2)));
+            specify(spy.changes.poll(50, TimeUnit.MILLISECONDS), should.equal(null));
+        }
+
+        public void listenersAddedWhileOlderChangesAreBeingDeliveredReceiveOnlyTheNewerChanges() throws InterruptedException {
+            spy.blockUntil = new CountDownLatch(1);
+            updateInNewTransaction(TABLE, key2, value2);
+            specify(nextChange() != null);
+            updateInNewTransaction(TABLE, key1, value2);
+
+            ChangeSpy lateSpy = new ChangeSpy();
+            db.addChangeListener(lateSpy);
+            try {
+                long revision = dbms.getCurrentRevision() + 1;
+                updateInNewTransaction(OTHER_TABLE, key1, value1);
+                spy.blockUntil.countDown();
+                specify(lateSpy.changes.poll(5, TimeUnit.SECONDS), should.equal(change(revision, OTHER_TABLE, key1, value1)));
+            } finally {
+                db.removeChangeListener(lateSpy);
+            }
+        }
+
+        public void changesAreDeliveredAfterTheStreamHasBeenIdle() throws InterruptedException {
+            Thread.sleep(20);
+            long revision = dbms.getCurrentRevision() + 1;
+            updateInNewTransaction(TABLE, key2, value2);
+            specify(spy.changes.poll(1, TimeUnit.SECONDS), should.equal(change(revision, TABLE, key2, value2)));
+        }
+    }
+
+    public class WhenTheListenersFallTooFarBehind {
+
+        public void theOverwrittenRevisionsAreReportedAsLost() throws InterruptedException {
+            spy.blockUntil = new CountDownLatch(1);
+            updateInNewTransaction(TABLE, key2, value2);
+            specify(nextChange() != null);
+            for (int i = 0; i < ChangeStream.DEFAULT_CAPACITY * 2; i++) {
+                updateInNewTransaction(TABLE, key1, Blob.fromBytes(new byte[]{(byte) i}));
+            }
+            spy.blockUntil.countDown();
+            String next = nextChange();
+            specify(next, next.startsWith("lost:"));
+            specify(db.getChangeStream().getLostRevisions() > 0);
+        }
+    }
+
+
+    private static class ChangeSpy implements ChangeListener {
+        private final BlockingQueue<String> changes = new LinkedBlockingQueue<>();
+        private volatile CountDownLatch blockUntil = new CountDownLatch(0);
+
+        public void changed(long revision, String table, Blob key, Blob newValue) {
+            changes.add(change(revision, table, key, newValue));
+            try {
+                blockUntil.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        public void changesLost(long fromRevision, long toRevision) {
+            changes.add("lost:" + fromRevision + "-" + toRevision);
+        }
+    }
+}
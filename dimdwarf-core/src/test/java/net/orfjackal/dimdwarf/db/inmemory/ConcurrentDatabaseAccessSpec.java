@@ -255,6 +255,37 @@ public class ConcurrentDatabaseAccessSpec extends Specification<Object> {
         }
     }
 
+    public class IfTheKeyIsLockedByAnotherTransactionWhichIsCommitting {
+
+        public void create() {
+            updateInNewTransaction(key, value3);
+            table1 = dbms.openConnection(tx1.getTransaction()).openTable(TABLE);
+            table2 = dbms.openConnection(tx2.getTransaction()).openTable(TABLE);
+            table1.update(key, value1);
+            table2.update(key, value2);
+            tx1.prepare();
+        }
+
+        public void thePrepareFailsWithoutWaitingForTheOtherTransactionToFinish() {
+            specify(new Block() {
+                public void run() throws Throwable {
+                    tx2.prepare();
+                }
+            }, should.raise(TransactionException.class));
+            tx2.rollback();
+        }
+
+        public void theOtherTransactionIsNotAffected() {
+            try {
+                tx2.prepare();
+            } catch (TransactionException e) {
+                tx2.rollback();
+            }
+            tx1.commit();
+            specify(readInNewTransaction(key), should.equal(value1));
+        }
+    }
+
     public class IfTwoTransactionsDeleteAnEntryWithTheSameKey {
 
         public void create() {
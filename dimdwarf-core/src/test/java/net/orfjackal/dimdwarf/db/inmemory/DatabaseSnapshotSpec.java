@@ -0,0 +1,168 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.db.inmemory;
+
+import jdave.*;
+import jdave.junit4.JDaveRunner;
+import net.orfjackal.dimdwarf.db.*;
+import net.orfjackal.dimdwarf.testutils.Sandbox;
+import net.orfjackal.dimdwarf.tx.*;
+import org.junit.runner.RunWith;
+import org.slf4j.Logger;
+
+import java.io.*;
+
+import static net.orfjackal.dimdwarf.db.Blob.EMPTY_BLOB;
+
+@RunWith(JDaveRunner.class)
+@Group({"fast"})
+public class DatabaseSnapshotSpec extends Specification<Object> {
+
+    private static final String TABLE1 = "table1";
+    private static final String TABLE2 = "table2";
+
+    private final Sandbox sandbox = new Sandbox(new File("target"));
+    private File dir;
+    private File snapshot;
+    private InMemoryDatabase db;
+    private InMemoryDatabaseManager dbms;
+    private Logger txLogger;
+
+    private Blob key1 = Blob.fromBytes(new byte[]{1});
+    private Blob key2 = Blob.fromBytes(new byte[]{2});
+    private Blob value1 = Blob.fromBytes(new byte[]{11});
+    private Blob value2 = Blob.fromBytes(new byte[]{12});
+
+    public void create() throws Exception {
+        dir = sandbox.createTempDir();
+        snapshot = new File(dir, "snapshot.db");
+        db = new InMemoryDatabase();
+        dbms = new InMemoryDatabaseManager(db);
+        txLogger = mock(Logger.class);
+    }
+
+    public void destroy() throws Exception {
+        sandbox.deleteTempDir(dir);
+    }
+
+    private void restoreToNewDatabase() throws IOException {
+        db = new InMemoryDatabase();
+        db.restoreSnapshot(snapshot, 2);
+        dbms = new InMemoryDatabaseManager(db);
+    }
+
+    private Blob readInNewTransaction(String table, Blob key) {
+        TransactionCoordinator tx = new TransactionContext(txLogger);
+        try {
+            return dbms.openConnection(tx.getTransaction()).openTable(table).read(key);
+        } finally {
+            tx.prepareAndCommit();
+        }
+    }
+
+    private void updateInNewTransaction(String table, Blob key, Blob value) {
+        TransactionCoordinator tx = new TransactionContext(txLogger);
+        dbms.openConnection(tx.getTransaction()).openTable(table).update(key, value);
+        tx.prepareAndCommit();
+    }
+
+
+    public class WhenASnapshotIsRestored {
+
+        public void create() throws IOException {
+            updateInNewTransaction(TABLE1, key1, value1);
+            updateInNewTransaction(TABLE1, key2, value2);
+            updateInNewTransaction(TABLE2, key1, value2);
+            updateInNewTransaction(TABLE2, key2, value1);
+            updateInNewTransaction(TABLE2, key2, EMPTY_BLOB);
+        }
+
+        public void allTablesAreRestored() throws IOException {
+            db.writeSnapshot(snapshot);
+            restoreToNewDatabase();
+            specify(readInNewTransaction(TABLE1, key1), should.equal(value1));
+            specify(readInNewTransaction(TABLE1, key2), should.equal(value2));
+            specify(readInNewTransaction(TABLE2, key1), should.equal(value2));
+        }
+
+        public void deletedKeysAreNotRestored() throws IOException {
+            db.writeSnapshot(snapshot);
+            restoreToNewDatabase();
+            specify(readInNewTransaction(TABLE2, key2), should.equal(EMPTY_BLOB));
+            specify(db.getNumberOfKeys(), should.equal(3));
+        }
+
+        public void theRestoredDatabaseCanBeModified() throws IOException {
+            db.writeSnapshot(snapshot);
+            restoreToNewDatabase();
+            updateInNewTransaction(TABLE1, key1, value2);
+            specify(readInNewTransaction(TABLE1, key1), should.equal(value2));
+        }
+
+        public void theSnapshotContainsOnlyTheRevisionItWasTakenFrom() throws IOException {
+            RevisionHandle handle = db.openNewestRevision();
+            updateInNewTransaction(TABLE1, key1, value2);
+            db.writeSnapshot(snapshot, handle);
+            handle.rollback();
+
+            restoreToNewDatabase();
+            specify(readInNewTransaction(TABLE1, key1), should.equal(value1));
+        }
+
+        public void aNewerSnapshotReplacesTheOlderOne() throws IOException {
+            db.writeSnapshot(snapshot);
+            updateInNewTransaction(TABLE1, key1, value2);
+            db.writeSnapshot(snapshot);
+            restoreToNewDatabase();
+            specify(readInNewTransaction(TABLE1, key1), should.equal(value2));
+        }
+
+        public void restoringIsAllowedOnlyIntoAnEmptyDatabase() throws IOException {
+            db.writeSnapshot(snapshot);
+            specify(new Block() {
+                public void run() throws Throwable {
+                    db.restoreSnapshot(snapshot, 1);
+                }
+            }, should.raise(IllegalStateException.class));
+        }
+    }
+
+    public class WhenTheSnapshotIsCorrupted {
+
+        public void create() throws IOException {
+            updateInNewTransaction(TABLE1, key1, value1);
+            db.writeSnapshot(snapshot);
+        }
+
+        public void corruptedDataIsDetected() throws IOException {
+            RandomAccessFile file = new RandomAccessFile(snapshot, "rw");
+            try {
+                file.seek(21);
+                file.write(0x7F);
+            } finally {
+                file.close();
+            }
+            specify(new Block() {
+                public void run() throws Throwable {
+                    restoreToNewDatabase();
+                }
+            }, should.raise(PersistenceException.class));
+        }
+
+        public void aTruncatedFileIsDetected() throws IOException {
+            RandomAccessFile file = new RandomAccessFile(snapshot, "rw");
+            try {
+                file.setLength(file.length() - 1);
+            } finally {
+                file.close();
+            }
+            specify(new Block() {
+                public void run() throws Throwable {
+                    restoreToNewDatabase();
+                }
+            }, should.raise(PersistenceException.class));
+        }
+    }
+}
@@ -0,0 +1,165 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.db.inmemory;
+
+import jdave.*;
+import jdave.junit4.JDaveRunner;
+import net.orfjackal.dimdwarf.db.*;
+import net.orfjackal.dimdwarf.db.common.*;
+import net.orfjackal.dimdwarf.tx.*;
+import org.junit.runner.RunWith;
+import org.slf4j.Logger;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(JDaveRunner.class)
+@Group({"fast"})
+public class EarlyConflictDetectionSpec extends Specification<Object> {
+
+    private static final String TABLE = "test";
+
+    private InMemoryDatabase db;
+    private InMemoryDatabaseManager dbms;
+    private ConflictDetector conflicts;
+    private Logger txLogger;
+    private TransactionCoordinator tx;
+    private DatabaseTable<Blob, Blob> table;
+
+    private Blob key = Blob.fromBytes(new byte[]{0});
+    private Blob otherKey = Blob.fromBytes(new byte[]{1});
+    private Blob value1 = Blob.fromBytes(new byte[]{1});
+    private Blob value2 = Blob.fromBytes(new byte[]{2});
+
+    public void create() throws Exception {
+        db = new InMemoryDatabase();
+        dbms = new InMemoryDatabaseManager(db);
+        conflicts = db.getConflictDetector();
+        txLogger = mock(Logger.class);
+        updateInNewTransaction(key, value1);
+
+        tx = new TransactionContext(txLogger);
+        table = dbms.openConnection(tx.getTransaction()).openTable(TABLE);
+        updateInNewTransaction(key, value2);
+    }
+
+    private void updateInNewTransaction(Blob key, Blob value) {
+        TransactionCoordinator tx = new TransactionContext(txLogger);
+        dbms.openConnection(tx.getTransaction()).openTable(TABLE).update(key, value);
+        tx.prepareAndCommit();
+    }
+
+    private Block updating(final Blob key) {
+        return new Block() {
+            public void run() throws Throwable {
+                table.update(key, value1);
+            }
+        };
+    }
+
+    private Block reading(final Blob key) {
+        return new Block() {
+            public void run() throws Throwable {
+                table.read(key);
+            }
+        };
+    }
+
+
+    public class WhenConflictsAreDetectedAtCommit {
+
+        public void create() {
+            conflicts.setMode(ConflictDetection.AT_COMMIT);
+        }
+
+        public void theTransactionFailsOnlyWhenItIsPrepared() {
+            table.read(key);
+            table.update(key, value1);
+            specify(new Block() {
+                public void run() throws Throwable {
+                    tx.prepare();
+                }
+            }, should.raise(TransactionException.class));
+            specify(conflicts.getConflictsAtCommit(), should.equal(1L));
+            specify(conflicts.getEarlyConflicts(), should.equal(0L));
+        }
+    }
+
+    public class WhenConflictsAreDetectedOnWrite {
+
+        public void create() {
+            conflicts.setMode(ConflictDetection.ON_WRITE);
+        }
+
+        public void modifyingAKeyWhichWasCommittedByAnotherTransactionFails() {
+            specify(updating(key), should.raise(OptimisticLockException.class));
+            specify(conflicts.getEarlyConflicts(), should.equal(1L));
+        }
+
+        public void deletingSuchAKeyFails() {
+            specify(new Block() {
+                public void run() throws Throwable {
+                    table.delete(key);
+                }
+            }, should.raise(OptimisticLockException.class));
+        }
+
+        public void readingSuchAKeyIsAllowed() {
+            specify(table.read(key), should.equal(value1));
+        }
+
+        public void modifyingOtherKeysIsAllowed() {
+            table.update(otherKey, value1);
+            tx.prepareAndCommit();
+        }
+    }
+
+    public class WhenConflictsAreDetectedOnRead {
+
+        public void create() {
+            conflicts.setMode(ConflictDetection.ON_READ);
+        }
+
+        public void readingAKeyWhichWasCommittedByAnotherTransactionFails() {
+            specify(reading(key), should.raise(OptimisticLockException.class));
+            specify(conflicts.getEarlyConflicts(), should.equal(1L));
+        }
+
+        public void readingManyKeysAtOnceFails() {
+            specify(new Block() {
+                public void run() throws Throwable {
+                    table.readAll(Arrays.asList(otherKey, key));
+                }
+            }, should.raise(OptimisticLockException.class));
+        }
+
+        public void readingTheTransactionsOwnModificationsIsAllowed() {
+            conflicts.setMode(ConflictDetection.AT_COMMIT);
+            table.update(key, value1);
+            conflicts.setMode(ConflictDetection.ON_READ);
+            specify(table.read(key), should.equal(value1));
+        }
+
+        public void readingOtherKeysIsAllowed() {
+            specify(table.read(otherKey), should.equal(Blob.EMPTY_BLOB));
+        }
+    }
+
+    public class TheWastedWork {
+
+        public void isTheTimeWhichTheConflictingTransactionsRan() {
+            conflicts.setMode(ConflictDetection.ON_READ);
+            specify(reading(key), should.raise(OptimisticLockException.class));
+            specify(conflicts.getWastedTime(TimeUnit.NANOSECONDS) > 0);
+        }
+
+        public void theSavedTimeIsEstimatedFromHowLongTheTransactionsRunUntilCommit() {
+            specify(conflicts.getEstimatedSavedTime(TimeUnit.NANOSECONDS), should.equal(0L));
+            conflicts.setMode(ConflictDetection.ON_READ);
+            specify(reading(key), should.raise(OptimisticLockException.class));
+            specify(conflicts.getEstimatedSavedTime(TimeUnit.NANOSECONDS) >= 0);
+        }
+    }
+}
@@ -1,4 +1,4 @@
-// Copyright © 2008-2010 Esko Luontola <www.orfjackal.net>
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
 // This software is released under the Apache License 2.0.
 // The license text is at http://dimdwarf.sourceforge.net/LICENSE
 
@@ -48,7 +48,13 @@ public class InMemoryDatabaseSpec extends Specification<Object> {
             specify(dbms.getOpenConnections(), should.equal(0));
         }
 
+        private void updateInBothTransactions() {
+            dbms.openConnection(tx1.getTransaction()).openTable(TABLE).update(key, value1);
+            dbms.openConnection(tx2.getTransaction()).openTable(TABLE).update(Blob.EMPTY_BLOB, value1);
+        }
+
         public void databaseKeepsTrackOfTheCurrentRevision() {
+            updateInBothTransactions();
             specify(dbms.getCurrentRevision(), should.equal(0));
             tx1.prepareAndCommit();
             specify(dbms.getCurrentRevision(), should.equal(1));
@@ -57,12 +63,20 @@ public class InMemoryDatabaseSpec extends Specification<Object> {
         }
 
         public void databaseKeepsTrackOfTheOldestRevisionInUse() {
+            updateInBothTransactions();
             specify(dbms.getOldestRevisionInUse(), should.equal(0));
             tx1.prepareAndCommit();
             specify(dbms.getOldestRevisionInUse(), should.equal(0));
             tx2.prepareAndCommit();
             specify(dbms.getOldestRevisionInUse(), should.equal(2));
         }
+
+        public void transactionsWhichWriteNothingDoNotCreateNewRevisions() {
+            tx1.prepareAndCommit();
+            tx2.prepareAndCommit();
+            specify(dbms.getCurrentRevision(), should.equal(0));
+            specify(dbms.getOpenConnections(), should.equal(0));
+        }
     }
 
     public class WhenThereAreDatabaseEntries {
@@ -85,4 +99,26 @@ public class InMemoryDatabaseSpec extends Specification<Object> {
             specify(dbms.getNumberOfKeys(), should.equal(0));
         }
     }
+
+    public class TheRevisionOfAValue {
+
+        public void isZeroBeforeTheKeyHasBeenWritten() {
+            DatabaseTable<Blob, Blob> table = dbms.openConnection(tx1.getTransaction()).openTable(TABLE);
+            specify(table.getRevision(key), should.equal(0L));
+        }
+
+        public void isTheRevisionInWhichTheValueWasCommitted() {
+            dbms.openConnection(tx1.getTransaction()).openTable(TABLE).update(key, value1);
+            tx1.prepareAndCommit();
+
+            DatabaseTable<Blob, Blob> table = dbms.openConnection(tx2.getTransaction()).openTable(TABLE);
+            specify(table.getRevision(key), should.equal(1L));
+        }
+
+        public void isNegativeAfterTheTransactionHasModifiedTheKey() {
+            DatabaseTable<Blob, Blob> table = dbms.openConnection(tx1.getTransaction()).openTable(TABLE);
+            table.update(key, value1);
+            specify(table.getRevision(key) < 0);
+        }
+    }
 }
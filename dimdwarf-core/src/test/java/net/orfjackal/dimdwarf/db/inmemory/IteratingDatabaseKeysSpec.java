@@ -49,6 +49,10 @@ public class IteratingDatabaseKeysSpec extends Specification<Object> {
         public void nextKeyAfterNonexistantKey() {
             specify(table.nextKeyAfter(key1), should.equal(null));
         }
+
+        public void lastKey() {
+            specify(table.lastKey(), should.equal(null));
+        }
     }
 
     public class ANonEmptyDatabaseTable {
@@ -79,5 +83,29 @@ public class IteratingDatabaseKeysSpec extends Specification<Object> {
         public void nextKeyAfterNonexistentLastKey() {
             specify(table.nextKeyAfter(key4), should.equal(null));
         }
+
+        public void lastKey() {
+            specify(table.lastKey(), should.equal(key3));
+        }
+
+        public void lastKeyIncludesTheKeysAddedInTheTransaction() {
+            table.update(key4, value);
+            specify(table.lastKey(), should.equal(key4));
+        }
+
+        public void lastKeyExcludesTheKeysDeletedInTheTransaction() {
+            table.delete(key3);
+            specify(table.lastKey(), should.equal(key1));
+        }
+
+        public void lastKeyExcludesTheKeysDeletedInLaterRevisions() {
+            TransactionCoordinator tx2 = new TransactionContext(txLogger);
+            dbms.openConnection(tx2.getTransaction()).openTable(TABLE).delete(key3);
+            tx2.prepareAndCommit();
+            specify(table.lastKey(), should.equal(key3));
+            tx.prepareAndCommit();
+            beginNewTransaction();
+            specify(table.lastKey(), should.equal(key1));
+        }
     }
 }
@@ -0,0 +1,127 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.db.inmemory;
+
+import jdave.*;
+import jdave.junit4.JDaveRunner;
+import net.orfjackal.dimdwarf.db.*;
+import net.orfjackal.dimdwarf.tx.*;
+import org.junit.runner.RunWith;
+import org.slf4j.Logger;
+
+import java.util.*;
+
+@RunWith(JDaveRunner.class)
+@Group({"fast"})
+public class LongRunningReaderSpec extends Specification<Object> {
+
+    private static final String TABLE = "test";
+    private static final int WRITERS = 4;
+    private static final int KEYS_PER_WRITER = 5;
+    private static final int UPDATES_PER_KEY = 100;
+    private static final int KEYS = WRITERS * KEYS_PER_WRITER;
+
+    private InMemoryDatabaseManager dbms;
+    private Logger txLogger;
+    private TransactionCoordinator longReader;
+    private DatabaseTable<Blob, Blob> longReaderTable;
+
+    private Blob initialValue = Blob.fromBytes(new byte[]{0});
+
+    public void create() throws Exception {
+        dbms = new InMemoryDatabaseManager();
+        txLogger = mock(Logger.class);
+    }
+
+    private static Blob key(int i) {
+        return Blob.fromBytes(new byte[]{(byte) i});
+    }
+
+    private void updateInNewTransaction(Blob key, Blob value) {
+        TransactionCoordinator tx = new TransactionContext(txLogger);
+        dbms.openConnection(tx.getTransaction()).openTable(TABLE).update(key, value);
+        tx.prepareAndCommit();
+    }
+
+    private void updateRetryingOnConflict(Blob key, Blob value) {
+        while (true) {
+            TransactionCoordinator tx = new TransactionContext(txLogger);
+            dbms.openConnection(tx.getTransaction()).openTable(TABLE).update(key, value);
+            try {
+                tx.prepareAndCommit();
+                return;
+            } catch (TransactionException e) {
+                // the previous update of this key by this same thread might not yet be readable
+                tx.rollback();
+            }
+        }
+    }
+
+    private void runInNewTransaction() {
+        TransactionCoordinator tx = new TransactionContext(txLogger);
+        dbms.openConnection(tx.getTransaction()).openTable(TABLE);
+        tx.prepareAndCommit();
+    }
+
+
+    public class WhenHotKeysAreUpdatedWhileALongRunningTransactionIsReadingThem {
+
+        public void create() throws InterruptedException {
+            for (int i = 0; i < KEYS; i++) {
+                updateInNewTransaction(key(i), initialValue);
+            }
+            longReader = new TransactionContext(txLogger);
+            longReaderTable = dbms.openConnection(longReader.getTransaction()).openTable(TABLE);
+
+            List<Thread> writers = new ArrayList<>();
+            for (int w = 0; w < WRITERS; w++) {
+                final int firstKey = w * KEYS_PER_WRITER;
+                Thread t = new Thread(new Runnable() {
+                    public void run() {
+                        for (int n = 1; n <= UPDATES_PER_KEY; n++) {
+                            for (int k = firstKey; k < firstKey + KEYS_PER_WRITER; k++) {
+                                updateRetryingOnConflict(key(k), Blob.fromBytes(new byte[]{(byte) n}));
+                            }
+                        }
+                    }
+                });
+                t.start();
+                writers.add(t);
+            }
+            for (Thread t : writers) {
+                t.join();
+            }
+            runInNewTransaction(); // purges whatever the concurrent commits left behind
+        }
+
+        public void theLongRunningTransactionStillSeesItsSnapshot() {
+            for (int i = 0; i < KEYS; i++) {
+                specify(longReaderTable.read(key(i)), should.equal(initialValue));
+            }
+            longReader.prepareAndCommit();
+        }
+
+        public void theOtherTransactionsSeeTheNewestValues() {
+            TransactionCoordinator tx = new TransactionContext(txLogger);
+            DatabaseTable<Blob, Blob> table = dbms.openConnection(tx.getTransaction()).openTable(TABLE);
+            for (int i = 0; i < KEYS; i++) {
+                specify(table.read(key(i)), should.equal(Blob.fromBytes(new byte[]{(byte) UPDATES_PER_KEY})));
+            }
+            tx.prepareAndCommit();
+            longReader.prepareAndCommit();
+        }
+
+        public void onlyTheNewestRevisionAndTheRevisionSeenByTheLongRunningTransactionAreKeptInMemory() {
+            specify(dbms.getNumberOfRevisions(), should.equal((long) KEYS * 2));
+            longReader.prepareAndCommit();
+        }
+
+        public void afterTheLongRunningTransactionEndsOnlyTheNewestRevisionIsKept() {
+            longReader.prepareAndCommit();
+            runInNewTransaction();
+            specify(dbms.getNumberOfRevisions(), should.equal((long) KEYS));
+        }
+    }
+}
@@ -0,0 +1,188 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.db.inmemory;
+
+import jdave.*;
+import jdave.junit4.JDaveRunner;
+import net.orfjackal.dimdwarf.db.*;
+import net.orfjackal.dimdwarf.tx.*;
+import org.junit.runner.RunWith;
+import org.slf4j.Logger;
+
+import java.util.*;
+
+import static net.orfjackal.dimdwarf.db.AddLongs.*;
+
+@RunWith(JDaveRunner.class)
+@Group({"fast"})
+public class MergingDatabaseValuesSpec extends Specification<Object> {
+
+    private static final String TABLE = "test";
+
+    private InMemoryDatabase db;
+    private InMemoryDatabaseManager dbms;
+    private Logger txLogger;
+    private TransactionCoordinator tx1;
+    private TransactionCoordinator tx2;
+    private MergeableDatabaseTable<Blob, Blob> table1;
+    private MergeableDatabaseTable<Blob, Blob> table2;
+
+    private Blob key = Blob.fromBytes(new byte[]{1});
+    private Blob otherKey = Blob.fromBytes(new byte[]{2});
+
+    public void create() throws Exception {
+        db = new InMemoryDatabase();
+        dbms = new InMemoryDatabaseManager(db);
+        txLogger = mock(Logger.class);
+        updateInNewTransaction(key, toBlob(10));
+        tx1 = new TransactionContext(txLogger);
+        tx2 = new TransactionContext(txLogger);
+        table1 = dbms.openConnection(tx1.getTransaction()).openTable(TABLE);
+        table2 = dbms.openConnection(tx2.getTransaction()).openTable(TABLE);
+    }
+
+    private long readInNewTransaction(Blob key) {
+        TransactionCoordinator tx = new TransactionContext(txLogger);
+        try {
+            return toLong(dbms.openConnection(tx.getTransaction()).openTable(TABLE).read(key));
+        } finally {
+            tx.prepareAndCommit();
+        }
+    }
+
+    private void updateInNewTransaction(Blob key, Blob value) {
+        TransactionCoordinator tx = new TransactionContext(txLogger);
+        dbms.openConnection(tx.getTransaction()).openTable(TABLE).update(key, value);
+        tx.prepareAndCommit();
+    }
+
+    private static void add(MergeableDatabaseTable<Blob, Blob> table, Blob key, long delta) {
+        table.merge(key, toBlob(delta), AddLongs.INSTANCE);
+    }
+
+
+    public class WhenManyTransactionsMergeIntoTheSameKey {
+
+        public void create() {
+            add(table1, key, 1);
+            add(table2, key, 2);
+        }
+
+        public void theyDoNotConflict() {
+            tx1.prepareAndCommit();
+            tx2.prepareAndCommit();
+            specify(readInNewTransaction(key), should.equal(13L));
+        }
+
+        public void theMergeIsAppliedToTheNewestValueInsteadOfTheReadRevision() {
+            updateInNewTransaction(key, toBlob(100));
+            tx1.prepareAndCommit();
+            specify(readInNewTransaction(key), should.equal(101L));
+        }
+
+        public void aNonexistentKeyIsMergedIntoAsTheEmptyValue() {
+            add(table1, otherKey, 5);
+            tx1.prepareAndCommit();
+            specify(readInNewTransaction(otherKey), should.equal(5L));
+        }
+
+        public void anUpdateOfTheSameKeyStillConflicts() {
+            tx1.prepareAndCommit();
+            table2.update(key, toBlob(0));
+            specify(new Block() {
+                public void run() throws Throwable {
+                    tx2.prepare();
+                }
+            }, should.raise(TransactionException.class));
+        }
+    }
+
+    public class WhenATransactionReadsTheKeysItHasMergedInto {
+
+        public void itSeesTheMergedValue() {
+            add(table1, key, 1);
+            add(table1, key, 2);
+            specify(toLong(table1.read(key)), should.equal(13L));
+            specify(toLong(table1.readAll(Arrays.asList(key)).get(key)), should.equal(13L));
+        }
+
+        public void otherTransactionsDoNotSeeItBeforeCommit() {
+            add(table1, key, 1);
+            specify(toLong(table2.read(key)), should.equal(10L));
+        }
+
+        public void scansSeeTheMergedValue() {
+            add(table1, otherKey, 1);
+            Iterator<Map.Entry<Blob, Blob>> it = table1.scan(null, null);
+            specify(toLong(it.next().getValue()), should.equal(10L));
+            specify(toLong(it.next().getValue()), should.equal(1L));
+            specify(it.hasNext(), should.equal(false));
+            specify(table1.nextKeyAfter(key), should.equal(otherKey));
+        }
+
+        public void theRevisionIsUncommitted() {
+            add(table1, key, 1);
+            specify(table1.getRevision(key) < 0);
+        }
+    }
+
+    public class WhenTheMergedKeyIsHot {
+
+        public void create() {
+            db.getContentionManager().conflictedOn(Arrays.asList(key));
+        }
+
+        public void onlyOneTransactionAtATimeMayMergeIntoIt() {
+            add(table1, key, 1);
+            specify(new Block() {
+                public void run() throws Throwable {
+                    add(table2, key, 2);
+                }
+            }, should.raise(OptimisticLockException.class));
+        }
+
+        public void itIsReleasedWhenTheTransactionEnds() {
+            add(table1, key, 1);
+            tx1.prepareAndCommit();
+            add(table2, key, 2);
+            tx2.prepareAndCommit();
+            specify(readInNewTransaction(key), should.equal(13L));
+        }
+    }
+
+    public class WhenATransactionBothUpdatesAndMergesTheSameKey {
+
+        public void aMergeAfterAnUpdateIsAppliedToTheUpdatedValue() {
+            table1.update(key, toBlob(100));
+            add(table1, key, 1);
+            specify(toLong(table1.read(key)), should.equal(101L));
+            tx1.prepareAndCommit();
+            specify(readInNewTransaction(key), should.equal(101L));
+        }
+
+        public void anUpdateAfterAMergeReplacesTheMerge() {
+            add(table1, key, 1);
+            table1.update(key, toBlob(100));
+            tx1.prepareAndCommit();
+            specify(readInNewTransaction(key), should.equal(100L));
+        }
+    }
+
+    public class WhenDifferentOperatorsAreMergedIntoTheSameKey {
+
+        public void theyAreAppliedInOrder() {
+            MergeOperator<Blob> max = new MergeOperator<Blob>() {
+                public Blob merge(Blob value, Blob operand) {
+                    return toBlob(Math.max(toLong(value), toLong(operand)));
+                }
+            };
+            add(table1, key, 5);
+            table1.merge(key, toBlob(20), max);
+            add(table1, key, 1);
+            tx1.prepareAndCommit();
+            specify(readInNewTransaction(key), should.equal(21L));
+        }
+    }
+}
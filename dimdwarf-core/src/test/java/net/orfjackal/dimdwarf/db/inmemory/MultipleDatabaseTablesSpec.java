@@ -1,4 +1,4 @@
-// Copyright © 2008-2010 Esko Luontola <www.orfjackal.net>
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
 // This software is released under the Apache License 2.0.
 // The license text is at http://dimdwarf.sourceforge.net/LICENSE
 
@@ -150,9 +150,8 @@ public class MultipleDatabaseTablesSpec extends Specification<Object> {
             updateInNewTransaction(TABLE1, key, value3);
             specify(dbms.getCurrentRevision(), should.equal(revision + 2));
             specify(readInNewTransaction(TABLE1, key), should.equal(value3));
-            specify(dbms.getCurrentRevision(), should.equal(revision + 3));
             specify(readInNewTransaction(TABLE2, key), should.equal(value2));
-            specify(dbms.getCurrentRevision(), should.equal(revision + 4));
+            specify(dbms.getCurrentRevision(), should.equal(revision + 2));
         }
 
         public void tableRevisionsAreInSyncB() {
@@ -161,9 +160,33 @@ public class MultipleDatabaseTablesSpec extends Specification<Object> {
             updateInNewTransaction(TABLE2, key, value3);
             specify(dbms.getCurrentRevision(), should.equal(revision + 2));
             specify(readInNewTransaction(TABLE1, key), should.equal(value1));
-            specify(dbms.getCurrentRevision(), should.equal(revision + 3));
             specify(readInNewTransaction(TABLE2, key), should.equal(value3));
-            specify(dbms.getCurrentRevision(), should.equal(revision + 4));
+            specify(dbms.getCurrentRevision(), should.equal(revision + 2));
+        }
+    }
+
+    public class WhenPreparingOneOfTheTablesFails {
+
+        public void create() {
+            table1.update(key, value1);
+            table2.update(key, value1);
+            updateInNewTransaction(TABLE2, key, value2);
+            specify(new Block() {
+                public void run() throws Throwable {
+                    tx.prepare();
+                }
+            }, should.raise(TransactionException.class));
+            tx.rollback();
+        }
+
+        public void theOtherTablesAreNotLeftLocked() {
+            updateInNewTransaction(TABLE1, key, value3);
+            specify(readInNewTransaction(TABLE1, key), should.equal(value3));
+        }
+
+        public void theRevisionIsReleased() {
+            updateInNewTransaction(TABLE1, key, value3);
+            specify(dbms.getOldestRevisionInUse(), should.equal(dbms.getCurrentRevision()));
         }
     }
 }
@@ -0,0 +1,155 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.db.inmemory;
+
+import jdave.*;
+import jdave.junit4.JDaveRunner;
+import net.orfjackal.dimdwarf.db.Blob;
+import net.orfjackal.dimdwarf.tx.*;
+import org.junit.runner.RunWith;
+import org.slf4j.Logger;
+
+@RunWith(JDaveRunner.class)
+@Group({"fast"})
+public class OffHeapBlobStorageSpec extends Specification<Object> {
+
+    private static final int SLAB_SIZE = 1024;
+
+    private OffHeapBlobStorage storage;
+
+    public void create() throws Exception {
+        storage = new OffHeapBlobStorage(SLAB_SIZE);
+    }
+
+    private static Blob blobOfLength(int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) i;
+        }
+        return Blob.fromBytes(bytes);
+    }
+
+
+    public class WhenValuesAreStored {
+
+        public void theyCanBeLoadedBack() {
+            Blob small = blobOfLength(3);
+            Blob medium = blobOfLength(100);
+            StoredBlob stored1 = storage.store(small);
+            StoredBlob stored2 = storage.store(medium);
+            specify(stored1.load(), should.equal(small));
+            specify(stored2.load(), should.equal(medium));
+        }
+
+        public void theyAreAllocatedFromTheSameSlab() {
+            for (int i = 0; i < SLAB_SIZE / 16; i++) {
+                storage.store(blobOfLength(10));
+            }
+            specify(storage.getSlabCount(), should.equal(1));
+            specify(storage.getUsedBytes(), should.equal((long) SLAB_SIZE));
+        }
+
+        public void aNewSlabIsAllocatedWhenTheCurrentSlabIsFull() {
+            for (int i = 0; i < SLAB_SIZE / 16 + 1; i++) {
+                storage.store(blobOfLength(10));
+            }
+            specify(storage.getSlabCount(), should.equal(2));
+        }
+
+        public void valuesBiggerThanASlabAreAllocatedSeparately() {
+            Blob big = blobOfLength(SLAB_SIZE * 3);
+            StoredBlob stored = storage.store(big);
+            specify(stored.load(), should.equal(big));
+            specify(storage.getSlabCount(), should.equal(0));
+            specify(storage.getUsedBytes(), should.equal((long) SLAB_SIZE * 3));
+        }
+
+        public void theSlabSizeMustBeAPowerOfTwo() {
+            specify(new Block() {
+                public void run() throws Throwable {
+                    new OffHeapBlobStorage(1000);
+                }
+            }, should.raise(IllegalArgumentException.class));
+        }
+    }
+
+    public class WhenValuesAreReleased {
+
+        public void theirMemoryIsReused() {
+            for (int i = 0; i < 10 * SLAB_SIZE / 16; i++) {
+                StoredBlob stored = storage.store(blobOfLength(10));
+                stored.release();
+            }
+            specify(storage.getSlabCount(), should.equal(1));
+            specify(storage.getUsedBytes(), should.equal(0L));
+        }
+
+        public void theRestOfAFullSlabIsReusedForSmallerValues() {
+            storage.store(blobOfLength(SLAB_SIZE / 2 - 10));
+            storage.store(blobOfLength(SLAB_SIZE - 10));
+            specify(storage.getSlabCount(), should.equal(2));
+            storage.store(blobOfLength(SLAB_SIZE / 2 - 10));
+            specify(storage.getSlabCount(), should.equal(2));
+        }
+
+        public void theyCanNotBeReleasedTwice() {
+            final StoredBlob stored = storage.store(blobOfLength(10));
+            stored.release();
+            specify(new Block() {
+                public void run() throws Throwable {
+                    stored.release();
+                }
+            }, should.raise(IllegalStateException.class));
+        }
+    }
+
+    public class WhenUsedByTheDatabase {
+
+        private static final String TABLE = "test";
+        private InMemoryDatabaseManager dbms;
+        private Logger txLogger;
+        private Blob key = Blob.fromBytes(new byte[]{1});
+
+        public void create() {
+            dbms = new InMemoryDatabaseManager(new InMemoryDatabase(storage));
+            txLogger = mock(Logger.class);
+        }
+
+        private void updateInNewTransaction(Blob value) {
+            TransactionCoordinator tx = new TransactionContext(txLogger);
+            dbms.openConnection(tx.getTransaction()).openTable(TABLE).update(key, value);
+            tx.prepareAndCommit();
+        }
+
+        private Blob readInNewTransaction() {
+            TransactionCoordinator tx = new TransactionContext(txLogger);
+            try {
+                return dbms.openConnection(tx.getTransaction()).openTable(TABLE).read(key);
+            } finally {
+                tx.prepareAndCommit();
+            }
+        }
+
+        public void theCommittedValuesAreStoredOffHeap() {
+            updateInNewTransaction(blobOfLength(100));
+            specify(storage.getUsedBytes(), should.equal(128L));
+            specify(readInNewTransaction(), should.equal(blobOfLength(100)));
+        }
+
+        public void thePurgedRevisionsAreReleased() {
+            for (int i = 0; i < 100; i++) {
+                updateInNewTransaction(blobOfLength(100));
+            }
+            specify(storage.getUsedBytes(), should.equal(128L));
+            specify(storage.getSlabCount(), should.equal(1));
+        }
+
+        public void deletedValuesAreReleased() {
+            updateInNewTransaction(blobOfLength(100));
+            updateInNewTransaction(Blob.EMPTY_BLOB);
+            specify(storage.getUsedBytes(), should.equal(0L));
+        }
+    }
+}
@@ -0,0 +1,230 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.db.inmemory;
+
+import jdave.*;
+import jdave.junit4.JDaveRunner;
+import net.orfjackal.dimdwarf.db.Blob;
+import org.junit.runner.RunWith;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+@RunWith(JDaveRunner.class)
+@Group({"fast"})
+public class RadixTreeMapSpec extends Specification<Object> {
+
+    private RadixTreeMap<String> map;
+
+    public void create() throws Exception {
+        map = new RadixTreeMap<>();
+    }
+
+    private static Blob key(String s) {
+        return Blob.fromBytes(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void putAll(String... keys) {
+        for (String k : keys) {
+            map.put(key(k), k);
+        }
+    }
+
+    private List<String> valuesBetween(String from, String to) {
+        List<String> values = new ArrayList<>();
+        Iterator<Map.Entry<Blob, String>> it = map.entriesBetween(from == null ? null : key(from), to == null ? null : key(to));
+        while (it.hasNext()) {
+            Map.Entry<Blob, String> e = it.next();
+            specify(e.getKey(), should.equal(key(e.getValue())));
+            values.add(e.getValue());
+        }
+        return values;
+    }
+
+
+    public class AnEmptyMap {
+
+        public void isEmpty() {
+            specify(map.size(), should.equal(0));
+            specify(map.get(key("a")), should.equal(null));
+            specify(valuesBetween(null, null), should.containInOrder());
+        }
+
+        public void theEmptyKeyCanBeStored() {
+            map.put(key(""), "");
+            specify(map.get(key("")), should.equal(""));
+            specify(valuesBetween(null, null), should.containInOrder(""));
+        }
+    }
+
+    public class WhenKeysShareCommonPrefixes {
+
+        public void create() {
+            putAll("binding.foo", "binding.bar", "binding.foobar", "binding", "other");
+        }
+
+        public void allKeysCanBeFound() {
+            specify(map.size(), should.equal(5));
+            specify(map.get(key("binding.foo")), should.equal("binding.foo"));
+            specify(map.get(key("binding.bar")), should.equal("binding.bar"));
+            specify(map.get(key("binding.foobar")), should.equal("binding.foobar"));
+            specify(map.get(key("binding")), should.equal("binding"));
+            specify(map.get(key("other")), should.equal("other"));
+        }
+
+        public void prefixesOfKeysAreNotKeys() {
+            specify(map.get(key("binding.")), should.equal(null));
+            specify(map.get(key("binding.fo")), should.equal(null));
+            specify(map.get(key("binding.foob")), should.equal(null));
+            specify(map.get(key("binding.foobarx")), should.equal(null));
+        }
+
+        public void iterationIsInKeyOrder() {
+            specify(valuesBetween(null, null), should.containInOrder(
+                    "binding", "binding.bar", "binding.foo", "binding.foobar", "other"));
+        }
+
+        public void descendingIterationIsInReverseKeyOrder() {
+            List<String> values = new ArrayList<>();
+            for (Iterator<Map.Entry<Blob, String>> it = map.descendingEntries(); it.hasNext(); ) {
+                Map.Entry<Blob, String> e = it.next();
+                specify(e.getKey(), should.equal(key(e.getValue())));
+                values.add(e.getValue());
+            }
+            specify(values, should.containInOrder(
+                    "other", "binding.foobar", "binding.foo", "binding.bar", "binding"));
+        }
+
+        public void iterationCanBeLimitedToARange() {
+            specify(valuesBetween("binding.bar", "binding.foobar"), should.containInOrder("binding.bar", "binding.foo"));
+            specify(valuesBetween("binding.", "other"), should.containInOrder("binding.bar", "binding.foo", "binding.foobar"));
+        }
+
+        public void theRangeMayStartOrEndInTheMiddleOfAnEdge() {
+            specify(valuesBetween("binding.c", null), should.containInOrder("binding.foo", "binding.foobar", "other"));
+            specify(valuesBetween("binding.foob", null), should.containInOrder("binding.foobar", "other"));
+            specify(valuesBetween("bi", "binding.fo"), should.containInOrder("binding", "binding.bar"));
+            specify(valuesBetween("c", "p"), should.containInOrder("other"));
+        }
+
+        public void aPrefixScanFindsTheKeysWithThatPrefix() {
+            specify(valuesBetween("binding.foo", "binding.fop"), should.containInOrder("binding.foo", "binding.foobar"));
+        }
+
+        public void keysAreOrderedAsUnsignedBytes() {
+            map.put(Blob.fromBytes(new byte[]{(byte) 0xFF}), "high");
+            map.put(Blob.fromBytes(new byte[]{0x01}), "low");
+            List<String> values = new ArrayList<>(map.values());
+            specify(values.get(0), should.equal("low"));
+            specify(values.get(values.size() - 1), should.equal("high"));
+        }
+    }
+
+    public class WhenKeysAreUpdatedAndRemoved {
+
+        public void create() {
+            putAll("binding.foo", "binding.foobar", "binding.bar");
+        }
+
+        public void putIfAbsentDoesNotReplaceAnExistingValue() {
+            specify(map.putIfAbsent(key("binding.foo"), "x"), should.equal("binding.foo"));
+            specify(map.putIfAbsent(key("binding.fo"), "x"), should.equal(null));
+            specify(map.get(key("binding.fo")), should.equal("x"));
+            specify(map.size(), should.equal(4));
+        }
+
+        public void replaceSucceedsOnlyIfTheValueIsTheExpectedOne() {
+            specify(map.replace(key("binding.foo"), "wrong", "x"), should.equal(false));
+            specify(map.replace(key("binding.foo"), "binding.foo", "x"), should.equal(true));
+            specify(map.get(key("binding.foo")), should.equal("x"));
+            specify(map.replace(key("binding.f"), "binding.f", "x"), should.equal(false));
+        }
+
+        public void removingALeafKeepsTheOtherKeys() {
+            specify(map.remove(key("binding.foobar")), should.equal("binding.foobar"));
+            specify(map.size(), should.equal(2));
+            specify(map.get(key("binding.foobar")), should.equal(null));
+            specify(valuesBetween(null, null), should.containInOrder("binding.bar", "binding.foo"));
+        }
+
+        public void removingAnInnerKeyKeepsItsChildren() {
+            specify(map.remove(key("binding.foo")), should.equal("binding.foo"));
+            specify(map.get(key("binding.foobar")), should.equal("binding.foobar"));
+            specify(valuesBetween("binding.f", null), should.containInOrder("binding.foobar"));
+        }
+
+        public void removeSucceedsOnlyIfTheValueIsTheExpectedOne() {
+            specify(map.remove(key("binding.foo"), "wrong"), should.equal(false));
+            specify(map.remove(key("binding.foo"), "binding.foo"), should.equal(true));
+            specify(map.remove(key("binding.foo"), "binding.foo"), should.equal(false));
+        }
+
+        public void theExpectedValuesAreComparedByEqualityAndNotByIdentity() {
+            specify(map.replace(key("binding.foo"), new String("binding.foo"), "x"), should.equal(true));
+            specify(map.remove(key("binding.bar"), new String("binding.bar")), should.equal(true));
+            specify(map.get(key("binding.foo")), should.equal("x"));
+            specify(map.get(key("binding.bar")), should.equal(null));
+            specify(map.size(), should.equal(2));
+        }
+
+        public void keysCanBeAddedBackAfterTheirNodesWereMerged() {
+            map.remove(key("binding.bar"));
+            map.remove(key("binding.foo"));
+            putAll("binding.foo", "binding.bar", "binding.f");
+            specify(valuesBetween(null, null), should.containInOrder("binding.bar", "binding.f", "binding.foo", "binding.foobar"));
+        }
+
+        public void removingAllKeysEmptiesTheMap() {
+            map.remove(key("binding.foo"));
+            map.remove(key("binding.foobar"));
+            map.remove(key("binding.bar"));
+            specify(map.size(), should.equal(0));
+            specify(map.isEmpty());
+            specify(valuesBetween(null, null), should.containInOrder());
+        }
+    }
+
+    public class WhenManyThreadsWriteConcurrently {
+
+        private static final int THREADS = 4;
+        private static final int KEYS_PER_THREAD = 500;
+
+        public void allWritesAreVisibleAndInOrder() throws Exception {
+            ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                final int thread = t;
+                futures.add(executor.submit(new Callable<Void>() {
+                    public Void call() {
+                        for (int i = 0; i < KEYS_PER_THREAD; i++) {
+                            String k = "binding." + i + "." + thread;
+                            map.put(key(k), k);
+                            if (i % 3 == 0) {
+                                map.remove(key(k));
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            executor.shutdown();
+
+            SortedSet<Blob> expected = new TreeSet<>();
+            for (int t = 0; t < THREADS; t++) {
+                for (int i = 0; i < KEYS_PER_THREAD; i++) {
+                    if (i % 3 != 0) {
+                        expected.add(key("binding." + i + "." + t));
+                    }
+                }
+            }
+            specify(map.size(), should.equal(expected.size()));
+            specify(new ArrayList<>(map.keySet()), should.equal(new ArrayList<>(expected)));
+        }
+    }
+}
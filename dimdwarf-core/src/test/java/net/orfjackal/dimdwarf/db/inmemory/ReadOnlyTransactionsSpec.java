@@ -0,0 +1,105 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.db.inmemory;
+
+import jdave.*;
+import jdave.junit4.JDaveRunner;
+import net.orfjackal.dimdwarf.db.*;
+import net.orfjackal.dimdwarf.db.common.ConflictDetection;
+import net.orfjackal.dimdwarf.tx.*;
+import org.junit.runner.RunWith;
+import org.slf4j.Logger;
+
+@RunWith(JDaveRunner.class)
+@Group({"fast"})
+public class ReadOnlyTransactionsSpec extends Specification<Object> {
+
+    private static final String TABLE = "test";
+
+    private InMemoryDatabase db;
+    private InMemoryDatabaseManager dbms;
+    private Logger txLogger;
+    private TransactionCoordinator tx;
+    private MergeableDatabaseTable<Blob, Blob> table;
+
+    private Blob key = Blob.fromBytes(new byte[]{0});
+    private Blob value1 = Blob.fromBytes(new byte[]{1});
+    private Blob value2 = Blob.fromBytes(new byte[]{2});
+
+    public void create() throws Exception {
+        db = new InMemoryDatabase();
+        dbms = new InMemoryDatabaseManager(db);
+        txLogger = mock(Logger.class);
+        updateInNewTransaction(key, value1);
+        tx = new TransactionContext(txLogger);
+        table = dbms.openConnection(tx.getTransaction()).openTable(TABLE);
+    }
+
+    private void updateInNewTransaction(Blob key, Blob value) {
+        TransactionCoordinator tx = new TransactionContext(txLogger);
+        dbms.openConnection(tx.getTransaction()).openTable(TABLE).update(key, value);
+        tx.prepareAndCommit();
+    }
+
+
+    public class WhenATransactionWritesNothing {
+
+        public void itDoesNotCreateANewRevision() {
+            long revision = dbms.getCurrentRevision();
+            table.read(key);
+            tx.prepareAndCommit();
+            specify(dbms.getCurrentRevision(), should.equal(revision));
+        }
+
+        public void itReleasesItsReadRevision() {
+            table.read(key);
+            updateInNewTransaction(key, value2);
+            specify(dbms.getOldestRevisionInUse(), should.equal(1L));
+            tx.prepareAndCommit();
+            specify(dbms.getOldestRevisionInUse(), should.equal(2L));
+        }
+
+        public void itCanNotConflictWithTheOtherTransactions() {
+            table.read(key);
+            updateInNewTransaction(key, value2);
+            tx.prepareAndCommit();
+            specify(tx.getTransaction().getStatus(), should.equal(TransactionStatus.COMMITTED));
+        }
+    }
+
+    public class WhenATransactionIsDeclaredReadOnly {
+
+        public void create() {
+            tx.getTransaction().setReadOnly();
+        }
+
+        public void itCanRead() {
+            specify(table.read(key), should.equal(value1));
+        }
+
+        public void itCanNotUpdate() {
+            specify(new Block() {
+                public void run() throws Throwable {
+                    table.update(key, value2);
+                }
+            }, should.raise(IllegalStateException.class));
+        }
+
+        public void itCanNotMerge() {
+            specify(new Block() {
+                public void run() throws Throwable {
+                    table.merge(key, AddLongs.toBlob(1), AddLongs.INSTANCE);
+                }
+            }, should.raise(IllegalStateException.class));
+        }
+
+        public void itsReadsDoNotDetectConflicts() {
+            db.getConflictDetector().setMode(ConflictDetection.ON_READ);
+            updateInNewTransaction(key, value2);
+            specify(table.read(key), should.equal(value1));
+            specify(db.getConflictDetector().getEarlyConflicts(), should.equal(0L));
+        }
+    }
+}
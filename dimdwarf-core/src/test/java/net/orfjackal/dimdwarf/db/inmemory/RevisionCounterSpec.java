@@ -1,4 +1,4 @@
-// Copyright © 2008-2010 Esko Luontola <www.orfjackal.net>
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
 // This software is released under the Apache License 2.0.
 // The license text is at http://dimdwarf.sourceforge.net/LICENSE
 
@@ -8,6 +8,8 @@ import jdave.*;
 import jdave.junit4.JDaveRunner;
 import org.junit.runner.RunWith;
 
+import java.util.*;
+
 @RunWith(JDaveRunner.class)
 @Group({"fast"})
 public class RevisionCounterSpec extends Specification<Object> {
@@ -181,4 +183,130 @@ public class RevisionCounterSpec extends Specification<Object> {
             specify(counter.openNewestRevision().getReadRevision(), should.equal(2L));
         }
     }
+
+    public class WhenUsersOfDifferentRevisionsFinishInAnyOrder {
+        private RevisionHandle reader0;
+        private RevisionHandle reader1;
+        private RevisionHandle reader2;
+
+        public void create() {
+            reader0 = counter.openNewestRevision();
+            commitNewRevision();
+            reader1 = counter.openNewestRevision();
+            commitNewRevision();
+            reader2 = counter.openNewestRevision();
+        }
+
+        private void commitNewRevision() {
+            RevisionHandle writer = counter.openNewestRevision();
+            writer.prepareWriteRevision();
+            writer.commitWrites();
+        }
+
+        public void theOldestRevisionInUseIsReadable() {
+            specifyReadableRange(0L, 2L);
+            specify(counter.getRevisionsInUse(), should.containExactly(0L, 1L, 2L));
+        }
+
+        public void theOldestRevisionMovesForwardOnlyWhenItsLastUserFinishes() {
+            reader1.rollback();
+            specifyReadableRange(0L, 2L);
+            reader0.rollback();
+            specifyReadableRange(2L, 2L);
+            reader2.rollback();
+            specifyReadableRange(2L, 2L);
+        }
+
+        public void aRolledBackWriteDoesNotHoldBackTheLaterWrites() {
+            RevisionHandle aborted = counter.openNewestRevision();
+            aborted.prepareWriteRevision();
+            RevisionHandle committed = counter.openNewestRevision();
+            committed.prepareWriteRevision();
+            aborted.rollback();
+            committed.commitWrites();
+            specify(counter.getNewestReadableRevision(), should.equal(committed.getWriteRevision()));
+        }
+
+        public void onlyTheRevisionsInUseAndTheNewestRevisionNeedToBeKept() {
+            specify(counter.getRevisionsToKeep(), should.containInOrder(new long[]{0L, 1L, 2L}));
+            reader1.rollback();
+            specify(counter.getRevisionsToKeep(), should.containInOrder(new long[]{0L, 2L}));
+            reader2.rollback();
+            specify(counter.getRevisionsToKeep(), should.containInOrder(new long[]{0L, 2L}));
+            reader0.rollback();
+            specify(counter.getRevisionsToKeep(), should.containInOrder(new long[]{2L}));
+        }
+
+        public void finishingTheSameUserTwiceHasNoEffect() {
+            reader0.rollback();
+            reader0.rollback();
+            specify(counter.getRevisionsInUse(), should.containExactly(1L, 2L));
+        }
+    }
+
+    public class WhenALongRunningReaderIsOpen {
+        private RevisionHandle longRunning;
+
+        public void create() {
+            longRunning = counter.openNewestRevision();
+            for (int i = 0; i < 100; i++) {
+                RevisionHandle handle = counter.openNewestRevision();
+                handle.prepareWriteRevision();
+                handle.commitWrites();
+            }
+        }
+
+        public void theSlotsOfTheLaterRevisionsAreRemovedWhenTheyAreReleased() {
+            specify(counter.getSlotCount(), should.equal(1));
+            specify(counter.getRevisionsToKeep(), should.containInOrder(new long[]{0L, 100L}));
+        }
+
+        public void theOldestReadableRevisionAdvancesWhenItIsReleased() {
+            specifyReadableRange(0L, 100L);
+            longRunning.rollback();
+            specifyReadableRange(100L, 100L);
+            specify(counter.getSlotCount(), should.equal(0));
+        }
+    }
+
+    public class WhenManyThreadsUseTheRevisionsConcurrently {
+
+        private static final int THREADS = 8;
+        private static final int TRANSACTIONS_PER_THREAD = 1000;
+
+        public void create() throws InterruptedException {
+            List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < THREADS; i++) {
+                final boolean writer = i % 2 == 0;
+                Thread t = new Thread(new Runnable() {
+                    public void run() {
+                        for (int j = 0; j < TRANSACTIONS_PER_THREAD; j++) {
+                            RevisionHandle handle = counter.openNewestRevision();
+                            if (writer) {
+                                handle.prepareWriteRevision();
+                                handle.commitWrites();
+                            } else {
+                                handle.releaseReadOnly();
+                            }
+                        }
+                    }
+                });
+                t.start();
+                threads.add(t);
+            }
+            for (Thread t : threads) {
+                t.join();
+            }
+        }
+
+        public void allWritesBecomeReadable() {
+            long writes = THREADS / 2 * TRANSACTIONS_PER_THREAD;
+            specifyReadableRange(writes, writes);
+        }
+
+        public void noSlotsAreLeftBehind() {
+            specify(counter.getSlotCount(), should.equal(0));
+            specify(counter.getRevisionsInUse(), should.containExactly());
+        }
+    }
 }
@@ -8,6 +8,8 @@ import jdave.*;
 import jdave.junit4.JDaveRunner;
 import org.junit.runner.RunWith;
 
+import java.util.*;
+
 @RunWith(JDaveRunner.class)
 @Group({"fast"})
 public class RevisionListSpec extends Specification<Object> {
@@ -120,4 +122,60 @@ public class RevisionListSpec extends Specification<Object> {
             specify(list.isEmpty(), should.equal(true));
         }
     }
+
+    public class WhenRevisionsBetweenLongRunningReadersArePurged {
+
+        private RevisionList<String> four;
+        private RevisionList<String> list;
+
+        public void create() {
+            RevisionList<String> one = new RevisionList<>(1, "one");
+            RevisionList<String> two = new RevisionList<>(2, "two", one);
+            four = new RevisionList<>(4, "four", two);
+            RevisionList<String> six = new RevisionList<>(6, "six", four);
+            list = new RevisionList<>(8, "eight", six);
+            list.purgeRevisionsOtherThan(2, 6);
+        }
+
+        public void theRevisionsVisibleToTheReadersAreKept() {
+            specify(list.get(2), should.equal("two"));
+            specify(list.get(6), should.equal("six"));
+        }
+
+        public void theRevisionsNewerThanTheReadersAreKept() {
+            specify(list.get(8), should.equal("eight"));
+        }
+
+        public void theOtherRevisionsArePurged() {
+            specify(list.get(1), should.equal(null));
+            specify(list.get(5), should.equal("two"));
+            specify(list.getNumberOfRevisions(), should.equal(3));
+        }
+
+        public void aReaderWhichWasTraversingAPurgedRevisionWillStillFindItsRevision() {
+            specify(four.get(2), should.equal("two"));
+        }
+    }
+
+    public class WhenPurgedRevisionsAreReportedToAListener {
+
+        private final List<String> purged = new ArrayList<>();
+
+        public void create() {
+            RevisionList<String> one = new RevisionList<>(1, "one");
+            RevisionList<String> two = new RevisionList<>(2, null, one);
+            RevisionList<String> three = new RevisionList<>(3, "three", two);
+            RevisionList<String> four = new RevisionList<>(4, "four", three);
+            RevisionList<String> list = new RevisionList<>(5, "five", four);
+            list.purgeRevisionsOtherThan(new long[]{4}, new PurgeListener<String>() {
+                public void purged(String value) {
+                    purged.add(value);
+                }
+            });
+        }
+
+        public void everyPurgedValueIsReportedOnce() {
+            specify(purged, should.containInOrder("three", "one"));
+        }
+    }
 }
@@ -0,0 +1,77 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.db.inmemory;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Measures the commit throughput of {@link RevisionMap} when many threads write disjoint keys.
+ * For comparison, the same workload is also run with every write serialized through one global
+ * lock, which is how {@code RevisionMap} used to work.
+ */
+public class RevisionMapContentionBenchmark {
+
+    private static final int KEYS_PER_THREAD = 1000;
+    private static final int WRITES_PER_THREAD = 200000;
+    private static final int PURGE_INTERVAL = 10000;
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = Runtime.getRuntime().availableProcessors();
+
+        // warmup
+        for (int i = 0; i < 5; i++) {
+            run(maxThreads, false);
+            run(maxThreads, true);
+        }
+
+        // measurement
+        System.out.println("threads\tglobal lock (writes/ms)\tper-key CAS (writes/ms)");
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            System.out.println(threads + "\t" + run(threads, true) + "\t" + run(threads, false));
+        }
+    }
+
+    private static long run(int threads, boolean globalLock) throws Exception {
+        final RevisionMap<Integer, Long> map = new RevisionMap<>();
+        final Object lock = globalLock ? new Object() : null;
+        final CyclicBarrier start = new CyclicBarrier(threads + 1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int firstKey = t * KEYS_PER_THREAD;
+            futures.add(executor.submit(new Callable<Void>() {
+                public Void call() throws Exception {
+                    start.await();
+                    for (int i = 1; i <= WRITES_PER_THREAD; i++) {
+                        Integer key = firstKey + i % KEYS_PER_THREAD;
+                        long revision = i;
+                        if (lock != null) {
+                            synchronized (lock) {
+                                map.put(key, revision, revision);
+                            }
+                        } else {
+                            map.put(key, revision, revision);
+                        }
+                        if (firstKey == 0 && i % PURGE_INTERVAL == 0) {
+                            map.purgeRevisionsOlderThan(i - KEYS_PER_THREAD);
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+        start.await();
+        long begin = System.nanoTime();
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        long end = System.nanoTime();
+        executor.shutdown();
+
+        long millis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(end - begin));
+        return (long) threads * WRITES_PER_THREAD / millis;
+    }
+}
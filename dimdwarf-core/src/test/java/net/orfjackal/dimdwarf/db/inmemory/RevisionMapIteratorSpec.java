@@ -82,4 +82,31 @@ public class RevisionMapIteratorSpec extends Specification<Object> {
             }, should.raise(NoSuchElementException.class));
         }
     }
+
+    public class IteratingOverARangeOfKeys {
+
+        public void create() {
+            map.put("a", "A", 1);
+            map.put("b", "B", 1);
+            map.put("c", "C", 1);
+            map.put("d", "D", 1);
+            map.remove("c", 2);
+        }
+
+        public void iteratesOverTheKeysWhichAreInRangeAndExistInTheRevision() {
+            Iterator<Map.Entry<String, String>> it = new RevisionMapIterator<>(map, "b", "d", 2);
+            while (it.hasNext()) {
+                keys.add(it.next().getKey());
+            }
+            specify(keys, should.containInOrder("b"));
+        }
+
+        public void theRangeMayBeOpenOnEitherSide() {
+            Iterator<Map.Entry<String, String>> it = new RevisionMapIterator<>(map, "b", null, 1);
+            while (it.hasNext()) {
+                keys.add(it.next().getKey());
+            }
+            specify(keys, should.containInOrder("b", "c", "d"));
+        }
+    }
 }
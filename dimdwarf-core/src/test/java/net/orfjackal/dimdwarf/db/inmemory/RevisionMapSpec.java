@@ -8,6 +8,9 @@ import jdave.*;
 import jdave.junit4.JDaveRunner;
 import org.junit.runner.RunWith;
 
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 @RunWith(JDaveRunner.class)
 @Group({"fast"})
 public class RevisionMapSpec extends Specification<Object> {
@@ -234,4 +237,98 @@ public class RevisionMapSpec extends Specification<Object> {
             specify(map.nextKeyAfter("d", writeRevision), should.equal(null));
         }
     }
+
+    public class WhenDisjointKeysAreWrittenConcurrently {
+
+        private static final int THREADS = 4;
+        private static final int KEYS_PER_THREAD = 10;
+        private static final long REVISIONS = 200;
+
+        public void create() throws InterruptedException {
+            final AtomicBoolean writing = new AtomicBoolean(true);
+            Thread purger = new Thread(new Runnable() {
+                public void run() {
+                    while (writing.get()) {
+                        map.purgeRevisionsOlderThan(REVISIONS / 2);
+                    }
+                }
+            });
+            purger.start();
+
+            List<Thread> writers = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                final int thread = t;
+                Thread writer = new Thread(new Runnable() {
+                    public void run() {
+                        for (long rev = 1; rev <= REVISIONS; rev++) {
+                            for (int k = 0; k < KEYS_PER_THREAD; k++) {
+                                String key = thread + "-" + k;
+                                if (rev == REVISIONS && k % 2 == 0) {
+                                    map.remove(key, rev);
+                                } else {
+                                    map.put(key, key + "@" + rev, rev);
+                                }
+                            }
+                        }
+                    }
+                });
+                writer.start();
+                writers.add(writer);
+            }
+            for (Thread writer : writers) {
+                writer.join();
+            }
+            writing.set(false);
+            purger.join();
+        }
+
+        public void noUpdatesAreLost() {
+            for (int t = 0; t < THREADS; t++) {
+                for (int k = 0; k < KEYS_PER_THREAD; k++) {
+                    String key = t + "-" + k;
+                    String expected = k % 2 == 0 ? null : key + "@" + REVISIONS;
+                    specify(map.get(key, REVISIONS), should.equal(expected));
+                    specify(map.get(key, REVISIONS - 1), should.equal(key + "@" + (REVISIONS - 1)));
+                }
+            }
+        }
+
+        public void allOldRevisionsCanBePurged() {
+            map.purgeRevisionsOlderThan(REVISIONS);
+            specify(map.size(), should.equal(THREADS * KEYS_PER_THREAD / 2));
+            specify(map.get("0-1", REVISIONS - 1), should.equal(null));
+        }
+    }
+
+    public class WhenPurgingIncrementally {
+
+        public void create() {
+            for (String key : new String[]{"a", "b", "c"}) {
+                map.put(key, "old", 1);
+                map.put(key, "new", 2);
+            }
+        }
+
+        public void theOldRevisionsArePendingForPurge() {
+            specify(map.getPurgeQueueSize(), should.equal(3));
+        }
+
+        public void eachCallVisitsOnlyTheGivenNumberOfKeys() {
+            specify(map.purgeRevisionsOlderThan(2, 2), should.equal(false));
+            specify(map.getPurgeQueueSize(), should.equal(1));
+            specify(map.purgeRevisionsOlderThan(2, 2), should.equal(true));
+            specify(map.getPurgeQueueSize(), should.equal(0));
+        }
+
+        public void keysWhichCanNotYetBePurgedDoNotPreventVisitingTheOtherKeys() {
+            map.put("b", "newer", 3);
+            map.purgeRevisionsOlderThan(1, 10);
+            specify(map.getPurgeQueueSize(), should.equal(3));
+            map.purgeRevisionsOlderThan(2, 1);
+            map.purgeRevisionsOlderThan(2, 1);
+            map.purgeRevisionsOlderThan(2, 1);
+            specify(map.getPurgeQueueSize(), should.equal(1));
+            specify(map.get("b", 2), should.equal("new"));
+        }
+    }
 }
@@ -0,0 +1,161 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.db.inmemory;
+
+import jdave.*;
+import jdave.junit4.JDaveRunner;
+import net.orfjackal.dimdwarf.db.Blob;
+import net.orfjackal.dimdwarf.tx.*;
+import org.junit.runner.RunWith;
+import org.slf4j.Logger;
+
+@RunWith(JDaveRunner.class)
+@Group({"fast"})
+public class RevisionPurgerSpec extends Specification<Object> {
+
+    private static final String TABLE = "test";
+    private static final long NEVER = 3600 * 1000;
+
+    private InMemoryDatabase db;
+    private InMemoryDatabaseManager dbms;
+    private RevisionPurger purger;
+    private Logger txLogger;
+
+    private Blob value1 = Blob.fromBytes(new byte[]{1});
+    private Blob value2 = Blob.fromBytes(new byte[]{2});
+
+    public void create() throws Exception {
+        db = new InMemoryDatabase();
+        dbms = new InMemoryDatabaseManager(db);
+        txLogger = mock(Logger.class);
+    }
+
+    public void destroy() throws Exception {
+        purger.shutdown();
+    }
+
+    private void updateInNewTransaction(Blob key, Blob value) {
+        TransactionCoordinator tx = new TransactionContext(txLogger);
+        dbms.openConnection(tx.getTransaction()).openTable(TABLE).update(key, value);
+        tx.prepareAndCommit();
+    }
+
+    private void deleteInNewTransaction(Blob key) {
+        TransactionCoordinator tx = new TransactionContext(txLogger);
+        dbms.openConnection(tx.getTransaction()).openTable(TABLE).delete(key);
+        tx.prepareAndCommit();
+    }
+
+    private static Blob key(int i) {
+        return Blob.fromBytes(new byte[]{(byte) (i >> 8), (byte) i});
+    }
+
+
+    public class WhenThePurgerIsRunning {
+
+        public void create() {
+            purger = new RevisionPurger(db, NEVER, NEVER);
+            purger.start();
+            updateInNewTransaction(key(1), value1);
+            updateInNewTransaction(key(1), value2);
+            updateInNewTransaction(key(2), value1);
+            deleteInNewTransaction(key(2));
+        }
+
+        public void theCommitsDoNotPurgeOldRevisions() {
+            specify(purger.getPendingKeys(), should.equal(2));
+            specify(dbms.getNumberOfKeys(), should.equal(2));
+        }
+
+        public void thePurgerPurgesThem() {
+            specify(purger.purgeTimeSlice());
+            specify(purger.getPendingKeys(), should.equal(0));
+            specify(dbms.getNumberOfKeys(), should.equal(1));
+        }
+
+        public void revisionsWhichAreStillInUseAreNotPurged() {
+            TransactionCoordinator reader = new TransactionContext(txLogger);
+            dbms.openConnection(reader.getTransaction()).openTable(TABLE).read(key(1));
+            updateInNewTransaction(key(1), value1);
+
+            purger.purgeTimeSlice();
+            specify(purger.getPendingKeys(), should.equal(1));
+
+            reader.prepareAndCommit();
+            purger.purgeTimeSlice();
+            specify(purger.getPendingKeys(), should.equal(0));
+        }
+
+        public void thePurgeRunsAreCounted() {
+            purger.purgeTimeSlice();
+            purger.purgeTimeSlice();
+            specify(purger.getPurgeRuns(), should.equal(2L));
+            specify(purger.getUnfinishedPurgeRuns(), should.equal(0L));
+        }
+    }
+
+    public class WhenThereIsMoreToPurgeThanFitsInOneTimeSlice {
+
+        private static final int KEYS = 1000;
+
+        public void create() {
+            purger = new RevisionPurger(db, NEVER, 0);
+            purger.start();
+            for (int i = 0; i < KEYS; i++) {
+                updateInNewTransaction(key(i), value1);
+                updateInNewTransaction(key(i), value2);
+            }
+        }
+
+        public void eachTimeSlicePurgesOnlyPartOfTheKeys() {
+            specify(purger.purgeTimeSlice(), should.equal(false));
+            specify(purger.getUnfinishedPurgeRuns(), should.equal(1L));
+            specify(purger.getPendingKeys() > 0);
+            specify(purger.getPendingKeys() < KEYS);
+        }
+
+        public void theNextTimeSlicesContinueWhereThePreviousOneStopped() {
+            int runs = 0;
+            while (!purger.purgeTimeSlice()) {
+                runs++;
+                specify(runs < KEYS);
+            }
+            specify(purger.getPendingKeys(), should.equal(0));
+        }
+    }
+
+    public class WhenThePurgerIsRunningInTheBackground {
+
+        public void create() {
+            purger = new RevisionPurger(db, 1, 1);
+            purger.start();
+        }
+
+        public void oldRevisionsAreEventuallyPurged() throws InterruptedException {
+            updateInNewTransaction(key(1), value1);
+            updateInNewTransaction(key(1), value2);
+            for (int i = 0; i < 1000 && purger.getPendingKeys() > 0; i++) {
+                Thread.sleep(5);
+            }
+            specify(purger.getPendingKeys(), should.equal(0));
+            specify(purger.getPurgeRuns() > 0);
+        }
+    }
+
+    public class WhenThePurgerIsShutDown {
+
+        public void create() {
+            purger = new RevisionPurger(db, NEVER, NEVER);
+            purger.start();
+            purger.shutdown();
+        }
+
+        public void theCommitsPurgeOldRevisionsThemselves() {
+            updateInNewTransaction(key(1), value1);
+            updateInNewTransaction(key(1), value2);
+            specify(purger.getPendingKeys(), should.equal(0));
+        }
+    }
+}
@@ -0,0 +1,211 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.db.inmemory;
+
+import jdave.*;
+import jdave.junit4.JDaveRunner;
+import net.orfjackal.dimdwarf.db.*;
+import net.orfjackal.dimdwarf.tx.*;
+import org.junit.runner.RunWith;
+import org.slf4j.Logger;
+
+import java.util.*;
+
+@RunWith(JDaveRunner.class)
+@Group({"fast"})
+public class ScanningDatabaseTablesSpec extends Specification<Object> {
+
+    private static final String TABLE = "test";
+
+    private TransactionCoordinator tx;
+    private DatabaseManager dbms;
+    private DatabaseTable<Blob, Blob> table;
+    private Logger txLogger;
+
+    private Blob key1 = Blob.fromBytes(new byte[]{1});
+    private Blob key2 = Blob.fromBytes(new byte[]{2});
+    private Blob key3 = Blob.fromBytes(new byte[]{3});
+    private Blob key4 = Blob.fromBytes(new byte[]{4});
+    private Blob key5 = Blob.fromBytes(new byte[]{5});
+    private Blob value1 = Blob.fromBytes(new byte[]{11});
+    private Blob value2 = Blob.fromBytes(new byte[]{12});
+
+    public void create() throws Exception {
+        dbms = new InMemoryDatabaseManager();
+        txLogger = mock(Logger.class);
+        beginNewTransaction();
+    }
+
+    private void beginNewTransaction() {
+        tx = new TransactionContext(txLogger);
+        table = dbms.openConnection(tx.getTransaction()).openTable(TABLE);
+    }
+
+    private static List<Blob> keys(Iterator<Map.Entry<Blob, Blob>> it) {
+        List<Blob> keys = new ArrayList<>();
+        while (it.hasNext()) {
+            keys.add(it.next().getKey());
+        }
+        return keys;
+    }
+
+    private static List<Blob> values(Iterator<Map.Entry<Blob, Blob>> it) {
+        List<Blob> values = new ArrayList<>();
+        while (it.hasNext()) {
+            values.add(it.next().getValue());
+        }
+        return values;
+    }
+
+
+    public class ScanningARangeOfCommittedKeys {
+
+        public void create() {
+            table.update(key1, value1);
+            table.update(key2, value1);
+            table.update(key3, value1);
+            table.update(key4, value1);
+            tx.prepareAndCommit();
+            beginNewTransaction();
+        }
+
+        public void theStartKeyIsIncludedAndTheEndKeyIsExcluded() {
+            specify(keys(table.scan(key2, key4)), should.containInOrder(key2, key3));
+        }
+
+        public void nullBoundsAreUnbounded() {
+            specify(keys(table.scan(null, key3)), should.containInOrder(key1, key2));
+            specify(keys(table.scan(key3, null)), should.containInOrder(key3, key4));
+            specify(keys(table.scan(null, null)), should.containInOrder(key1, key2, key3, key4));
+        }
+
+        public void anEmptyRangeHasNoEntries() {
+            specify(table.scan(key3, key3).hasNext(), should.equal(false));
+            specify(table.scan(key4, key2).hasNext(), should.equal(false));
+        }
+
+        public void theValuesAreReturnedWithTheKeys() {
+            specify(values(table.scan(key1, key2)), should.containInOrder(value1));
+        }
+
+        public void theIteratorStopsAtTheEnd() {
+            final Iterator<Map.Entry<Blob, Blob>> it = table.scan(key4, null);
+            it.next();
+            specify(it.hasNext(), should.equal(false));
+            specify(new Block() {
+                public void run() throws Throwable {
+                    it.next();
+                }
+            }, should.raise(NoSuchElementException.class));
+        }
+    }
+
+    public class ScanningInsideATransactionWhichHasModifiedTheTable {
+
+        public void create() {
+            table.update(key1, value1);
+            table.update(key3, value1);
+            table.update(key5, value1);
+            tx.prepareAndCommit();
+            beginNewTransaction();
+
+            table.update(key2, value2);
+            table.update(key3, value2);
+            table.delete(key5);
+        }
+
+        public void theTransactionsOwnUpdatesAreMergedWithTheCommittedKeys() {
+            specify(keys(table.scan(null, null)), should.containInOrder(key1, key2, key3));
+        }
+
+        public void theTransactionsOwnValuesOverrideTheCommittedValues() {
+            specify(values(table.scan(key2, key4)), should.containInOrder(value2, value2));
+        }
+
+        public void keysDeletedInTheTransactionAreSkipped() {
+            specify(keys(table.scan(key4, null)).isEmpty());
+        }
+
+        public void otherTransactionsDoNotSeeTheUncommittedUpdates() {
+            TransactionCoordinator tx2 = new TransactionContext(txLogger);
+            DatabaseTable<Blob, Blob> table2 = dbms.openConnection(tx2.getTransaction()).openTable(TABLE);
+            specify(keys(table2.scan(null, null)), should.containInOrder(key1, key3, key5));
+            specify(values(table2.scan(null, null)), should.containInOrder(value1, value1, value1));
+        }
+    }
+
+    public class ScanningByPrefix {
+
+        private Blob prefix = Blob.fromBytes(new byte[]{7});
+        private Blob prefixItself = prefix;
+        private Blob prefixed1 = Blob.fromBytes(new byte[]{7, 0});
+        private Blob prefixed2 = Blob.fromBytes(new byte[]{7, (byte) 0xFF, 1});
+        private Blob before = Blob.fromBytes(new byte[]{6, (byte) 0xFF});
+        private Blob after = Blob.fromBytes(new byte[]{8});
+
+        public void create() {
+            table.update(before, value1);
+            table.update(prefixItself, value1);
+            table.update(prefixed1, value1);
+            table.update(after, value1);
+            tx.prepareAndCommit();
+            beginNewTransaction();
+            table.update(prefixed2, value1);
+        }
+
+        public void onlyTheKeysStartingWithThePrefixAreIncluded() {
+            specify(keys(table.scanPrefix(prefix)), should.containInOrder(prefixItself, prefixed1, prefixed2));
+        }
+
+        public void aPrefixOfOnlyMaximumBytesExtendsToTheEndOfTheTable() {
+            Blob maxPrefix = Blob.fromBytes(new byte[]{(byte) 0xFF});
+            Blob maxPrefixed = Blob.fromBytes(new byte[]{(byte) 0xFF, (byte) 0xFF});
+            table.update(maxPrefixed, value1);
+            specify(keys(table.scanPrefix(maxPrefix)), should.containInOrder(maxPrefixed));
+        }
+
+        public void aPrefixEndingWithMaximumBytesDoesNotSpillOverToTheNextPrefix() {
+            Blob prefixFF = Blob.fromBytes(new byte[]{7, (byte) 0xFF});
+            specify(keys(table.scanPrefix(prefixFF)), should.containInOrder(prefixed2));
+        }
+    }
+
+    public class ScanningAPrefixCompressedTable {
+
+        private Blob prefix = Blob.fromBytes(new byte[]{7, 7});
+        private Blob prefixed1 = Blob.fromBytes(new byte[]{7, 7, 1});
+        private Blob prefixed2 = Blob.fromBytes(new byte[]{7, 7, 2, 2});
+        private Blob sibling = Blob.fromBytes(new byte[]{7, 8});
+
+        public void create() {
+            InMemoryDatabase db = new InMemoryDatabase(new HeapBlobStorage(),
+                    InMemoryDatabase.DEFAULT_COMMIT_LOCK_TIMEOUT_MILLIS, Collections.singleton(TABLE));
+            dbms = new InMemoryDatabaseManager(db);
+            beginNewTransaction();
+            table.update(prefixed2, value1);
+            table.update(sibling, value1);
+            table.update(prefixed1, value2);
+            table.update(key1, value1);
+            tx.prepareAndCommit();
+            beginNewTransaction();
+        }
+
+        public void allKeysAreScannedInKeyOrder() {
+            specify(keys(table.scan(null, null)), should.containInOrder(key1, prefixed1, prefixed2, sibling));
+        }
+
+        public void onlyTheKeysStartingWithThePrefixAreIncluded() {
+            specify(keys(table.scanPrefix(prefix)), should.containInOrder(prefixed1, prefixed2));
+            specify(values(table.scanPrefix(prefix)), should.containInOrder(value2, value1));
+        }
+
+        public void deletedKeysAreNoLongerScanned() {
+            table.delete(prefixed1);
+            tx.prepareAndCommit();
+            beginNewTransaction();
+            specify(keys(table.scanPrefix(prefix)), should.containInOrder(prefixed2));
+        }
+    }
+}
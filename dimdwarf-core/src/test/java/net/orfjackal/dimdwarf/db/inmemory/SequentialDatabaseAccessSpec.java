@@ -1,4 +1,4 @@
-// Copyright © 2008-2010 Esko Luontola <www.orfjackal.net>
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
 // This software is released under the Apache License 2.0.
 // The license text is at http://dimdwarf.sourceforge.net/LICENSE
 
@@ -11,6 +11,8 @@ import net.orfjackal.dimdwarf.tx.*;
 import org.junit.runner.RunWith;
 import org.slf4j.Logger;
 
+import java.util.*;
+
 import static net.orfjackal.dimdwarf.db.Blob.EMPTY_BLOB;
 
 @RunWith(JDaveRunner.class)
@@ -163,4 +165,37 @@ public class SequentialDatabaseAccessSpec extends Specification<Object> {
             specify(table.read(key), should.equal(EMPTY_BLOB));
         }
     }
+
+    public class WhenManyEntriesAreReadAtOnce {
+
+        private Blob committedKey = Blob.fromBytes(new byte[]{10});
+        private Blob updatedKey = Blob.fromBytes(new byte[]{11});
+        private Blob deletedKey = Blob.fromBytes(new byte[]{12});
+        private Blob missingKey = Blob.fromBytes(new byte[]{13});
+
+        public void create() {
+            table.update(committedKey, value);
+            table.update(updatedKey, value);
+            table.update(deletedKey, value);
+            tx.prepareAndCommit();
+
+            tx = new TransactionContext(mock(Logger.class));
+            table = dbms.openConnection(tx.getTransaction()).openTable(TABLE);
+            table.update(updatedKey, otherValue);
+            table.delete(deletedKey);
+        }
+
+        public void theValuesAreTheSameAsWhenReadingOneByOne() {
+            Map<Blob, Blob> values = table.readAll(Arrays.asList(committedKey, updatedKey, deletedKey, missingKey));
+            specify(values.get(committedKey), should.equal(value));
+            specify(values.get(updatedKey), should.equal(otherValue));
+            specify(values.get(deletedKey), should.equal(EMPTY_BLOB));
+            specify(values.get(missingKey), should.equal(EMPTY_BLOB));
+        }
+
+        public void theValuesAreInTheSameOrderAsTheKeys() {
+            Map<Blob, Blob> values = table.readAll(Arrays.asList(missingKey, updatedKey, committedKey));
+            specify(values.keySet(), should.containInOrder(missingKey, updatedKey, committedKey));
+        }
+    }
 }
@@ -1,4 +1,4 @@
-// Copyright © 2008-2010 Esko Luontola <www.orfjackal.net>
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
 // This software is released under the Apache License 2.0.
 // The license text is at http://dimdwarf.sourceforge.net/LICENSE
 
@@ -12,6 +12,7 @@ import net.orfjackal.dimdwarf.tasks.TaskExecutor;
 import org.junit.runner.RunWith;
 
 import javax.inject.Provider;
+import java.util.*;
 import java.util.concurrent.Executor;
 
 @RunWith(JDaveRunner.class)
@@ -126,5 +127,46 @@ public class BindingRepositorySpec extends Specification<Object> {
                 }
             });
         }
+    
+        public void theBindingsWithAPrefixCanBeScannedInOnePass() {
+            taskContext.execute(new Runnable() {
+                public void run() {
+                    List<String> keys = new ArrayList<>();
+                    List<Object> values = new ArrayList<>();
+                    for (Iterator<Map.Entry<String, Object>> it = bindings.get().scanPrefix("foo."); it.hasNext(); ) {
+                        Map.Entry<String, Object> e = it.next();
+                        keys.add(e.getKey());
+                        values.add(e.getValue());
+                    }
+                    specify(keys, should.containInOrder("foo.1", "foo.2"));
+                    specify(values.get(0), should.equal(bindings.get().read("foo.1")));
+                    specify(values.get(1), should.equal(bindings.get().read("foo.2")));
+                }
+            });
+        }
+
+        public void theBindingWalkerVisitsTheBindingsUnderThePrefixButNotThePrefixItself() {
+            taskContext.execute(new Runnable() {
+                public void run() {
+                    List<String> keys = new ArrayList<>();
+                    for (String key : new BindingWalker("foo", bindings.get())) {
+                        keys.add(key);
+                    }
+                    specify(keys, should.containInOrder("foo.1", "foo.2"));
+                }
+            });
+        }
+    
+        public void manyBindingsCanBeReadAtOnce() {
+            taskContext.execute(new Runnable() {
+                public void run() {
+                    Map<String, Object> read = bindings.get().readAll(Arrays.asList("foo.1", "no-such-binding", "bar.x"));
+                    specify(read.keySet(), should.containInOrder("foo.1", "no-such-binding", "bar.x"));
+                    specify(read.get("foo.1"), should.equal(bindings.get().read("foo.1")));
+                    specify(read.get("no-such-binding"), should.equal(null));
+                    specify(read.get("bar.x"), should.equal(bindings.get().read("bar.x")));
+                }
+            });
+        }
     }
 }
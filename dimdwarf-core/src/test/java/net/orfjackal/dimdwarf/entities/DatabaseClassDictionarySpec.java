@@ -0,0 +1,109 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.entities;
+
+import jdave.*;
+import jdave.junit4.JDaveRunner;
+import net.orfjackal.dimdwarf.db.*;
+import net.orfjackal.dimdwarf.db.inmemory.*;
+import org.junit.runner.RunWith;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.*;
+
+@RunWith(JDaveRunner.class)
+@Group({"fast"})
+public class DatabaseClassDictionarySpec extends Specification<Object> {
+
+    private static final String TABLE = "classes";
+    private static final int DESCRIPTORS_PER_THREAD = 20;
+
+    private final InMemoryDatabase db = new InMemoryDatabase();
+    private final DatabaseManager dbms = new InMemoryDatabaseManager(db);
+    private final Lock addLock = new ReentrantLock();
+    private final DatabaseClassDictionary dictionary = new DatabaseClassDictionary(dbms, TABLE, addLock);
+    private final Blob descriptor1 = Blob.wrap(new byte[]{1, 2, 3});
+    private final Blob descriptor2 = Blob.wrap(new byte[]{4, 5});
+
+
+    public class AClassDictionary {
+
+        public void givesEachDescriptorItsOwnId() {
+            int id1 = dictionary.idOf(descriptor1);
+            int id2 = dictionary.idOf(descriptor2);
+            specify(id1, should.not().equal(id2));
+            specify(dictionary.idOf(descriptor1), should.equal(id1));
+            specify(dictionary.descriptorOf(id1), should.equal(descriptor1));
+            specify(dictionary.descriptorOf(id2), should.equal(descriptor2));
+        }
+
+        public void givesTheIdsInOrder() {
+            specify(dictionary.idOf(descriptor1), should.equal(0));
+            specify(dictionary.idOf(descriptor2), should.equal(1));
+        }
+
+        public void doesNotKnowTheIdsWhichHaveNotBeenGiven() {
+            specify(dictionary.descriptorOf(0), should.equal(null));
+        }
+
+        public void readsTheDatabaseOnlyOncePerDescriptor() {
+            int id = dictionary.idOf(descriptor1);
+            long misses = dictionary.getCacheMisses();
+            dictionary.idOf(descriptor1);
+            dictionary.descriptorOf(id);
+            specify(dictionary.getCacheMisses(), should.equal(misses));
+        }
+    }
+
+    public class TheDictionariesOfOtherNodes {
+
+        private DatabaseClassDictionary otherNode;
+
+        public void create() {
+            otherNode = new DatabaseClassDictionary(dbms, TABLE, addLock);
+        }
+
+        public void findTheIdsWhichThisNodeGave() {
+            int id = dictionary.idOf(descriptor1);
+            specify(otherNode.descriptorOf(id), should.equal(descriptor1));
+            specify(otherNode.idOf(descriptor1), should.equal(id));
+        }
+
+        public void doNotGiveTheSameIdsToOtherDescriptors() {
+            int id1 = dictionary.idOf(descriptor1);
+            int id2 = otherNode.idOf(descriptor2);
+            specify(id1, should.not().equal(id2));
+            specify(dictionary.descriptorOf(id2), should.equal(descriptor2));
+        }
+
+        public void doNotGiveTheSameIdsWhenAddingDescriptorsConcurrently() throws InterruptedException {
+            final Set<Integer> ids = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+            Thread t1 = addDescriptorsInNewThread(dictionary, (byte) 1, ids);
+            Thread t2 = addDescriptorsInNewThread(otherNode, (byte) 2, ids);
+            t1.join();
+            t2.join();
+            specify(ids.size(), should.equal(2 * DESCRIPTORS_PER_THREAD));
+        }
+
+        public void doNotMakeTheNextIdAHotKeyOfTheTasks() {
+            dictionary.idOf(descriptor1);
+            otherNode.idOf(descriptor2);
+            specify(db.getContentionManager().getSerializedTasks(), should.equal(0L));
+        }
+
+        private Thread addDescriptorsInNewThread(final DatabaseClassDictionary node, final byte thread, final Set<Integer> ids) {
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < DESCRIPTORS_PER_THREAD; i++) {
+                        ids.add(node.idOf(Blob.wrap(new byte[]{thread, (byte) i})));
+                    }
+                }
+            });
+            t.start();
+            return t;
+        }
+    }
+}
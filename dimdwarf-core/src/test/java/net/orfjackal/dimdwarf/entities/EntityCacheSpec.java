@@ -0,0 +1,78 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.entities;
+
+import jdave.*;
+import jdave.junit4.JDaveRunner;
+import net.orfjackal.dimdwarf.api.EntityId;
+import net.orfjackal.dimdwarf.api.internal.EntityObjectId;
+import net.orfjackal.dimdwarf.db.Blob;
+import org.junit.runner.RunWith;
+
+@RunWith(JDaveRunner.class)
+@Group({"fast"})
+public class EntityCacheSpec extends Specification<Object> {
+
+    private static final EntityId ID = new EntityObjectId(1);
+
+    private EntityCache cache;
+    private Blob value1 = Blob.fromBytes(new byte[]{1, 2, 3});
+    private Blob value2 = Blob.fromBytes(new byte[]{4, 5, 6});
+
+    public void create() throws Exception {
+        cache = new EntityCache();
+    }
+
+
+    public class AnEntityCache {
+
+        public void returnsTheValueOfTheSameRevision() {
+            cache.put(ID, 10, value1);
+            specify(cache.get(ID, 10), should.equal(value1));
+            specify(cache.getHits(), should.equal(1L));
+        }
+
+        public void doesNotReturnTheValuesOfOtherRevisions() {
+            cache.put(ID, 10, value1);
+            cache.put(ID, 11, value2);
+            specify(cache.get(ID, 9), should.equal(null));
+            specify(cache.get(ID, 11), should.equal(value2));
+            specify(cache.getMisses(), should.equal(1L));
+        }
+
+        public void doesNotReturnTheValuesOfOtherEntities() {
+            cache.put(ID, 10, value1);
+            specify(cache.get(new EntityObjectId(2), 10), should.equal(null));
+        }
+    }
+
+    public class WhenTheCacheIsFull {
+
+        public void create() {
+            // every segment can hold 3 bytes
+            cache = new EntityCache(16 * 3);
+        }
+
+        public void theLeastRecentlyUsedValuesAreEvicted() {
+            cache.put(ID, 1, value1);
+            cache.put(ID, 2, value2);
+            specify(cache.get(ID, 1), should.equal(null));
+            specify(cache.get(ID, 2), should.equal(value2));
+            specify(cache.getCachedBytes(), should.equal(3L));
+        }
+
+        public void valuesLargerThanTheCacheAreNotCached() {
+            cache.put(ID, 1, Blob.fromBytes(new byte[4]));
+            specify(cache.get(ID, 1), should.equal(null));
+            specify(cache.getCachedBytes(), should.equal(0L));
+        }
+
+        public void aCacheOfZeroBytesIsDisabled() {
+            cache = new EntityCache(0);
+            cache.put(ID, 1, value1);
+            specify(cache.get(ID, 1), should.equal(null));
+        }
+    }
+}
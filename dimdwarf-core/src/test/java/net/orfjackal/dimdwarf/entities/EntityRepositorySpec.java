@@ -1,19 +1,23 @@
-// Copyright © 2008-2010 Esko Luontola <www.orfjackal.net>
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
 // This software is released under the Apache License 2.0.
 // The license text is at http://dimdwarf.sourceforge.net/LICENSE
 
 package net.orfjackal.dimdwarf.entities;
 
 import com.google.inject.*;
+import com.google.inject.util.Modules;
 import jdave.*;
 import jdave.junit4.JDaveRunner;
 import net.orfjackal.dimdwarf.api.EntityId;
 import net.orfjackal.dimdwarf.api.internal.EntityObjectId;
+import net.orfjackal.dimdwarf.db.inmemory.InMemoryDatabase;
+import net.orfjackal.dimdwarf.entities.dao.EntityDao;
 import net.orfjackal.dimdwarf.modules.*;
 import net.orfjackal.dimdwarf.tasks.TaskExecutor;
 import org.junit.runner.RunWith;
 
 import javax.inject.Provider;
+import java.util.*;
 import java.util.concurrent.*;
 
 @RunWith(JDaveRunner.class)
@@ -23,15 +27,20 @@ public class EntityRepositorySpec extends Specification<Object> {
     private static final EntityId ENTITY_ID = new EntityObjectId(42);
     private static final EntityId INVALID_ENTITY_ID = new EntityObjectId(999);
 
+    private Injector injector;
     private Executor taskContext;
     private Provider<EntityRepository> entities;
     private Provider<AllEntities> entityManager;
 
     public void create() throws Exception {
-        Injector injector = Guice.createInjector(
+        createInjector(new EntityModule());
+    }
+
+    private void createInjector(EntityModule entityModule) {
+        injector = Guice.createInjector(
                 new TaskContextModule(),
                 new DatabaseModule(),
-                new EntityModule()
+                entityModule
         );
         taskContext = injector.getInstance(TaskExecutor.class);
         entities = injector.getProvider(EntityRepository.class);
@@ -143,4 +152,200 @@ public class EntityRepositorySpec extends Specification<Object> {
             taskContext.execute(task2);
         }
     }
+
+    public class WhenManyEntitiesAreReadAtOnce {
+
+        private final EntityId entityId2 = new EntityObjectId(43);
+
+        public void create() {
+            createDummyEntity(ENTITY_ID, "A");
+            createDummyEntity(entityId2, "B");
+        }
+
+        public void allOfThemAreRead() {
+            taskContext.execute(new Runnable() {
+                public void run() {
+                    Map<EntityId, Object> read = entities.get().readAll(Arrays.asList(ENTITY_ID, entityId2));
+                    specify(((DummyInterface) read.get(ENTITY_ID)).getOther(), should.equal("A"));
+                    specify(((DummyInterface) read.get(entityId2)).getOther(), should.equal("B"));
+                }
+            });
+        }
+
+        public void nonexistentEntitiesCanNotBeRead() {
+            taskContext.execute(new Runnable() {
+                public void run() {
+                    specify(new Block() {
+                        public void run() throws Throwable {
+                            entities.get().readAll(Arrays.asList(ENTITY_ID, INVALID_ENTITY_ID));
+                        }
+                    }, should.raise(EntityNotFoundException.class));
+                }
+            });
+        }
+
+        public void theEntityManagerRegistersTheEntitiesLoadedInABatch() {
+            taskContext.execute(new Runnable() {
+                public void run() {
+                    Object loadedAlone = entityManager.get().getEntityById(ENTITY_ID);
+                    Map<EntityId, ?> loaded = entityManager.get().getEntitiesById(Arrays.asList(ENTITY_ID, entityId2));
+                    specify(loaded.get(ENTITY_ID) == loadedAlone);
+                    specify(loaded.get(entityId2) == entityManager.get().getEntityById(entityId2));
+                }
+            });
+        }
+    }
+
+    private Object readInNewTask(final EntityId id) {
+        final Object[] result = new Object[1];
+        taskContext.execute(new Runnable() {
+            public void run() {
+                result[0] = entities.get().read(id);
+            }
+        });
+        return result[0];
+    }
+
+    public class WhenTheEntityCacheIsDisabled {
+
+        private EntityCache cache;
+
+        public void create() {
+            createDummyEntity(ENTITY_ID, "A");
+            cache = injector.getInstance(EntityCache.class);
+        }
+
+        public void theEntitiesAreReadFromTheDatabaseWithoutCacheLookups() {
+            readInNewTask(ENTITY_ID);
+            Object entity = readInNewTask(ENTITY_ID);
+            specify(((DummyInterface) entity).getOther(), should.equal("A"));
+            specify(cache.isEnabled(), should.equal(false));
+            specify(cache.getHits() + cache.getMisses(), should.equal(0L));
+            specify(cache.getCachedBytes(), should.equal(0L));
+        }
+    }
+
+    public class WhenAnEntityIsReadInManyTasks {
+
+        private EntityCache cache;
+
+        public void create() {
+            createInjector(new EntityModule(EntityCache.DEFAULT_MAX_BYTES));
+            createDummyEntity(ENTITY_ID, "A");
+            cache = injector.getInstance(EntityCache.class);
+        }
+
+        public void theSerializedEntityIsCachedBetweenTasks() {
+            readInNewTask(ENTITY_ID);
+            long hits = cache.getHits();
+            readInNewTask(ENTITY_ID);
+            specify(cache.getHits(), should.equal(hits + 1));
+        }
+
+        public void everyTaskGetsItsOwnCopyOfTheEntity() {
+            Object first = readInNewTask(ENTITY_ID);
+            Object second = readInNewTask(ENTITY_ID);
+            specify(first != second);
+            specify(((DummyInterface) second).getOther(), should.equal("A"));
+        }
+
+        public void updatedEntitiesAreNotReadFromTheOldCacheEntry() {
+            readInNewTask(ENTITY_ID);
+            taskContext.execute(new Runnable() {
+                public void run() {
+                    entities.get().update(ENTITY_ID, new DummyEntity("B"));
+                    specify(((DummyInterface) entities.get().read(ENTITY_ID)).getOther(), should.equal("B"));
+                }
+            });
+            specify(((DummyInterface) readInNewTask(ENTITY_ID)).getOther(), should.equal("B"));
+        }
+    }
+
+    public class WhenTheLoadedEntitiesAreFlushed {
+
+        private long revision;
+
+        public void create() {
+            createInjector(new EntityModule(EntityCache.DEFAULT_MAX_BYTES));
+            createDummyEntity(ENTITY_ID, "A");
+            revision = revisionInNewTask();
+        }
+
+        private long revisionInNewTask() {
+            final long[] result = new long[1];
+            taskContext.execute(new Runnable() {
+                public void run() {
+                    result[0] = injector.getInstance(EntityDao.class).getRevision(ENTITY_ID);
+                }
+            });
+            return result[0];
+        }
+
+        public void unmodifiedEntitiesAreNotWritten() {
+            taskContext.execute(new Runnable() {
+                public void run() {
+                    entityManager.get().getEntityById(ENTITY_ID);
+                }
+            });
+            specify(revisionInNewTask(), should.equal(revision));
+        }
+
+        public void unmodifiedEntitiesAreNotReadAgainFromTheDatabase() {
+            final EntityCache cache = injector.getInstance(EntityCache.class);
+            final long[] lookupsAfterLoading = new long[1];
+            taskContext.execute(new Runnable() {
+                public void run() {
+                    entityManager.get().getEntityById(ENTITY_ID);
+                    lookupsAfterLoading[0] = cache.getHits() + cache.getMisses();
+                }
+            });
+            specify(cache.getHits() + cache.getMisses(), should.equal(lookupsAfterLoading[0]));
+        }
+
+        public void modifiedEntitiesAreWritten() {
+            taskContext.execute(new Runnable() {
+                public void run() {
+                    DummyEntity e = (DummyEntity) entityManager.get().getEntityById(ENTITY_ID);
+                    e.setOther("B");
+                }
+            });
+            specify(revisionInNewTask() > revision);
+            taskContext.execute(new Runnable() {
+                public void run() {
+                    specify(((DummyInterface) entities.get().read(ENTITY_ID)).getOther(), should.equal("B"));
+                }
+            });
+        }
+    }
+
+    public class WhenTheServerIsStarted {
+
+        public void create() {
+            createDummyEntity(ENTITY_ID, "A");
+            createDummyEntity(new EntityObjectId(300), "B");
+            restartWithTheSameDatabase();
+        }
+
+        private void restartWithTheSameDatabase() {
+            final InMemoryDatabase db = injector.getInstance(InMemoryDatabase.class);
+            injector = Guice.createInjector(
+                    new TaskContextModule(),
+                    Modules.override(new DatabaseModule()).with(new AbstractModule() {
+                        protected void configure() {
+                            bind(InMemoryDatabase.class).toInstance(db);
+                        }
+                    }),
+                    new EntityModule()
+            );
+        }
+
+        public void theLargestEntityIdInUseIsReadFromTheDatabase() {
+            specify(injector.getInstance(Key.get(Long.class, MaxEntityId.class)), should.equal(300L));
+        }
+
+        public void newEntityIdsAreLargerThanTheExistingOnes() {
+            EntityIdFactory factory = injector.getInstance(EntityIdFactory.class);
+            specify(factory.newId(), should.equal(new EntityObjectId(301)));
+        }
+    }
 }
@@ -1,4 +1,4 @@
-// Copyright © 2008-2010 Esko Luontola <www.orfjackal.net>
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
 // This software is released under the Apache License 2.0.
 // The license text is at http://dimdwarf.sourceforge.net/LICENSE
 
@@ -19,6 +19,7 @@ public class FlushingEntitiesSpec extends Specification<Object> {
 
     private static final EntityId ID1 = new EntityObjectId(1);
     private static final EntityObjectId ID2 = new EntityObjectId(2);
+    private static final EntityObjectId ID3 = new EntityObjectId(3);
 
     private EntitiesPersistedInDatabase database;
     private EntityManager manager;
@@ -103,6 +104,48 @@ public class FlushingEntitiesSpec extends Specification<Object> {
         }
     }
 
+    public class WhenEntitiesWhichTrackTheirModificationsAreFlushed {
+
+        private TrackingEntity loaded;
+
+        public void create() {
+            loaded = new TrackingEntity();
+            checking(new Expectations() {{
+                one(database).read(ID3); will(returnValue(loaded));
+            }});
+            manager.getEntityById(ID3);
+        }
+
+        public void unmodifiedEntitiesAreNotStoredInDatabase() {
+            checking(new Expectations() {{
+                one(database).update(ID1, entity);
+                never(database).update(ID3, loaded);
+            }});
+            manager.flushToDatabase();
+            specify(manager.getEntitiesSkippedOnFlush(), should.equal(1));
+        }
+
+        public void modifiedEntitiesAreStoredInDatabase() {
+            loaded.modified = true;
+            checking(new Expectations() {{
+                one(database).update(ID1, entity);
+                one(database).update(ID3, loaded);
+            }});
+            manager.flushToDatabase();
+            specify(manager.getEntitiesSkippedOnFlush(), should.equal(0));
+        }
+
+        public void newEntitiesAreStoredInDatabaseEvenIfUnmodified() {
+            final TrackingEntity created = new TrackingEntity();
+            refFactory.createReference(created);
+            checking(new Expectations() {{
+                one(database).update(ID1, entity);
+                one(database).update(ID2, created);
+            }});
+            manager.flushToDatabase();
+        }
+    }
+
 
     private RegisterEntity registerEntity(DummyEntity entity) {
         return new RegisterEntity(entity);
@@ -121,4 +164,12 @@ public class FlushingEntitiesSpec extends Specification<Object> {
             return null;
         }
     }
+
+    private static class TrackingEntity implements EntityObject, TrackedEntity {
+        private boolean modified = false;
+
+        public boolean isModified$ENTITY() {
+            return modified;
+        }
+    }
 }
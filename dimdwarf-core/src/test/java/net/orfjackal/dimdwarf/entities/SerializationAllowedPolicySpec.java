@@ -14,7 +14,7 @@ import org.junit.runner.RunWith;
 @Group({"fast"})
 public class SerializationAllowedPolicySpec extends Specification<Object> {
 
-    private final ObjectSerializer serializer = new ObjectSerializer();
+    private final ObjectSerializer serializer = new JavaSerializationObjectSerializer();
     private final SerializationAllowedPolicy policy = new SerializationAllowedPolicy(new DimdwarfEntityApi());
     private final SerializationFilter filter = new NullSerializationFilter() {
         public Object replaceSerialized(Object rootObject, Object obj) {
@@ -0,0 +1,107 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.entities;
+
+import com.google.inject.*;
+import jdave.*;
+import jdave.junit4.JDaveRunner;
+import net.orfjackal.dimdwarf.modules.*;
+import net.orfjackal.dimdwarf.tasks.TaskExecutor;
+import net.orfjackal.dimdwarf.util.ThrowingRunnable;
+import org.junit.runner.RunWith;
+
+import javax.inject.Provider;
+import java.util.*;
+import java.util.concurrent.*;
+
+@RunWith(JDaveRunner.class)
+@Group({"fast"})
+public class ShardedCountersSpec extends Specification<Object> {
+
+    private Executor taskContext;
+    private Provider<ShardedCounters> counters;
+
+    public void create() throws Exception {
+        Injector injector = Guice.createInjector(
+                new TaskContextModule(),
+                new DatabaseModule(),
+                new EntityModule()
+        );
+        taskContext = injector.getInstance(TaskExecutor.class);
+        counters = injector.getProvider(ShardedCounters.class);
+    }
+
+    private void addInNewTask(final String counter, final long delta) {
+        taskContext.execute(new Runnable() {
+            public void run() {
+                counters.get().add(counter, delta);
+            }
+        });
+    }
+
+    private long readInNewTask(final String counter) {
+        final long[] result = new long[1];
+        taskContext.execute(new Runnable() {
+            public void run() {
+                result[0] = counters.get().get(counter);
+            }
+        });
+        return result[0];
+    }
+
+
+    public class ACounter {
+
+        public void isInitiallyZero() {
+            specify(readInNewTask("score"), should.equal(0L));
+        }
+
+        public void sumsTheAdditions() {
+            addInNewTask("score", 5);
+            addInNewTask("score", -2);
+            taskContext.execute(new Runnable() {
+                public void run() {
+                    counters.get().increment("score");
+                    specify(counters.get().get("score"), should.equal(4L));
+                }
+            });
+            specify(readInNewTask("score"), should.equal(4L));
+        }
+
+        public void isNotMixedWithCountersWhoseNameStartsTheSame() {
+            addInNewTask("score", 1);
+            addInNewTask("scores", 10);
+            specify(readInNewTask("score"), should.equal(1L));
+            specify(readInNewTask("scores"), should.equal(10L));
+        }
+    }
+
+    public class WhenManyTasksAddToTheSameCounterConcurrently {
+
+        private static final int THREADS = 4;
+        private static final int TASKS_PER_THREAD = 50;
+
+        public void noAdditionsAreLostAndNoTaskConflicts() throws Exception {
+            final CyclicBarrier start = new CyclicBarrier(THREADS);
+            ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                futures.add(executor.submit(new ThrowingRunnable() {
+                    public void doRun() throws Throwable {
+                        start.await();
+                        for (int i = 0; i < TASKS_PER_THREAD; i++) {
+                            addInNewTask("players", 1);
+                        }
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            executor.shutdown();
+            specify(readInNewTask("players"), should.equal((long) THREADS * TASKS_PER_THREAD));
+        }
+    }
+}
@@ -0,0 +1,64 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.entities.dao;
+
+import jdave.*;
+import jdave.junit4.JDaveRunner;
+import net.orfjackal.dimdwarf.api.EntityId;
+import net.orfjackal.dimdwarf.api.internal.EntityObjectId;
+import net.orfjackal.dimdwarf.db.Blob;
+import org.junit.runner.RunWith;
+
+@RunWith(JDaveRunner.class)
+@Group({"fast"})
+public class ConvertEntityIdToBytesSpec extends Specification<Object> {
+
+    private ConvertEntityIdToBytes converter = new ConvertEntityIdToBytes();
+
+    @SuppressWarnings({"ConstantConditions"})
+    private byte[] bytesOfId(long id) {
+        return converter.forth(new EntityObjectId(id)).toByteArray();
+    }
+
+
+    public class TheByteRepresentationOfEntityIds {
+
+        private final long[] ids = {0, 1, 127, 128, 255, 256, 300, 65536, Integer.MAX_VALUE, 1L << 40, Long.MAX_VALUE};
+
+        public void convertsBackToTheSameValue() {
+            for (long id : ids) {
+                EntityId original = new EntityObjectId(id);
+                specify(converter.back(converter.forth(original)), should.equal(original));
+            }
+        }
+
+        public void sortsInNumericOrder() {
+            for (int i = 0; i < ids.length - 1; i++) {
+                Blob current = converter.forth(new EntityObjectId(ids[i]));
+                Blob next = converter.forth(new EntityObjectId(ids[i + 1]));
+                specify((Long) ids[i], current.compareTo(next) < 0);
+            }
+        }
+
+        public void theFormatIsAFixedWidthBigEndianNumber() {
+            specify(bytesOfId(0), should.containInOrder(new byte[]{0, 0, 0, 0, 0, 0, 0, 0}));
+            specify(bytesOfId(1), should.containInOrder(new byte[]{0, 0, 0, 0, 0, 0, 0, 1}));
+            specify(bytesOfId(256), should.containInOrder(new byte[]{0, 0, 0, 0, 0, 0, 1, 0}));
+            specify(bytesOfId(Long.MAX_VALUE), should.containInOrder(new byte[]{0x7F, -1, -1, -1, -1, -1, -1, -1}));
+        }
+
+        public void emptyBlobConvertsToNullId() {
+            specify(converter.back(Blob.EMPTY_BLOB), should.equal(null));
+        }
+
+        public void negativeValuesAreNotAllowed() {
+            specify(new Block() {
+                public void run() throws Throwable {
+                    converter.forth(new EntityObjectId(-1));
+                }
+            }, should.raise(IllegalArgumentException.class, "Negative values are not allowed: EntityObjectId(-1)"));
+        }
+    }
+}
@@ -161,7 +161,7 @@ public class TransparentReferenceSpec extends Specification<Object> {
             checking(new Expectations() {{
                 allowing(injector).injectMembers(with(any(Object.class)));
             }});
-            ObjectSerializer serializer = new ObjectSerializer();
+            ObjectSerializer serializer = new JavaSerializationObjectSerializer();
 
             checking(referenceIsCreatedFor(entity, ID1));
             SerializationTestEntity original = new SerializationTestEntity(entity, new DummyObject());
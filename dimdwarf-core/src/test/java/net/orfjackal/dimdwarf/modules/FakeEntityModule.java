@@ -1,4 +1,4 @@
-// Copyright © 2008-2010 Esko Luontola <www.orfjackal.net>
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
 // This software is released under the Apache License 2.0.
 // The license text is at http://dimdwarf.sourceforge.net/LICENSE
 
@@ -7,6 +7,9 @@ package net.orfjackal.dimdwarf.modules;
 import com.google.inject.AbstractModule;
 import jdave.Specification;
 import net.orfjackal.dimdwarf.entities.*;
+import net.orfjackal.dimdwarf.tx.Transaction;
+
+import javax.inject.Provider;
 
 public class FakeEntityModule extends AbstractModule {
 
@@ -18,9 +21,14 @@ public class FakeEntityModule extends AbstractModule {
 
     protected void configure() {
         EntitiesLoadedInMemory entities = spec.dummy(EntitiesLoadedInMemory.class);
+        final Transaction tx = spec.dummy(Transaction.class);
 
         // TaskContextModule has a transitive dependency to these classes:
         bind(EntityFlushingFilter.class)
-                .toInstance(new EntityFlushingFilter(entities));
+                .toInstance(new EntityFlushingFilter(entities, new Provider<Transaction>() {
+                    public Transaction get() {
+                        return tx;
+                    }
+                }));
     }
 }
@@ -0,0 +1,338 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.serial;
+
+import jdave.*;
+import jdave.junit4.JDaveRunner;
+import net.orfjackal.dimdwarf.db.Blob;
+import net.orfjackal.dimdwarf.entities.*;
+import org.junit.runner.RunWith;
+
+import java.io.Serializable;
+import java.util.*;
+
+@RunWith(JDaveRunner.class)
+@Group({"fast"})
+public class GeneratedObjectSerializerSpec extends Specification<Object> {
+
+    private static final NullSerializationFilter NO_FILTER = new NullSerializationFilter();
+
+    private final CountingClassDictionary dictionary = new CountingClassDictionary();
+    private final GeneratedObjectSerializer serializer = new GeneratedObjectSerializer(dictionary);
+
+    private Object roundTrip(Object obj) {
+        return serializer.deserialize(serializer.serialize(obj, NO_FILTER), NO_FILTER);
+    }
+
+
+    public class AGeneratedObjectSerializer {
+
+        public void serializesAllKindsOfFields() {
+            AllKindsOfFields original = new AllKindsOfFields();
+            AllKindsOfFields result = (AllKindsOfFields) roundTrip(original);
+
+            specify(result.z, should.equal(original.z));
+            specify(result.b, should.equal(original.b));
+            specify(result.c, should.equal(original.c));
+            specify(result.s, should.equal(original.s));
+            specify(result.i, should.equal(original.i));
+            specify(result.j, should.equal(original.j));
+            specify(result.f, should.equal(original.f));
+            specify(result.d, should.equal(original.d));
+            specify(result.string, should.equal(original.string));
+            specify(result.boxed, should.equal(original.boxed));
+            specify(result.type, should.equal(original.type));
+            specify(result.primitiveType, should.equal(original.primitiveType));
+            specify(result.constant, should.equal(original.constant));
+            specify(Arrays.equals(result.bytes, original.bytes));
+            specify(Arrays.equals(result.longs, original.longs));
+            specify(Arrays.equals(result.strings, original.strings));
+        }
+
+        public void serializesAnyCharacters() {
+            String original = "a\u0000ä€\ud800";
+            specify(roundTrip(original), should.equal(original));
+        }
+
+        public void doesNotSerializeTransientFields() {
+            AllKindsOfFields original = new AllKindsOfFields();
+            original.notSerialized = "x";
+            specify(((AllKindsOfFields) roundTrip(original)).notSerialized, should.equal(null));
+        }
+
+        public void serializesTheFieldsOfSerializableSuperclasses() {
+            Subclass original = new Subclass();
+            original.superValue = 1;
+            original.subValue = 2;
+            Subclass result = (Subclass) roundTrip(original);
+            specify(result.superValue, should.equal(1));
+            specify(result.subValue, should.equal(2));
+        }
+
+        public void preservesSharedReferencesAndCycles() {
+            Node a = new Node();
+            Node b = new Node();
+            a.next = b;
+            b.next = a;
+            a.value = b.value = "shared";
+            Node result = (Node) roundTrip(a);
+            specify(result.next.next, should.equal(result));
+            specify(result.value == result.next.value);
+        }
+
+        public void callsWriteReplaceAndReadResolve() {
+            Replaced result = (Replaced) roundTrip(new Replaced("original"));
+            specify(result.value, should.equal("original/written/read"));
+        }
+
+        public void writesMuchSmallerBlobsThanJavaSerialization() {
+            DummyEntity original = new DummyEntity("value");
+            Blob generated = serializer.serialize(original, NO_FILTER);
+            Blob java = new JavaSerializationObjectSerializer().serialize(original, NO_FILTER);
+            specify(generated.length() * 4 < java.length());
+        }
+
+        public void generatesTheSerializerOfAClassOnlyOnce() {
+            roundTrip(new DummyEntity("a"));
+            int generated = serializer.getGeneratedSerializers();
+            roundTrip(new DummyEntity("b"));
+            specify(serializer.getGeneratedSerializers(), should.equal(generated));
+        }
+    }
+
+    public class TheClassDescriptors {
+
+        public void areNotWrittenIntoTheSerializedObjects() {
+            Blob serialized = serializer.serialize(new DummyEntity("value"), NO_FILTER);
+            specify(indexOfAscii(serialized, DummyEntity.class.getName()), should.equal(-1));
+        }
+
+        public void areSharedThroughTheDictionaryWithTheSerializersOfOtherNodes() {
+            Blob serialized = serializer.serialize(new DummyEntity("value"), NO_FILTER);
+            GeneratedObjectSerializer otherNode = new GeneratedObjectSerializer(dictionary);
+            specify(((DummyEntity) otherNode.deserialize(serialized, NO_FILTER)).other, should.equal("value"));
+        }
+
+        public void areLookedUpFromTheDictionaryOnlyOncePerClass() {
+            Blob serialized = serializer.serialize(new DummyEntity("a"), NO_FILTER);
+            serializer.serialize(new DummyEntity("b"), NO_FILTER);
+            serializer.deserialize(serialized, NO_FILTER);
+            serializer.deserialize(serialized, NO_FILTER);
+            specify(dictionary.idLookups, should.equal(1));
+            specify(dictionary.descriptorLookups, should.equal(1));
+        }
+    }
+
+    public class ObjectsSerializedBeforeTheirClassChanged {
+
+        private ClassVersion2 result;
+
+        public void create() {
+            ClassVersion1 original = new ClassVersion1();
+            original.kept = 1;
+            original.removed = "removed";
+            Blob serialized = serializer.serialize(original, NO_FILTER);
+
+            // the class has the same name but different fields, when its descriptor is read on the next start
+            final ClassDictionary afterRestart = new ClassDictionary() {
+                public int idOf(Blob descriptor) {
+                    return dictionary.idOf(descriptor);
+                }
+
+                public Blob descriptorOf(int id) {
+                    return replaceAscii(dictionary.descriptorOf(id), ClassVersion1.class.getName(), ClassVersion2.class.getName());
+                }
+            };
+            result = (ClassVersion2) new GeneratedObjectSerializer(afterRestart).deserialize(serialized, NO_FILTER);
+        }
+
+        public void restoreTheFieldsWhichStillExist() {
+            specify(result.kept, should.equal(1));
+        }
+
+        public void leaveTheNewFieldsToTheirDefaultValues() {
+            specify(result.added, should.equal(0L));
+        }
+    }
+
+    public class ObjectsWithCustomSerialization {
+
+        public void areSerializedWithJavaSerialization() {
+            ArrayList<String> original = new ArrayList<>(Arrays.asList("a", "b"));
+            DummyEntity result = (DummyEntity) roundTrip(new DummyEntity(original));
+            specify(result.other, should.equal(original));
+            specify(serializer.getFallbacks(), should.equal(1L));
+        }
+
+        public void failLikeInJavaSerializationWhenNotSerializable() {
+            specify(new Block() {
+                public void run() throws Throwable {
+                    serializer.serialize(new DummyEntity(new Object()), NO_FILTER);
+                }
+            }, should.raise(RuntimeException.class));
+        }
+    }
+
+    public class ObjectsSerializedEarlierWithJavaSerialization {
+
+        public void canBeDeserialized() {
+            Blob java = new JavaSerializationObjectSerializer().serialize(new DummyEntity("value"), NO_FILTER);
+            DummyEntity result = (DummyEntity) serializer.deserialize(java, NO_FILTER);
+            specify(result.other, should.equal("value"));
+        }
+    }
+
+    public class SerializationFilters {
+
+        private final List<Object> replaced = new ArrayList<>();
+        private final List<Object> resolved = new ArrayList<>();
+        private final SerializationFilter filter = new SerializationFilter() {
+            public Object replaceSerialized(Object rootObject, Object obj) {
+                replaced.add(obj);
+                if (obj.equals("original")) {
+                    return "replacedOnSerialization";
+                }
+                return obj;
+            }
+
+            public Object resolveDeserialized(Object obj) {
+                resolved.add(obj);
+                if (obj.equals("replacedOnSerialization")) {
+                    return "resolvedOnDeserialization";
+                }
+                return obj;
+            }
+        };
+
+        public void canReplaceAndResolveObjects() {
+            DummyEntity original = new DummyEntity("original");
+            DummyEntity result = (DummyEntity) serializer.deserialize(serializer.serialize(original, filter), filter);
+            specify(original.other, should.equal("original"));
+            specify(result.other, should.equal("resolvedOnDeserialization"));
+        }
+
+        public void areCalledForEveryObjectIncludingTheRoot() {
+            DummyEntity original = new DummyEntity("original");
+            DummyEntity result = (DummyEntity) serializer.deserialize(serializer.serialize(original, filter), filter);
+            specify(replaced, should.containInOrder(original, "original"));
+            specify(resolved, should.containInOrder("replacedOnSerialization", result));
+        }
+
+        public void areCalledOnlyOnceForSharedObjects() {
+            Node node = new Node();
+            node.next = node;
+            serializer.serialize(node, filter);
+            specify(replaced, should.containExactly(node));
+        }
+    }
+
+
+    private static Blob replaceAscii(Blob blob, String from, String to) {
+        int i = indexOfAscii(blob, from);
+        if (i < 0) {
+            throw new AssertionError("not found: " + from);
+        }
+        byte[] bytes = blob.toByteArray();
+        System.arraycopy(to.getBytes(), 0, bytes, i, from.length());
+        return Blob.wrap(bytes);
+    }
+
+    private static int indexOfAscii(Blob blob, String s) {
+        byte[] bytes = blob.toByteArray();
+        byte[] pattern = s.getBytes();
+        for (int i = 0; i + pattern.length <= bytes.length; i++) {
+            if (Arrays.equals(Arrays.copyOfRange(bytes, i, i + pattern.length), pattern)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static class CountingClassDictionary extends InMemoryClassDictionary {
+        private int idLookups = 0;
+        private int descriptorLookups = 0;
+
+        public synchronized int idOf(Blob descriptor) {
+            idLookups++;
+            return super.idOf(descriptor);
+        }
+
+        public synchronized Blob descriptorOf(int id) {
+            descriptorLookups++;
+            return super.descriptorOf(id);
+        }
+    }
+
+    private enum Constant {
+        FOO, BAR
+    }
+
+    private static class AllKindsOfFields implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private boolean z = true;
+        private byte b = -2;
+        private char c = '€';
+        private short s = -3;
+        private int i = 100000;
+        private long j = Long.MIN_VALUE;
+        private float f = 1.5f;
+        private double d = Math.PI;
+        private String string = "string";
+        private Integer boxed = 42;
+        private Class<?> type = AllKindsOfFields.class;
+        private Class<?> primitiveType = int.class;
+        private Constant constant = Constant.BAR;
+        private byte[] bytes = {1, 2, 3};
+        private long[] longs = {4L, 5L};
+        private String[] strings = {"a", null, "c"};
+        private transient String notSerialized;
+    }
+
+    private static class Superclass implements Serializable {
+        private static final long serialVersionUID = 1L;
+        protected int superValue;
+    }
+
+    private static class Subclass extends Superclass {
+        private static final long serialVersionUID = 1L;
+        private int subValue;
+    }
+
+    private static class Node implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private Node next;
+        private String value;
+    }
+
+    private static class ClassVersion1 implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private int kept;
+        private String removed;
+    }
+
+    private static class ClassVersion2 implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private long added;
+        private int kept;
+    }
+
+    private static class Replaced implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final String value;
+
+        public Replaced(String value) {
+            this.value = value;
+        }
+
+        private Object writeReplace() {
+            return new Replaced(value + "/written");
+        }
+
+        private Object readResolve() {
+            return new Replaced(value + "/read");
+        }
+    }
+}
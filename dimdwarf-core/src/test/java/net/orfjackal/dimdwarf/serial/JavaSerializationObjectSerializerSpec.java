@@ -1,4 +1,4 @@
-// Copyright © 2008-2010 Esko Luontola <www.orfjackal.net>
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
 // This software is released under the Apache License 2.0.
 // The license text is at http://dimdwarf.sourceforge.net/LICENSE
 
@@ -12,11 +12,11 @@ import org.junit.runner.RunWith;
 
 @RunWith(JDaveRunner.class)
 @Group({"fast"})
-public class ObjectSerializerSpec extends Specification<Object> {
+public class JavaSerializationObjectSerializerSpec extends Specification<Object> {
 
     private static final NullSerializationFilter NO_FILTER = new NullSerializationFilter();
 
-    private final ObjectSerializer objectSerializer = new ObjectSerializer();
+    private final ObjectSerializer objectSerializer = new JavaSerializationObjectSerializer();
     private final DummyEntity original = new DummyEntity("original");
 
 
@@ -0,0 +1,89 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.serial;
+
+import net.orfjackal.dimdwarf.api.internal.EntityObjectId;
+import net.orfjackal.dimdwarf.db.Blob;
+import net.orfjackal.dimdwarf.entities.*;
+
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the throughput of {@link GeneratedObjectSerializer} and {@link JavaSerializationObjectSerializer}
+ * when serializing and deserializing a small entity, like the entities are when they are read and flushed.
+ */
+public class ObjectSerializerBenchmark {
+
+    private static final int ITERATIONS = 200000;
+    private static final SerializationFilter NO_FILTER = new NullSerializationFilter();
+
+    public static void main(String[] args) {
+        ObjectSerializer java = new JavaSerializationObjectSerializer();
+        ObjectSerializer generated = new GeneratedObjectSerializer();
+        Object entity = newEntity();
+
+        // warmup
+        for (int i = 0; i < 5; i++) {
+            serialize(java, entity);
+            serialize(generated, entity);
+            deserialize(java, java.serialize(entity, NO_FILTER));
+            deserialize(generated, generated.serialize(entity, NO_FILTER));
+        }
+
+        // measurement
+        System.out.println("\tJava serialization\tgenerated serializers");
+        System.out.println("blob size (bytes)\t"
+                + java.serialize(entity, NO_FILTER).length() + "\t"
+                + generated.serialize(entity, NO_FILTER).length());
+        System.out.println("serialize (ops/ms)\t"
+                + serialize(java, entity) + "\t"
+                + serialize(generated, entity));
+        System.out.println("deserialize (ops/ms)\t"
+                + deserialize(java, java.serialize(entity, NO_FILTER)) + "\t"
+                + deserialize(generated, generated.serialize(entity, NO_FILTER)));
+    }
+
+    private static Object newEntity() {
+        SampleEntity entity = new SampleEntity();
+        entity.name = "sample";
+        entity.counter = 42;
+        entity.timestamp = System.currentTimeMillis();
+        entity.reference = new EntityReferenceImpl<>(new EntityObjectId(123), new DummyEntity());
+        entity.values = new int[]{1, 2, 3, 4, 5};
+        return entity;
+    }
+
+    private static long serialize(ObjectSerializer serializer, Object obj) {
+        long begin = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            serializer.serialize(obj, NO_FILTER);
+        }
+        return opsPerMillis(begin, System.nanoTime());
+    }
+
+    private static long deserialize(ObjectSerializer serializer, Blob serialized) {
+        long begin = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            serializer.deserialize(serialized, NO_FILTER);
+        }
+        return opsPerMillis(begin, System.nanoTime());
+    }
+
+    private static long opsPerMillis(long begin, long end) {
+        long millis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(end - begin));
+        return ITERATIONS / millis;
+    }
+
+    private static class SampleEntity implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private String name;
+        private int counter;
+        private long timestamp;
+        private EntityReferenceImpl<?> reference;
+        private int[] values;
+    }
+}
@@ -0,0 +1,179 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.tasks;
+
+import com.google.inject.*;
+import jdave.*;
+import jdave.junit4.JDaveRunner;
+import net.orfjackal.dimdwarf.modules.*;
+import net.orfjackal.dimdwarf.tx.*;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.*;
+
+@RunWith(JDaveRunner.class)
+@Group({"fast"})
+public class CommitPipelineSpec extends Specification<Object> {
+
+    private Injector injector;
+    private Executor taskContext;
+    private Provider<Transaction> tx;
+    private CommitPipeline pipeline;
+
+    private final CountDownLatch releaseCommit = new CountDownLatch(1);
+    private final CountDownLatch twoCommitsStarted = new CountDownLatch(2);
+    private volatile Thread committedIn = null;
+
+    public void create() throws Exception {
+        injector = Guice.createInjector(
+                new TaskContextModule(),
+                new DatabaseModule(),
+                new EntityModule()
+        );
+        taskContext = injector.getInstance(TaskExecutor.class);
+        tx = injector.getProvider(Transaction.class);
+        pipeline = injector.getInstance(CommitPipeline.class);
+    }
+
+    public void destroy() throws Exception {
+        releaseCommit.countDown();
+        pipeline.shutdown();
+    }
+
+    private void runTaskWhichCommitsWhenReleased() {
+        taskContext.execute(new Runnable() {
+            public void run() {
+                tx.get().join(new CommitWaiter());
+            }
+        });
+    }
+
+    private class CommitWaiter implements InfallibleCommitParticipant {
+
+        public void prepare() throws Throwable {
+        }
+
+        public void commit() {
+            twoCommitsStarted.countDown();
+            try {
+                releaseCommit.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            committedIn = Thread.currentThread();
+        }
+
+        public void rollback() {
+        }
+    }
+
+
+    public class WhenThePipelineIsStopped {
+
+        public void theTransactionIsCommittedInTheWorkerThread() {
+            releaseCommit.countDown();
+            runTaskWhichCommitsWhenReleased();
+            specify(committedIn, should.equal(Thread.currentThread()));
+            specify(pipeline.getWorkerThreadCommits(), should.equal(1L));
+            specify(pipeline.getBackgroundCommits(), should.equal(0L));
+        }
+    }
+
+    public class WhenThePipelineIsRunning {
+
+        public void create() {
+            pipeline.start();
+        }
+
+        public void theWorkerThreadDoesNotWaitForTheCommit() throws InterruptedException {
+            runTaskWhichCommitsWhenReleased();
+            specify(committedIn, should.equal(null));
+
+            releaseCommit.countDown();
+            pipeline.awaitPendingCommits();
+            specify(committedIn != null);
+            specify(committedIn != Thread.currentThread());
+            specify(pipeline.getBackgroundCommits(), should.equal(1L));
+        }
+
+        public void manyTransactionsAreCommittedAtTheSameTime() throws InterruptedException {
+            runTaskWhichCommitsWhenReleased();
+            runTaskWhichCommitsWhenReleased();
+            specify(twoCommitsStarted.await(1, TimeUnit.SECONDS));
+
+            releaseCommit.countDown();
+            pipeline.awaitPendingCommits();
+            specify(pipeline.getBackgroundCommits(), should.equal(2L));
+        }
+
+        public void transactionsWhoseCommitMayFailAreCommittedInTheWorkerThread() {
+            taskContext.execute(new Runnable() {
+                public void run() {
+                    tx.get().join(new TransactionParticipant() {
+                        public void prepare() throws Throwable {
+                        }
+
+                        public void commit() {
+                            committedIn = Thread.currentThread();
+                        }
+
+                        public void rollback() {
+                        }
+                    });
+                }
+            });
+            specify(committedIn, should.equal(Thread.currentThread()));
+            specify(pipeline.getBackgroundCommits(), should.equal(0L));
+        }
+
+        public void failedTransactionsAreRolledBackInTheWorkerThread() {
+            specify(new Block() {
+                public void run() throws Throwable {
+                    taskContext.execute(new Runnable() {
+                        public void run() {
+                            tx.get().join(new CommitWaiter());
+                            tx.get().setRollbackOnly();
+                        }
+                    });
+                }
+            }, should.raise(TransactionException.class));
+            specify(pipeline.getBackgroundCommits(), should.equal(0L));
+        }
+
+        public void shuttingDownWaitsForThePendingCommits() {
+            runTaskWhichCommitsWhenReleased();
+            releaseCommit.countDown();
+            pipeline.shutdown();
+            specify(committedIn != null);
+            specify(pipeline.isRunning(), should.equal(false));
+        }
+
+        public void whenTooManyCommitsArePendingTheWorkerThreadCommitsByItself() throws InterruptedException {
+            pipeline.shutdown();
+            pipeline = new CommitPipeline(1, 1);
+            pipeline.start();
+            TransactionCoordinator blocked = new TransactionContext();
+            blocked.getTransaction().join(new CommitWaiter());
+            blocked.prepare();
+            pipeline.commit(blocked);
+            while (pipeline.getPendingCommits() > 0) {
+                Thread.yield();
+            }
+            pipeline.commit(preparedTransaction());  // waits in the queue
+            pipeline.commit(preparedTransaction());  // does not fit in the queue
+            specify(pipeline.getWorkerThreadCommits(), should.equal(1L));
+
+            releaseCommit.countDown();
+            pipeline.awaitPendingCommits();
+            specify(pipeline.getBackgroundCommits(), should.equal(2L));
+        }
+
+        private TransactionCoordinator preparedTransaction() {
+            TransactionCoordinator tx = new TransactionContext();
+            tx.prepare();
+            return tx;
+        }
+    }
+}
@@ -0,0 +1,241 @@
+// Copyright © 2008-2013 Esko Luontola <www.orfjackal.net>
+// This software is released under the Apache License 2.0.
+// The license text is at http://dimdwarf.sourceforge.net/LICENSE
+
+package net.orfjackal.dimdwarf.tasks;
+
+import jdave.*;
+import jdave.junit4.JDaveRunner;
+import net.orfjackal.dimdwarf.db.*;
+import net.orfjackal.dimdwarf.db.common.ContentionManager;
+import net.orfjackal.dimdwarf.scheduler.DummyTask;
+import net.orfjackal.dimdwarf.util.ThrowingRunnable;
+import org.jmock.Expectations;
+import org.junit.runner.RunWith;
+import org.slf4j.Logger;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+@RunWith(JDaveRunner.class)
+@Group({"fast"})
+public class HotKeySerializingTaskExecutorSpec extends Specification<Object> {
+
+    private HotKeySerializingTaskExecutor executor;
+    private Executor backingExecutor;
+    private ContentionManager contention;
+    private Logger logger;
+
+    private Blob hotKey = Blob.fromBytes(new byte[]{1});
+    private Blob otherKey = Blob.fromBytes(new byte[]{2});
+
+    private Exception nonRetryable = new GivenUpOnTaskException(new IllegalArgumentException());
+    private Exception retryable = new GivenUpOnTaskException(new OptimisticLockException("conflict", Collections.singleton(hotKey)));
+    private Exception retryableOnOtherKey = new GivenUpOnTaskException(new OptimisticLockException("conflict", Collections.singleton(otherKey)));
+    private Exception retryableWithoutKeys = new GivenUpOnTaskException(new OptimisticLockException("conflict"));
+
+    public void create() throws Exception {
+        contention = new ContentionManager(ContentionManager.DEFAULT_MAX_HOT_KEYS, 10, TimeUnit.MILLISECONDS);
+    }
+
+    private static void runInNewThread(final Runnable command, final Executor executor) {
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                executor.execute(command);
+            }
+        });
+        t.start();
+    }
+
+
+    public class WhenATaskIsExecuted {
+        private DummyTask task = new DummyTask("A");
+
+        public void create() {
+            backingExecutor = mock(Executor.class);
+            logger = mock(Logger.class);
+            executor = new HotKeySerializingTaskExecutor(backingExecutor, contention, logger);
+        }
+
+        public void ifItIsSuccessfulThenItIsExecutedOnce() {
+            checking(new Expectations() {{
+                one(backingExecutor).execute(task);
+            }});
+            executor.execute(task);
+        }
+
+        public void ifItFailsWithANonRetryableTaskThenItIsNotRetried() {
+            checking(new Expectations() {{
+                one(backingExecutor).execute(task); will(throwException(nonRetryable));
+            }});
+            specify(new Block() {
+                public void run() throws Throwable {
+                    executor.execute(task);
+                }
+            }, should.raise(GivenUpOnTaskException.class));
+        }
+
+        public void ifItFailsWithARetryableTaskThenItIsRetriedOnceWhileHoldingItsConflictingKeys() {
+            final AtomicBoolean wasSerialized = new AtomicBoolean(false);
+            backingExecutor = new Executor() {
+                private int tries = 0;
+
+                public void execute(Runnable command) {
+                    if (++tries == 1) {
+                        throw (RuntimeException) retryable;
+                    }
+                    wasSerialized.set(isLockedByAnotherThread(hotKey));
+                }
+            };
+            executor = new HotKeySerializingTaskExecutor(backingExecutor, contention, dummy(Logger.class));
+            executor.execute(task);
+            specify(wasSerialized.get());
+            specify(contention.getSerializedTasks(), should.equal(1L));
+            specify(contention.isHot(hotKey));
+        }
+    }
+
+    private boolean isLockedByAnotherThread(final Blob key) {
+        final AtomicBoolean locked = new AtomicBoolean(false);
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                ContentionManager.TransactionLocks locks = contention.newTransactionLocks();
+                try {
+                    locks.accessing(key);
+                } catch (OptimisticLockException e) {
+                    locked.set(true);
+                } finally {
+                    locks.unlockAll();
+                }
+            }
+        });
+        t.start();
+        try {
+            t.join();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        return locked.get();
+    }
+
+    public class WhenARetriedTaskFailsAgain {
+        private DummyTask task = new DummyTask("A");
+        private DummyTask otherTask = new DummyTask("B");
+        private Exception[] failures;
+        private final AtomicBoolean otherTasksWereRunnable = new AtomicBoolean(true);
+        private final AtomicBoolean heldAllKeys = new AtomicBoolean(false);
+        private int tries = 0;
+
+        public void create() {
+            backingExecutor = new Executor() {
+                public void execute(Runnable command) {
+                    if (command == otherTask) {
+                        return;
+                    }
+                    if (tries < failures.length) {
+                        throw (RuntimeException) failures[tries++];
+                    }
+                    tries++;
+                    otherTasksWereRunnable.set(otherTaskCanRunInParallel());
+                    heldAllKeys.set(isLockedByAnotherThread(hotKey) && isLockedByAnotherThread(otherKey));
+                }
+            };
+            executor = new HotKeySerializingTaskExecutor(backingExecutor, contention, dummy(Logger.class));
+        }
+
+        private boolean otherTaskCanRunInParallel() {
+            final CountDownLatch finished = new CountDownLatch(1);
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    executor.execute(otherTask);
+                    finished.countDown();
+                }
+            });
+            t.start();
+            try {
+                return finished.await(50, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        public void ifItsConflictingKeysAreNotKnownThenItIsRetriedWithoutSerializing() {
+            failures = new Exception[]{retryableWithoutKeys};
+            executor.execute(task);
+            specify(tries, should.equal(2));
+            specify(otherTasksWereRunnable.get());
+            specify(contention.getSerializedTasks(), should.equal(0L));
+        }
+
+        public void itIsRetriedHoldingTheKeysOfAllItsConflicts() {
+            failures = new Exception[]{retryable, retryableOnOtherKey};
+            executor.execute(task);
+            specify(tries, should.equal(3));
+            specify(heldAllKeys.get());
+            specify(contention.getSerializedTasks(), should.equal(2L));
+        }
+
+        public void theOtherTasksMayRunWhileItIsRetried() {
+            failures = new Exception[]{retryable, retryableOnOtherKey};
+            executor.execute(task);
+            specify(otherTasksWereRunnable.get());
+        }
+
+        public void itIsGivenUpAfterTooManyRetries() {
+            failures = new Exception[HotKeySerializingTaskExecutor.MAX_SERIALIZED_RETRIES + 1];
+            Arrays.fill(failures, retryable);
+            specify(new Block() {
+                public void run() throws Throwable {
+                    executor.execute(task);
+                }
+            }, should.raise(GivenUpOnTaskException.class));
+            specify(tries, should.equal(HotKeySerializingTaskExecutor.MAX_SERIALIZED_RETRIES + 1));
+        }
+    }
+
+    public class WhenManyTasksAreExecutedConcurrently {
+        private CountDownLatch task1Running = new CountDownLatch(1);
+        private CountDownLatch task2Finished = new CountDownLatch(1);
+        private CountDownLatch task1MayFinish = new CountDownLatch(1);
+
+        public void create() {
+            backingExecutor = new Executor() {
+                public void execute(Runnable command) {
+                    command.run();
+                }
+            };
+            executor = new HotKeySerializingTaskExecutor(backingExecutor, contention, dummy(Logger.class));
+        }
+
+        public void theTasksWhichDoNotAccessTheHotKeysRunInParallelWithARetriedTask() throws InterruptedException {
+            Runnable task1 = new ThrowingRunnable() {
+                private int tries = 0;
+
+                public void doRun() throws Throwable {
+                    if (++tries == 1) {
+                        throw retryable;
+                    }
+                    task1Running.countDown();
+                    task1MayFinish.await();
+                }
+            };
+            Runnable task2 = new ThrowingRunnable() {
+                public void doRun() throws Throwable {
+                    ContentionManager.TransactionLocks locks = contention.newTransactionLocks();
+                    try {
+                        locks.accessing(otherKey);
+                    } finally {
+                        locks.unlockAll();
+                    }
+                    task2Finished.countDown();
+                }
+            };
+            runInNewThread(task1, executor);
+            task1Running.await();
+            runInNewThread(task2, executor);
+            specify(task2Finished.await(1, TimeUnit.SECONDS));
+            task1MayFinish.countDown();
+        }
+    }
+}